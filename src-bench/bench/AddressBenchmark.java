@@ -0,0 +1,102 @@
+package bench;
+
+import ibis.smartsockets.direct.DirectSocketAddress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the cost of encoding, decoding and comparing DirectSocketAddresses.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AddressBenchmark {
+
+    @Param({ "192.168.1.5-5000",
+        "130.37.193.15-44672/192.168.1.5-5000~user",
+        "130.37.193.15-44672/192.168.1.5-5000/10.0.0.1-5000"
+            + "/[fe80::fc:ff:fe00:1]-5000#0.1.2.3.4.5.6.7.8.9.a.b.c.d.e.f" })
+    public String address;
+
+    private DirectSocketAddress a;
+    private DirectSocketAddress b;
+
+    private byte [] bytes;
+    private byte [] stream;
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    @Setup
+    public void setup() throws Exception {
+        a = DirectSocketAddress.getByAddress(address);
+
+        // An equal address that is a different object.
+        b = DirectSocketAddress.fromBytes(a.getAddress());
+
+        bytes = a.getAddress();
+
+        out.reset();
+
+        DataOutputStream dout = new DataOutputStream(out);
+        DirectSocketAddress.write(a, dout);
+        dout.flush();
+        stream = out.toByteArray();
+    }
+
+    @Benchmark
+    public byte [] toBytes() {
+        return a.getAddress();
+    }
+
+    @Benchmark
+    public DirectSocketAddress fromBytes() throws Exception {
+        return DirectSocketAddress.fromBytes(bytes);
+    }
+
+    @Benchmark
+    public int write() throws IOException {
+        out.reset();
+        DirectSocketAddress.write(a, new DataOutputStream(out));
+        return out.size();
+    }
+
+    @Benchmark
+    public DirectSocketAddress read() throws IOException {
+        return DirectSocketAddress.read(new DataInputStream(
+                new ByteArrayInputStream(stream)));
+    }
+
+    @Benchmark
+    public String toText() {
+        return a.toString();
+    }
+
+    @Benchmark
+    public DirectSocketAddress parse() throws Exception {
+        return DirectSocketAddress.getByAddress(address);
+    }
+
+    @Benchmark
+    public boolean equalTo() {
+        return a.equals(b);
+    }
+
+    @Benchmark
+    public int hash() {
+        return b.hashCode();
+    }
+}
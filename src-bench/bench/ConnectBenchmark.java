@@ -0,0 +1,69 @@
+package bench;
+
+import ibis.smartsockets.virtual.VirtualServerSocket;
+import ibis.smartsockets.virtual.VirtualSocket;
+import ibis.smartsockets.virtual.VirtualSocketAddress;
+import ibis.smartsockets.virtual.VirtualSocketFactory;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures the time it takes to set up (and close) a virtual connection
+ * using a single connect module.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ConnectBenchmark {
+
+    @Param({ "direct", "reverse", "hubrouted" })
+    public String module;
+
+    private Loopback loopback;
+
+    private VirtualSocketFactory client;
+
+    private VirtualServerSocket server;
+
+    private VirtualSocketAddress target;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        loopback = new Loopback();
+
+        VirtualSocketFactory f = loopback.createFactory(null, false);
+        server = f.createServerSocket(0, 100, null);
+        target = server.getLocalSocketAddress();
+
+        Loopback.acceptAndClose(server);
+
+        client = loopback.createFactory(module, false);
+
+        // Give the hubs time to learn about the new factories.
+        Thread.sleep(2000);
+    }
+
+    @Benchmark
+    public void connect() throws IOException {
+        VirtualSocket s = client.createClientSocket(target, 10000, null);
+        s.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.close();
+        loopback.end();
+    }
+}
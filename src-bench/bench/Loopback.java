@@ -0,0 +1,158 @@
+package bench;
+
+import ibis.smartsockets.SmartSocketsProperties;
+import ibis.smartsockets.hub.Hub;
+import ibis.smartsockets.util.TypedProperties;
+import ibis.smartsockets.virtual.InitializationException;
+import ibis.smartsockets.virtual.VirtualServerSocket;
+import ibis.smartsockets.virtual.VirtualSocket;
+import ibis.smartsockets.virtual.VirtualSocketFactory;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * An in-process SmartSockets setup used by the benchmarks: a single hub and
+ * any number of VirtualSocketFactories connected to it, all on this machine.
+ */
+final class Loopback {
+
+    static final String ALL_MODULES = "direct,reverse,hubrouted";
+
+    private final Hub hub;
+
+    private final ArrayList<VirtualSocketFactory> factories =
+        new ArrayList<VirtualSocketFactory>();
+
+    Loopback() throws IOException {
+
+        TypedProperties p = SmartSocketsProperties.getDefaultProperties();
+        p.put(SmartSocketsProperties.HUB_PORT, "0");
+        p.put(SmartSocketsProperties.HUB_SSH_ALLOWED, "false");
+
+        hub = new Hub(p);
+    }
+
+    /**
+     * Creates a factory that only uses the given module (if not null) to set
+     * up connections. All modules are loaded, so the factory can accept
+     * connections set up by any of them.
+     */
+    VirtualSocketFactory createFactory(String module, boolean multiplex)
+        throws InitializationException {
+
+        HashMap<String, Object> p = new HashMap<String, Object>();
+
+        p.put(SmartSocketsProperties.HUB_ADDRESSES,
+                hub.getHubAddress().toString());
+        p.put(SmartSocketsProperties.MODULES_DEFINE, ALL_MODULES);
+        p.put(SmartSocketsProperties.REVERSE_CONNECT_SELF, "true");
+        p.put(SmartSocketsProperties.MULTIPLEX, Boolean.toString(multiplex));
+
+        if (module != null) {
+            // All connections go to the 'default' cluster, so this
+            // determines the module used by this factory.
+            p.put(SmartSocketsProperties.CLUSTER_MEMBER, "bench");
+            p.put(SmartSocketsProperties.CLUSTER_DEFINE, "bench");
+            p.put(SmartSocketsProperties.CLUSTER_PREFIX + "bench."
+                    + SmartSocketsProperties.CLUSTER_DEFAULT, module);
+        }
+
+        VirtualSocketFactory f = VirtualSocketFactory.createSocketFactory(p,
+                true);
+
+        factories.add(f);
+        return f;
+    }
+
+    /**
+     * Accepts connections on the given server socket and closes them.
+     */
+    static void acceptAndClose(final VirtualServerSocket ss) {
+        start(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        ss.accept().close();
+                    }
+                } catch (Exception e) {
+                    // server socket closed
+                }
+            }
+        });
+    }
+
+    /**
+     * Accepts connections on the given server socket. Each connection starts
+     * with the message size and the number of messages to read before a
+     * single byte reply is sent. If this number is 0, each message is echoed
+     * instead.
+     */
+    static void acceptAndServe(final VirtualServerSocket ss) {
+        start(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        serve(ss.accept());
+                    }
+                } catch (Exception e) {
+                    // server socket closed
+                }
+            }
+        });
+    }
+
+    private static void serve(final VirtualSocket s) {
+        start(new Runnable() {
+            public void run() {
+                try {
+                    InputStream in = s.getInputStream();
+                    OutputStream out = s.getOutputStream();
+
+                    DataInputStream din = new DataInputStream(in);
+
+                    int size = din.readInt();
+                    int batch = din.readInt();
+
+                    byte [] buffer = new byte[size];
+
+                    while (true) {
+                        if (batch == 0) {
+                            din.readFully(buffer);
+                            out.write(buffer);
+                        } else {
+                            for (int i=0;i<batch;i++) {
+                                din.readFully(buffer);
+                            }
+                            out.write(1);
+                        }
+                        out.flush();
+                    }
+                } catch (Exception e) {
+                    // connection closed
+                } finally {
+                    VirtualSocketFactory.close(s, null, null);
+                }
+            }
+        });
+    }
+
+    private static void start(Runnable r) {
+        Thread t = new Thread(r);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    void end() {
+
+        for (VirtualSocketFactory f : factories) {
+            f.end();
+        }
+
+        hub.end();
+    }
+}
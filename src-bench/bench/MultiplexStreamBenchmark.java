@@ -0,0 +1,155 @@
+package bench;
+
+import ibis.smartsockets.util.MultiplexStreamFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures how the throughput of a MultiplexStreamFactory scales with the
+ * number of streams that send data at the same time. Two factories are
+ * connected by a loopback TCP connection. Each operation sends one message on
+ * every stream, and waits until all of them have been received.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MultiplexStreamBenchmark {
+
+    @Param({ "1", "2", "4", "8", "16" })
+    public int streams;
+
+    @Param({ "1024", "65536" })
+    public int size;
+
+    private Socket s1;
+    private Socket s2;
+
+    private MultiplexStreamFactory sender;
+    private MultiplexStreamFactory receiver;
+
+    private OutputStream [] out;
+    private InputStream [] in;
+
+    private Thread [] writers;
+
+    private byte [] message;
+    private byte [] buffer;
+
+    // Number of messages every writer should send.
+    private int todo;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+
+        ServerSocket ss = new ServerSocket(0, 1, InetAddress.getByName(null));
+
+        s1 = new Socket(ss.getInetAddress(), ss.getLocalPort());
+        s2 = ss.accept();
+        ss.close();
+
+        s1.setTcpNoDelay(true);
+        s2.setTcpNoDelay(true);
+
+        sender = new MultiplexStreamFactory(s1.getInputStream(),
+                s1.getOutputStream());
+        receiver = new MultiplexStreamFactory(s2.getInputStream(),
+                s2.getOutputStream());
+
+        out = new OutputStream[streams];
+        in = new InputStream[streams];
+
+        for (int i=0;i<streams;i++) {
+            out[i] = sender.createOutputStream(i+1);
+            in[i] = receiver.createInputStream(i+1);
+        }
+
+        message = new byte[size];
+        buffer = new byte[size];
+
+        writers = new Thread[streams];
+
+        for (int i=0;i<streams;i++) {
+            final OutputStream o = out[i];
+
+            writers[i] = new Thread() {
+                public void run() {
+                    write(o);
+                }
+            };
+
+            writers[i].setDaemon(true);
+            writers[i].start();
+        }
+    }
+
+    private void write(OutputStream o) {
+
+        int done = 0;
+
+        try {
+            while (true) {
+                synchronized (this) {
+                    while (todo == done) {
+                        wait();
+                    }
+                }
+
+                o.write(message);
+                o.flush();
+                done++;
+            }
+        } catch (Exception e) {
+            // stopped
+        }
+    }
+
+    @Benchmark
+    public void send() throws IOException {
+
+        synchronized (this) {
+            todo++;
+            notifyAll();
+        }
+
+        for (int i=0;i<streams;i++) {
+            int read = 0;
+
+            while (read < size) {
+                int n = in[i].read(buffer, 0, size - read);
+
+                if (n == -1) {
+                    throw new IOException("Stream closed");
+                }
+
+                read += n;
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (Thread t : writers) {
+            t.interrupt();
+        }
+
+        s1.close();
+        s2.close();
+    }
+}
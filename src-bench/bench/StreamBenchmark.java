@@ -0,0 +1,130 @@
+package bench;
+
+import ibis.smartsockets.virtual.VirtualServerSocket;
+import ibis.smartsockets.virtual.VirtualSocket;
+import ibis.smartsockets.virtual.VirtualSocketFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures the latency and throughput of a single virtual connection, for
+ * connections created by the direct or hubrouted module, and for multiplexed
+ * connections (which use a direct carrier).
+ *
+ * The latency is the round trip time of a message of the given size. The
+ * throughput is the number of messages per second that can be sent, so the
+ * bandwidth is the score times the message size.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StreamBenchmark {
+
+    private static final int BATCH = 64;
+
+    @Param({ "direct", "hubrouted", "multiplex" })
+    public String path;
+
+    @Param({ "16", "1024", "16384", "262144" })
+    public int size;
+
+    private Loopback loopback;
+
+    private VirtualServerSocket server;
+
+    private VirtualSocket echo;
+    private InputStream echoIn;
+    private OutputStream echoOut;
+
+    private VirtualSocket sink;
+    private InputStream sinkIn;
+    private OutputStream sinkOut;
+
+    private byte [] message;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+
+        boolean multiplex = path.equals("multiplex");
+        String module = multiplex ? "direct" : path;
+
+        loopback = new Loopback();
+
+        VirtualSocketFactory f = loopback.createFactory(null, multiplex);
+        server = f.createServerSocket(0, 100, null);
+
+        Loopback.acceptAndServe(server);
+
+        VirtualSocketFactory client = loopback.createFactory(module,
+                multiplex);
+
+        // Give the hubs time to learn about the new factories.
+        Thread.sleep(2000);
+
+        message = new byte[size];
+
+        echo = client.createClientSocket(server.getLocalSocketAddress(),
+                10000, null);
+        echoIn = echo.getInputStream();
+        echoOut = echo.getOutputStream();
+        start(echoOut, 0);
+
+        sink = client.createClientSocket(server.getLocalSocketAddress(),
+                10000, null);
+        sinkIn = sink.getInputStream();
+        sinkOut = sink.getOutputStream();
+        start(sinkOut, BATCH);
+    }
+
+    private void start(OutputStream out, int batch) throws IOException {
+        DataOutputStream dout = new DataOutputStream(out);
+        dout.writeInt(size);
+        dout.writeInt(batch);
+        dout.flush();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public void roundTrip() throws IOException {
+        echoOut.write(message);
+        echoOut.flush();
+        new DataInputStream(echoIn).readFully(message);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OperationsPerInvocation(BATCH)
+    public int stream() throws IOException {
+
+        for (int i=0;i<BATCH;i++) {
+            sinkOut.write(message);
+        }
+
+        sinkOut.flush();
+        return sinkIn.read();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        VirtualSocketFactory.close(echo, echoOut, echoIn);
+        VirtualSocketFactory.close(sink, sinkOut, sinkIn);
+        server.close();
+        loopback.end();
+    }
+}
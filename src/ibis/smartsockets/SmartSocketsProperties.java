@@ -97,6 +97,60 @@ public final class SmartSocketsProperties {
      */
     public static final String ACCEPT_TIMEOUT = PREFIX + "timeout.accept";
 
+    /**
+     * Keep idle client sockets released by the application in a pool, so
+     * they can be reused by later connects to the same target (false).
+     * @see ibis.smartsockets.virtual.VirtualSocketFactory
+     */
+    public static final String POOL = PREFIX + "pool";
+
+    /**
+     * Maximum time (in milliseconds) a socket may be idle in the pool
+     * (30000).
+     * @see ibis.smartsockets.virtual.VirtualSocketFactory
+     */
+    public static final String POOL_IDLE = PREFIX + "pool.idle";
+
+    /**
+     * Maximum age (in milliseconds) of a socket in the pool (300000).
+     * @see ibis.smartsockets.virtual.VirtualSocketFactory
+     */
+    public static final String POOL_TTL = PREFIX + "pool.ttl";
+
+    /**
+     * Maximum number of idle sockets in the pool per target (4).
+     * @see ibis.smartsockets.virtual.VirtualSocketFactory
+     */
+    public static final String POOL_MAX = PREFIX + "pool.max";
+
+    /**
+     * Multiplex all virtual connections to the same machine over a single
+     * virtual connection (false).
+     * @see ibis.smartsockets.virtual.VirtualSocketFactory
+     */
+    public static final String MULTIPLEX = PREFIX + "multiplex";
+
+    /**
+     * Virtual port used to accept multiplexed connections (43).
+     * @see ibis.smartsockets.virtual.VirtualSocketFactory
+     */
+    public static final String MULTIPLEX_PORT = PREFIX + "multiplex.port";
+
+    /**
+     * Number of bytes a multiplexed connection may send before the receiver
+     * must return credit (65536).
+     * @see ibis.smartsockets.virtual.VirtualSocketFactory
+     */
+    public static final String MULTIPLEX_WINDOW = PREFIX + "multiplex.window";
+
+    /**
+     * Connect to the hub and start the modules that need it in the
+     * background, so the VirtualSocketFactory can be used for direct
+     * connections right away (false).
+     * @see ibis.smartsockets.virtual.VirtualSocketFactory
+     */
+    public static final String STARTUP_ASYNC = PREFIX + "startup.async";
+
     /** Prefix for all SmartSockets "external" properties. */
     public static final String EXTERNAL_PREFIX = PREFIX + "external.";
 
@@ -239,6 +293,107 @@ public final class SmartSocketsProperties {
     public static final String HUB_STATS_INTERVAL =
             HUB_PREFIX + "statistics.interval";
 
+    /**
+     * Should the hub handle its connections using a small number of NIO
+     * selector threads instead of a thread per connection ? (false)
+     * @see ibis.smartsockets.hub.Hub
+     */
+    public static final String HUB_NIO = HUB_PREFIX + "nio";
+
+    /**
+     * Number of NIO selector threads used by the hub. (2)
+     * @see ibis.smartsockets.hub.Hub
+     */
+    public static final String HUB_NIO_SELECTORS = HUB_PREFIX + "nio.selectors";
+
+    /**
+     * Maximum time (in milliseconds) the hub may delay a message in order to
+     * combine it with other messages on the same connection. (0)
+     * @see ibis.smartsockets.util.CoalescingOutputStream
+     */
+    public static final String HUB_LINGER = HUB_PREFIX + "linger";
+
+    /**
+     * Should hubs gossip only the changes to the hub descriptions, instead of
+     * the entire descriptions ? This is only done with hubs that announce
+     * support for it when the connection is set up. (true)
+     * @see ibis.smartsockets.hub.connections.HubConnection
+     */
+    public static final String HUB_GOSSIP_DELTA = HUB_PREFIX + "gossip.delta";
+
+    /**
+     * Should the addresses send over the connections of a hub be replaced by
+     * small numbers after their first use ? This is only done on connections
+     * to hubs and clients that announce support for it when the connection is
+     * set up. (false)
+     * @see ibis.smartsockets.hub.connections.AddressDictionary
+     */
+    public static final String HUB_ADDRESS_DICTIONARY =
+            HUB_PREFIX + "addressdictionary";
+
+    /**
+     * Number of extra connections (stripes) a hub creates to each hub it
+     * connects to. The virtual connections between the hubs are spread over
+     * the stripes, while the gossip and client messages keep using the
+     * first connection. A hub accepts at most this number of stripes. (0)
+     * @see ibis.smartsockets.hub.Connections
+     */
+    public static final String HUB_STRIPES = HUB_PREFIX + "stripes";
+
+    /**
+     * Maximum number of virtual connections routed through a hub, or 0 for
+     * no limit. (0)
+     * @see ibis.smartsockets.hub.connections.VirtualConnections
+     */
+    public static final String HUB_VIRTUAL_MAX = HUB_PREFIX + "virtual.max";
+
+    /**
+     * Maximum buffer space (in bytes) that the virtual connections routed
+     * through a hub may claim, or 0 for no limit. Each virtual connection
+     * claims its fragment size in both directions. (0)
+     * @see ibis.smartsockets.hub.connections.VirtualConnections
+     */
+    public static final String HUB_VIRTUAL_BYTES =
+            HUB_PREFIX + "virtual.bytes";
+
+    /**
+     * Maximum number of virtual connections a hub creates per second, or 0
+     * for no limit. (0)
+     * @see ibis.smartsockets.hub.connections.VirtualConnections
+     */
+    public static final String HUB_VIRTUAL_RATE = HUB_PREFIX + "virtual.rate";
+
+    /**
+     * Maximum number of virtual connections a single client of a hub may
+     * create, or 0 for no limit. (0)
+     * @see ibis.smartsockets.hub.connections.VirtualConnections
+     */
+    public static final String HUB_VIRTUAL_CLIENT_MAX =
+            HUB_PREFIX + "virtual.client.max";
+
+    /**
+     * Maximum buffer space (in bytes) that the virtual connections created
+     * by a single client of a hub may claim, or 0 for no limit. (0)
+     * @see ibis.smartsockets.hub.connections.VirtualConnections
+     */
+    public static final String HUB_VIRTUAL_CLIENT_BYTES =
+            HUB_PREFIX + "virtual.client.bytes";
+
+    /**
+     * Maximum number of virtual connections a single client of a hub may
+     * create per second, or 0 for no limit. (0)
+     * @see ibis.smartsockets.hub.connections.VirtualConnections
+     */
+    public static final String HUB_VIRTUAL_CLIENT_RATE =
+            HUB_PREFIX + "virtual.client.rate";
+
+    /**
+     * Maximum size (in bytes) of the pool of idle buffers a hub keeps for
+     * relaying virtual messages. (4194304)
+     * @see ibis.smartsockets.hub.connections.VirtualConnections
+     */
+    public static final String HUB_VIRTUAL_POOL = HUB_PREFIX + "virtual.pool";
+
     /**
      * Should the hub delegate connection accepts ? (false)
      * @see ibis.smartsockets.hub.Hub
@@ -298,6 +453,21 @@ public final class SmartSocketsProperties {
      */
     public static final String SL_RETRIES = SL_PREFIX + "retries";
 
+    /**
+     * Maximum time (in milliseconds) the servicelink may delay a message in
+     * order to combine it with other messages to the hub. (0)
+     * @see ibis.smartsockets.util.CoalescingOutputStream
+     */
+    public static final String SL_LINGER = SL_PREFIX + "linger";
+
+    /**
+     * Number of hubs the servicelink connects to at the same time (at most
+     * 8). New hub routed connections are spread over these hubs, and when
+     * one of them fails the others are used straight away. (1)
+     * @see ibis.smartsockets.hub.servicelink.ServiceLink
+     */
+    public static final String SL_HUBS = SL_PREFIX + "hubs";
+
     /** Prefix for all SmartSockets "viz" (visualization) properties. */
     public static final String VIZ_PREFIX           = PREFIX + "viz.";
 
@@ -331,6 +501,25 @@ public final class SmartSocketsProperties {
      */
     public static final String MODULES_SKIP = MODULES_PREFIX + "skip";
 
+    /**
+     * Race the modules when creating a connection, instead of trying them one
+     * at a time (false).
+     * <p>
+     * The modules are started in order, each with a head start on the next
+     * one. The first connection that is accepted is used, the others are
+     * closed.
+     * @see ibis.smartsockets.virtual.VirtualSocketFactory
+     */
+    public static final String MODULES_RACE = MODULES_PREFIX + "race";
+
+    /**
+     * The head start (in milliseconds) each module gets on the next one when
+     * racing the modules (500).
+     * @see ibis.smartsockets.virtual.VirtualSocketFactory
+     */
+    public static final String MODULES_RACE_DELAY =
+            MODULES_PREFIX + "race.delay";
+
     /**
      * Prefix for all SmartSockets "modules.direct" properties.
      * @see ibis.smartsockets.direct.DirectSocketFactory
@@ -346,6 +535,32 @@ public final class SmartSocketsProperties {
      */
     public static final String DIRECT_BACKLOG = DIRECT_PREFIX + "backlog";
 
+    /**
+     * The maximum number of incoming connections for which a
+     * DirectServerSocket performs the handshake concurrently, including the
+     * connections waiting to be accepted (16). If 1, the handshake is done by
+     * the thread calling accept.
+     * @see ibis.smartsockets.direct.DirectServerSocket
+     * @see ibis.smartsockets.direct.DirectSocketFactory
+     */
+    public static final String DIRECT_HANDSHAKES =
+            DIRECT_PREFIX + "handshakes";
+
+    /**
+     * Use the single exchange handshake when connecting to a
+     * DirectServerSocket (false). The client sends its address and user data
+     * without waiting for the server, and the server answers once with its
+     * address and whether it accepts the connection. The server waits for
+     * the verdict of the client before it accepts the connection. Servers
+     * that do not support this handshake are recognized by their answer,
+     * after which the old handshake is completed, but they do not wait for
+     * the verdict of the client, so all servers should support it before
+     * this is enabled.
+     * @see ibis.smartsockets.direct.DirectSocketFactory
+     */
+    public static final String DIRECT_FAST_HANDSHAKE =
+            DIRECT_PREFIX + "handshake.fast";
+
     /**
      * The timeout used by DirectSocketFactory in connection setup (5000).
      * @see ibis.smartsockets.direct.DirectSocketFactory
@@ -364,6 +579,25 @@ public final class SmartSocketsProperties {
     public static final String DIRECT_LOCAL_TIMEOUT =
             DIRECT_PREFIX + "timeout.local";
 
+    /**
+     * Race the connection attempts to a machine with multiple addresses,
+     * instead of trying one address at a time (false).
+     * <p>
+     * The attempts are started in order of preference, with a small delay in
+     * between. The first attempt to complete is used, and all others are
+     * abandoned.
+     * @see ibis.smartsockets.direct.DirectSocketFactory
+     */
+    public static final String DIRECT_RACE = DIRECT_PREFIX + "race";
+
+    /**
+     * The delay (in milliseconds) between starting two connection attempts
+     * when racing (250). The next attempt is started earlier if an attempt
+     * fails.
+     * @see ibis.smartsockets.direct.DirectSocketFactory
+     */
+    public static final String DIRECT_RACE_DELAY = DIRECT_PREFIX + "race.delay";
+
     /**
      * The size of the send buffer used for direct connections.
      * @see ibis.smartsockets.direct.DirectSocketFactory
@@ -380,6 +614,23 @@ public final class SmartSocketsProperties {
     public static final String DIRECT_RECEIVE_BUFFER =
             DIRECT_PREFIX + "receivebuffer";
 
+    /**
+     * File in which the network environment of this machine (MAC address,
+     * netmasks, external address) is saved, so it does not have to be
+     * determined again by the next run (not set).
+     * @see ibis.smartsockets.direct.DirectSocketFactory
+     */
+    public static final String DIRECT_ENVIRONMENT_CACHE =
+            DIRECT_PREFIX + "environment.cache";
+
+    /**
+     * Time (in seconds) for which a saved network environment remains valid
+     * (3600).
+     * @see ibis.smartsockets.direct.DirectSocketFactory
+     */
+    public static final String DIRECT_ENVIRONMENT_CACHE_TTL =
+            DIRECT_PREFIX + "environment.cache.ttl";
+
     /**
      * Count the bytes sent by a DirectVirtualSocket (false).
      * @see ibis.smartsockets.virtual.modules.direct.Direct
@@ -445,6 +696,19 @@ public final class SmartSocketsProperties {
     public static final String REVERSE_CONNECT_SELF =
             REVERSE_PREFIX + "selfconnect";
 
+    /**
+     * Prefix for all SmartSockets "modules.splice" properties.
+     * @see ibis.smartsockets.virtual.modules.splice.Splice
+     */
+    public static final String SPLICE_PREFIX = MODULES_PREFIX + "splice.";
+
+    /**
+     * Time (in seconds) for which the profile of the NAT port mapping of a
+     * range of local ports remains valid (300).
+     * @see ibis.smartsockets.virtual.modules.splice.Splice
+     */
+    public static final String SPLICE_NAT_TTL = SPLICE_PREFIX + "nat.ttl";
+
     /**
      * Prefix for all SmartSockets "modules.hubrouted" properties.
      * @see ibis.smartsockets.virtual.modules.hubrouted
@@ -458,6 +722,15 @@ public final class SmartSocketsProperties {
      */
     public static final String ROUTED_BUFFER = ROUTED_PREFIX + "size.buffer";
 
+    /**
+     * Maximum buffer size for each virtual (hubrouted) connection (in bytes).
+     * The window of a connection starts at the buffer size, and grows up to
+     * this size when it limits the throughput. (4194304)
+     * @see ibis.smartsockets.virtual.modules.hubrouted
+     */
+    public static final String ROUTED_BUFFER_MAX =
+            ROUTED_PREFIX + "size.buffer.max";
+
     /**
      * Fragment size used for virtual (hubrouted) connections (in bytes). (8176)
      * @see ibis.smartsockets.virtual.modules.hubrouted
@@ -607,11 +880,36 @@ public final class SmartSocketsProperties {
     public static final String CLUSTER_MEMBER  = CLUSTER_PREFIX + "member";
 
     /**
-     * Reorder virtual clusters (WHAT DOES THIS DO?).
+     * Reorder the modules used to connect to a cluster, hub or machine,
+     * based on the results of earlier connects (true).
      * @see ibis.smartsockets.virtual.VirtualClusters
      */
     public static final String CLUSTER_REORDER = CLUSTER_PREFIX + "reorder";
 
+    /**
+     * Maximum number of clusters, hubs or machines for which the results of
+     * earlier connects are remembered (1024).
+     * @see ibis.smartsockets.virtual.VirtualClusters
+     */
+    public static final String CLUSTER_CACHE_SIZE =
+            CLUSTER_PREFIX + "cache.size";
+
+    /**
+     * Time (in seconds) after which the weight of the result of an earlier
+     * connect is halved (600).
+     * @see ibis.smartsockets.virtual.VirtualClusters
+     */
+    public static final String CLUSTER_CACHE_HALFLIFE =
+            CLUSTER_PREFIX + "cache.halflife";
+
+    /**
+     * File in which the results of earlier connects are saved, so they
+     * survive a restart (not set).
+     * @see ibis.smartsockets.virtual.VirtualClusters
+     */
+    public static final String CLUSTER_CACHE_FILE =
+            CLUSTER_PREFIX + "cache.file";
+
     // NOTE: These properties require a prefix which can only be determined at
     // runtime.
 
@@ -654,9 +952,27 @@ public final class SmartSocketsProperties {
      */
     private static final String [] DEFAULTS = new String [] {
             DIRECT_BACKLOG,         "255",
+            DIRECT_HANDSHAKES,      "16",
+            DIRECT_FAST_HANDSHAKE,  "false",
             BACKLOG,                "50",
             ACCEPT_TIMEOUT,         "60000",
+
+            POOL,                   "false",
+            POOL_IDLE,              "30000",
+            POOL_TTL,               "300000",
+            POOL_MAX,               "4",
+            MULTIPLEX,              "false",
+            MULTIPLEX_PORT,         "43",
+            MULTIPLEX_WINDOW,       "65536",
+            STARTUP_ASYNC,          "false",
             DIRECT_LOCAL_TIMEOUT,   "1000",
+            DIRECT_RACE,            "false",
+            DIRECT_RACE_DELAY,      "250",
+            MODULES_RACE,           "false",
+            MODULES_RACE_DELAY,     "500",
+
+            CLUSTER_CACHE_SIZE,     "1024",
+            CLUSTER_CACHE_HALFLIFE, "600",
 
             STATISTICS_PRINT,       "false",
             STATISTICS_INTERVAL,    "0",
@@ -668,6 +984,7 @@ public final class SmartSocketsProperties {
             DIRECT_SEND_BUFFER,     "-1",
             DIRECT_RECEIVE_BUFFER,  "-1",
             DIRECT_CACHE_IP,        "true",
+            DIRECT_ENVIRONMENT_CACHE_TTL, "3600",
 
             STUN,                   "false",
             UPNP,                   "false",
@@ -681,6 +998,19 @@ public final class SmartSocketsProperties {
             HUB_STATISTICS,         "false",
             HUB_STATS_INTERVAL,     "60000",
             HUB_VIRTUAL_PORT,       "42",
+            HUB_NIO,                "false",
+            HUB_NIO_SELECTORS,      "2",
+            HUB_LINGER,             "0",
+            HUB_GOSSIP_DELTA,       "true",
+            HUB_ADDRESS_DICTIONARY, "false",
+            HUB_STRIPES,            "0",
+            HUB_VIRTUAL_MAX,        "0",
+            HUB_VIRTUAL_BYTES,      "0",
+            HUB_VIRTUAL_RATE,       "0",
+            HUB_VIRTUAL_CLIENT_MAX, "0",
+            HUB_VIRTUAL_CLIENT_BYTES, "0",
+            HUB_VIRTUAL_CLIENT_RATE, "0",
+            HUB_VIRTUAL_POOL,       "4194304",
 
             MODULES_DEFINE,         "direct,reverse,hubrouted",
             MODULES_ORDER,          "direct,reverse,hubrouted",
@@ -696,8 +1026,13 @@ public final class SmartSocketsProperties {
             SL_FORCE,               "false",
             SL_TIMEOUT,             "10000",
             SL_RETRIES,             "6",
+            SL_LINGER,              "0",
+            SL_HUBS,                "1",
+
+            SPLICE_NAT_TTL,         "300",
 
             ROUTED_BUFFER,          "65536",
+            ROUTED_BUFFER_MAX,      "4194304",
             ROUTED_FRAGMENT,        "8176"
     };
 
@@ -0,0 +1,187 @@
+package ibis.smartsockets.direct;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.LinkedList;
+
+/**
+ * Keeps track of a number of concurrent connection attempts to the same
+ * target, of which only the first one to complete may be used.
+ *
+ * An attempt must {@link #claim()} the race during the handshake, before it
+ * tells the server to accept the connection. This ensures the server never
+ * accepts a connection that is thrown away afterwards. Once an attempt has
+ * succeeded, the sockets of all other attempts are closed.
+ */
+final class ConnectionRace {
+
+    private final LinkedList<Socket> sockets = new LinkedList<Socket>();
+
+    private final byte [] userIn;
+
+    // The thread of the attempt that claimed the race, if any.
+    private Thread claimant;
+
+    private boolean done = false;
+
+    private DirectSocket winner;
+
+    private int running = 0;
+    private int failed = 0;
+
+    private final LinkedList<NestedIOExceptionData> exceptions =
+        new LinkedList<NestedIOExceptionData>();
+
+    ConnectionRace(byte [] userIn) {
+        this.userIn = userIn;
+    }
+
+    synchronized void start() {
+        running++;
+    }
+
+    /**
+     * Registers the socket of an attempt, so it can be closed when another
+     * attempt wins.
+     *
+     * @return false if the race is already over.
+     */
+    synchronized boolean register(Socket s) {
+
+        if (done) {
+            return false;
+        }
+
+        sockets.add(s);
+        return true;
+    }
+
+    synchronized void unregister(Socket s) {
+        sockets.remove(s);
+    }
+
+    /**
+     * Called by an attempt that is about to accept the connection.
+     *
+     * @return true if the attempt may continue, false if it must give up.
+     */
+    synchronized boolean claim() {
+
+        Thread current = Thread.currentThread();
+
+        if (done || (claimant != null && claimant != current)) {
+            return false;
+        }
+
+        claimant = current;
+        return true;
+    }
+
+    /**
+     * Called when an attempt fails. If it had claimed the race, any remaining
+     * attempts may now win instead.
+     */
+    synchronized void release() {
+
+        if (claimant == Thread.currentThread()) {
+            claimant = null;
+        }
+    }
+
+    synchronized boolean success(DirectSocket s, byte [] in) {
+
+        running--;
+
+        if (done) {
+            return false;
+        }
+
+        winner = s;
+        System.arraycopy(in, 0, userIn, 0, userIn.length);
+
+        finish();
+        return true;
+    }
+
+    synchronized void failed(NestedIOExceptionData e) {
+
+        release();
+
+        running--;
+        failed++;
+
+        // Failures after the race has ended are no longer reported.
+        if (e != null && !done) {
+            exceptions.add(e);
+        }
+
+        notifyAll();
+    }
+
+    // Ends the race and closes the sockets of all remaining attempts. This
+    // makes any pending connect or handshake fail immediately.
+    private void finish() {
+
+        done = true;
+
+        for (Socket s : sockets) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+
+        sockets.clear();
+        notifyAll();
+    }
+
+    /**
+     * Waits until there is a winner, all started attempts have failed, an
+     * attempt failed since the last call, or the timeout expires.
+     *
+     * @return true if the race is over.
+     */
+    synchronized boolean waitForProgress(long timeout) {
+
+        int failures = failed;
+
+        long deadline = System.currentTimeMillis() + timeout;
+        long left = timeout;
+
+        while (!done && running > 0 && failed == failures && left > 0) {
+            try {
+                wait(left);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+
+            left = deadline - System.currentTimeMillis();
+        }
+
+        return done || running == 0;
+    }
+
+    synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Adds the failures reported so far to the given list.
+     */
+    synchronized void getExceptions(LinkedList<NestedIOExceptionData> list) {
+        list.addAll(exceptions);
+    }
+
+    /**
+     * Ends the race. Returns the winner, or null if there is none.
+     */
+    synchronized DirectSocket end() {
+
+        if (!done) {
+            finish();
+        }
+
+        return winner;
+    }
+}
@@ -1,12 +1,16 @@
 package ibis.smartsockets.direct;
 
+import ibis.smartsockets.util.ThreadPool;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.nio.channels.ServerSocketChannel;
+import java.util.LinkedList;
 
 /**
  * This class provides a alternative ServerSocket implementation.
@@ -17,6 +21,15 @@ import java.nio.channels.ServerSocketChannel;
  * Unlike a regular ServerSocket, a DirectServerSocket performs a handshake at
  * connection setup to ensure that the connection has reached the correct
  * DirectServerSocket.
+ * <p>
+ * By default, the handshakes of incoming connections are performed
+ * concurrently. A separate thread accepts the connections, and hands each of
+ * them to a thread of the {@link ThreadPool} for the handshake. The
+ * connections that complete the handshake are queued until they are returned
+ * by {@link #accept()}. The number of handshakes in progress plus the number
+ * of queued connections is bounded, so a slow or stalled client only holds up
+ * its own connection. When the bound is 1, the handshake is performed by the
+ * thread calling {@link #accept()}.
  *
  * @author Jason Maassen
  * @version 1.0 Dec 19, 2005
@@ -28,10 +41,13 @@ public class DirectServerSocket {
     protected static final byte TYPE_SERVER_WITH_FIREWALL = 8;
     protected static final byte TYPE_CLIENT_CHECK         = 9;
     protected static final byte TYPE_CLIENT_NOCHECK       = 10;
+    protected static final byte TYPE_CLIENT_FAST          = 11;
+    protected static final byte TYPE_SERVER_FAST          = 12;
 
     protected static final byte ACCEPT = 47;
     protected static final byte WRONG_MACHINE = 48;
     protected static final byte FIREWALL_REFUSED = 49;
+    protected static final byte RACE_LOST = 50;
 
     /** The real server socket. */
     private final ServerSocket serverSocket;
@@ -54,6 +70,14 @@ public class DirectServerSocket {
      */
     private final byte [] altHandShake;
 
+    /**
+     * The replies to a client using the single exchange handshake. These
+     * contain the same information as the altHandShake, followed by the
+     * verdict of the firewall rules.
+     */
+    private final byte [] fastAccept;
+    private final byte [] fastRefused;
+
     /**
      * These are the external addresses, i.e., SocketAddresses which use IP's
      * which cannot be found on this machine, but which can still be used to
@@ -73,15 +97,41 @@ public class DirectServerSocket {
     private final NetworkPreference preference;
     private final boolean haveFirewallRules;
 
-    // private long acceptCount = 0;
+    /**
+     * The maximum number of handshakes in progress plus connections waiting
+     * to be returned by accept.
+     */
+    private final int maxHandshakes;
+
+    /** Connections that have completed the handshake. */
+    private final LinkedList<DirectSocket> completed =
+        new LinkedList<DirectSocket>();
+
+    /** Handshakes in progress plus completed connections. */
+    private int pending = 0;
+
+    private boolean acceptorStarted = false;
+
+    /** Exception thrown by the accept of the real server socket. */
+    private IOException acceptError;
+
+    /** Timeout of accept when the handshakes are done concurrently. */
+    private int timeout = 0;
+
+    // Statistics (handshake times in nanoseconds).
+    private long acceptCount = 0;
+    private long failedCount = 0;
+    private long handshakeTime = 0;
+    private long maxHandshakeTime = 0;
 
     protected DirectServerSocket(DirectSocketAddress local, ServerSocket ss,
-            NetworkPreference preference) {
+            NetworkPreference preference, int maxHandshakes) {
 
         /*super(null);*/
         this.local = local;
         this.serverSocket = ss;
         this.preference = preference;
+        this.maxHandshakes = maxHandshakes;
 
         byte [] tmp = local.getAddress();
 
@@ -100,6 +150,14 @@ public class DirectServerSocket {
             haveFirewallRules = false;
             altHandShake[0] = TYPE_SERVER;
         }
+
+        fastAccept = new byte[altHandShake.length + 1];
+        System.arraycopy(altHandShake, 0, fastAccept, 0, altHandShake.length);
+        fastAccept[0] = TYPE_SERVER_FAST;
+        fastAccept[altHandShake.length] = ACCEPT;
+
+        fastRefused = fastAccept.clone();
+        fastRefused[altHandShake.length] = FIREWALL_REFUSED;
     }
 
     /**
@@ -152,121 +210,314 @@ public class DirectServerSocket {
      */
     public DirectSocket accept() throws IOException {
 
-        DirectSimpleSocket result = null;
+        if (maxHandshakes > 1) {
+            return getCompleted();
+        }
 
-        // Move up ?
-        byte [] userIn = new byte[4];
+        DirectSocket result = null;
 
         while (result == null) {
-
             // Note: may result in timeout, which is OK.
-            Socket s = serverSocket.accept();
+            result = handshake(serverSocket.accept());
+        }
+
+        return result;
+    }
+
+    private synchronized DirectSocket getCompleted() throws IOException {
+
+        if (!acceptorStarted) {
+            acceptorStarted = true;
+            ThreadPool.createNew(new Acceptor(), "DirectServerSocket Acceptor");
+        }
+
+        long deadline = 0;
+
+        if (timeout > 0) {
+            deadline = System.currentTimeMillis() + timeout;
+        }
+
+        while (completed.size() == 0) {
+
+            if (serverSocket.isClosed()) {
+                throw new SocketException("Socket is closed");
+            }
+
+            if (acceptError != null) {
+                IOException e = acceptError;
+                acceptError = null;
+                notifyAll();
+                throw e;
+            }
+
+            long timeleft = 0;
+
+            if (deadline > 0) {
+                timeleft = deadline - System.currentTimeMillis();
+
+                if (timeleft <= 0) {
+                    throw new SocketTimeoutException("Accept timed out");
+                }
+            }
+
+            try {
+                wait(timeleft);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
 
-           // long t = System.nanoTime();
+        pending--;
+        notifyAll();
 
-            InputStream in = null;
-            OutputStream out = null;
+        return completed.removeFirst();
+    }
+
+    // Waits until another handshake may be started. Returns false if the
+    // server socket is closed.
+    private synchronized boolean reserve() {
 
-            // THIS IS THE HPDC VERSION
+        while ((pending >= maxHandshakes || acceptError != null)
+                && !serverSocket.isClosed()) {
             try {
-                s.setSoTimeout(10000);
-                s.setTcpNoDelay(true);
+                wait();
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
+
+        if (serverSocket.isClosed()) {
+            return false;
+        }
+
+        pending++;
+        return true;
+    }
+
+    private synchronized void release(DirectSocket s, IOException e) {
+
+        if (s != null && !serverSocket.isClosed()) {
+            completed.addLast(s);
+        } else {
+            pending--;
+
+            if (s != null) {
+                close(s);
+            }
+
+            if (e != null && !serverSocket.isClosed()) {
+                acceptError = e;
+            }
+        }
+
+        notifyAll();
+    }
+
+    private synchronized void statistics(boolean succes, long time) {
+
+        if (succes) {
+            acceptCount++;
+        } else {
+            failedCount++;
+        }
+
+        handshakeTime += time;
+
+        if (time > maxHandshakeTime) {
+            maxHandshakeTime = time;
+        }
+    }
+
+    private static void close(DirectSocket s) {
+        try {
+            s.close();
+        } catch (Exception e) {
+            // ignore
+        }
+    }
 
-                // Start by sending our type and address to the client. It will
-                // check for itself if we are the expected target machine.
-                out = s.getOutputStream();
+    // Performs the handshake on a newly accepted socket. Returns null if the
+    // handshake fails, or the connection is refused by either side.
+    private DirectSimpleSocket handshake(Socket s) {
+
+        long t = System.nanoTime();
+
+        DirectSimpleSocket result = null;
+
+        byte [] userIn = new byte[4];
+
+        InputStream in = null;
+        OutputStream out = null;
+
+        // THIS IS THE HPDC VERSION
+        try {
+            s.setSoTimeout(10000);
+            s.setTcpNoDelay(true);
+
+            out = s.getOutputStream();
+            in = s.getInputStream();
+
+            // Read the type of the client (should always be TYPE_CLIENT_*).
+            // Clients send their handshake without waiting for ours, so we
+            // can read it first.
+            int type = DirectSocketFactory.readByte(in);
+
+            boolean fast = (type == TYPE_CLIENT_FAST);
+
+            if (!fast) {
+                // Send our type and address to the client. It will check
+                // for itself if we are the expected target machine.
                 out.write(altHandShake);
                 //out.write(networkNameInBytes);
                 out.flush();
+            }
 
-                in = s.getInputStream();
+            // Read the user data
+            DirectSocketFactory.readFully(in, userIn);
 
-                // Read the type of the client (should always be TYPE_CLIENT_*)
-                int type = DirectSocketFactory.readByte(in);
+            // Read the size of the machines address blob
+            int size = (DirectSocketFactory.readByte(in) & 0xFF);
+            size |= ((DirectSocketFactory.readByte(in) & 0xFF) << 8);
 
-                // Read the user data
-                DirectSocketFactory.readFully(in, userIn);
+            // Read the bytes....
+            byte [] tmp = DirectSocketFactory.readFully(in, new byte[size]);
 
-                // Read the size of the machines address blob
-                int size = (DirectSocketFactory.readByte(in) & 0xFF);
-                size |= ((DirectSocketFactory.readByte(in) & 0xFF) << 8);
+            // Read the size of the network name
+            size = (DirectSocketFactory.readByte(in) & 0xFF);
+            size |= ((DirectSocketFactory.readByte(in) & 0xFF) << 8);
 
-                // Read the bytes....
-                byte [] tmp = DirectSocketFactory.readFully(in, new byte[size]);
+            // Read the name itself....
+            byte [] name = DirectSocketFactory.readFully(in, new byte[size]);
 
-                // Read the size of the network name
-                size = (DirectSocketFactory.readByte(in) & 0xFF);
-                size |= ((DirectSocketFactory.readByte(in) & 0xFF) << 8);
+            DirectSocketAddress sa = DirectSocketAddress.fromBytes(tmp);
 
-                // Read the name itself....
-                byte [] name = DirectSocketFactory.readFully(in, new byte[size]);
+            // Optimistically create the socket ?
+            // TODO: fix to get 'real' port numbers here...
+            result = new DirectSimpleSocket(local, sa, in, out, s);
 
-                DirectSocketAddress sa = DirectSocketAddress.fromBytes(tmp);
+            int userData = (((userIn[0] & 0xff) << 24) |
+                    ((userIn[1] & 0xff) << 16) |
+                    ((userIn[2] & 0xff) << 8) |
+                    (userIn[3] & 0xff));
 
-                // Optimistically create the socket ?
-                // TODO: fix to get 'real' port numbers here...
-                result = new DirectSimpleSocket(local, sa, in, out, s);
+            result.setUserData(userData);
 
-                int userData = (((userIn[0] & 0xff) << 24) |
-                        ((userIn[1] & 0xff) << 16) |
-                        ((userIn[2] & 0xff) << 8) |
-                        (userIn[3] & 0xff));
+            if (fast) {
 
-                result.setUserData(userData);
+                // The client does not wait for our handshake, but sends its
+                // data right away, so we answer once: our type and address,
+                // followed by the verdict of the firewall rules. The client
+                // then sends its own verdict, which tells us if we are the
+                // machine it was looking for, and if it did not already get
+                // a connection from a parallel attempt. The connection is
+                // only accepted once the client has accepted it as well.
+                boolean ok = !haveFirewallRules || preference.accept(
+                        sa.getAddressSet().addresses, new String(name));
 
-                if (haveFirewallRules) {
+                out.write(ok ? fastAccept : fastRefused);
+                out.flush();
 
-                    String network = new String(name);
+                if (!ok || DirectSocketFactory.readByte(in) != ACCEPT) {
+                    doClose(s, in, out);
+                    result = null;
+                }
 
-                    // We must check if we are allowed to accept the client
-                    if (preference.accept(sa.getAddressSet().addresses, network)) {
-                        out.write(ACCEPT);
-                        out.flush();
-                    } else {
-                        out.write(FIREWALL_REFUSED);
-                        out.flush();
+            } else if (haveFirewallRules) {
 
-                        // TODO: do we really need to wait for incoming byte here ??
-                        DirectSocketFactory.readByte(in);
-                        doClose(s, in, out);
-                        result = null;
-                        continue; // TODO: refactor!!!
-                    }
+                String network = new String(name);
+
+                // We must check if we are allowed to accept the client
+                if (preference.accept(sa.getAddressSet().addresses, network)) {
+                    out.write(ACCEPT);
+                    out.flush();
+                } else {
+                    out.write(FIREWALL_REFUSED);
+                    out.flush();
+
+                    // TODO: do we really need to wait for incoming byte here ??
+                    DirectSocketFactory.readByte(in);
+                    doClose(s, in, out);
+                    result = null;
                 }
+            }
 
-                if (type == TYPE_CLIENT_CHECK) {
+            if (result != null && !fast && type == TYPE_CLIENT_CHECK) {
 
-                    // Read if the client accept us.
-                    int opcode = DirectSocketFactory.readByte(in);
+                // Read if the client accept us.
+                int opcode = DirectSocketFactory.readByte(in);
 
-                    if (opcode != ACCEPT) {
-                        doClose(s, in, out);
-                        result = null;
-                    }
+                if (opcode != ACCEPT) {
+                    doClose(s, in, out);
+                    result = null;
                 }
+            }
 
+            if (result != null) {
                 s.setSoTimeout(0);
-
-            } catch (IOException ie) {
-          /*
-                System.err.println("EEK: exception during direct socket handshake!" + ie.getMessage());
-                ie.printStackTrace(System.err);
-            */
-                doClose(s, in, out);
-                result = null;
             }
 
-         //   long t2 = System.nanoTime();
-
-      /*      System.err.println("Accept " + acceptCount++ +  " took: "
-                    + ((t2-t)/1000) + " usec. "
-                    + (result == null ? "(failed)" : "(succes)"));
+        } catch (IOException ie) {
+      /*
+            System.err.println("EEK: exception during direct socket handshake!" + ie.getMessage());
+            ie.printStackTrace(System.err);
         */
+            doClose(s, in, out);
+            result = null;
         }
 
+        statistics(result != null, System.nanoTime() - t);
+
         return result;
     }
 
+    /**
+     * Returns the number of incoming connections that completed the
+     * handshake.
+     *
+     * @return the number of accepted connections.
+     */
+    public synchronized long getAcceptCount() {
+        return acceptCount;
+    }
+
+    /**
+     * Returns the number of incoming connections that failed or were
+     * refused during the handshake.
+     *
+     * @return the number of failed handshakes.
+     */
+    public synchronized long getFailedCount() {
+        return failedCount;
+    }
+
+    /**
+     * Returns the total time spent in handshakes (in milliseconds).
+     *
+     * @return the total handshake time.
+     */
+    public synchronized long getHandshakeTime() {
+        return handshakeTime / 1000000L;
+    }
+
+    /**
+     * Returns the time taken by the slowest handshake (in milliseconds).
+     *
+     * @return the maximum handshake time.
+     */
+    public synchronized long getMaxHandshakeTime() {
+        return maxHandshakeTime / 1000000L;
+    }
+
+    /**
+     * Returns the number of handshakes in progress plus the number of
+     * connections waiting to be returned by accept.
+     *
+     * @return the number of pending connections.
+     */
+    public synchronized int getPendingCount() {
+        return pending;
+    }
+
     /**
      * Close the DirectServerSocket.
      *
@@ -274,6 +525,15 @@ public class DirectServerSocket {
      */
     public void close() throws IOException {
         serverSocket.close();
+
+        synchronized (this) {
+            while (completed.size() > 0) {
+                close(completed.removeFirst());
+                pending--;
+            }
+
+            notifyAll();
+        }
     }
 
     /**
@@ -319,10 +579,27 @@ public class DirectServerSocket {
     }
 
     public synchronized int getSoTimeout() throws IOException {
+
+        if (maxHandshakes > 1) {
+            return timeout;
+        }
+
         return serverSocket.getSoTimeout();
     }
 
     public synchronized void setSoTimeout(int timeout) throws SocketException {
+
+        if (maxHandshakes > 1) {
+            // The real server socket is used by the acceptor thread only,
+            // which never times out.
+            if (timeout < 0) {
+                throw new IllegalArgumentException("timeout can't be negative");
+            }
+
+            this.timeout = timeout;
+            return;
+        }
+
         serverSocket.setSoTimeout(timeout);
     }
 
@@ -341,4 +618,40 @@ public class DirectServerSocket {
     public String toString() {
         return "DirectServerSocket(" + local + ", " + external + ")";
     }
+
+    // Accepts the incoming connections, and starts a handshake for each of
+    // them.
+    private class Acceptor implements Runnable {
+
+        public void run() {
+
+            while (reserve()) {
+
+                Socket s = null;
+
+                try {
+                    s = serverSocket.accept();
+                } catch (IOException e) {
+                    release(null, e);
+                    continue;
+                }
+
+                ThreadPool.createNew(new Handshake(s),
+                        "DirectServerSocket Handshake");
+            }
+        }
+    }
+
+    private class Handshake implements Runnable {
+
+        private final Socket s;
+
+        Handshake(Socket s) {
+            this.s = s;
+        }
+
+        public void run() {
+            release(handshake(s), null);
+        }
+    }
 }
@@ -10,6 +10,8 @@ import java.io.DataOutput;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -19,6 +21,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This class implements a multi SocketAddress (any number of IP addresses and
@@ -72,6 +75,49 @@ public class DirectSocketAddress extends SocketAddress
 
     private transient InetSocketAddress[] allAddressesCache;
 
+    // Intern table of the addresses that were read from a stream or parsed
+    // from a string, so the same address is not decoded over and over again.
+    // The keys are the coded form (wrapped in a CodedForm) or the string. The
+    // addresses are only weakly referenced, so they can still be collected.
+    // The table is concurrent, so the readers of different connections do not
+    // contend for a single lock.
+    private static final ConcurrentHashMap<Object, Interned> interned =
+        new ConcurrentHashMap<Object, Interned>();
+
+    private static final ReferenceQueue<DirectSocketAddress> internedQueue =
+        new ReferenceQueue<DirectSocketAddress>();
+
+    private static final class Interned
+        extends WeakReference<DirectSocketAddress> {
+
+        final Object key;
+
+        Interned(Object key, DirectSocketAddress a) {
+            super(a, internedQueue);
+            this.key = key;
+        }
+    }
+
+    private static final class CodedForm {
+
+        final byte [] coded;
+        final int hashCode;
+
+        CodedForm(byte [] coded) {
+            this.coded = coded;
+            this.hashCode = Arrays.hashCode(coded);
+        }
+
+        public int hashCode() {
+            return hashCode;
+        }
+
+        public boolean equals(Object other) {
+            return other instanceof CodedForm
+                && Arrays.equals(coded, ((CodedForm) other).coded);
+        }
+    }
+
     private DirectSocketAddress(InetSocketAddress[] externalAds,
             InetSocketAddress[] publicAds, InetSocketAddress[] privateAds,
             byte[] UUID, String user) {
@@ -266,6 +312,11 @@ public class DirectSocketAddress extends SocketAddress
      * @return the bytes
      */
     public byte[] getAddress() {
+        return coded().clone();
+    }
+
+    // Returns the coded form without copying it, so it must not be changed.
+    private byte[] coded() {
 
         if (codedForm == null) {
 
@@ -314,7 +365,7 @@ public class DirectSocketAddress extends SocketAddress
             }
         }
 
-        return codedForm.clone();
+        return codedForm;
     }
 
     /**
@@ -821,7 +872,7 @@ public class DirectSocketAddress extends SocketAddress
         if (s == null) {
             out.writeInt(0);
         } else {
-            byte[] a = s.getAddress();
+            byte[] a = s.coded();
 
             out.writeInt(a.length);
             out.write(a);
@@ -840,7 +891,58 @@ public class DirectSocketAddress extends SocketAddress
 
         in.readFully(tmp);
 
-        return new DirectSocketAddress(tmp, 0);
+        CodedForm key = new CodedForm(tmp);
+
+        DirectSocketAddress result = lookup(key);
+
+        if (result == null) {
+            result = new DirectSocketAddress(tmp, 0);
+            result.codedForm = tmp;
+            result = intern(key, result);
+        }
+
+        return result;
+    }
+
+    private static DirectSocketAddress lookup(Object key) {
+
+        Interned ref = interned.get(key);
+
+        return ref == null ? null : ref.get();
+    }
+
+    private static DirectSocketAddress intern(Object key,
+            DirectSocketAddress a) {
+
+        // First remove the addresses that have been collected.
+        Interned ref = (Interned) internedQueue.poll();
+
+        while (ref != null) {
+            interned.remove(ref.key, ref);
+            ref = (Interned) internedQueue.poll();
+        }
+
+        Interned mine = new Interned(key, a);
+
+        while (true) {
+            ref = interned.putIfAbsent(key, mine);
+
+            if (ref == null) {
+                return a;
+            }
+
+            DirectSocketAddress tmp = ref.get();
+
+            if (tmp != null) {
+                // Someone beat us to it.
+                return tmp;
+            }
+
+            // The address was collected, but not removed yet.
+            if (interned.replace(key, ref, mine)) {
+                return a;
+            }
+        }
     }
 
     public static void skip(DataInputStream in) throws IOException {
@@ -1087,13 +1189,21 @@ public class DirectSocketAddress extends SocketAddress
     public static DirectSocketAddress getByAddress(String addressPort)
             throws UnknownHostException, MalformedAddressException {
 
-        DirectSocketAddress result = parseOldStyleAddress(addressPort);
+        DirectSocketAddress result = lookup(addressPort);
+
+        if (result != null) {
+            return result;
+        }
+
+        result = parseOldStyleAddress(addressPort);
 
         if (result != null) {
+            // NOTE: not interned, since the host name may resolve to a
+            // different address later.
             return result;
         }
 
-        return parseNewStyleAddress(addressPort);
+        return intern(addressPort, parseNewStyleAddress(addressPort));
     }
 
     private static DirectSocketAddress parseOldStyleAddress(String addressPort) {
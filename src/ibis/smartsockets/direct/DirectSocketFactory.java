@@ -4,6 +4,7 @@ import ibis.smartsockets.SmartSocketsProperties;
 import ibis.smartsockets.util.InetAddressCache;
 import ibis.smartsockets.util.NetworkUtils;
 import ibis.smartsockets.util.STUN;
+import ibis.smartsockets.util.ThreadPool;
 import ibis.smartsockets.util.TypedProperties;
 import ibis.smartsockets.util.UPNP;
 
@@ -64,6 +65,10 @@ public class DirectSocketFactory {
 
     private final int DEFAULT_BACKLOG;
 
+    private final int HANDSHAKES;
+
+    private final boolean FAST_HANDSHAKE;
+
     private final int DEFAULT_LOCAL_TIMEOUT;
 
     // private final TypedProperties properties;
@@ -78,6 +83,10 @@ public class DirectSocketFactory {
 
     private final boolean FORCE_SSH_OUT;
 
+    private final boolean RACE;
+
+    private final int RACE_DELAY;
+
     private final int defaultReceiveBuffer;
 
     private final int defaultSendBuffer;
@@ -120,11 +129,19 @@ public class DirectSocketFactory {
 
         DEFAULT_BACKLOG = p.getIntProperty(
                 SmartSocketsProperties.DIRECT_BACKLOG, 100);
+        HANDSHAKES = Math.max(1, p.getIntProperty(
+                SmartSocketsProperties.DIRECT_HANDSHAKES, 16));
+        FAST_HANDSHAKE = p.booleanProperty(
+                SmartSocketsProperties.DIRECT_FAST_HANDSHAKE, false);
         DEFAULT_TIMEOUT = p.getIntProperty(
                 SmartSocketsProperties.DIRECT_TIMEOUT, 5000);
         DEFAULT_LOCAL_TIMEOUT = p.getIntProperty(
                 SmartSocketsProperties.DIRECT_LOCAL_TIMEOUT, 1000);
 
+        RACE = p.booleanProperty(SmartSocketsProperties.DIRECT_RACE, false);
+        RACE_DELAY = p.getIntProperty(
+                SmartSocketsProperties.DIRECT_RACE_DELAY, 250);
+
         boolean allowSSHIn = p.booleanProperty(SmartSocketsProperties.SSH_IN,
                 false);
 
@@ -211,14 +228,65 @@ public class DirectSocketFactory {
         boolean cacheIPaddress = p.booleanProperty(SmartSocketsProperties.DIRECT_CACHE_IP, true);
            localAddress = IPAddressSet.getLocalHost(cacheIPaddress);
 
+        // Check if the results of the expensive probes below are still known
+        // from an earlier run.
+        File environmentFile = null;
+        NetworkEnvironment environment = null;
+        NetworkEnvironment probed = null;
+
+        String tmpFile = p.getProperty(
+                SmartSocketsProperties.DIRECT_ENVIRONMENT_CACHE, null);
+
+        if (tmpFile != null && tmpFile.length() > 0) {
+            environmentFile = new File(tmpFile);
+
+            // NOTE: the probes that are enabled are part of the fingerprint,
+            // since they determine what the snapshot contains.
+            String fingerprint = NetworkEnvironment.fingerprint()
+                + " stun=" + p.booleanProperty(SmartSocketsProperties.STUN,
+                        false)
+                + " upnp=" + ALLOW_UPNP;
+
+            environment = NetworkEnvironment.load(environmentFile,
+                    fingerprint, 1000L * p.getIntProperty(
+                    SmartSocketsProperties.DIRECT_ENVIRONMENT_CACHE_TTL, 3600));
+
+            if (environment == null) {
+                probed = new NetworkEnvironment(fingerprint);
+            }
+        }
+
+        if (environment != null) {
+            for (Map.Entry<InetAddress, byte []> e :
+                    environment.getNetmasks().entrySet()) {
+                NetworkUtils.addNetmask(e.getKey(), e.getValue());
+            }
+        }
+
         if (!localAddress.containsPublicAddress()) {
             haveOnlyLocalAddresses = true;
 
-            byte[] uuid = NetworkUtils.getUUID();
+            byte[] mac;
+
+            if (environment != null) {
+                mac = environment.getMAC();
+            } else {
+                mac = NetworkUtils.getLocalMACAddress();
+
+                if (probed != null) {
+                    probed.setMAC(mac);
+                }
+            }
+
+            byte[] uuid = NetworkUtils.getUUID(mac);
 
             localAddress = IPAddressSet.merge(localAddress, uuid);
 
-            getExternalAddress(p);
+            getExternalAddress(p, environment);
+
+            if (probed != null && getExternalAddressProperty(p) == null) {
+                probed.setExternal(externalNATAddress);
+            }
 
             if (externalNATAddress != null) {
 
@@ -257,7 +325,35 @@ public class DirectSocketFactory {
 
         haveFirewallRules = preference.haveFirewallRules();
 
-        getNATAddress();
+        if (environment != null) {
+            myNATAddress = environment.getNAT();
+        } else {
+            getNATAddress();
+        }
+
+        if (probed != null) {
+            saveEnvironment(probed, environmentFile);
+        }
+    }
+
+    private void saveEnvironment(NetworkEnvironment env, File file) {
+
+        // The netmasks of the site local addresses are used when determining
+        // the network preference.
+        InetAddress[] ads = localAddress.getAddresses();
+
+        for (InetAddress a : ads) {
+            if (a.isSiteLocalAddress()) {
+                try {
+                    env.addNetmask(a, NetworkUtils.getNetmask(a));
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+
+        env.setNAT(myNATAddress);
+        env.save(file);
     }
 
     private char[][] getPrivateSSHKeys() {
@@ -473,9 +569,11 @@ public class DirectSocketFactory {
     /**
      * This method tries to find a public address that is valid for this
      * machine. When an address is found, it it stored in the externalAddress
-     * field.
+     * field. If the network environment is known from an earlier run, the
+     * external address found then is used instead of using STUN or UPNP.
      */
-    private void getExternalAddress(TypedProperties p) {
+    private void getExternalAddress(TypedProperties p,
+            NetworkEnvironment environment) {
 
         // Check if externalAddress is already known
         if (externalNATAddress != null) {
@@ -498,6 +596,16 @@ public class DirectSocketFactory {
             return;
         }
 
+        if (environment != null) {
+            externalNATAddress = environment.getExternal();
+
+            if (externalNATAddress != null) {
+                externalAddress = IPAddressSet
+                        .getFromAddress(externalNATAddress);
+            }
+            return;
+        }
+
         if (p.booleanProperty(SmartSocketsProperties.STUN, false)) {
 
             if (logger.isDebugEnabled()) {
@@ -605,7 +713,7 @@ public class DirectSocketFactory {
     private DirectSocket attemptSSHForwarding(DirectSocketAddress sas,
             InetSocketAddress target, InetSocketAddress forwardTo,
             Connection conn, long start, byte[] userOut, byte[] userIn,
-            boolean check) throws FirewallException {
+            boolean check, ConnectionRace race) throws FirewallException {
 
         LocalStreamForwarder lsf = null;
 
@@ -624,7 +732,7 @@ public class DirectSocketFactory {
             OutputStream out = lsf.getOutputStream();
 
             DirectSocketAddress realAddress = handShake(sas, target, in, out,
-                    userOut, userIn, check);
+                    userOut, userIn, check, FAST_HANDSHAKE, race);
 
             if (realAddress == null) {
 
@@ -695,7 +803,7 @@ public class DirectSocketFactory {
     private DirectSocket attemptSSHConnection(DirectSocketAddress sas,
             InetSocketAddress target, int timeout, int localPort,
             boolean mayBlock, String user, byte[] userOut, byte[] userIn,
-            boolean check) throws IOException {
+            boolean check, ConnectionRace race) throws IOException {
 
         DirectSocket result = null;
         long start = 0;
@@ -766,12 +874,12 @@ public class DirectSocketFactory {
 
             // We should be able to foward a connection to the same IP!
             result = attemptSSHForwarding(sas, target, target, conn, start,
-                    userOut, userIn, true);
+                    userOut, userIn, true, race);
         } else {
             // We should forward to a local IP
             for (InetSocketAddress t : sas.getPrivateAddresses()) {
                 result = attemptSSHForwarding(sas, target, t, conn, start,
-                        userOut, userIn, true);
+                        userOut, userIn, true, race);
 
                 if (result != null) {
                     break;
@@ -782,7 +890,7 @@ public class DirectSocketFactory {
                 // local IP didn't work. Try the public ones ?
                 for (InetSocketAddress t : sas.getPublicAddresses()) {
                     result = attemptSSHForwarding(sas, target, t, conn, start,
-                            userOut, userIn, true);
+                            userOut, userIn, true, race);
 
                     if (result != null) {
                         break;
@@ -808,7 +916,7 @@ public class DirectSocketFactory {
     private DirectSocket attemptConnection(DirectSocketAddress sas,
             InetSocketAddress target, int timeout, int sndbuf, int rcvbuf,
             int localPort, boolean mayBlock, byte[] userOut, byte[] userIn,
-            boolean check) throws IOException {
+            boolean check, ConnectionRace race) throws IOException {
 
         // We never want to block, so ensure that timeout > 0
         if (timeout == 0 && !mayBlock) {
@@ -836,6 +944,12 @@ public class DirectSocketFactory {
         try {
             s = createUnboundSocket();
 
+            // When racing, another attempt may close our socket if it wins.
+            if (race != null && !race.register(s)) {
+                close(s, null, null);
+                return null;
+            }
+
             if (localPort > 0) {
                 s.bind(new InetSocketAddress(localPort));
             }
@@ -857,8 +971,11 @@ public class DirectSocketFactory {
             in = s.getInputStream();
             out = s.getOutputStream();
 
+            // When binding to a local port we may be splicing, and the other
+            // side is not a server socket, so we must use the old handshake.
             DirectSocketAddress realAddress = handShake(sas, target, in, out,
-                    userOut, userIn, check);
+                    userOut, userIn, check, FAST_HANDSHAKE && localPort <= 0,
+                    race);
 
             if (realAddress == null) {
 
@@ -876,6 +993,10 @@ public class DirectSocketFactory {
 
             s.setSoTimeout(0);
 
+            if (race != null) {
+                race.unregister(s);
+            }
+
             // TODO: get real port here ? How about the UUID ?
             DirectSocketAddress a = DirectSocketAddress.getByAddress(
                     externalAddress, 1, localAddress, 1, null);
@@ -966,8 +1087,8 @@ public class DirectSocketFactory {
 
     private DirectSocketAddress handShake(DirectSocketAddress sas,
             InetSocketAddress target, InputStream in, OutputStream out,
-            byte[] userOut, byte[] userIn, boolean checkIdentity)
-            throws FirewallException {
+            byte[] userOut, byte[] userIn, boolean checkIdentity,
+            boolean fast, ConnectionRace race) throws FirewallException {
 
         // HPDC+Mathijs Version
         DirectSocketAddress server = null;
@@ -982,7 +1103,9 @@ public class DirectSocketFactory {
 
             synchronized (altCompleteAddressInBytes) {
 
-                if (checkIdentity) {
+                if (fast) {
+                    altCompleteAddressInBytes[0] = DirectServerSocket.TYPE_CLIENT_FAST;
+                } else if (checkIdentity) {
                     altCompleteAddressInBytes[0] = DirectServerSocket.TYPE_CLIENT_CHECK;
                 } else {
                     altCompleteAddressInBytes[0] = DirectServerSocket.TYPE_CLIENT_NOCHECK;
@@ -1025,13 +1148,47 @@ public class DirectSocketFactory {
             // process.
             server = DirectSocketAddress.fromBytes(tmp);
 
+            // A server using the single exchange handshake has already send
+            // its verdict. It is read before we send ours, since a server
+            // that refuses us closes the connection.
+            if (type == DirectServerSocket.TYPE_SERVER_FAST) {
+
+                opcode = readByte(in);
+
+                if (opcode == DirectServerSocket.FIREWALL_REFUSED) {
+                    if (logger.isInfoEnabled()) {
+                        logger.info("Remote firewall refused connection to "
+                                + "machine: " + sas.toString()
+                                + " using network "
+                                + NetworkUtils.ipToString(target.getAddress())
+                                + ":" + target.getPort());
+                    }
+
+                    throw new FirewallException("Remote firewall refused"
+                            + " connection to machine: ");
+                }
+
+                if (opcode != DirectServerSocket.ACCEPT) {
+                    return null;
+                }
+            }
+
             // System.out.println("$$$$ SERVER = " + server);
 
+            // A server that does not know the single exchange handshake
+            // does not read our verdict if we used it, in which case we only
+            // close the connection if we do not accept it.
+            boolean verdict = !fast
+                || type == DirectServerSocket.TYPE_SERVER_FAST;
+
             if (checkIdentity) {
 
                 if (!server.sameMachine(sas)) {
-                    out.write(DirectServerSocket.WRONG_MACHINE);
-                    out.flush();
+
+                    if (verdict) {
+                        out.write(DirectServerSocket.WRONG_MACHINE);
+                        out.flush();
+                    }
 
                     if (logger.isInfoEnabled()) {
                         logger.info("Got connecting to wrong machine: "
@@ -1071,15 +1228,50 @@ public class DirectSocketFactory {
                     }
                 }
 
+                // When racing, only the first attempt to get here may
+                // accept the connection. The others tell the server to drop
+                // it.
+                if (race != null && !race.claim()) {
+
+                    if (verdict) {
+                        out.write(DirectServerSocket.RACE_LOST);
+                        out.flush();
+                    }
+
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Lost connection race to "
+                                + sas.toString() + " using network "
+                                + NetworkUtils.ipToString(target.getAddress())
+                                + ":" + target.getPort());
+                    }
+
+                    return null;
+                }
+
+                if (verdict) {
+                    out.write(DirectServerSocket.ACCEPT);
+                    out.flush();
+                }
+
+            } else if (type == DirectServerSocket.TYPE_SERVER_FAST) {
+                // With the single exchange handshake, the server always
+                // waits for our verdict before it accepts the connection.
                 out.write(DirectServerSocket.ACCEPT);
                 out.flush();
             }
 
+            // A server that does not know the single exchange handshake
+            // treats us like a client that does not check its identity,
+            // which is what we do.
             if (type == DirectServerSocket.TYPE_SERVER
                     || type == DirectServerSocket.TYPE_CLIENT_NOCHECK) {
                 // If the other side is an 'open' server, we are done.
                 return server;
 
+            } else if (type == DirectServerSocket.TYPE_SERVER_FAST) {
+                // The verdict of the server was read above.
+                return server;
+
             } else if (type == DirectServerSocket.TYPE_SERVER_WITH_FIREWALL
                     || type == DirectServerSocket.TYPE_CLIENT_CHECK) {
                 // If the other side is a server with deny rules, or also a
@@ -1174,7 +1366,8 @@ public class DirectSocketFactory {
                     externalAddress, ss.getLocalPort(), localAddress, ss
                             .getLocalPort(), user);
 
-            DirectServerSocket smss = new DirectServerSocket(a, ss, preference);
+            DirectServerSocket smss = new DirectServerSocket(a, ss, preference,
+                    HANDSHAKES);
 
             if (logger.isDebugEnabled()) {
                 logger.debug("Created server socket on: " + smss);
@@ -1196,7 +1389,7 @@ public class DirectSocketFactory {
                                 .getLocalPort(), user);
 
                 DirectServerSocket smss = new DirectServerSocket(a, ss,
-                        preference);
+                        preference, HANDSHAKES);
 
                 if (logger.isDebugEnabled()) {
                     logger.debug("Port forwarding not allowed for: " + smss);
@@ -1255,7 +1448,8 @@ public class DirectSocketFactory {
                     .getLocalPort(), user);
         }
 
-        DirectServerSocket smss = new DirectServerSocket(local, ss, preference);
+        DirectServerSocket smss = new DirectServerSocket(local, ss, preference,
+                HANDSHAKES);
 
         if (logger.isDebugEnabled()) {
             logger.debug("Created server socket on: " + smss);
@@ -1494,7 +1688,8 @@ public class DirectSocketFactory {
 
         do {
             result = attemptConnection(target, sa, timeleft, sendBuffer,
-                    receiveBuffer, localPort, true, userOut, userIn, false);
+                    receiveBuffer, localPort, true, userOut, userIn, false,
+                    null);
 
             if (result != null) {
                 int ud = (((userIn[0] & 0xff) << 24)
@@ -1628,7 +1823,14 @@ public class DirectSocketFactory {
 
             long starttime = System.currentTimeMillis();
 
-            if (!FORCE_SSH_OUT) {
+            // Racing is not possible when all attempts must use the same
+            // local port.
+            boolean race = RACE && localPort <= 0;
+
+            if (race) {
+                result = raceOptions(target, sas, timeLeft, sendBuffer,
+                        receiveBuffer, mayUseSSH, userOut, userIn, exceptions);
+            } else if (!FORCE_SSH_OUT) {
                 result = loopOverOptions(target, sas, localPort, partialTime,
                         sendBuffer, receiveBuffer, null, userOut, userIn,
                         /* timing */null, exceptions);
@@ -1637,7 +1839,7 @@ public class DirectSocketFactory {
             int time = (int) (System.currentTimeMillis() - starttime);
 
             // If we don't have a connection yet we try to use SSH
-            if (result == null && mayUseSSH) {
+            if (result == null && mayUseSSH && !race) {
 
                 partialTime = timeLeft - time;
 
@@ -1731,11 +1933,12 @@ public class DirectSocketFactory {
             try {
                 if (user != null) {
                     result = attemptSSHConnection(target, sa, partialTime,
-                            localPort, false, user, userOut, userIn, local);
+                            localPort, false, user, userOut, userIn, local,
+                            null);
                 } else {
                     result = attemptConnection(target, sa, partialTime,
                             sendBuffer, receiveBuffer, localPort, false,
-                            userOut, userIn, local);
+                            userOut, userIn, local, null);
                 }
             } catch (IOException e) {
                 exceptions.add(new NestedIOExceptionData("Connection setup to "
@@ -1774,6 +1977,153 @@ public class DirectSocketFactory {
         return result;
     }
 
+    // A single connection attempt in a race, which runs in a thread of its own.
+    private final class RaceAttempt implements Runnable {
+
+        private final ConnectionRace race;
+        private final DirectSocketAddress target;
+        private final InetSocketAddress sa;
+        private final String user;
+        private final int sendBuffer;
+        private final int receiveBuffer;
+        private final byte[] userOut;
+
+        private int timeout;
+
+        RaceAttempt(ConnectionRace race, DirectSocketAddress target,
+                InetSocketAddress sa, String user, int sendBuffer,
+                int receiveBuffer, byte[] userOut) {
+
+            this.race = race;
+            this.target = target;
+            this.sa = sa;
+            this.user = user;
+            this.sendBuffer = sendBuffer;
+            this.receiveBuffer = receiveBuffer;
+            this.userOut = userOut;
+        }
+
+        public void run() {
+
+            // Each attempt needs its own copy, since only the winner may
+            // return the user data to the caller.
+            byte[] userIn = new byte[4];
+
+            DirectSocket result = null;
+            NestedIOExceptionData error = null;
+
+            long time = System.currentTimeMillis();
+
+            try {
+                if (user != null) {
+                    result = attemptSSHConnection(target, sa, timeout, 0,
+                            false, user, userOut, userIn, true, race);
+                } else {
+                    result = attemptConnection(target, sa, timeout,
+                            sendBuffer, receiveBuffer, 0, false, userOut,
+                            userIn, true, race);
+                }
+            } catch (IOException e) {
+                error = new NestedIOExceptionData("Connection setup to "
+                        + NetworkUtils.saToString(sa) + " failed after "
+                        + (System.currentTimeMillis() - time)
+                        + " ms. (racing, ssh=" + (user != null)
+                        + ", timeout=" + timeout + ")", e);
+            }
+
+            if (result == null) {
+                race.failed(error);
+            } else if (!race.success(result, userIn)) {
+                // Should not happen, since only one attempt can claim the
+                // race, but we don't want to leak the connection.
+                close(result, null, null);
+            }
+        }
+    }
+
+    private DirectSocket raceOptions(DirectSocketAddress target,
+            InetSocketAddress[] sas, int timeout, int sendBuffer,
+            int receiveBuffer, boolean mayUseSSH, byte[] userOut,
+            byte[] userIn, LinkedList<NestedIOExceptionData> exceptions) {
+
+        ConnectionRace race = new ConnectionRace(userIn);
+
+        // The attempts in order of preference. Direct connections are
+        // preferred over SSH tunnels.
+        ArrayList<RaceAttempt> attempts = new ArrayList<RaceAttempt>();
+
+        if (!FORCE_SSH_OUT) {
+            for (InetSocketAddress sa : sas) {
+                attempts.add(new RaceAttempt(race, target, sa, null,
+                        sendBuffer, receiveBuffer, userOut));
+            }
+        }
+
+        if (mayUseSSH) {
+            for (InetSocketAddress sa : sas) {
+                attempts.add(new RaceAttempt(race, target, sa,
+                        target.getUser(), sendBuffer, receiveBuffer, userOut));
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        long deadline = start + timeout;
+
+        int started = 0;
+
+        // Start the attempts one by one. The next attempt is started when the
+        // previous one has not completed within RACE_DELAY, or as soon as
+        // any of the running attempts fails.
+        while (started < attempts.size() && !race.isDone()) {
+
+            long left = deadline - System.currentTimeMillis();
+
+            if (left <= 0) {
+                break;
+            }
+
+            RaceAttempt a = attempts.get(started);
+
+            a.timeout = (int) left;
+
+            if (NetworkUtils.isLocalAddress(a.sa.getAddress())
+                    && a.timeout > DEFAULT_LOCAL_TIMEOUT) {
+                // local networks get limited time!
+                a.timeout = DEFAULT_LOCAL_TIMEOUT;
+            }
+
+            race.start();
+            ThreadPool.createNew(a, "DirectSocketFactory race "
+                    + NetworkUtils.saToString(a.sa));
+
+            started++;
+
+            if (started < attempts.size()) {
+                race.waitForProgress(Math.min(RACE_DELAY, left));
+            }
+        }
+
+        // Wait for the running attempts to finish.
+        long left = deadline - System.currentTimeMillis();
+
+        while (left > 0 && !race.waitForProgress(left)) {
+            left = deadline - System.currentTimeMillis();
+        }
+
+        DirectSocket result = race.end();
+
+        race.getExceptions(exceptions);
+
+        if (logger.isInfoEnabled()) {
+            logger.info("Connection race " + (result != null ? "won" : "lost")
+                    + " after " + (System.currentTimeMillis() - start)
+                    + " ms. (" + started + " of " + attempts.size()
+                    + " attempts started)");
+        }
+
+        return result;
+    }
+
     public DirectServerSocket createServerSocket(int port, int backlog, Map<String, Object> prop)
             throws IOException {
         return createServerSocket(port, backlog, -1, prop);
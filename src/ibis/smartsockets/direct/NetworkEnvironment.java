@@ -0,0 +1,372 @@
+package ibis.smartsockets.direct;
+
+import ibis.smartsockets.util.NetworkUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Snapshot of the network environment of this machine, as found by the
+ * expensive probes done when a DirectSocketFactory is created: the MAC
+ * address and netmasks (found by running ifconfig/ipconfig), the external
+ * address (found using STUN or UPnP) and the address in the network of the
+ * UPnP gateway.
+ *
+ * The snapshot can be saved to and loaded from a file, so these probes can be
+ * skipped by later runs. A snapshot is only used if it is not too old, and if
+ * it was created for the same fingerprint. The fingerprint describes the
+ * network interfaces of this machine (names, MAC and IP addresses), so any
+ * change in the network configuration invalidates the snapshot.
+ *
+ * The file is written to a temporary file first, which then replaces the old
+ * file. The last line of the file is an end marker, so a file that was not
+ * written completely is never used.
+ */
+final class NetworkEnvironment {
+
+    private static final Logger logger =
+        LoggerFactory.getLogger("ibis.smartsockets.direct.environment");
+
+    // Version of the file format.
+    private static final int VERSION = 2;
+
+    // The last line of the file.
+    private static final String END = "end";
+
+    private final String fingerprint;
+
+    private final long time;
+
+    private byte [] mac;
+
+    private final LinkedHashMap<InetAddress, byte []> netmasks =
+        new LinkedHashMap<InetAddress, byte []>();
+
+    private InetAddress external;
+
+    private String nat;
+
+    NetworkEnvironment(String fingerprint) {
+        this(fingerprint, System.currentTimeMillis());
+    }
+
+    private NetworkEnvironment(String fingerprint, long time) {
+        this.fingerprint = fingerprint;
+        this.time = time;
+    }
+
+    /**
+     * Returns a fingerprint of the network interfaces of this machine. Only
+     * the standard Java API is used, so this is cheap.
+     *
+     * @return the fingerprint.
+     */
+    static String fingerprint() {
+
+        ArrayList<String> result = new ArrayList<String>();
+
+        NetworkInterface [] nws = NetworkUtils.getNetworkInterfaces();
+
+        for (NetworkInterface nw : nws) {
+
+            StringBuilder tmp = new StringBuilder(nw.getName());
+
+            try {
+                byte [] hw = nw.getHardwareAddress();
+
+                if (hw != null) {
+                    tmp.append('/');
+                    tmp.append(NetworkUtils.MACToString(hw));
+                }
+            } catch (Exception e) {
+                // ignore
+            }
+
+            ArrayList<String> ads = new ArrayList<String>();
+
+            Enumeration<InetAddress> e = nw.getInetAddresses();
+
+            while (e.hasMoreElements()) {
+                ads.add(NetworkUtils.ipToString(e.nextElement()));
+            }
+
+            Collections.sort(ads);
+
+            for (String a : ads) {
+                tmp.append('/');
+                tmp.append(a);
+            }
+
+            result.add(tmp.toString());
+        }
+
+        Collections.sort(result);
+
+        StringBuilder tmp = new StringBuilder();
+
+        for (String s : result) {
+            if (tmp.length() > 0) {
+                tmp.append(' ');
+            }
+            tmp.append(s);
+        }
+
+        return tmp.toString();
+    }
+
+    byte [] getMAC() {
+        return mac;
+    }
+
+    void setMAC(byte [] mac) {
+        this.mac = mac;
+    }
+
+    Map<InetAddress, byte []> getNetmasks() {
+        return netmasks;
+    }
+
+    void addNetmask(InetAddress a, byte [] mask) {
+        netmasks.put(a, mask);
+    }
+
+    InetAddress getExternal() {
+        return external;
+    }
+
+    void setExternal(InetAddress external) {
+        this.external = external;
+    }
+
+    String getNAT() {
+        return nat;
+    }
+
+    void setNAT(String nat) {
+        this.nat = nat;
+    }
+
+    /**
+     * Loads the snapshot saved in the given file, provided that it was
+     * created for the given fingerprint, and is not older than ttl
+     * milliseconds.
+     *
+     * @return the snapshot, or null if there is no valid snapshot.
+     */
+    static NetworkEnvironment load(File file, String fingerprint, long ttl) {
+
+        if (!file.exists()) {
+            return null;
+        }
+
+        BufferedReader in = null;
+
+        try {
+            in = new BufferedReader(new FileReader(file));
+
+            NetworkEnvironment result = null;
+            int version = -1;
+            boolean complete = false;
+
+            String line = in.readLine();
+
+            while (line != null) {
+
+                if (line.equals(END)) {
+                    complete = true;
+                    break;
+                }
+
+                if (line.length() > 0 && !line.startsWith("#")) {
+
+                    String [] tmp = line.split("\t");
+
+                    if (tmp.length < 2) {
+                        throw new IOException("Malformed line: " + line);
+                    }
+
+                    if (tmp[0].equals("version")) {
+                        version = Integer.parseInt(tmp[1]);
+
+                        if (version != VERSION) {
+                            return invalid(file, "version " + version);
+                        }
+                    } else if (version != VERSION) {
+                        throw new IOException("Missing version");
+                    } else if (tmp[0].equals("fingerprint")) {
+
+                        if (tmp.length != 3) {
+                            throw new IOException("Malformed line: " + line);
+                        }
+
+                        if (!tmp[2].equals(fingerprint)) {
+                            return invalid(file, "network changed");
+                        }
+
+                        long time = Long.parseLong(tmp[1]);
+                        long age = System.currentTimeMillis() - time;
+
+                        if (age < 0 || age > ttl) {
+                            return invalid(file, "expired");
+                        }
+
+                        result = new NetworkEnvironment(fingerprint, time);
+                    } else if (result == null) {
+                        throw new IOException("Missing fingerprint");
+                    } else if (tmp[0].equals("mac")) {
+                        result.mac = NetworkUtils.MACStringToBytes(tmp[1]);
+                    } else if (tmp[0].equals("netmask")) {
+
+                        if (tmp.length != 3) {
+                            throw new IOException("Malformed line: " + line);
+                        }
+
+                        result.addNetmask(InetAddress.getByName(tmp[1]),
+                                parseMask(tmp[2]));
+                    } else if (tmp[0].equals("external")) {
+                        result.external = InetAddress.getByName(tmp[1]);
+                    } else if (tmp[0].equals("nat")) {
+                        result.nat = tmp[1];
+                    } else {
+                        throw new IOException("Malformed line: " + line);
+                    }
+                }
+
+                line = in.readLine();
+            }
+
+            if (!complete) {
+                return invalid(file, "incomplete");
+            }
+
+            if (result == null) {
+                throw new IOException("Missing fingerprint");
+            }
+
+            if (logger.isInfoEnabled()) {
+                logger.info("Loaded network environment from " + file);
+            }
+
+            return result;
+
+        } catch (Exception e) {
+            logger.warn("Failed to load network environment from " + file, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (Exception e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static NetworkEnvironment invalid(File file, String reason) {
+
+        if (logger.isInfoEnabled()) {
+            logger.info("Ignoring network environment in " + file + " ("
+                    + reason + ")");
+        }
+
+        return null;
+    }
+
+    private static byte [] parseMask(String mask) {
+
+        String [] tmp = mask.split("\\.");
+
+        byte [] result = new byte[tmp.length];
+
+        for (int i=0;i<tmp.length;i++) {
+            result[i] = (byte) (0xff & Integer.parseInt(tmp[i]));
+        }
+
+        return result;
+    }
+
+    void save(File file) {
+
+        PrintWriter out = null;
+        File tmp = null;
+
+        try {
+            // Write to a file in the same directory, so it can be renamed to
+            // the target without being copied.
+            File dir = file.getAbsoluteFile().getParentFile();
+
+            tmp = File.createTempFile(file.getName() + ".", ".tmp", dir);
+
+            out = new PrintWriter(new FileWriter(tmp));
+
+            out.println("# SmartSockets network environment cache");
+            out.println("version\t" + VERSION);
+            out.println("fingerprint\t" + time + "\t" + fingerprint);
+
+            if (mac != null && mac.length == 6) {
+                out.println("mac\t" + NetworkUtils.MACToString(mac));
+            }
+
+            for (Map.Entry<InetAddress, byte []> e : netmasks.entrySet()) {
+                out.println("netmask\t" + NetworkUtils.ipToString(e.getKey())
+                        + "\t" + NetworkUtils.bytesToString(e.getValue()));
+            }
+
+            if (external != null) {
+                out.println("external\t" + NetworkUtils.ipToString(external));
+            }
+
+            if (nat != null) {
+                out.println("nat\t" + nat);
+            }
+
+            out.println(END);
+            out.close();
+
+            if (out.checkError()) {
+                throw new IOException("Write failed");
+            }
+
+            out = null;
+
+            // NOTE: on some platforms, renameTo does not replace an existing
+            // file.
+            if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+                throw new IOException("Failed to rename " + tmp + " to "
+                        + file);
+            }
+
+            tmp = null;
+
+            if (logger.isInfoEnabled()) {
+                logger.info("Saved network environment to " + file);
+            }
+
+        } catch (Exception e) {
+            logger.warn("Failed to save network environment to " + file, e);
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
+}
@@ -8,6 +8,8 @@ import ibis.smartsockets.direct.DirectSocketAddress;
 import ibis.smartsockets.direct.DirectSocketFactory;
 import ibis.smartsockets.hub.connections.ClientConnection;
 import ibis.smartsockets.hub.connections.HubConnection;
+import ibis.smartsockets.hub.connections.SelectorEndpoint;
+import ibis.smartsockets.hub.connections.SelectorPool;
 import ibis.smartsockets.hub.connections.VirtualConnections;
 import ibis.smartsockets.hub.state.HubDescription;
 import ibis.smartsockets.hub.state.HubList;
@@ -50,17 +52,24 @@ public class Acceptor extends CommunicationThread {
 
     private final StatisticsCallback callback;
     private final long statisticsInterval;
+    private final int features;
+    private final int stripes;
 
     Acceptor(TypedProperties p, int port, StateCounter state,
             Connections connections, HubList knownProxies,
             VirtualConnections vcs, DirectSocketFactory factory,
             DirectSocketAddress delegationAddress, StatisticsCallback callback,
-            long statisticsInterval) throws IOException {
+            long statisticsInterval, SelectorPool selectors)
+        throws IOException {
 
-        super("HubAcceptor", state, connections, knownProxies, vcs, factory);
+        super("HubAcceptor", state, connections, knownProxies, vcs, factory,
+                selectors,
+                p.getIntProperty(SmartSocketsProperties.HUB_LINGER, 0));
 
         this.callback = callback;
         this.statisticsInterval = statisticsInterval;
+        this.features = features(p);
+        this.stripes = p.getIntProperty(SmartSocketsProperties.HUB_STRIPES, 0);
 
         if (delegationAddress == null) {
             sendBuffer = p.getIntProperty(SmartSocketsProperties.HUB_SEND_BUFFER, -1);
@@ -78,12 +87,16 @@ public class Acceptor extends CommunicationThread {
     }
 
     private boolean handleIncomingHubConnect(DirectSocket s,
-            DataInputStream in, DataOutputStream out) throws IOException {
+            DataInputStream in, DataOutputStream out, boolean negotiate)
+        throws IOException {
 
         String otherAsString = in.readUTF();
         DirectSocketAddress addr =
             DirectSocketAddress.getByAddress(otherAsString);
 
+        // Only use the features that both hubs support.
+        int common = negotiate ? (in.readInt() & features) : 0;
+
         if (hconlogger.isDebugEnabled()) {
             hconlogger.debug("Got connection from " + addr);
         }
@@ -91,9 +104,13 @@ public class Acceptor extends CommunicationThread {
         HubDescription d = knownHubs.add(addr);
         d.setCanReachMe();
 
-        HubConnection c = new HubConnection(s, in, out, d, connections,
+        SelectorEndpoint e = createEndpoint(s);
+
+        HubConnection c = new HubConnection(s,
+                e == null ? in : e.getInputStream(),
+                createOutputStream(s, e, out), d, connections,
                 knownHubs, state, virtualConnections, false, callback,
-                statisticsInterval);
+                statisticsInterval, common);
 
         if (!d.createConnection(c)) {
             // There already was a connection with this hub...
@@ -113,16 +130,75 @@ public class Acceptor extends CommunicationThread {
             }
 
             out.write(ConnectionProtocol.CONNECTION_ACCEPTED);
+
+            if (negotiate) {
+                out.writeInt(common);
+            }
+
             out.flush();
 
             // Now activate it.
-            c.activate();
+            activate(c, e, in);
 
             connections.put(addr, c);
             return true;
         }
     }
 
+    private boolean handleIncomingHubStripe(DirectSocket s,
+            DataInputStream in, DataOutputStream out) throws IOException {
+
+        String otherAsString = in.readUTF();
+        int stripe = in.readInt();
+
+        DirectSocketAddress addr =
+            DirectSocketAddress.getByAddress(otherAsString);
+
+        HubDescription d = knownHubs.get(addr);
+        HubConnection main = connections.getHub(addr);
+
+        // A stripe is only accepted next to an existing main connection.
+        if (stripe < 1 || stripe > stripes || d == null || main == null) {
+
+            if (hconlogger.isInfoEnabled()) {
+                hconlogger.info("Stripe " + stripe + " from " + addr
+                        + " refused");
+            }
+
+            out.write(ConnectionProtocol.CONNECTION_REFUSED);
+            out.flush();
+            return false;
+        }
+
+        SelectorEndpoint e = createEndpoint(s);
+
+        // The stripe uses the features negotiated for the main connection.
+        HubConnection c = new HubConnection(s,
+                e == null ? in : e.getInputStream(),
+                createOutputStream(s, e, out), d, connections,
+                knownHubs, state, virtualConnections, false, callback,
+                statisticsInterval, main.getFeatures(), stripe);
+
+        if (!c.acceptStripe(out)) {
+            // The main connection was lost in the meantime, or the stripe
+            // already exists.
+            if (hconlogger.isInfoEnabled()) {
+                hconlogger.info("Stripe " + stripe + " from " + addr
+                        + " refused");
+            }
+
+            return false;
+        }
+
+        if (hconlogger.isInfoEnabled()) {
+            hconlogger.info("Incoming stripe " + stripe + " from hub " + addr
+                    + " accepted");
+        }
+
+        activate(c, e, in);
+        return true;
+    }
+
     private boolean handlePing(DirectSocket s,
             DataInputStream in, DataOutputStream out) throws IOException {
 
@@ -132,11 +208,15 @@ public class Acceptor extends CommunicationThread {
     }
 
     private boolean handleServiceLinkConnect(DirectSocket s, DataInputStream in,
-            DataOutputStream out) {
+            DataOutputStream out, boolean negotiate) {
 
         try {
             String src = in.readUTF();
 
+            // Clients only use the address dictionary.
+            int common = negotiate ? (in.readInt() & features
+                    & ConnectionProtocol.FEATURE_ADDRESS_DICTIONARY) : 0;
+
             DirectSocketAddress srcAddr = DirectSocketAddress.getByAddress(src);
 
             if (connections.getClient(srcAddr) != null) {
@@ -159,11 +239,21 @@ public class Acceptor extends CommunicationThread {
 
             out.write(ConnectionProtocol.CONNECTION_ACCEPTED);
             out.writeUTF(getLocalAsString());
+
+            if (negotiate) {
+                out.writeInt(common);
+            }
+
             out.flush();
 
-            ClientConnection c = new ClientConnection(srcAddr, s, in, out,
+            SelectorEndpoint e = createEndpoint(s);
+
+            ClientConnection c = new ClientConnection(srcAddr, s,
+                    e == null ? in : e.getInputStream(),
+                    createOutputStream(s, e, out),
                     connections, knownHubs, virtualConnections, callback,
-                    statisticsInterval);
+                    statisticsInterval,
+                    (common & ConnectionProtocol.FEATURE_ADDRESS_DICTIONARY) != 0);
 
             connections.put(srcAddr, c);
             knownHubs.getLocalDescription().addClient(srcAddr);
@@ -172,8 +262,9 @@ public class Acceptor extends CommunicationThread {
                 reglogger.info("Added client: " + src);
             }
 
-            // Finally activate the thread so it can handle incoming requests.
-            c.activate();
+            // Finally activate the connection so it can handle incoming
+            // requests.
+            activate(c, e, in);
 
             return true;
 
@@ -236,7 +327,15 @@ public class Acceptor extends CommunicationThread {
 
             switch (opcode) {
             case ConnectionProtocol.HUB_CONNECT:
-                result = handleIncomingHubConnect(s, in, out);
+                result = handleIncomingHubConnect(s, in, out, false);
+                break;
+
+            case ConnectionProtocol.HUB_CONNECT_FEATURES:
+                result = handleIncomingHubConnect(s, in, out, true);
+                break;
+
+            case ConnectionProtocol.HUB_STRIPE:
+                result = handleIncomingHubStripe(s, in, out);
                 break;
 
             case ConnectionProtocol.PING:
@@ -244,7 +343,11 @@ public class Acceptor extends CommunicationThread {
                 break;
 
             case ConnectionProtocol.SERVICELINK_CONNECT:
-                result = handleServiceLinkConnect(s, in, out);
+                result = handleServiceLinkConnect(s, in, out, false);
+                break;
+
+            case ConnectionProtocol.SERVICELINK_CONNECT_FEATURES:
+                result = handleServiceLinkConnect(s, in, out, true);
                 break;
 
             case ConnectionProtocol.GET_SPLICE_INFO:
@@ -1,10 +1,21 @@
 package ibis.smartsockets.hub;
 
+import ibis.smartsockets.SmartSocketsProperties;
 import ibis.smartsockets.direct.DirectSocketAddress;
+import ibis.smartsockets.direct.DirectSocket;
 import ibis.smartsockets.direct.DirectSocketFactory;
+import ibis.smartsockets.hub.connections.BaseConnection;
+import ibis.smartsockets.hub.connections.SelectorEndpoint;
+import ibis.smartsockets.hub.connections.SelectorPool;
 import ibis.smartsockets.hub.connections.VirtualConnections;
 import ibis.smartsockets.hub.state.HubList;
 import ibis.smartsockets.hub.state.StateCounter;
+import ibis.smartsockets.util.CoalescingOutputStream;
+import ibis.smartsockets.util.TypedProperties;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,6 +37,12 @@ abstract class CommunicationThread implements Runnable {
     protected final VirtualConnections virtualConnections;
     protected final DirectSocketFactory factory;
 
+    // Null if every connection uses a thread of its own.
+    protected final SelectorPool selectors;
+
+    // Maximum time a message may be delayed to combine it with others.
+    protected final int linger;
+
     protected DirectSocketAddress local;
     protected String localAsString;
     protected Thread thread;
@@ -34,7 +51,7 @@ abstract class CommunicationThread implements Runnable {
 
     protected CommunicationThread(String name, StateCounter state,
             Connections connections, HubList knownHubs, VirtualConnections vcs,
-            DirectSocketFactory factory) {
+            DirectSocketFactory factory, SelectorPool selectors, int linger) {
 
         this.name = name;
         this.state = state;
@@ -42,6 +59,66 @@ abstract class CommunicationThread implements Runnable {
         this.knownHubs = knownHubs;
         this.virtualConnections = vcs;
         this.factory = factory;
+        this.selectors = selectors;
+        this.linger = linger;
+    }
+
+    // Returns the features this hub offers to its peers, as negotiated in the
+    // connection setup (see ConnectionProtocol).
+    protected static int features(TypedProperties p) {
+
+        int features = 0;
+
+        if (p.booleanProperty(SmartSocketsProperties.HUB_GOSSIP_DELTA, true)) {
+            features |= ConnectionProtocol.FEATURE_GOSSIP_DELTA;
+        }
+
+        if (p.booleanProperty(SmartSocketsProperties.HUB_ADDRESS_DICTIONARY,
+                false)) {
+            features |= ConnectionProtocol.FEATURE_ADDRESS_DICTIONARY;
+        }
+
+        return features;
+    }
+
+    // Returns the SelectorEndpoint for a new connection, or null if the
+    // connection must use the blocking streams and a thread of its own.
+    protected SelectorEndpoint createEndpoint(DirectSocket s) {
+
+        if (selectors == null) {
+            return null;
+        }
+
+        return selectors.createEndpoint(s);
+    }
+
+    // Returns the output stream for a new connection. The handshake stream
+    // flushes every message immediately. It is only reused by the connection
+    // if messages need not be combined.
+    protected DataOutputStream createOutputStream(DirectSocket s,
+            SelectorEndpoint e, DataOutputStream handshake) throws IOException {
+
+        if (e != null) {
+            return e.getOutputStream();
+        }
+
+        if (linger <= 0) {
+            return handshake;
+        }
+
+        return new DataOutputStream(new CoalescingOutputStream(
+                s.getOutputStream(), CoalescingOutputStream.DEFAULT_SIZE,
+                linger));
+    }
+
+    protected void activate(BaseConnection c, SelectorEndpoint e,
+            InputStream handshake) {
+
+        if (e == null) {
+            c.activate();
+        } else {
+            selectors.activate(e, c, handshake);
+        }
     }
 
     protected void setLocal(DirectSocketAddress local) {
@@ -12,4 +12,23 @@ public interface ConnectionProtocol {
     public static final byte PING                = 7;
     public static final byte GET_SPLICE_INFO     = 8;
 
+    public static final byte HUB_STRIPE          = 9;
+
+    // Same as HUB_CONNECT, but followed by the features supported by the
+    // connecting hub. The reply to an accepted connection is followed by the
+    // features that both hubs support. Hubs that do not know this opcode
+    // close the connection, after which HUB_CONNECT is used instead.
+    public static final byte HUB_CONNECT_FEATURES = 10;
+
+    // Same as SERVICELINK_CONNECT, but followed by the features supported by
+    // the client. The reply to an accepted connection is followed by the
+    // features that both the client and the hub support. Hubs that do not
+    // know this opcode close the connection, after which SERVICELINK_CONNECT
+    // is used instead.
+    public static final byte SERVICELINK_CONNECT_FEATURES = 11;
+
+    // The features that may be negotiated.
+    public static final int FEATURE_GOSSIP_DELTA       = 1;
+    public static final int FEATURE_ADDRESS_DICTIONARY = 2;
+
 }
@@ -13,9 +13,13 @@ public class Connections {
     private final Map<DirectSocketAddress, HubConnection> hubs;
     private final Map<DirectSocketAddress, ClientConnection> clients;
 
+    // The extra connections (stripes) to a hub. Stripe i is stored at i-1.
+    private final Map<DirectSocketAddress, HubConnection []> stripes;
+
     public Connections() {
         hubs = new HashMap<DirectSocketAddress, HubConnection>();
         clients = new HashMap<DirectSocketAddress, ClientConnection>();
+        stripes = new HashMap<DirectSocketAddress, HubConnection []>();
     }
 
     public synchronized void put(DirectSocketAddress a, ClientConnection c) {
@@ -30,6 +34,78 @@ public class Connections {
         return hubs.get(a);
     }
 
+    /**
+     * Returns the connection to hub a that should be used for the virtual
+     * connection identified by key. If there are stripes to the hub, the key
+     * selects one of them, otherwise the main connection is returned.
+     */
+    public synchronized HubConnection getHub(DirectSocketAddress a, int key) {
+
+        HubConnection [] tmp = stripes.get(a);
+
+        if (tmp != null) {
+            int start = (key & Integer.MAX_VALUE) % tmp.length;
+
+            for (int i=0;i<tmp.length;i++) {
+
+                HubConnection c = tmp[(start + i) % tmp.length];
+
+                if (c != null) {
+                    return c;
+                }
+            }
+        }
+
+        return hubs.get(a);
+    }
+
+    // Adds stripe number stripe (1 or higher) to hub a. This fails if there
+    // is no main connection to the hub, or if the stripe already exists.
+    public synchronized boolean putStripe(DirectSocketAddress a, int stripe,
+            HubConnection c) {
+
+        if (stripe < 1 || !hubs.containsKey(a)) {
+            return false;
+        }
+
+        HubConnection [] tmp = stripes.get(a);
+
+        if (tmp == null) {
+            tmp = new HubConnection[stripe];
+        } else if (tmp.length < stripe) {
+            HubConnection [] old = tmp;
+            tmp = new HubConnection[stripe];
+            System.arraycopy(old, 0, tmp, 0, old.length);
+        }
+
+        if (tmp[stripe-1] != null) {
+            return false;
+        }
+
+        tmp[stripe-1] = c;
+        stripes.put(a, tmp);
+        return true;
+    }
+
+    public synchronized boolean removeStripe(DirectSocketAddress a,
+            int stripe, HubConnection c) {
+
+        HubConnection [] tmp = stripes.get(a);
+
+        if (tmp == null || stripe < 1 || stripe > tmp.length
+                || tmp[stripe-1] != c) {
+            return false;
+        }
+
+        tmp[stripe-1] = null;
+        return true;
+    }
+
+    // Removes all stripes to hub a, and returns them.
+    public synchronized HubConnection [] removeStripes(DirectSocketAddress a) {
+        return stripes.remove(a);
+    }
+
     public synchronized ClientConnection getClient(DirectSocketAddress a) {
         return clients.get(a);
     }
@@ -5,6 +5,8 @@ import ibis.smartsockets.direct.DirectSSHSocket;
 import ibis.smartsockets.direct.DirectSocket;
 import ibis.smartsockets.direct.DirectSocketFactory;
 import ibis.smartsockets.hub.connections.HubConnection;
+import ibis.smartsockets.hub.connections.SelectorEndpoint;
+import ibis.smartsockets.hub.connections.SelectorPool;
 import ibis.smartsockets.hub.connections.VirtualConnections;
 import ibis.smartsockets.hub.state.HubDescription;
 import ibis.smartsockets.hub.state.HubList;
@@ -30,54 +32,98 @@ class Connector extends CommunicationThread {
 
     private final int usercode;
 
+    // The replies of sendConnect that do not contain the features of an
+    // accepted connection.
+    private static final int REFUSED = -1;
+    private static final int UNSUPPORTED = -2;
+
     private final StatisticsCallback callback;
     private final long statisticsInterval;
+    private final int features;
+    private final int stripes;
 
     Connector(TypedProperties p, StateCounter state, Connections connections,
             HubList knownHubs, VirtualConnections vcs,
             DirectSocketFactory factory, StatisticsCallback callback,
-            long statisticsInterval) {
+            long statisticsInterval, SelectorPool selectors) {
 
-        super("HubConnector", state, connections, knownHubs, vcs, factory);
+        super("HubConnector", state, connections, knownHubs, vcs, factory,
+                selectors,
+                p.getIntProperty(SmartSocketsProperties.HUB_LINGER, 0));
 
         this.callback = callback;
         this.statisticsInterval = statisticsInterval;
+        this.features = features(p);
+        this.stripes = p.getIntProperty(SmartSocketsProperties.HUB_STRIPES, 0);
 
         sendBuffer = p.getIntProperty(SmartSocketsProperties.HUB_SEND_BUFFER, -1);
         receiveBuffer = p.getIntProperty(SmartSocketsProperties.HUB_RECEIVE_BUFFER, -1);
         usercode = p.getIntProperty(SmartSocketsProperties.HUB_VIRTUAL_PORT, 42);
     }
 
-    private boolean sendConnect(DataOutputStream out, DataInputStream in)
-        throws IOException {
+    // Sends a connection request, advertising the given features if there
+    // are any. Returns the features supported by both hubs if the request was
+    // accepted, REFUSED if it was not, or UNSUPPORTED if the peer does not
+    // understand the features.
+    private int sendConnect(DataOutputStream out, DataInputStream in,
+            int features) throws IOException {
 
         if (hconlogger.isDebugEnabled()) {
-            hconlogger.debug("Sending connection request");
+            hconlogger.debug("Sending connection request (features "
+                    + features + ")");
+        }
+
+        if (features == 0) {
+            out.write(ConnectionProtocol.HUB_CONNECT);
+            out.writeUTF(localAsString);
+        } else {
+            out.write(ConnectionProtocol.HUB_CONNECT_FEATURES);
+            out.writeUTF(localAsString);
+            out.writeInt(features);
         }
 
-        out.write(ConnectionProtocol.HUB_CONNECT);
-        out.writeUTF(localAsString);
         out.flush();
 
-        int opcode = in.read();
+        int opcode;
+
+        try {
+            opcode = in.read();
+        } catch (IOException e) {
+            if (features == 0) {
+                throw e;
+            }
+
+            // An older hub closes the connection while our request may not
+            // have been read completely, which may reset it.
+            opcode = -1;
+        }
 
         switch (opcode) {
         case ConnectionProtocol.CONNECTION_ACCEPTED:
             if (hconlogger.isDebugEnabled()) {
                 hconlogger.debug("Connection request accepted");
             }
-            return true;
+            return features == 0 ? 0 : in.readInt();
         case ConnectionProtocol.CONNECTION_REFUSED:
             if (hconlogger.isDebugEnabled()) {
                 hconlogger.debug("Connection request refused (duplicate)");
             }
-            return false;
+            return REFUSED;
+        case -1:
+            if (features != 0) {
+                if (hconlogger.isDebugEnabled()) {
+                    hconlogger.debug("Connection request closed, peer does "
+                            + "not support features");
+                }
+                return UNSUPPORTED;
+            }
+            return REFUSED;
         default:
             if (hconlogger.isDebugEnabled()) {
                 hconlogger.warn("Got unknown reply from proxy! ("
                         + opcode + ")");
             }
-            return false;
+            return REFUSED;
         }
     }
 
@@ -136,11 +182,23 @@ class Connector extends CommunicationThread {
 
     private void createConnection(HubDescription d) {
 
+        if (!createConnection(d, features)) {
+            // The hub is too old to negotiate features, so try again without.
+            createConnection(d, 0);
+        }
+    }
+
+    // Returns false if the connection could not be created because the peer
+    // does not support the features.
+    private boolean createConnection(HubDescription d, int features) {
+
         DirectSocket s = null;
         DataInputStream in = null;
         DataOutputStream out = null;
         boolean result = false;
         HubConnection c = null;
+        SelectorEndpoint endpoint = null;
+        boolean unsupported = false;
 
         // Creates a connection to a newly discovered proxy. Note that there is
         // a very nice race condition here, since the target proxy may be doing
@@ -177,6 +235,8 @@ class Connector extends CommunicationThread {
             in = new DataInputStream(
                     new BufferedInputStream(s.getInputStream()));
 
+            endpoint = createEndpoint(s);
+
             // If I am the master I must atomically grab the connection 'lock'
             // before sending the request. It will return true if it is still
             // free. If it isn't, we don't need to create the connection anymore
@@ -199,9 +259,11 @@ class Connector extends CommunicationThread {
                     hconlogger.debug("I am master during connection setup");
                 }
 
-                c = new HubConnection(s, in, out, d, connections,
-                        knownHubs, state, virtualConnections, true,
-                        callback, statisticsInterval);
+                c = new HubConnection(s,
+                        endpoint == null ? in : endpoint.getInputStream(),
+                        createOutputStream(s, endpoint, out),
+                        d, connections, knownHubs, state, virtualConnections,
+                        true, callback, statisticsInterval, 0);
 
                 result = d.createConnection(c);
 
@@ -215,19 +277,37 @@ class Connector extends CommunicationThread {
                     out.writeUTF(localAsString);
                     out.flush();
                 } else {
-                    result = sendConnect(out, in);
+                    int common = sendConnect(out, in, features);
+
+                    if (common == UNSUPPORTED) {
+                        // Release the 'lock' for the next attempt.
+                        d.removeConnection();
+                        unsupported = true;
+                    }
+
+                    result = common >= 0;
+
+                    if (result) {
+                        c.setFeatures(common);
+                    }
                 }
             } else {
                 if (hconlogger.isDebugEnabled()) {
                     hconlogger.debug("I am slave during connection setup");
                 }
 
-                result = sendConnect(out, in);
+                int common = sendConnect(out, in, features);
+
+                unsupported = (common == UNSUPPORTED);
+                result = common >= 0;
 
                 if (result) {
-                    c = new HubConnection(s, in, out, d, connections,
-                            knownHubs, state, virtualConnections, false,
-                            callback, statisticsInterval);
+                    c = new HubConnection(s,
+                            endpoint == null ? in : endpoint.getInputStream(),
+                            createOutputStream(s, endpoint, out),
+                            d, connections, knownHubs, state,
+                            virtualConnections, false, callback,
+                            statisticsInterval, common);
                     result = d.createConnection(c);
 
                     if (!result) {
@@ -267,7 +347,8 @@ class Connector extends CommunicationThread {
             }
 
             connections.put(d.hubAddress, c);
-            c.activate();
+
+            activate(c, endpoint, in);
 
             String name = d.hubAddressAsString;
 
@@ -276,12 +357,95 @@ class Connector extends CommunicationThread {
             }
 
             knownHubs.getLocalDescription().addConnectedTo(name);
+
+            for (int i=1;i<=stripes;i++) {
+                if (!createStripe(d, i, c.getFeatures())) {
+                    break;
+                }
+            }
         } else {
             if (hconlogger.isInfoEnabled()) {
                 hconlogger.info("Failed to set up connection!");
             }
             DirectSocketFactory.close(s, out, in);
         }
+
+        return !unsupported;
+    }
+
+    // The stripes use the features negotiated for the main connection.
+    private boolean createStripe(HubDescription d, int stripe, int features) {
+
+        DirectSocket s = null;
+        DataInputStream in = null;
+        DataOutputStream out = null;
+        SelectorEndpoint endpoint = null;
+
+        // Creates an extra connection (stripe) to a hub we have just
+        // connected to. Only the side that created the main connection does
+        // this, so there is no need for a master and a slave here.
+        if (hconlogger.isInfoEnabled()) {
+            hconlogger.info("Creating stripe " + stripe + " to " + d.hubAddress);
+        }
+
+        try {
+            s = factory.createSocket(d.hubAddress, DEFAULT_TIMEOUT, 0,
+                    sendBuffer, receiveBuffer, null, false, usercode);
+
+            s.setTcpNoDelay(true);
+            s.setSoTimeout(DEFAULT_TIMEOUT);
+
+            out = new DataOutputStream(
+                    new BufferedOutputStream(s.getOutputStream()));
+
+            in = new DataInputStream(
+                    new BufferedInputStream(s.getInputStream()));
+
+            endpoint = createEndpoint(s);
+
+            out.write(ConnectionProtocol.HUB_STRIPE);
+            out.writeUTF(localAsString);
+            out.writeInt(stripe);
+            out.flush();
+
+            int opcode = in.read();
+
+            if (opcode != ConnectionProtocol.CONNECTION_ACCEPTED) {
+                if (hconlogger.isInfoEnabled()) {
+                    hconlogger.info("Stripe " + stripe + " to "
+                            + d.hubAddress + " refused (" + opcode + ")");
+                }
+
+                DirectSocketFactory.close(s, out, in);
+                return false;
+            }
+
+            s.setSoTimeout(0);
+
+            HubConnection c = new HubConnection(s,
+                    endpoint == null ? in : endpoint.getInputStream(),
+                    createOutputStream(s, endpoint, out),
+                    d, connections, knownHubs, state, virtualConnections,
+                    true, callback, statisticsInterval, features, stripe);
+
+            if (!connections.putStripe(d.hubAddress, stripe, c)) {
+                // The main connection was lost in the meantime.
+                DirectSocketFactory.close(s, out, in);
+                return false;
+            }
+
+            activate(c, endpoint, in);
+            return true;
+
+        } catch (IOException e) {
+            if (hconlogger.isDebugEnabled()) {
+                hconlogger.debug("Failed to create stripe " + stripe + " to "
+                        + d.hubAddress, e);
+            }
+
+            DirectSocketFactory.close(s, out, in);
+            return false;
+        }
     }
 
     private void handleNewHub() {
@@ -7,11 +7,13 @@ import ibis.smartsockets.direct.DirectSocketFactory;
 import ibis.smartsockets.discovery.Discovery;
 import ibis.smartsockets.hub.connections.HubConnection;
 import ibis.smartsockets.hub.connections.MessageForwardingConnectionStatistics;
+import ibis.smartsockets.hub.connections.SelectorPool;
 import ibis.smartsockets.hub.connections.VirtualConnections;
 import ibis.smartsockets.hub.state.ConnectionsSelector;
 import ibis.smartsockets.hub.state.HubDescription;
 import ibis.smartsockets.hub.state.HubList;
 import ibis.smartsockets.hub.state.StateCounter;
+import ibis.smartsockets.util.CoalescingOutputStream;
 import ibis.smartsockets.util.NetworkUtils;
 import ibis.smartsockets.util.TypedProperties;
 
@@ -54,6 +56,8 @@ public final class Hub extends Thread implements StatisticsCallback {
 
     private final VirtualConnections virtualConnections;
 
+    private final SelectorPool selectors;
+
     private final String addressFile;
 
     private long nextStats;
@@ -87,6 +91,21 @@ public final class Hub extends Thread implements StatisticsCallback {
             p.setProperty(SmartSocketsProperties.SSH_OUT, "true");
         }
 
+        boolean useNIO = p.booleanProperty(SmartSocketsProperties.HUB_NIO,
+                false);
+
+        if (useNIO) {
+            // The selectors require sockets with a channel.
+            misclogger.info("Hub using NIO selectors");
+            p.setProperty(SmartSocketsProperties.NIO, "true");
+
+            selectors = new SelectorPool(p.getIntProperty(
+                    SmartSocketsProperties.HUB_NIO_SELECTORS, 2),
+                    p.getIntProperty(SmartSocketsProperties.HUB_LINGER, 0));
+        } else {
+            selectors = null;
+        }
+
         if (misclogger.isInfoEnabled()) {
             misclogger.info("Creating Hub for clusters: "
                     + Arrays.deepToString(clusters));
@@ -99,7 +118,7 @@ public final class Hub extends Thread implements StatisticsCallback {
 
         connections = new Connections();
 
-        virtualConnections = new VirtualConnections();
+        virtualConnections = new VirtualConnections(p);
 
         int port = p.getIntProperty(SmartSocketsProperties.HUB_PORT, DEFAULT_ACCEPT_PORT);
 
@@ -127,10 +146,11 @@ public final class Hub extends Thread implements StatisticsCallback {
         // NOTE: These are not started until later. We first need to init the
         // rest of the world!
         acceptor = new Acceptor(p, port, state, connections, hubs,
-                virtualConnections, factory, delegationAddress, this, 5000);
+                virtualConnections, factory, delegationAddress, this, 5000,
+                selectors);
 
         connector = new Connector(p, state, connections, hubs,
-                virtualConnections, factory, this, 5000);
+                virtualConnections, factory, this, 5000, selectors);
 
         DirectSocketAddress local = acceptor.getLocal();
         connector.setLocal(local);
@@ -336,6 +356,10 @@ public final class Hub extends Thread implements StatisticsCallback {
         // Shut down the other threads....
         acceptor.end();
         connector.end();
+
+        if (selectors != null) {
+            selectors.end();
+        }
     }
 
     public void add(Statistics s) {
@@ -375,6 +399,22 @@ public final class Hub extends Thread implements StatisticsCallback {
         System.err.println("  - hubs     : " + connections.numberOfHubs());
         System.err.println("  - clients  : " + connections.numberOfClients());
 
+        if (selectors != null) {
+            System.err.println("  - selected : " + selectors.numberOfConnections());
+        }
+
+        long frames = CoalescingOutputStream.getTotalFrames();
+        long flushes = CoalescingOutputStream.getTotalFlushes();
+
+        System.err.println(" Frames      : " + frames);
+        System.err.println("  - flushes  : " + flushes);
+
+        if (flushes > 0) {
+            System.err.println("  - per flush: " + (frames / flushes));
+        }
+
+        virtualConnections.printStatistics(System.err, " ");
+
         System.err.println("--- Connection Statistics ---");
 
         /*
@@ -5,4 +5,6 @@ import ibis.smartsockets.hub.connections.MessageForwarderProtocol;
 public interface HubProtocol extends MessageForwarderProtocol {
 
     public static final byte GOSSIP = 20;
+    public static final byte GOSSIP_DELTA = 21;
+    public static final byte GOSSIP_RESYNC = 22;
 }
@@ -0,0 +1,144 @@
+package ibis.smartsockets.hub.connections;
+
+import ibis.smartsockets.direct.DirectSocketAddress;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Replaces the addresses send in one direction of a hub or servicelink
+ * connection by small numbers.
+ * <p>
+ * The first time an address is written, it is send in full, together with
+ * the number assigned to it. After that, only the number is send. The reading
+ * side assigns the same numbers in the same order, so all addresses send in
+ * this direction must be written by the same dictionary, and must be read in
+ * the order in which they were written. Writers must hold the lock that
+ * orders the writes to the output stream (the {@link WriteScheduler} of a hub
+ * connection, or the write lock of a servicelink).
+ * <p>
+ * The dictionary is only enabled if both sides of the connection support it.
+ * When the dictionary is disabled, the addresses are written and read using
+ * {@link DirectSocketAddress#write(DirectSocketAddress, DataOutput)} and
+ * {@link DirectSocketAddress#read(DataInput)}.
+ */
+public final class AddressDictionary {
+
+    // Maximum number of addresses in a dictionary.
+    private static final int MAX_SIZE = Short.MAX_VALUE;
+
+    // Written instead of a number for a null address.
+    private static final short NULL = 0;
+
+    // Written when an address is send in full without assigning a number.
+    private static final short NO_NUMBER = Short.MIN_VALUE;
+
+    private boolean enabled;
+
+    // Used by the writing side.
+    private HashMap<DirectSocketAddress, Short> numbers;
+
+    // Used by the reading side.
+    private DirectSocketAddress [] addresses;
+
+    private int size = 0;
+
+    public AddressDictionary(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Enables or disables the dictionary. Must be called before the first
+     * address is written or read, and is used once both sides of a connection
+     * have agreed on the encoding.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void write(DirectSocketAddress a, DataOutput out)
+        throws IOException {
+
+        if (!enabled) {
+            DirectSocketAddress.write(a, out);
+            return;
+        }
+
+        if (a == null) {
+            out.writeShort(NULL);
+            return;
+        }
+
+        if (numbers == null) {
+            numbers = new HashMap<DirectSocketAddress, Short>();
+        }
+
+        Short number = numbers.get(a);
+
+        if (number != null) {
+            out.writeShort(number);
+            return;
+        }
+
+        if (size == MAX_SIZE) {
+            out.writeShort(NO_NUMBER);
+        } else {
+            // A negative number indicates that the address follows.
+            size++;
+            numbers.put(a, (short) size);
+            out.writeShort(-size);
+        }
+
+        DirectSocketAddress.write(a, out);
+    }
+
+    public DirectSocketAddress read(DataInput in) throws IOException {
+
+        if (!enabled) {
+            return DirectSocketAddress.read(in);
+        }
+
+        int number = in.readShort();
+
+        if (number == NULL) {
+            return null;
+        }
+
+        if (number == NO_NUMBER) {
+            return DirectSocketAddress.read(in);
+        }
+
+        if (number > 0) {
+            if (number > size) {
+                throw new IOException("Unknown address number " + number);
+            }
+
+            return addresses[number-1];
+        }
+
+        if (-number != size+1) {
+            throw new IOException("Unexpected address number " + (-number)
+                    + " (expected " + (size+1) + ")");
+        }
+
+        DirectSocketAddress a = DirectSocketAddress.read(in);
+
+        if (addresses == null) {
+            addresses = new DirectSocketAddress[16];
+        } else if (size == addresses.length) {
+            DirectSocketAddress [] tmp =
+                new DirectSocketAddress[Math.min(2*size, MAX_SIZE)];
+            System.arraycopy(addresses, 0, tmp, 0, size);
+            addresses = tmp;
+        }
+
+        addresses[size++] = a;
+        return a;
+    }
+}
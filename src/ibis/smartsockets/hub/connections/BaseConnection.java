@@ -24,6 +24,11 @@ public abstract class BaseConnection implements Runnable {
     protected final StatisticsCallback callback;
     protected final long statisticsInterval;
 
+    // Set when the connection is handled by a SelectorLoop.
+    volatile SelectorEndpoint endpoint;
+
+    private long nextStatistics;
+
     protected BaseConnection(DirectSocket s, DataInputStream in,
             DataOutputStream out, Connections connections, HubList hubs,
             StatisticsCallback callback, long statisticsInterval) {
@@ -35,6 +40,8 @@ public abstract class BaseConnection implements Runnable {
         this.knownHubs = hubs;
         this.statisticsInterval = statisticsInterval;
         this.callback = callback;
+
+        nextStatistics = System.currentTimeMillis() + statisticsInterval;
     }
 
     public void activate() {
@@ -55,24 +62,33 @@ public abstract class BaseConnection implements Runnable {
 
         boolean cont = true;
 
-        long next = System.currentTimeMillis() + statisticsInterval;
-
         while (cont) {
             cont = runConnection();
+            checkStatistics(System.currentTimeMillis());
+        }
 
-            if (System.currentTimeMillis() > next) {
+        // NOTE: Do NOT close the socket here, since it may still be in use!
+    }
+
+    // Also called by the SelectorLoop, which has no thread per connection.
+    void checkStatistics(long now) {
 
-                Statistics s = getStatistics();
+        if (now > nextStatistics) {
 
-                if (s != null && callback != null) {
-                    callback.add(s);
-                }
+            Statistics s = getStatistics();
 
-                next = System.currentTimeMillis() + statisticsInterval;
+            if (s != null && callback != null) {
+                callback.add(s);
             }
+
+            nextStatistics = now + statisticsInterval;
         }
+    }
 
-        // NOTE: Do NOT close the socket here, since it may still be in use!
+    // Are the addresses in the frames of this connection encoded using an
+    // AddressDictionary ?
+    boolean usesAddressDictionary() {
+        return false;
     }
 
     protected abstract boolean runConnection();
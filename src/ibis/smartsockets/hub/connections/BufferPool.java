@@ -0,0 +1,119 @@
+package ibis.smartsockets.hub.connections;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Pool of the buffers used by a hub to relay virtual messages.
+ * <p>
+ * A buffer is only needed while a single message is relayed, so all virtual
+ * connections share the buffers of this pool. The buffers are rounded up to
+ * a power of two, and at most a given number of bytes of idle buffers are
+ * kept for reuse. Buffers larger than MAX_SIZE are not pooled.
+ */
+final class BufferPool {
+
+    private static final int MIN_SHIFT = 10;
+    private static final int MAX_SHIFT = 24;
+
+    private static final int MAX_SIZE = 1 << MAX_SHIFT;
+
+    private final long maxIdle;
+
+    // The idle buffers of size 2^(MIN_SHIFT+i) are stored in free.get(i).
+    private final List<LinkedList<byte []>> free;
+
+    private long idle;
+
+    // The number of buffers handed out, and the number of those that were
+    // allocated (as opposed to reused).
+    private long gets;
+    private long allocated;
+
+    BufferPool(long maxIdle) {
+        this.maxIdle = maxIdle;
+        free = new ArrayList<LinkedList<byte []>>(MAX_SHIFT - MIN_SHIFT + 1);
+
+        for (int i=MIN_SHIFT;i<=MAX_SHIFT;i++) {
+            free.add(new LinkedList<byte []>());
+        }
+    }
+
+    // Returns the index in free for buffers of the given size.
+    private static int sizeClass(int size) {
+
+        int shift = MIN_SHIFT;
+
+        while ((1 << shift) < size) {
+            shift++;
+        }
+
+        return shift - MIN_SHIFT;
+    }
+
+    /**
+     * Returns a buffer of at least the given size.
+     *
+     * @return the buffer.
+     */
+    byte [] get(int size) {
+
+        if (size > MAX_SIZE) {
+            synchronized (this) {
+                gets++;
+                allocated++;
+            }
+            return new byte[size];
+        }
+
+        int c = sizeClass(size);
+
+        synchronized (this) {
+
+            gets++;
+
+            LinkedList<byte []> list = free.get(c);
+
+            if (list.size() > 0) {
+                byte [] b = list.removeFirst();
+                idle -= b.length;
+                return b;
+            }
+
+            allocated++;
+        }
+
+        return new byte[1 << (c + MIN_SHIFT)];
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer may no longer be used by the
+     * caller.
+     */
+    void put(byte [] b) {
+
+        if (b.length > MAX_SIZE) {
+            return;
+        }
+
+        synchronized (this) {
+            if (idle + b.length <= maxIdle) {
+                free.get(sizeClass(b.length)).addLast(b);
+                idle += b.length;
+            }
+        }
+    }
+
+    synchronized long getIdle() {
+        return idle;
+    }
+
+    synchronized long getGets() {
+        return gets;
+    }
+
+    synchronized long getAllocated() {
+        return allocated;
+    }
+}
@@ -0,0 +1,63 @@
+package ibis.smartsockets.hub.connections;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * InputStream that reads from a ByteBuffer filled by a SelectorLoop. Reading
+ * beyond the data currently in the buffer returns EOF, so a handler will never
+ * block on it.
+ */
+final class ByteBufferInputStream extends InputStream {
+
+    private ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    void setBuffer(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    public int read() {
+
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+
+        return buffer.get() & 0xFF;
+    }
+
+    public int read(byte [] b, int off, int len) {
+
+        if (len == 0) {
+            return 0;
+        }
+
+        int n = Math.min(len, buffer.remaining());
+
+        if (n == 0) {
+            return -1;
+        }
+
+        buffer.get(b, off, n);
+        return n;
+    }
+
+    public long skip(long n) {
+
+        int skip = (int) Math.min(n, buffer.remaining());
+
+        if (skip <= 0) {
+            return 0;
+        }
+
+        buffer.position(buffer.position() + skip);
+        return skip;
+    }
+
+    public int available() {
+        return buffer.remaining();
+    }
+}
@@ -0,0 +1,260 @@
+package ibis.smartsockets.hub.connections;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+
+/**
+ * OutputStream that writes to a SocketChannel in non-blocking mode. A writer
+ * never waits for the channel. Whatever the channel cannot accept right away
+ * is queued, and written by the SelectorLoop of the endpoint once the channel
+ * becomes writable.
+ * <p>
+ * When more than HIGH_WATER bytes are queued, the endpoint whose frame is
+ * being handled by the writing SelectorLoop stops reading until the queue
+ * has drained to LOW_WATER bytes. Writers that have a thread of their own
+ * may wait for this using {@link #awaitDrain()}.
+ */
+final class ChannelOutputStream extends OutputStream {
+
+    static final int HIGH_WATER = 256*1024;
+    static final int LOW_WATER  = 64*1024;
+
+    private static final int WAIT_TIMEOUT = 1000;
+
+    private final SelectorEndpoint owner;
+    private final SocketChannel channel;
+
+    private final byte [] single = new byte[1];
+
+    // The data that could not be written yet, and its total size.
+    private final LinkedList<ByteBuffer> queue = new LinkedList<ByteBuffer>();
+    private long queued;
+
+    // The endpoints that stopped reading until our queue drains.
+    private final LinkedList<SelectorEndpoint> waiters =
+        new LinkedList<SelectorEndpoint>();
+
+    private boolean closed;
+
+    ChannelOutputStream(SelectorEndpoint owner, SocketChannel channel) {
+        this.owner = owner;
+        this.channel = channel;
+    }
+
+    public synchronized void write(int b) throws IOException {
+        single[0] = (byte) b;
+        write(single, 0, 1);
+    }
+
+    public synchronized void write(byte [] b, int off, int len)
+        throws IOException {
+
+        write(ByteBuffer.wrap(b, off, len));
+    }
+
+    synchronized void write(ByteBuffer b) throws IOException {
+
+        checkOpen();
+
+        if (channel.isBlocking()) {
+            // Still in the handshake, which is done in blocking mode.
+            while (b.hasRemaining()) {
+                channel.write(b);
+            }
+            return;
+        }
+
+        if (queue.size() == 0) {
+            channel.write(b);
+        }
+
+        enqueue(b);
+    }
+
+    // Gathering write, so a header and payload need not be copied into a
+    // single buffer first.
+    synchronized void write(ByteBuffer [] b) throws IOException {
+
+        checkOpen();
+
+        ByteBuffer last = b[b.length-1];
+
+        if (channel.isBlocking()) {
+            while (last.hasRemaining()) {
+                channel.write(b);
+            }
+            return;
+        }
+
+        if (queue.size() == 0) {
+            channel.write(b);
+        }
+
+        for (int i=0;i<b.length;i++) {
+            enqueue(b[i]);
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed || !channel.isOpen()) {
+            throw new IOException("Channel closed");
+        }
+    }
+
+    // Copies the remainder of 'b' to the queue, since the caller may reuse
+    // it as soon as the write returns.
+    private void enqueue(ByteBuffer b) {
+
+        int len = b.remaining();
+
+        if (len == 0) {
+            return;
+        }
+
+        ByteBuffer copy = ByteBuffer.allocate(len);
+        copy.put(b);
+        copy.flip();
+
+        boolean first = (queue.size() == 0);
+
+        queue.addLast(copy);
+        queued += len;
+
+        if (first) {
+            owner.requestWrite();
+        }
+
+        if (queued > HIGH_WATER) {
+
+            SelectorEndpoint source = SelectorLoop.current();
+
+            // NOTE: an endpoint writing to its own channel is never stopped,
+            // since it would then also stop reading the acknowledgements that
+            // allow its peer to continue.
+            if (source != null && source != owner
+                    && !waiters.contains(source)) {
+                source.suspend();
+                waiters.addLast(source);
+            }
+        }
+    }
+
+    /**
+     * Writes as much of the queued data as the channel accepts. Called by the
+     * SelectorLoop when the channel is writable.
+     *
+     * @return if all data was written.
+     */
+    boolean drain() throws IOException {
+
+        LinkedList<SelectorEndpoint> resume = null;
+
+        synchronized (this) {
+
+            checkOpen();
+
+            while (queue.size() > 0) {
+
+                ByteBuffer [] tmp = queue.toArray(new ByteBuffer[queue.size()]);
+
+                long n = channel.write(tmp);
+
+                queued -= n;
+
+                while (queue.size() > 0 && !queue.getFirst().hasRemaining()) {
+                    queue.removeFirst();
+                }
+
+                if (n == 0) {
+                    break;
+                }
+            }
+
+            if (queued <= LOW_WATER) {
+
+                notifyAll();
+
+                if (waiters.size() > 0) {
+                    resume = new LinkedList<SelectorEndpoint>(waiters);
+                    waiters.clear();
+                }
+            }
+        }
+
+        resume(resume);
+        return !hasPending();
+    }
+
+    synchronized boolean hasPending() {
+        return queue.size() > 0;
+    }
+
+    /**
+     * Waits until at most HIGH_WATER bytes are queued. May only be called by
+     * a thread that is not a SelectorLoop, and which holds no write locks.
+     */
+    synchronized void awaitDrain() {
+
+        boolean interrupted = false;
+
+        while (queued > HIGH_WATER && !closed && channel.isOpen()) {
+            try {
+                wait(WAIT_TIMEOUT);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void resume(LinkedList<SelectorEndpoint> endpoints) {
+
+        if (endpoints != null) {
+            for (SelectorEndpoint e : endpoints) {
+                e.resume();
+            }
+        }
+    }
+
+    public void close() throws IOException {
+
+        LinkedList<SelectorEndpoint> resume;
+
+        synchronized (this) {
+
+            if (closed) {
+                return;
+            }
+
+            // Try to get rid of the last frames (e.g., a disconnect), but
+            // without waiting for the channel.
+            try {
+                if (queue.size() > 0 && channel.isOpen()) {
+                    channel.write(queue.toArray(new ByteBuffer[queue.size()]));
+                }
+            } catch (IOException e) {
+                // ignore
+            }
+
+            closed = true;
+            queue.clear();
+            queued = 0;
+
+            resume = new LinkedList<SelectorEndpoint>(waiters);
+            waiters.clear();
+
+            notifyAll();
+        }
+
+        channel.close();
+
+        // The waiters will see the failure on their next write.
+        resume(resume);
+    }
+}
@@ -37,31 +37,28 @@ public class ClientConnection extends MessageForwardingConnection {
 
     private final String clientAddressAsString;
 
-    private final String uniquePrefix;
+    // The limits on the virtual connections created by this client.
+    private final VirtualConnectionLimits limits;
 
     public ClientConnection(DirectSocketAddress clientAddress, DirectSocket s,
             DataInputStream in, DataOutputStream out, Connections connections,
             HubList hubs, VirtualConnections vcs, StatisticsCallback callback,
-            long statisticsInterval) {
+            long statisticsInterval, boolean addressDictionary) {
 
         super(s, in, out, connections, hubs, vcs, false,
                 "Client(" + clientAddress.toString() + ")", callback,
-                statisticsInterval);
+                statisticsInterval, addressDictionary);
 
         this.clientAddress = clientAddress;
         this.clientAddressAsString = clientAddress.toString();
 
-        this.uniquePrefix = clientAddressAsString + "__";
+        limits = vcs.createClientLimits();
 
         if (conlogger.isDebugEnabled()) {
             conlogger.debug("Created client connection: " + clientAddress);
         }
     }
 
-    protected String getUniqueID(long index) {
-        return uniquePrefix + index;
-    }
-
     protected void handleDisconnect(Exception e) {
 
         if (knownHubs.getLocalDescription().removeClient(clientAddress)) {
@@ -77,7 +74,7 @@ public class ClientConnection extends MessageForwardingConnection {
         DirectSocketFactory.close(s, out, in);
 
         // Close all connections that have an endpoint at our side
-        closeAllVirtualConnections(uniquePrefix);
+        closeAllVirtualConnections();
     }
 
     private void handleListHubs() throws IOException {
@@ -94,7 +91,9 @@ public class ClientConnection extends MessageForwardingConnection {
 
         LinkedList<String> result = as.getResult();
 
-        synchronized (out) {
+        scheduler.lock(WriteScheduler.CONTROL);
+
+        try {
             out.write(ServiceLinkProtocol.INFO_REPLY);
             out.writeInt(id);
             out.writeInt(result.size());
@@ -104,6 +103,8 @@ public class ClientConnection extends MessageForwardingConnection {
             }
 
             out.flush();
+        } finally {
+            scheduler.unlock();
         }
     }
 
@@ -121,7 +122,9 @@ public class ClientConnection extends MessageForwardingConnection {
 
         LinkedList<String> result = as.getResult();
 
-        synchronized (out) {
+        scheduler.lock(WriteScheduler.CONTROL);
+
+        try {
             out.write(ServiceLinkProtocol.INFO_REPLY);
             out.writeInt(id);
             out.writeInt(result.size());
@@ -136,6 +139,8 @@ public class ClientConnection extends MessageForwardingConnection {
             }
 
             out.flush();
+        } finally {
+            scheduler.unlock();
         }
     }
 
@@ -160,7 +165,9 @@ public class ClientConnection extends MessageForwardingConnection {
                     + "address: " + hub);
         }
 
-        synchronized (out) {
+        scheduler.lock(WriteScheduler.CONTROL);
+
+        try {
             out.write(ServiceLinkProtocol.INFO_REPLY);
             out.writeInt(id);
             out.writeInt(result.size());
@@ -170,6 +177,8 @@ public class ClientConnection extends MessageForwardingConnection {
             }
 
             out.flush();
+        } finally {
+            scheduler.unlock();
         }
     }
 
@@ -188,7 +197,9 @@ public class ClientConnection extends MessageForwardingConnection {
 
         LinkedList<String> result = css.getResult();
 
-        synchronized (out) {
+        scheduler.lock(WriteScheduler.CONTROL);
+
+        try {
             out.write(ServiceLinkProtocol.INFO_REPLY);
             out.writeInt(id);
             out.writeInt(result.size());
@@ -203,6 +214,8 @@ public class ClientConnection extends MessageForwardingConnection {
             }
 
             out.flush();
+        } finally {
+            scheduler.unlock();
         }
     }
 
@@ -214,14 +227,17 @@ public class ClientConnection extends MessageForwardingConnection {
             reqlogger.debug("Connection " + clientAddress + " return id: " + id);
         }
 
-        DirectionsAsStringSelector ds =
-            new DirectionsAsStringSelector(DirectSocketAddress.getByAddress(client));
+        DirectSocketAddress address = DirectSocketAddress.getByAddress(client);
+
+        DirectionsAsStringSelector ds = new DirectionsAsStringSelector(address);
 
-        knownHubs.select(ds);
+        knownHubs.selectForClient(address, ds);
 
         LinkedList<String> result = ds.getResult();
 
-        synchronized (out) {
+        scheduler.lock(WriteScheduler.CONTROL);
+
+        try {
             out.write(ServiceLinkProtocol.INFO_REPLY);
             out.writeInt(id);
             out.writeInt(result.size());
@@ -236,6 +252,8 @@ public class ClientConnection extends MessageForwardingConnection {
             }
 
             out.flush();
+        } finally {
+            scheduler.unlock();
         }
     }
 
@@ -252,7 +270,9 @@ public class ClientConnection extends MessageForwardingConnection {
 
         HubDescription localHub = knownHubs.getLocalDescription();
 
-        synchronized (out) {
+        scheduler.lock(WriteScheduler.CONTROL);
+
+        try {
             out.write(ServiceLinkProtocol.PROPERTY_ACK);
             out.writeInt(id);
 
@@ -263,6 +283,8 @@ public class ClientConnection extends MessageForwardingConnection {
             }
 
             out.flush();
+        } finally {
+            scheduler.unlock();
         }
     }
 
@@ -279,7 +301,9 @@ public class ClientConnection extends MessageForwardingConnection {
 
         HubDescription localHub = knownHubs.getLocalDescription();
 
-        synchronized (out) {
+        scheduler.lock(WriteScheduler.CONTROL);
+
+        try {
             out.write(ServiceLinkProtocol.PROPERTY_ACK);
             out.writeInt(id);
 
@@ -290,6 +314,8 @@ public class ClientConnection extends MessageForwardingConnection {
             }
 
             out.flush();
+        } finally {
+            scheduler.unlock();
         }
     }
 
@@ -305,7 +331,9 @@ public class ClientConnection extends MessageForwardingConnection {
 
         HubDescription localHub = knownHubs.getLocalDescription();
 
-        synchronized (out) {
+        scheduler.lock(WriteScheduler.CONTROL);
+
+        try {
             out.write(ServiceLinkProtocol.PROPERTY_ACK);
             out.writeInt(id);
 
@@ -316,9 +344,15 @@ public class ClientConnection extends MessageForwardingConnection {
             }
 
             out.flush();
+        } finally {
+            scheduler.unlock();
         }
     }
 
+    protected VirtualConnectionLimits getClientLimits() {
+        return limits;
+    }
+
     protected String getName() {
         return "ClientConnection(" + clientAddress + ")";
     }
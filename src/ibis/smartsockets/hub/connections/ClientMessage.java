@@ -22,16 +22,17 @@ public class ClientMessage {
 
     long messageSize = -1;
 
-    ClientMessage(DataInputStream in) throws IOException {
+    ClientMessage(DataInputStream in, AddressDictionary addresses)
+        throws IOException {
 
-        source = DirectSocketAddress.read(in);
-        sourceHub = DirectSocketAddress.read(in);
+        source = addresses.read(in);
+        sourceHub = addresses.read(in);
 
         hopsLeft = in.readInt();
         returnToSender = in.readBoolean();
 
-        target = DirectSocketAddress.read(in);
-        targetHub = DirectSocketAddress.read(in);
+        target = addresses.read(in);
+        targetHub = addresses.read(in);
 
         module = in.readUTF();
         code = in.readInt();
@@ -44,16 +45,17 @@ public class ClientMessage {
         }
     }
 
-    void write(DataOutputStream out) throws IOException {
+    void write(DataOutputStream out, AddressDictionary addresses)
+        throws IOException {
 
-        DirectSocketAddress.write(source, out);
-        DirectSocketAddress.write(sourceHub, out);
+        addresses.write(source, out);
+        addresses.write(sourceHub, out);
 
         out.writeInt(hopsLeft);
         out.writeBoolean(returnToSender);
 
-        DirectSocketAddress.write(target, out);
-        DirectSocketAddress.write(targetHub, out);
+        addresses.write(target, out);
+        addresses.write(targetHub, out);
 
         out.writeUTF(module);
         out.writeInt(code);
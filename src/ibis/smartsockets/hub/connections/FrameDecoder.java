@@ -0,0 +1,289 @@
+package ibis.smartsockets.hub.connections;
+
+import ibis.smartsockets.hub.ConnectionProtocol;
+import ibis.smartsockets.hub.HubProtocol;
+import ibis.smartsockets.hub.servicelink.ServiceLinkProtocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Determines the length of the next complete frame in a ByteBuffer received on
+ * a hub or servicelink connection, without consuming any of its data.
+ *
+ * The layout of each frame mirrors the way the handlers in
+ * MessageForwardingConnection, HubConnection and ClientConnection read it from
+ * their DataInputStream. The SelectorLoop uses this to ensure that a handler
+ * is only invoked once its entire frame is available, so it never blocks.
+ */
+final class FrameDecoder {
+
+    /** Returned when the frame length cannot be determined yet. */
+    static final int INCOMPLETE = -1;
+
+    /** Returned when the frame is longer than MAX_FRAME. */
+    static final int TOO_LARGE = -2;
+
+    /**
+     * The maximum length of a frame. This is the largest buffer pooled by
+     * the hub, plus room for the headers of the frame. A peer that sends a
+     * larger frame is disconnected.
+     */
+    static final int MAX_FRAME = (16*1024*1024) + 1024;
+
+    // Are addresses written using an AddressDictionary ?
+    private boolean addressDictionary;
+
+    private ByteBuffer buf;
+    private int pos;
+    private int limit;
+
+    // Set when a block of the frame is longer than MAX_FRAME.
+    private boolean tooLarge;
+
+    void setAddressDictionary(boolean addressDictionary) {
+        this.addressDictionary = addressDictionary;
+    }
+
+    /**
+     * Returns the total length of the frame starting at the current position
+     * of <code>b</code> (including the opcode), or {@link #INCOMPLETE} if not
+     * enough data is available to determine it, or {@link #TOO_LARGE} if the
+     * frame is longer than {@link #MAX_FRAME}. Note that the length returned
+     * may exceed <code>b.remaining()</code>.
+     */
+    int frameLength(ByteBuffer b) {
+
+        buf = b;
+        pos = b.position();
+        limit = b.limit();
+        tooLarge = false;
+
+        try {
+            if (pos >= limit) {
+                return INCOMPLETE;
+            }
+
+            int start = pos;
+            int opcode = buf.get(pos++);
+
+            boolean complete = skipFrame(opcode);
+
+            // NOTE: each block is at most MAX_FRAME, so pos cannot overflow.
+            if (tooLarge || pos - start > MAX_FRAME) {
+                return TOO_LARGE;
+            }
+
+            return complete ? pos - start : INCOMPLETE;
+        } finally {
+            buf = null;
+        }
+    }
+
+    private boolean skipFrame(int opcode) {
+
+        switch (opcode) {
+
+        case ConnectionProtocol.DISCONNECT:
+        case HubProtocol.PING:
+            return true;
+
+        case HubProtocol.GOSSIP:
+            return skipGossip();
+
+        case HubProtocol.GOSSIP_DELTA:
+            return skipGossipDelta();
+
+        case HubProtocol.GOSSIP_RESYNC:
+            return skipUTF();
+
+        case ServiceLinkProtocol.HUBS:
+        case ServiceLinkProtocol.HUB_DETAILS:
+            return skip(4);
+
+        case ServiceLinkProtocol.ALL_CLIENTS:
+        case ServiceLinkProtocol.DIRECTION:
+        case ServiceLinkProtocol.REMOVE_PROPERTY:
+            return skip(4) && skipUTF();
+
+        case ServiceLinkProtocol.CLIENTS_FOR_HUB:
+        case ServiceLinkProtocol.REGISTER_PROPERTY:
+        case ServiceLinkProtocol.UPDATE_PROPERTY:
+            return skip(4) && skipUTF() && skipUTF();
+
+        case MessageForwarderProtocol.CREATE_VIRTUAL:
+            return skipAddress() && skipAddress() && skipAddress()
+                && skipAddress() && skip(8 + 4*4);
+
+        case MessageForwarderProtocol.CREATE_VIRTUAL_ACK:
+            return skip(8 + 4 + 4);
+
+        case MessageForwarderProtocol.CREATE_VIRTUAL_NACK:
+        case MessageForwarderProtocol.CREATE_VIRTUAL_ACK_ACK:
+            return skip(8 + 1);
+
+        case MessageForwarderProtocol.CLOSE_VIRTUAL:
+            return skip(8);
+
+        case MessageForwarderProtocol.MESSAGE_VIRTUAL:
+            return skip(8) && skipBlock();
+
+        case MessageForwarderProtocol.MESSAGE_VIRTUAL_ACK:
+            return skip(8 + 4);
+
+        case MessageForwarderProtocol.DATA_MESSAGE:
+            return skipBlock();
+
+        case MessageForwarderProtocol.INFO_MESSAGE:
+            return skipAddress() && skipAddress() && skip(4 + 1)
+                && skipAddress() && skipAddress() && skipUTF() && skip(4)
+                && skipBlock();
+
+        default:
+            // Unknown opcodes are handed to the connection as is, which will
+            // then disconnect.
+            return true;
+        }
+    }
+
+    private boolean skipGossip() {
+
+        // address, name and viz info, hops and state, clients, connections
+        return skipUTF() && skipUTF() && skipUTF() && skip(4 + 8)
+            && skipClients() && skipStrings();
+    }
+
+    private boolean skipGossipDelta() {
+
+        // address, name and viz info, hops, state and base, changed clients,
+        // removed clients, connections
+        return skipUTF() && skipUTF() && skipUTF() && skip(4 + 8 + 8)
+            && skipClients() && skipStrings() && skipStrings();
+    }
+
+    // Skips a list of clients, as written by ClientDescription.write.
+    private boolean skipClients() {
+
+        int clients = readCount();
+
+        if (clients < 0) {
+            return false;
+        }
+
+        for (int i=0;i<clients;i++) {
+
+            // address and version
+            if (!(skipUTF() && skip(8))) {
+                return false;
+            }
+
+            int services = readCount();
+
+            if (services < 0) {
+                return false;
+            }
+
+            for (int s=0;s<services;s++) {
+                if (!(skipUTF() && skipUTF())) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    // Skips a count followed by that number of UTF strings.
+    private boolean skipStrings() {
+
+        int count = readCount();
+
+        if (count < 0) {
+            return false;
+        }
+
+        for (int i=0;i<count;i++) {
+            if (!skipUTF()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // Skips an address, as written by DirectSocketAddress.write, or by an
+    // AddressDictionary.
+    private boolean skipAddress() {
+
+        if (addressDictionary) {
+
+            if (limit - pos < 2) {
+                return false;
+            }
+
+            short number = buf.getShort(pos);
+            pos += 2;
+
+            if (number >= 0) {
+                // Null or an address that was send before.
+                return true;
+            }
+        }
+
+        return skipBlock() && pos <= limit;
+    }
+
+    // Skips an int length followed by that many bytes. Note that we move
+    // beyond the limit if the block is incomplete, so that the caller gets the
+    // full frame length when the block is the last part of the frame.
+    private boolean skipBlock() {
+
+        int len = readCount();
+
+        if (len < 0) {
+            return false;
+        }
+
+        if (len > MAX_FRAME) {
+            tooLarge = true;
+            return false;
+        }
+
+        pos += len;
+        return true;
+    }
+
+    private boolean skipUTF() {
+
+        if (limit - pos < 2) {
+            return false;
+        }
+
+        int len = ((buf.get(pos) & 0xFF) << 8) | (buf.get(pos+1) & 0xFF);
+        return skip(2 + len);
+    }
+
+    private boolean skip(int bytes) {
+
+        if (limit - pos < bytes) {
+            return false;
+        }
+
+        pos += bytes;
+        return true;
+    }
+
+    // Reads a length or count. Returns -1 if it is not available yet. A
+    // negative value on the stream is corrupt, in which case the remainder of
+    // the frame is ignored. The handler will then fail on it and disconnect.
+    private int readCount() {
+
+        if (limit - pos < 4) {
+            return -1;
+        }
+
+        int result = buf.getInt(pos);
+        pos += 4;
+
+        return result < 0 ? 0 : result;
+    }
+}
@@ -3,6 +3,7 @@ package ibis.smartsockets.hub.connections;
 import ibis.smartsockets.direct.DirectSocket;
 import ibis.smartsockets.direct.DirectSocketAddress;
 import ibis.smartsockets.direct.DirectSocketFactory;
+import ibis.smartsockets.hub.ConnectionProtocol;
 import ibis.smartsockets.hub.Connections;
 import ibis.smartsockets.hub.HubProtocol;
 import ibis.smartsockets.hub.StatisticsCallback;
@@ -16,6 +17,9 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,26 +43,107 @@ public class HubConnection extends MessageForwardingConnection {
     // to the peer. Remembering this allows us to send delta's.
     private long lastSendState;
 
-    private final String uniquePrefix;
+    // The features negotiated with the peer. With FEATURE_GOSSIP_DELTA, we
+    // may send only the changes to a hub description, instead of the entire
+    // description. With FEATURE_ADDRESS_DICTIONARY, the addresses of virtual
+    // connections and client messages are send as dictionary numbers.
+    private volatile int features;
+
+    // The version of each hub description the last time it was send to the
+    // peer. The changes since this version are all the peer needs to know.
+    private final HashMap<DirectSocketAddress, Long> sendVersions =
+        new HashMap<DirectSocketAddress, Long>();
+
+    // The hubs for which the peer has missed some changes, and which must
+    // therefore be send in their entirety.
+    private final HashSet<DirectSocketAddress> resync =
+        new HashSet<DirectSocketAddress>();
+
+    // The stripe number of this connection. The main connection to the peer
+    // (stripe 0) carries the gossip and client messages. The other stripes
+    // only carry virtual connections.
+    private final int stripe;
+
+    public HubConnection(DirectSocket s, DataInputStream in,
+            DataOutputStream out, HubDescription peer, Connections connections,
+            HubList hubs, StateCounter state, VirtualConnections vcs,
+            boolean master, StatisticsCallback callback, long statisticsInterval,
+            int features) {
+
+        this(s, in, out, peer, connections, hubs, state, vcs, master, callback,
+                statisticsInterval, features, 0);
+    }
 
     public HubConnection(DirectSocket s, DataInputStream in,
             DataOutputStream out, HubDescription peer, Connections connections,
             HubList hubs, StateCounter state, VirtualConnections vcs,
-            boolean master, StatisticsCallback callback, long statisticsInterval) {
+            boolean master, StatisticsCallback callback, long statisticsInterval,
+            int features, int stripe) {
 
         super(s, in, out, connections, hubs, vcs, master, "Hub("
-                + peer.hubAddressAsString + ")", callback, statisticsInterval);
+                + peer.hubAddressAsString + (stripe > 0 ? ("#" + stripe) : "")
+                + ")", callback, statisticsInterval,
+                (features & ConnectionProtocol.FEATURE_ADDRESS_DICTIONARY) != 0);
 
         this.peer = peer;
         this.state = state;
-
-        this.uniquePrefix = peer.hubAddressAsString + "__";
+        this.features = features;
+        this.stripe = stripe;
 
         local = hubs.getLocalDescription();
     }
 
-    protected String getUniqueID(long index) {
-        return uniquePrefix + index;
+    public int getStripe() {
+        return stripe;
+    }
+
+    /**
+     * Adds this stripe to the connections, and sends the reply to the hub
+     * that created it. Other threads may select the stripe as soon as it has
+     * been added, so we hold the write lock until the reply is send, which
+     * makes sure it is the first thing the peer reads. If the stripe cannot
+     * be added, the stripe is refused instead. If the reply cannot be send,
+     * the stripe is removed again.
+     *
+     * @return if the stripe was added.
+     */
+    public boolean acceptStripe(DataOutputStream reply) throws IOException {
+
+        scheduler.lock(WriteScheduler.CONTROL);
+
+        try {
+            if (!connections.putStripe(peer.hubAddress, stripe, this)) {
+                reply.write(ConnectionProtocol.CONNECTION_REFUSED);
+                reply.flush();
+                return false;
+            }
+
+            try {
+                reply.write(ConnectionProtocol.CONNECTION_ACCEPTED);
+                reply.flush();
+            } catch (IOException e) {
+                connections.removeStripe(peer.hubAddress, stripe, this);
+                throw e;
+            }
+
+            return true;
+        } finally {
+            scheduler.unlock();
+        }
+    }
+
+    /**
+     * Sets the features negotiated with the peer. Must be called before the
+     * connection is activated.
+     */
+    public void setFeatures(int features) {
+        this.features = features;
+        setAddressDictionary(
+                (features & ConnectionProtocol.FEATURE_ADDRESS_DICTIONARY) != 0);
+    }
+
+    public int getFeatures() {
+        return features;
     }
 
     public synchronized void setLastSendState() {
@@ -73,14 +158,21 @@ public class HubConnection extends MessageForwardingConnection {
             goslogger.info("Gossiping with: " + peer.hubAddress);
         }
 
+        boolean gossipDelta =
+            (features & ConnectionProtocol.FEATURE_GOSSIP_DELTA) != 0;
+
         StateSelector ss = new StateSelector(lastSendState);
 
         knownHubs.select(ss);
 
+        LinkedList<HubDescription> result = ss.getResult();
+
+        addResyncs(result);
+
         try {
             int writes = 0;
 
-            for (HubDescription tmp : ss.getResult()) {
+            for (HubDescription tmp : result) {
 
                 if (goslogger.isInfoEnabled()) {
                     goslogger.info("    Writing hub: " + tmp.hubAddressAsString);
@@ -92,7 +184,10 @@ public class HubConnection extends MessageForwardingConnection {
                             + " > lastSendState= " + lastSendState);
                 }
 
-                writeHub(tmp);
+                if (!gossipDelta || !writeHubDelta(tmp)) {
+                    writeHub(tmp);
+                }
+
                 writes++;
             }
 
@@ -101,8 +196,12 @@ public class HubConnection extends MessageForwardingConnection {
                 writePing();
             }
 
-            synchronized (out) {
+            scheduler.lock(WriteScheduler.CONTROL);
+
+            try {
                 out.flush();
+            } finally {
+                scheduler.unlock();
             }
 
             lastSendState = newSendState;
@@ -116,15 +215,49 @@ public class HubConnection extends MessageForwardingConnection {
 
     }
 
+    // Makes sure the hubs the peer asked for are send in their entirety.
+    private void addResyncs(LinkedList<HubDescription> result) {
+
+        DirectSocketAddress [] tmp;
+
+        synchronized (this) {
+            if (resync.size() == 0) {
+                return;
+            }
+
+            tmp = resync.toArray(new DirectSocketAddress[resync.size()]);
+            resync.clear();
+        }
+
+        for (DirectSocketAddress a : tmp) {
+
+            sendVersions.remove(a);
+
+            HubDescription d = knownHubs.get(a);
+
+            if (d != null && !result.contains(d)) {
+                result.add(d);
+            }
+        }
+    }
+
     private void writePing() throws IOException {
-        synchronized (out) {
+        scheduler.lock(WriteScheduler.CONTROL);
+
+        try {
             out.write(HubProtocol.PING);
+        } finally {
+            scheduler.unlock();
         }
     }
 
     private void writeHub(HubDescription d) throws IOException {
 
-        synchronized (out) {
+        long version;
+
+        scheduler.lock(WriteScheduler.CONTROL);
+
+        try {
             out.write(HubProtocol.GOSSIP);
 
             out.writeUTF(d.hubAddress.toString());
@@ -133,11 +266,13 @@ public class HubConnection extends MessageForwardingConnection {
             out.writeInt(d.getHops());
 
             if (d.isLocal()) {
-                out.writeLong(d.getLastLocalUpdate());
+                version = d.getLastLocalUpdate();
             } else {
-                out.writeLong(d.getHomeState());
+                version = d.getHomeState();
             }
 
+            out.writeLong(version);
+
             ArrayList<ClientDescription> clients = d.getClients(null);
 
             out.writeInt(clients.size());
@@ -146,19 +281,104 @@ public class HubConnection extends MessageForwardingConnection {
                 c.write(out);
             }
 
-            String [] connectedTo = d.connectedTo();
+            writeConnectedTo(d);
+        } finally {
+            scheduler.unlock();
+        }
 
-            if (connectedTo == null || connectedTo.length == 0) {
-                out.writeInt(0);
-                return;
+        // NOTE: the clients may have changed after we read the version, so
+        // the peer may get some of these changes twice. This is harmless.
+        sendVersions.put(d.hubAddress, version);
+    }
+
+    // Writes only the changes since the last time the description was send.
+    // Returns false if this is not possible.
+    private boolean writeHubDelta(HubDescription d) throws IOException {
+
+        Long base = sendVersions.get(d.hubAddress);
+
+        if (base == null) {
+            return false;
+        }
+
+        ArrayList<ClientDescription> changed =
+            new ArrayList<ClientDescription>();
+
+        ArrayList<DirectSocketAddress> removed =
+            new ArrayList<DirectSocketAddress>();
+
+        long version = d.getChanges(base, changed, removed);
+
+        if (version < 0) {
+            return false;
+        }
+
+        if (goslogger.isDebugEnabled()) {
+            goslogger.debug("      sending changes " + base + " -> " + version
+                    + ": " + changed.size() + " changed, " + removed.size()
+                    + " removed");
+        }
+
+        scheduler.lock(WriteScheduler.CONTROL);
+
+        try {
+            out.write(HubProtocol.GOSSIP_DELTA);
+
+            out.writeUTF(d.hubAddress.toString());
+            out.writeUTF(d.getName());
+            out.writeUTF(d.getVizInfo());
+            out.writeInt(d.getHops());
+            out.writeLong(version);
+            out.writeLong(base);
+
+            out.writeInt(changed.size());
+
+            for (ClientDescription c : changed) {
+                c.write(out);
             }
 
-            out.writeInt(connectedTo.length);
+            out.writeInt(removed.size());
 
-            for (String c : connectedTo) {
-                out.writeUTF(c);
+            for (DirectSocketAddress a : removed) {
+                out.writeUTF(a.toString());
             }
+
+            writeConnectedTo(d);
+        } finally {
+            scheduler.unlock();
+        }
+
+        sendVersions.put(d.hubAddress, version);
+        return true;
+    }
+
+    private void writeConnectedTo(HubDescription d) throws IOException {
+
+        String [] connectedTo = d.connectedTo();
+
+        if (connectedTo == null || connectedTo.length == 0) {
+            out.writeInt(0);
+            return;
+        }
+
+        out.writeInt(connectedTo.length);
+
+        for (String c : connectedTo) {
+            out.writeUTF(c);
+        }
+    }
+
+    private String [] readConnectedTo() throws IOException {
+
+        int conns = in.readInt();
+
+        String [] a = new String[conns];
+
+        for (int i=0;i<conns;i++) {
+            a[i] = in.readUTF();
         }
+
+        return a;
     }
 
     private void readHub() throws IOException {
@@ -181,13 +401,7 @@ public class HubConnection extends MessageForwardingConnection {
             c[i] = ClientDescription.read(in);
         }
 
-        int conns = in.readInt();
-
-        String [] a = new String[conns];
-
-        for (int i=0;i<conns;i++) {
-            a[i] = in.readUTF();
-        }
+        String [] a = readConnectedTo();
 
         if (local.hubAddress.equals(address)) {
             // Just received information about myself!
@@ -243,6 +457,97 @@ public class HubConnection extends MessageForwardingConnection {
         peer.setContactTimeStamp(false);
     }
 
+    private void readHubDelta() throws IOException {
+
+        DirectSocketAddress address = DirectSocketAddress.getByAddress(in.readUTF());
+        String name = in.readUTF();
+        String color = in.readUTF();
+
+        HubDescription tmp = knownHubs.add(address);
+
+        int hops = in.readInt();
+
+        long state = in.readLong();
+        long base = in.readLong();
+
+        int clients = in.readInt();
+
+        ClientDescription [] c = new ClientDescription[clients];
+
+        for (int i=0;i<clients;i++) {
+            c[i] = ClientDescription.read(in);
+        }
+
+        int count = in.readInt();
+
+        DirectSocketAddress [] removed = new DirectSocketAddress[count];
+
+        for (int i=0;i<count;i++) {
+            removed[i] = DirectSocketAddress.getByAddress(in.readUTF());
+        }
+
+        String [] a = readConnectedTo();
+
+        if (local.hubAddress.equals(address)) {
+            // Just received information about myself!
+            if (hops == 0) {
+                peer.setCanReachMe();
+            } else {
+                peer.setCanNotReachMe();
+            }
+        } else {
+            if (tmp != peer && hops+1 < tmp.getHops()) {
+                // We seem to have found a shorter route to the target
+                if (tmp.addIndirection(peer, hops+1)) {
+                    if (vclogger.isDebugEnabled()) {
+                        vclogger.debug("Found shortcut to hub: "
+                                + tmp.hubAddressAsString + " via "
+                                + peer.hubAddressAsString + " in " + (hops+1)
+                                + " hops");
+                    }
+                }
+            }
+
+            if (!tmp.applyChanges(c, removed, a, name, base, state, color)) {
+
+                // We have missed some changes, so ask for the entire
+                // description.
+                if (goslogger.isInfoEnabled()) {
+                    goslogger.info("Missing changes " + base + " -> " + state
+                            + " of " + tmp.hubAddressAsString + " (have "
+                            + tmp.getHomeState() + "), requesting resync");
+                }
+
+                scheduler.lock(WriteScheduler.CONTROL);
+
+                try {
+                    out.write(HubProtocol.GOSSIP_RESYNC);
+                    out.writeUTF(address.toString());
+                    out.flush();
+                } finally {
+                    scheduler.unlock();
+                }
+            }
+        }
+
+        peer.setContactTimeStamp(false);
+    }
+
+    private void handleResync() throws IOException {
+
+        DirectSocketAddress address =
+            DirectSocketAddress.getByAddress(in.readUTF());
+
+        if (goslogger.isInfoEnabled()) {
+            goslogger.info("Peer " + peer.hubAddressAsString
+                    + " requested resync of " + address);
+        }
+
+        synchronized (this) {
+            resync.add(address);
+        }
+    }
+
     private void handlePing() {
         if (goslogger.isInfoEnabled()) {
             goslogger.debug("Got ping from " + peer.hubAddress);
@@ -252,11 +557,22 @@ public class HubConnection extends MessageForwardingConnection {
     }
 
     protected String getName() {
-        return "HubConnection(" + peer.hubAddress + ")";
+        return "HubConnection(" + peer.hubAddress
+            + (stripe > 0 ? ("#" + stripe) : "") + ")";
     }
 
     private void disconnect() {
 
+        if (stripe > 0) {
+            // A stripe only needs to clean up its own virtual connections.
+            connections.removeStripe(peer.hubAddress, stripe, this);
+
+            DirectSocketFactory.close(s, out, in);
+
+            closeAllVirtualConnections();
+            return;
+        }
+
         // Update the administration
         connections.removeHub(peer.hubAddress);
 
@@ -265,7 +581,18 @@ public class HubConnection extends MessageForwardingConnection {
 
         DirectSocketFactory.close(s, out, in);
 
-        closeAllVirtualConnections(uniquePrefix);
+        closeAllVirtualConnections();
+
+        // The stripes to the peer are useless without the main connection.
+        HubConnection [] tmp = connections.removeStripes(peer.hubAddress);
+
+        if (tmp != null) {
+            for (HubConnection c : tmp) {
+                if (c != null) {
+                    c.disconnect();
+                }
+            }
+        }
     }
 
     protected boolean handleOpcode(int opcode) {
@@ -280,6 +607,17 @@ public class HubConnection extends MessageForwardingConnection {
                 readHub();
                 return true;
 
+            case HubProtocol.GOSSIP_DELTA:
+                if (goslogger.isInfoEnabled()) {
+                    goslogger.info("HubConnection got gossip delta!");
+                }
+                readHubDelta();
+                return true;
+
+            case HubProtocol.GOSSIP_RESYNC:
+                handleResync();
+                return true;
+
             case HubProtocol.PING:
                 if (goslogger.isInfoEnabled()) {
                     goslogger.info("HubConnection got ping!");
@@ -302,6 +640,17 @@ public class HubConnection extends MessageForwardingConnection {
     }
 
     protected void handleDisconnect(Exception e) {
+
+        if (stripe > 0) {
+            if (conlogger.isInfoEnabled()) {
+                conlogger.info("Hub lost stripe " + stripe + " to "
+                        + peer.hubAddressAsString, e);
+            }
+
+            disconnect();
+            return;
+        }
+
         vclogger.warn("Hub lost connection to " + peer.hubAddressAsString + " (disconnect not implemented!)", e);
     }
 }
@@ -19,6 +19,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.net.UnknownHostException;
 import java.util.LinkedList;
 
@@ -35,10 +36,22 @@ public abstract class MessageForwardingConnection extends BaseConnection {
 
     protected final static int DEFAULT_CREDITS = 10;
 
+    // Smaller virtual messages are copied, so they can be combined with other
+    // messages in the output buffer of the target.
+    private final static int MIN_RELAY_SIZE = 1024;
+
     protected final VirtualConnections virtualConnections;
 
     protected final VirtualConnectionIndex index;
 
+    // Must be locked by every writer of the output stream. Control messages
+    // are written before virtual messages.
+    final WriteScheduler scheduler;
+
+    // The virtual connections that have an endpoint on this connection.
+    final VirtualConnectionTable virtualConnectionTable =
+        new VirtualConnectionTable();
+
     /*
      * private long connectionsTotal; private long connectionsFailed;
      *
@@ -64,22 +77,42 @@ public abstract class MessageForwardingConnection extends BaseConnection {
 
     private MessageForwardingConnectionStatistics stats;
 
+    // The addresses read from and written to this connection. The
+    // dictionaries are only enabled if the peer supports them.
+    private final AddressDictionary inAddresses;
+    private final AddressDictionary outAddresses;
+
     protected MessageForwardingConnection(DirectSocket s, DataInputStream in,
             DataOutputStream out, Connections connections, HubList hubs,
             VirtualConnections vcs, boolean master, String name,
-            StatisticsCallback callback, long statisticsInterval) {
+            StatisticsCallback callback, long statisticsInterval,
+            boolean addressDictionary) {
 
         super(s, in, out, connections, hubs, callback, statisticsInterval);
 
         this.name = name;
+        this.scheduler = new WriteScheduler(out);
         this.virtualConnections = vcs;
 
+        inAddresses = new AddressDictionary(addressDictionary);
+        outAddresses = new AddressDictionary(addressDictionary);
+
         index = new VirtualConnectionIndex(master);
 
         stats = new MessageForwardingConnectionStatistics("Connection(" + name
                 + ")");
     }
 
+    // Must be called before the connection is activated.
+    protected void setAddressDictionary(boolean enabled) {
+        inAddresses.setEnabled(enabled);
+        outAddresses.setEnabled(enabled);
+    }
+
+    boolean usesAddressDictionary() {
+        return inAddresses.isEnabled();
+    }
+
     // Directly sends a message to a hub.
     private boolean directlyToHub(DirectSocketAddress hub, ClientMessage cm) {
 
@@ -273,7 +306,7 @@ public abstract class MessageForwardingConnection extends BaseConnection {
             HubsForClientSelector hss = new HubsForClientSelector(
                     m.getTarget(), false);
 
-            knownHubs.select(hss);
+            knownHubs.selectForClient(m.getTarget(), hss);
 
             LinkedList<HubDescription> result = hss.getResult();
 
@@ -351,10 +384,14 @@ public abstract class MessageForwardingConnection extends BaseConnection {
     protected final boolean forwardClientMessage(ClientMessage m) {
 
         try {
-            synchronized (out) {
+            scheduler.lock(WriteScheduler.CONTROL);
+
+            try {
                 out.writeByte(MessageForwarderProtocol.INFO_MESSAGE);
-                m.write(out);
+                m.write(out, outAddresses);
                 out.flush();
+            } finally {
+                scheduler.unlock();
             }
 
             return true;
@@ -375,11 +412,11 @@ public abstract class MessageForwardingConnection extends BaseConnection {
     // Virtual connection parts...
     protected final void handleCreateVirtual() throws IOException {
 
-        DirectSocketAddress source = DirectSocketAddress.read(in);
-        DirectSocketAddress sourceHub = DirectSocketAddress.read(in);
+        DirectSocketAddress source = inAddresses.read(in);
+        DirectSocketAddress sourceHub = inAddresses.read(in);
 
-        DirectSocketAddress target = DirectSocketAddress.read(in);
-        DirectSocketAddress targetHub = DirectSocketAddress.read(in);
+        DirectSocketAddress target = inAddresses.read(in);
+        DirectSocketAddress targetHub = inAddresses.read(in);
 
         long index = in.readLong();
 
@@ -427,9 +464,7 @@ public abstract class MessageForwardingConnection extends BaseConnection {
         stats.messages++;
         stats.messagesBytes += size;
 
-        String key = getUniqueID(index);
-
-        VirtualConnection vc = virtualConnections.find(key);
+        VirtualConnection vc = virtualConnections.find(this, index);
 
         if (vc == null) {
             // Connection doesn't exist. It may already be closed by the other
@@ -457,9 +492,8 @@ public abstract class MessageForwardingConnection extends BaseConnection {
                         + " (" + vc.index1 + ")");
             }
 
-            // Read the data into the (pre allocated) buffer.
-            in.readFully(vc.buffer1, 0, size);
-            vc.mfc2.forwardVirtualMessage(vc.index2, vc.buffer1, size);
+            relayVirtualMessage(vc.mfc2, vc.index2, vc.getFirstFragment(),
+                    size);
 
         } else if (this == vc.mfc2) {
 
@@ -468,9 +502,8 @@ public abstract class MessageForwardingConnection extends BaseConnection {
                         + " (" + vc.index2 + ")");
             }
 
-            // Read the data into the (pre allocated) buffer.
-            in.readFully(vc.buffer2, 0, size);
-            vc.mfc1.forwardVirtualMessage(vc.index1, vc.buffer2, size);
+            relayVirtualMessage(vc.mfc1, vc.index1, vc.getSecondFragment(),
+                    size);
 
         } else {
             stats.messagesError++;
@@ -483,6 +516,44 @@ public abstract class MessageForwardingConnection extends BaseConnection {
         }
     }
 
+    // Passes 'size' bytes of message data to the target connection. If both
+    // connections are handled by a selector, large messages are written
+    // straight from our input buffer to the target channel. Otherwise the data
+    // is read into a buffer from the pool first. The message is written before
+    // forwardVirtualMessage returns, so the buffer can be returned right away.
+    private void relayVirtualMessage(MessageForwardingConnection target,
+            long targetIndex, int fragment, int size) throws IOException {
+
+        SelectorEndpoint e = endpoint;
+        SelectorEndpoint t = target.endpoint;
+
+        if (e == null && t != null) {
+            // We have a thread of our own, so we wait here if the target is
+            // too far behind. A selector will stop reading from us instead.
+            t.awaitDrain();
+        }
+
+        if (size > fragment) {
+            throw new IOException("Virtual message of " + size
+                    + " bytes exceeds fragment size " + fragment);
+        }
+
+        if (size >= MIN_RELAY_SIZE && e != null && t != null) {
+            stats.messagesRelayed++;
+            target.forwardVirtualMessage(targetIndex, e.readPayload(size));
+            return;
+        }
+
+        byte [] buffer = virtualConnections.buffers.get(size);
+
+        try {
+            in.readFully(buffer, 0, size);
+            target.forwardVirtualMessage(targetIndex, buffer, size);
+        } finally {
+            virtualConnections.buffers.put(buffer);
+        }
+    }
+
     protected final void handleMessageVirtualAck() throws IOException {
 
         long index = in.readLong();
@@ -520,7 +591,7 @@ public abstract class MessageForwardingConnection extends BaseConnection {
     }
 
     protected final void handleClientMessage() throws IOException {
-        ClientMessage cm = new ClientMessage(in);
+        ClientMessage cm = new ClientMessage(in, inAddresses);
 
         if (meslogger.isDebugEnabled()) {
             meslogger.debug("Got info message: " + cm);
@@ -573,8 +644,6 @@ public abstract class MessageForwardingConnection extends BaseConnection {
 
     protected abstract void handleDisconnect(Exception e);
 
-    protected abstract String getUniqueID(long index);
-
     private final void forwardVirtualConnect(DirectSocketAddress source,
             DirectSocketAddress sourceHub, DirectSocketAddress target,
             DirectSocketAddress targetHub, long index, int timeout, int port,
@@ -584,14 +653,16 @@ public abstract class MessageForwardingConnection extends BaseConnection {
 
         // Send the connect request to the hub
         try {
-            synchronized (out) {
+            scheduler.lock(WriteScheduler.CONTROL);
+
+            try {
                 out.write(MessageForwarderProtocol.CREATE_VIRTUAL);
 
-                DirectSocketAddress.write(source, out);
-                DirectSocketAddress.write(sourceHub, out);
+                outAddresses.write(source, out);
+                outAddresses.write(sourceHub, out);
 
-                DirectSocketAddress.write(target, out);
-                DirectSocketAddress.write(targetHub, out);
+                outAddresses.write(target, out);
+                outAddresses.write(targetHub, out);
 
                 out.writeLong(index);
 
@@ -601,6 +672,8 @@ public abstract class MessageForwardingConnection extends BaseConnection {
                 out.writeInt(buffer);
 
                 out.flush();
+            } finally {
+                scheduler.unlock();
             }
         } catch (Exception e) {
             handleDisconnect(e);
@@ -614,12 +687,16 @@ public abstract class MessageForwardingConnection extends BaseConnection {
 
         // forward the ACK
         try {
-            synchronized (out) {
+            scheduler.lock(WriteScheduler.CONTROL);
+
+            try {
                 out.writeByte(MessageForwarderProtocol.CREATE_VIRTUAL_ACK);
                 out.writeLong(index);
                 out.writeInt(fragment);
                 out.writeInt(buffer);
                 out.flush();
+            } finally {
+                scheduler.unlock();
             }
         } catch (Exception e) {
             handleDisconnect(e);
@@ -634,11 +711,15 @@ public abstract class MessageForwardingConnection extends BaseConnection {
 
         // forward the ACK
         try {
-            synchronized (out) {
+            scheduler.lock(WriteScheduler.CONTROL);
+
+            try {
                 out.writeByte(MessageForwarderProtocol.CREATE_VIRTUAL_ACK_ACK);
                 out.writeLong(index);
                 out.writeBoolean(succes);
                 out.flush();
+            } finally {
+                scheduler.unlock();
             }
         } catch (Exception e) {
             handleDisconnect(e);
@@ -653,11 +734,15 @@ public abstract class MessageForwardingConnection extends BaseConnection {
 
         // forward the NACK
         try {
-            synchronized (out) {
+            scheduler.lock(WriteScheduler.CONTROL);
+
+            try {
                 out.writeByte(MessageForwarderProtocol.CREATE_VIRTUAL_NACK);
                 out.writeLong(index);
                 out.writeByte(reason);
                 out.flush();
+            } finally {
+                scheduler.unlock();
             }
         } catch (Exception e) {
             handleDisconnect(e);
@@ -673,10 +758,14 @@ public abstract class MessageForwardingConnection extends BaseConnection {
         }
         // forward the close
         try {
-            synchronized (out) {
+            scheduler.lock(WriteScheduler.CONTROL);
+
+            try {
                 out.write(MessageForwarderProtocol.CLOSE_VIRTUAL);
                 out.writeLong(index);
                 out.flush();
+            } finally {
+                scheduler.unlock();
             }
         } catch (Exception e) {
             handleDisconnect(e);
@@ -689,12 +778,32 @@ public abstract class MessageForwardingConnection extends BaseConnection {
 
         // forward the message
         try {
-            synchronized (out) {
+            scheduler.lock(WriteScheduler.BULK, index);
+
+            try {
                 out.write(MessageForwarderProtocol.MESSAGE_VIRTUAL);
                 out.writeLong(index);
                 out.writeInt(size);
                 out.write(data, 0, size);
                 out.flush();
+            } finally {
+                scheduler.unlock();
+            }
+        } catch (Exception e) {
+            handleDisconnect(e);
+        }
+    }
+
+    private final void forwardVirtualMessage(long index, ByteBuffer data) {
+
+        // forward the message without copying it
+        try {
+            scheduler.lock(WriteScheduler.BULK, index);
+
+            try {
+                endpoint.writeVirtualMessage(index, data);
+            } finally {
+                scheduler.unlock();
             }
         } catch (Exception e) {
             handleDisconnect(e);
@@ -707,11 +816,15 @@ public abstract class MessageForwardingConnection extends BaseConnection {
 
         // forward the message ack
         try {
-            synchronized (out) {
+            scheduler.lock(WriteScheduler.CONTROL);
+
+            try {
                 out.write(MessageForwarderProtocol.MESSAGE_VIRTUAL_ACK);
                 out.writeLong(index);
                 out.writeInt(data);
                 out.flush();
+            } finally {
+                scheduler.unlock();
             }
         } catch (Exception e) {
             handleDisconnect(e);
@@ -722,9 +835,7 @@ public abstract class MessageForwardingConnection extends BaseConnection {
 
         stats.messageACK++;
 
-        String key = getUniqueID(index);
-
-        VirtualConnection vc = virtualConnections.find(key);
+        VirtualConnection vc = virtualConnections.find(this, index);
 
         if (vc == null) {
 
@@ -771,9 +882,7 @@ public abstract class MessageForwardingConnection extends BaseConnection {
 
         stats.closeTotal++;
 
-        String id = getUniqueID(index);
-
-        VirtualConnection vc = virtualConnections.remove(id);
+        VirtualConnection vc = virtualConnections.remove(this, index);
 
         if (vc == null) {
             // Connection doesn't exist. It may already be closed (this can
@@ -819,14 +928,28 @@ public abstract class MessageForwardingConnection extends BaseConnection {
     }
 
     private VirtualConnection createConnection(
-            MessageForwardingConnection mfc1, String id1, long index1,
-            int fragment1) {
+            MessageForwardingConnection mfc1, long index1, int fragment1,
+            VirtualConnectionLimits clientLimits) {
 
         long index2 = index.nextIndex();
-        String id2 = getUniqueID(index2);
 
-        return new VirtualConnection(mfc1, id1, index1, fragment1, this, id2,
-                index2);
+        return new VirtualConnection(mfc1, index1, fragment1, this, index2,
+                clientLimits);
+    }
+
+    // Returns the limits on the virtual connections created through this
+    // connection, or null if there are none. Only clients have limits of
+    // their own.
+    protected VirtualConnectionLimits getClientLimits() {
+        return null;
+    }
+
+    // Returns the connection to a hub that should carry the virtual connection
+    // with the given index on this connection. This spreads the virtual
+    // connections over the stripes to the hub (if any).
+    private HubConnection getHub(DirectSocketAddress hub, long index) {
+        return connections.getHub(hub,
+                (int) (index >>> 1) ^ System.identityHashCode(this));
     }
 
     private void processVirtualConnect(DirectSocketAddress source,
@@ -863,7 +986,7 @@ public abstract class MessageForwardingConnection extends BaseConnection {
 
         if (mf == null && targetHub != null) {
 
-            mf = connections.getHub(targetHub);
+            mf = getHub(targetHub, index);
 
             if (mf == null) {
                 // Failed to get a connection to the specified hub. Maybe there
@@ -874,7 +997,7 @@ public abstract class MessageForwardingConnection extends BaseConnection {
                     HubDescription indirect = d.getIndirection();
 
                     if (indirect != null && indirect.haveConnection()) {
-                        mf = connections.getHub(indirect.hubAddress);
+                        mf = getHub(indirect.hubAddress, index);
                     } else {
                         vclogger.info("Failed to find indirection for hub: "
                                 + targetHub
@@ -892,13 +1015,13 @@ public abstract class MessageForwardingConnection extends BaseConnection {
         if (mf == null) {
             DirectionsSelector ds = new DirectionsSelector(target, false);
 
-            knownHubs.select(ds);
+            knownHubs.selectForClient(target, ds);
 
             LinkedList<DirectSocketAddress> result = ds.getResult();
 
             if (result.size() > 0) {
                 // TODO: send in Multiple directions.... ?
-                mf = connections.getHub(result.get(0));
+                mf = getHub(result.get(0), index);
             }
 
             // NOTE: we may not be able to find the client here, since we don't
@@ -916,15 +1039,32 @@ public abstract class MessageForwardingConnection extends BaseConnection {
             return;
         }
 
+        // Check if we are allowed to create another virtual connection. If
+        // not, the sender should back off and retry later.
+        VirtualConnectionLimits limits = getClientLimits();
+
+        if (!virtualConnections.admit(limits, fragment)) {
+
+            if (vclogger.isInfoEnabled()) {
+                vclogger.info("Refused virtual connection " + index + " to "
+                        + target + ": hub overloaded");
+            }
+
+            forwardVirtualConnectNACK(index,
+                    ServiceLinkProtocol.ERROR_HUB_OVERLOAD);
+
+            stats.connectionsFailed++;
+            stats.connectionsRefused++;
+            return;
+        }
+
         // We found a target connection, so let's create the necessary
         // connection administration....
 
-        // Get a unique id so that we can find the connection again later...
-        String id = getUniqueID(index);
-
         // We now delegate the actual creation of the connection object to
         // the target (since it has the rest of the required info).
-        VirtualConnection vc = mf.createConnection(this, id, index, fragment);
+        VirtualConnection vc = mf.createConnection(this, index, fragment,
+                limits);
 
         // Register the virtual connection, so everyone can find it
         virtualConnections.register(vc);
@@ -947,7 +1087,7 @@ public abstract class MessageForwardingConnection extends BaseConnection {
 
         // It's a NACK so we remove the connection, since it's no
         // longer used after we forwarded the reply
-        VirtualConnection vc = virtualConnections.remove(getUniqueID(index));
+        VirtualConnection vc = virtualConnections.remove(this, index);
 
         if (vc == null) {
             // Connection doesn't exist. It may already be closed by the other
@@ -995,10 +1135,8 @@ public abstract class MessageForwardingConnection extends BaseConnection {
                     + buffer + ")");
         }
 
-        String key = getUniqueID(index);
-
         // It's an ACK, so we just retrieve the connection...
-        VirtualConnection vc = virtualConnections.find(key);
+        VirtualConnection vc = virtualConnections.find(this, index);
 
         if (vc == null) {
             // Connection doesn't exist. It may already be closed by the other
@@ -1009,7 +1147,7 @@ public abstract class MessageForwardingConnection extends BaseConnection {
             return;
         }
 
-        vc.setSecondBuffer(fragment);
+        virtualConnections.claimSecondBuffer(vc, fragment);
 
         // The second connection in VC should be the one sending the ACK. Check
         // to make sure...
@@ -1039,10 +1177,8 @@ public abstract class MessageForwardingConnection extends BaseConnection {
             vclogger.debug("Got connect ACK ACK: " + index + ")");
         }
 
-        String key = getUniqueID(index);
-
         // It's an ACK, so we just retrieve the connection...
-        VirtualConnection vc = virtualConnections.find(key);
+        VirtualConnection vc = virtualConnections.find(this, index);
 
         if (vc == null) {
 
@@ -1077,9 +1213,9 @@ public abstract class MessageForwardingConnection extends BaseConnection {
     }
 
     // Called when a connection to a client/hub is lost....
-    protected void closeAllVirtualConnections(String prefix) {
+    protected void closeAllVirtualConnections() {
 
-        LinkedList<VirtualConnection> l = virtualConnections.removeAll(prefix);
+        LinkedList<VirtualConnection> l = virtualConnections.removeAll(this);
 
         for (VirtualConnection vc : l) {
 
@@ -1154,6 +1290,8 @@ public abstract class MessageForwardingConnection extends BaseConnection {
 
         stats.setEndTime();
 
+        scheduler.addTo(stats);
+
         MessageForwardingConnectionStatistics tmp = stats;
         stats = new MessageForwardingConnectionStatistics("Connection("
                 + name + ")");
@@ -8,6 +8,7 @@ public class MessageForwardingConnectionStatistics extends Statistics {
 
     long connectionsTotal;
     long connectionsFailed;
+    long connectionsRefused;
 
     long connectionsReplies;
     long connectionsACKs;
@@ -23,6 +24,7 @@ public class MessageForwardingConnectionStatistics extends Statistics {
     long messagesError;
     long messagesLost;
     long messagesBytes;
+    long messagesRelayed;
 
     long messageACK;
     long messageACK_Error;
@@ -36,6 +38,18 @@ public class MessageForwardingConnectionStatistics extends Statistics {
     long infoMessagesDelivered;
     long infoMessagesFailed;
 
+    // Frames written per lane of the WriteScheduler, the number of writers
+    // that had to wait, and the current and maximum number of waiting writers.
+    long controlWrites;
+    long controlDelayed;
+    int controlQueue;
+    int controlMaxQueue;
+
+    long bulkWrites;
+    long bulkDelayed;
+    int bulkQueue;
+    int bulkMaxQueue;
+
     public MessageForwardingConnectionStatistics(String name) {
         super(name);
     }
@@ -47,6 +61,7 @@ public class MessageForwardingConnectionStatistics extends Statistics {
 
         connectionsTotal += other.connectionsTotal;
         connectionsFailed += other.connectionsFailed;
+        connectionsRefused += other.connectionsRefused;
 
         connectionsReplies += other.connectionsReplies;
         connectionsACKs += other.connectionsACKs;
@@ -62,6 +77,7 @@ public class MessageForwardingConnectionStatistics extends Statistics {
         messagesError += other.messagesError;
         messagesLost += other.messagesLost;
         messagesBytes += other.messagesBytes;
+        messagesRelayed += other.messagesRelayed;
 
         messageACK += other.messageACK;
         messageACK_Error += other.messageACK_Error;
@@ -74,11 +90,22 @@ public class MessageForwardingConnectionStatistics extends Statistics {
         infoMessagesReturned += other.infoMessagesReturned;
         infoMessagesDelivered += other.infoMessagesDelivered;
         infoMessagesFailed += other.infoMessagesFailed;
+
+        controlWrites += other.controlWrites;
+        controlDelayed += other.controlDelayed;
+        controlQueue += other.controlQueue;
+        controlMaxQueue = Math.max(controlMaxQueue, other.controlMaxQueue);
+
+        bulkWrites += other.bulkWrites;
+        bulkDelayed += other.bulkDelayed;
+        bulkQueue += other.bulkQueue;
+        bulkMaxQueue = Math.max(bulkMaxQueue, other.bulkMaxQueue);
     }
 
     public void print(PrintStream out, String prefix) {
         out.println(prefix + "VConnections: " + connectionsTotal);
         out.println(prefix + "   - failed : " + connectionsFailed);
+        out.println(prefix + "   - refused: " + connectionsRefused);
         out.println(prefix + "   - lost   : " + connectionsRepliesLost);
         out.println(prefix + "   - error  : " + connectionsRepliesError);
         out.println(prefix + "VReplies    : " + connectionsReplies);
@@ -88,6 +115,7 @@ public class MessageForwardingConnectionStatistics extends Statistics {
         out.println(prefix + " - error    : " + connectionsRepliesError);
         out.println(prefix + "VMessages   : " + messages);
         out.println(prefix + " - bytes    : " + messagesBytes);
+        out.println(prefix + " - relayed  : " + messagesRelayed);
         out.println(prefix + " - lost     : " + messagesLost);
         out.println(prefix + " - error    : " + messagesError);
         out.println(prefix + "VMess. ACKS : " + messageACK);
@@ -99,5 +127,13 @@ public class MessageForwardingConnectionStatistics extends Statistics {
         out.println(prefix + " - forwarded: " + infoMessagesForwarded);
         out.println(prefix + " - failed fw: " + infoMessagesFailed);
         out.println(prefix + " - returned : " + infoMessagesReturned);
+        out.println(prefix + "Ctrl writes : " + controlWrites);
+        out.println(prefix + " - delayed  : " + controlDelayed);
+        out.println(prefix + " - queued   : " + controlQueue);
+        out.println(prefix + " - max queue: " + controlMaxQueue);
+        out.println(prefix + "Bulk writes : " + bulkWrites);
+        out.println(prefix + " - delayed  : " + bulkDelayed);
+        out.println(prefix + " - queued   : " + bulkQueue);
+        out.println(prefix + " - max queue: " + bulkMaxQueue);
     }
 }
@@ -0,0 +1,340 @@
+package ibis.smartsockets.hub.connections;
+
+import ibis.smartsockets.direct.DirectSocket;
+import ibis.smartsockets.util.CoalescingOutputStream;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The NIO side of a hub connection. It provides the streams used by the
+ * connection, and buffers the incoming data until a complete frame can be
+ * handed to the connection by a SelectorLoop.
+ */
+public final class SelectorEndpoint {
+
+    private static final int INITIAL_BUFFER = 16*1024;
+
+    private final SocketChannel channel;
+
+    private final ByteBufferInputStream bin;
+    private final DataInputStream in;
+    private final ChannelOutputStream cout;
+    private final CoalescingOutputStream bout;
+    private final DataOutputStream out;
+
+    // Used to write a relayed message header and payload in a single call.
+    private final ByteBuffer header = ByteBuffer.allocateDirect(1 + 8 + 4);
+    private final ByteBuffer [] message = new ByteBuffer[2];
+
+    private final FrameDecoder decoder;
+
+    // A direct buffer, so relayed payloads can be written from it without
+    // being copied to the heap first.
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(INITIAL_BUFFER);
+
+    private BaseConnection connection;
+
+    // The loop that handles this endpoint, once it is registered.
+    private volatile SelectorLoop loop;
+
+    // Set while we do not read, since a connection we forward to is too far
+    // behind. Set 'resumed' when the reading should continue.
+    private volatile boolean suspended;
+    private volatile boolean resumed;
+
+    SelectorEndpoint(DirectSocket s, int linger) {
+
+        channel = s.getChannel();
+        decoder = new FrameDecoder();
+
+        // The buffer is kept in 'read mode' while the stream uses it.
+        buffer.flip();
+
+        bin = new ByteBufferInputStream(buffer);
+        in = new DataInputStream(bin);
+        cout = new ChannelOutputStream(this, channel);
+        bout = new CoalescingOutputStream(cout,
+                CoalescingOutputStream.DEFAULT_SIZE, linger);
+        out = new DataOutputStream(bout);
+    }
+
+    /**
+     * Returns the input stream that must be passed to the connection.
+     *
+     * @return the input stream
+     */
+    public DataInputStream getInputStream() {
+        return in;
+    }
+
+    /**
+     * Returns the output stream that must be passed to the connection.
+     *
+     * @return the output stream
+     */
+    public DataOutputStream getOutputStream() {
+        return out;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    BaseConnection getConnection() {
+        return connection;
+    }
+
+    void setLoop(SelectorLoop loop) {
+        this.loop = loop;
+    }
+
+    // Called when data was queued in the output stream.
+    void requestWrite() {
+
+        SelectorLoop l = loop;
+
+        if (l != null) {
+            l.update(this);
+        }
+    }
+
+    // Stops reading after the current frame. Called by the loop that is
+    // handling our frame.
+    void suspend() {
+        suspended = true;
+    }
+
+    // Continues reading, with any frames that are already buffered.
+    void resume() {
+
+        if (!suspended) {
+            return;
+        }
+
+        suspended = false;
+        resumed = true;
+
+        SelectorLoop l = loop;
+
+        if (l != null) {
+            l.update(this);
+        }
+    }
+
+    boolean isSuspended() {
+        return suspended;
+    }
+
+    // Returns if the reading was resumed since the last call.
+    boolean takeResumed() {
+
+        if (!resumed) {
+            return false;
+        }
+
+        resumed = false;
+        return true;
+    }
+
+    boolean hasPendingOutput() {
+        return cout.hasPending();
+    }
+
+    /**
+     * Writes the queued output data that the channel accepts.
+     *
+     * @return if all data was written.
+     */
+    boolean handleOutput() throws IOException {
+        return cout.drain();
+    }
+
+    /**
+     * Waits until the output of this endpoint is no longer too far behind.
+     * Used by connections that have a thread of their own, and write to this
+     * endpoint.
+     */
+    void awaitDrain() {
+        cout.awaitDrain();
+    }
+
+    // Switches the channel to non-blocking mode. Any data already read from
+    // the socket during the (blocking) connection handshake is copied from
+    // the handshake stream first.
+    void init(BaseConnection connection, InputStream handshake)
+        throws IOException {
+
+        this.connection = connection;
+        connection.endpoint = this;
+
+        decoder.setAddressDictionary(connection.usesAddressDictionary());
+
+        if (handshake != null) {
+
+            int left = handshake.available();
+
+            if (left > 0) {
+                byte [] tmp = new byte[left];
+                new DataInputStream(handshake).readFully(tmp);
+
+                ensureCapacity(left);
+                buffer.compact();
+                buffer.put(tmp);
+                buffer.flip();
+            }
+        }
+
+        channel.configureBlocking(false);
+    }
+
+    /**
+     * Reads the available data from the channel and passes each complete
+     * frame to the connection.
+     *
+     * @return false if the connection is done.
+     */
+    boolean handleInput() throws IOException {
+
+        buffer.compact();
+
+        int n = channel.read(buffer);
+
+        buffer.flip();
+
+        int len = decoder.frameLength(buffer);
+
+        while (len > 0 && len <= buffer.remaining()) {
+
+            int end = buffer.position() + len;
+            int limit = buffer.limit();
+
+            // Ensure the handler cannot read beyond its own frame.
+            buffer.limit(end);
+
+            boolean cont = connection.runConnection();
+
+            buffer.limit(limit);
+            buffer.position(end);
+
+            if (!cont) {
+                return false;
+            }
+
+            if (suspended) {
+                // The remaining data is handled once we are resumed.
+                return true;
+            }
+
+            len = decoder.frameLength(buffer);
+        }
+
+        if (n == -1) {
+            // Drop any partial frame. The connection will see EOF.
+            buffer.position(buffer.limit());
+            return connection.runConnection();
+        }
+
+        if (len == FrameDecoder.TOO_LARGE) {
+            throw new IOException("Frame exceeds maximum of "
+                    + FrameDecoder.MAX_FRAME + " bytes");
+        }
+
+        if (len > buffer.capacity()) {
+            ensureCapacity(len);
+        } else if (buffer.remaining() == buffer.capacity()) {
+
+            // A frame of unknown length fills the entire buffer.
+            if (buffer.capacity() >= FrameDecoder.MAX_FRAME) {
+                throw new IOException("Frame exceeds maximum of "
+                        + FrameDecoder.MAX_FRAME + " bytes");
+            }
+
+            ensureCapacity(Math.min(2*buffer.capacity(),
+                    FrameDecoder.MAX_FRAME));
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the next <code>size</code> bytes of the current frame as a
+     * slice of the input buffer, without copying them. The slice is only
+     * valid until the handler returns.
+     */
+    ByteBuffer readPayload(int size) throws IOException {
+
+        if (buffer.remaining() < size) {
+            throw new EOFException();
+        }
+
+        ByteBuffer payload = buffer.slice();
+        payload.limit(size);
+
+        buffer.position(buffer.position() + size);
+        return payload;
+    }
+
+    /**
+     * Writes a MESSAGE_VIRTUAL frame directly to the channel, using a single
+     * gathering write for the header and payload. Any data still buffered in
+     * the output stream is written first. The caller must hold the lock on
+     * the output stream.
+     */
+    void writeVirtualMessage(long index, ByteBuffer payload)
+        throws IOException {
+
+        bout.flushNow();
+
+        header.clear();
+        header.put(MessageForwarderProtocol.MESSAGE_VIRTUAL);
+        header.putLong(index);
+        header.putInt(payload.remaining());
+        header.flip();
+
+        message[0] = header;
+        message[1] = payload;
+
+        try {
+            cout.write(message);
+        } finally {
+            message[1] = null;
+        }
+    }
+
+    // Called when reading from the channel failed. Any buffered data is
+    // dropped, so the connection sees EOF and disconnects.
+    void handleError() {
+        buffer.position(buffer.limit());
+        connection.runConnection();
+    }
+
+    // Makes sure the buffer can hold 'size' bytes (at most MAX_FRAME),
+    // preserving its content.
+    private void ensureCapacity(int size) {
+
+        if (buffer.capacity() >= size) {
+            return;
+        }
+
+        // A long, so doubling cannot overflow.
+        long capacity = buffer.capacity();
+
+        while (capacity < size) {
+            capacity *= 2;
+        }
+
+        ByteBuffer tmp = ByteBuffer.allocateDirect(
+                (int) Math.min(capacity, FrameDecoder.MAX_FRAME));
+        tmp.put(buffer);
+        tmp.flip();
+
+        buffer = tmp;
+        bin.setBuffer(buffer);
+    }
+}
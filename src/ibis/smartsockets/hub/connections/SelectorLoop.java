@@ -0,0 +1,304 @@
+package ibis.smartsockets.hub.connections;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single thread which handles the incoming data of many hub connections
+ * using a java.nio.channels.Selector. It also writes the output data of those
+ * connections that could not be written right away. The thread never waits
+ * for a single connection.
+ */
+final class SelectorLoop implements Runnable {
+
+    private static final Logger niologger =
+        LoggerFactory.getLogger("ibis.smartsockets.hub.nio");
+
+    // Maximum time between two statistics checks.
+    private static final int SELECT_TIMEOUT = 1000;
+
+    private final String name;
+
+    private final Selector selector;
+
+    // The endpoint whose frame is being handled by the current thread.
+    private static final ThreadLocal<SelectorEndpoint> current =
+        new ThreadLocal<SelectorEndpoint>();
+
+    private final LinkedList<SelectorEndpoint> pending =
+        new LinkedList<SelectorEndpoint>();
+
+    // The endpoints whose interest set must be updated.
+    private final LinkedList<SelectorEndpoint> updates =
+        new LinkedList<SelectorEndpoint>();
+
+    private boolean done = false;
+
+    private int connections = 0;
+
+    SelectorLoop(String name) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+    }
+
+    void activate() {
+        Thread t = new Thread(this, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Returns the endpoint whose frame is being handled by the current
+     * thread, or null if the current thread is not handling a frame.
+     */
+    static SelectorEndpoint current() {
+        return current.get();
+    }
+
+    void register(SelectorEndpoint e) {
+
+        e.setLoop(this);
+
+        synchronized (pending) {
+            pending.addLast(e);
+        }
+
+        selector.wakeup();
+    }
+
+    // Called when an endpoint has data to write, or may continue reading.
+    void update(SelectorEndpoint e) {
+
+        synchronized (updates) {
+            updates.addLast(e);
+        }
+
+        selector.wakeup();
+    }
+
+    synchronized int numberOfConnections() {
+        return connections;
+    }
+
+    private synchronized void addConnections(int delta) {
+        connections += delta;
+    }
+
+    synchronized void end() {
+        done = true;
+        selector.wakeup();
+    }
+
+    private synchronized boolean getDone() {
+        return done;
+    }
+
+    private void addPending() {
+
+        while (true) {
+
+            SelectorEndpoint e;
+
+            synchronized (pending) {
+                if (pending.size() == 0) {
+                    return;
+                }
+
+                e = pending.removeFirst();
+            }
+
+            try {
+                int ops = SelectionKey.OP_READ;
+
+                if (e.hasPendingOutput()) {
+                    ops |= SelectionKey.OP_WRITE;
+                }
+
+                e.getChannel().register(selector, ops, e);
+                addConnections(1);
+            } catch (IOException ex) {
+                niologger.warn("Failed to register connection!", ex);
+                e.handleError();
+                continue;
+            }
+
+            // The handshake may already have delivered some data, which would
+            // not trigger the selector.
+            handle(e, e.getChannel().keyFor(selector));
+        }
+    }
+
+    private void addUpdates() {
+
+        while (true) {
+
+            SelectorEndpoint e;
+
+            synchronized (updates) {
+                if (updates.size() == 0) {
+                    return;
+                }
+
+                e = updates.removeFirst();
+            }
+
+            SelectionKey key = e.getChannel().keyFor(selector);
+
+            if (key == null || !key.isValid()) {
+                continue;
+            }
+
+            if (e.takeResumed()) {
+                if (niologger.isDebugEnabled()) {
+                    niologger.debug("Resumed reading from "
+                            + e.getConnection().getName());
+                }
+
+                // Some frames may already be buffered.
+                handle(e, key);
+            } else {
+                setInterest(e, key);
+            }
+        }
+    }
+
+    private void setInterest(SelectorEndpoint e, SelectionKey key) {
+
+        if (!key.isValid()) {
+            return;
+        }
+
+        int ops = 0;
+
+        if (!e.isSuspended()) {
+            ops |= SelectionKey.OP_READ;
+        }
+
+        if (e.hasPendingOutput()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+
+        if (key.interestOps() != ops) {
+            key.interestOps(ops);
+        }
+    }
+
+    private void close(SelectionKey key) {
+        key.cancel();
+        addConnections(-1);
+    }
+
+    private void handle(SelectorEndpoint e, SelectionKey key) {
+
+        boolean cont;
+
+        current.set(e);
+
+        try {
+            cont = e.handleInput();
+        } catch (IOException ex) {
+            if (niologger.isDebugEnabled()) {
+                niologger.debug("Failed to read from connection!", ex);
+            }
+
+            e.handleError();
+            cont = false;
+        } finally {
+            current.set(null);
+        }
+
+        if (!cont) {
+            close(key);
+            return;
+        }
+
+        if (e.isSuspended() && niologger.isDebugEnabled()) {
+            niologger.debug("Suspended reading from "
+                    + e.getConnection().getName());
+        }
+
+        setInterest(e, key);
+    }
+
+    private void handleOutput(SelectorEndpoint e, SelectionKey key) {
+
+        try {
+            e.handleOutput();
+        } catch (IOException ex) {
+            if (niologger.isDebugEnabled()) {
+                niologger.debug("Failed to write to connection!", ex);
+            }
+
+            e.handleError();
+            close(key);
+            return;
+        }
+
+        setInterest(e, key);
+    }
+
+    private void checkStatistics() {
+
+        long now = System.currentTimeMillis();
+
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid()) {
+                SelectorEndpoint e = (SelectorEndpoint) key.attachment();
+                e.getConnection().checkStatistics(now);
+            }
+        }
+    }
+
+    public void run() {
+
+        long nextCheck = System.currentTimeMillis() + SELECT_TIMEOUT;
+
+        while (!getDone()) {
+
+            try {
+                selector.select(SELECT_TIMEOUT);
+            } catch (IOException e) {
+                niologger.warn("Selector failed!", e);
+                continue;
+            }
+
+            addPending();
+            addUpdates();
+
+            Iterator<SelectionKey> itt = selector.selectedKeys().iterator();
+
+            while (itt.hasNext()) {
+
+                SelectionKey key = itt.next();
+                itt.remove();
+
+                SelectorEndpoint e = (SelectorEndpoint) key.attachment();
+
+                if (key.isValid() && key.isWritable()) {
+                    handleOutput(e, key);
+                }
+
+                if (key.isValid() && key.isReadable()) {
+                    handle(e, key);
+                }
+            }
+
+            if (System.currentTimeMillis() > nextCheck) {
+                checkStatistics();
+                nextCheck = System.currentTimeMillis() + SELECT_TIMEOUT;
+            }
+        }
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
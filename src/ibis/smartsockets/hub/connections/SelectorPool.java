@@ -0,0 +1,126 @@
+package ibis.smartsockets.hub.connections;
+
+import ibis.smartsockets.direct.DirectSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A fixed set of SelectorLoops used by the hub to handle the incoming data of
+ * its connections, instead of using a thread per connection.
+ * <p>
+ * A connection that should be handled by the pool is created using the
+ * streams of a SelectorEndpoint (see {@link #createEndpoint(DirectSocket)}),
+ * and is activated using {@link #activate(SelectorEndpoint, BaseConnection,
+ * InputStream)} instead of {@link BaseConnection#activate()}.
+ */
+public final class SelectorPool {
+
+    private static final Logger niologger =
+        LoggerFactory.getLogger("ibis.smartsockets.hub.nio");
+
+    private final SelectorLoop [] loops;
+
+    private final int linger;
+
+    private int next = 0;
+
+    public SelectorPool(int size, int linger) throws IOException {
+
+        this.linger = linger;
+
+        if (size < 1) {
+            size = 1;
+        }
+
+        loops = new SelectorLoop[size];
+
+        for (int i=0;i<size;i++) {
+            loops[i] = new SelectorLoop("HubSelector-" + i);
+            loops[i].activate();
+        }
+
+        if (niologger.isInfoEnabled()) {
+            niologger.info("Created " + size + " hub selector threads");
+        }
+    }
+
+    /**
+     * Creates a SelectorEndpoint for the socket, or returns null if the socket
+     * does not support NIO (in which case the connection must be handled by a
+     * thread of its own).
+     *
+     * @param s the socket of the connection
+     * @return the SelectorEndpoint or null
+     */
+    public SelectorEndpoint createEndpoint(DirectSocket s) {
+
+        if (s.getChannel() == null) {
+            if (niologger.isInfoEnabled()) {
+                niologger.info("Socket " + s + " does not support NIO, using "
+                        + "a thread instead");
+            }
+            return null;
+        }
+
+        return new SelectorEndpoint(s, linger);
+    }
+
+    /**
+     * Hands a connection to one of the SelectorLoops.
+     *
+     * @param e the endpoint whose streams were used to create the connection
+     * @param c the connection
+     * @param handshake the stream used during the connection handshake. Any
+     * data buffered in this stream is passed on to the connection.
+     */
+    public void activate(SelectorEndpoint e, BaseConnection c,
+            InputStream handshake) {
+
+        try {
+            e.init(c, handshake);
+        } catch (IOException ex) {
+            // The connection will see this as a broken socket.
+            niologger.warn("Failed to switch connection to NIO!", ex);
+            e.handleError();
+            return;
+        }
+
+        select().register(e);
+    }
+
+    private synchronized SelectorLoop select() {
+
+        // Round robin, but take the next loop if it is less busy.
+        SelectorLoop result = loops[next];
+        next = (next + 1) % loops.length;
+
+        SelectorLoop alt = loops[next];
+
+        if (alt.numberOfConnections() < result.numberOfConnections()) {
+            result = alt;
+        }
+
+        return result;
+    }
+
+    public int numberOfConnections() {
+
+        int result = 0;
+
+        for (SelectorLoop l : loops) {
+            result += l.numberOfConnections();
+        }
+
+        return result;
+    }
+
+    public void end() {
+        for (SelectorLoop l : loops) {
+            l.end();
+        }
+    }
+}
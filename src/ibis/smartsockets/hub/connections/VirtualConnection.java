@@ -3,31 +3,37 @@ package ibis.smartsockets.hub.connections;
 public class VirtualConnection {
 
     // The connection that created this virtual connection
-    public final String key1;
     public final MessageForwardingConnection mfc1;
     public final long index1;
-    public final byte [] buffer1;
+    private final int fragment1;
 
     // The connection that we will forward messages to...
-    public final String key2;
     public final MessageForwardingConnection mfc2;
     public final long index2;
-    public byte [] buffer2;
+    private int fragment2;
+
+    // The limits of the client that created this connection (if any).
+    final VirtualConnectionLimits clientLimits;
+
+    // The buffer space claimed by this connection.
+    private int claimed;
 
     private boolean removing = false;
 
-    VirtualConnection(MessageForwardingConnection mfc1, String key1, long index1,
-            int fragment1, MessageForwardingConnection mfc2, String key2, long index2) {
+    VirtualConnection(MessageForwardingConnection mfc1, long index1,
+            int fragment1, MessageForwardingConnection mfc2, long index2,
+            VirtualConnectionLimits clientLimits) {
 
-        this.key1 = key1;
         this.mfc1 = mfc1;
         this.index1 = index1;
-        this.buffer1 = new byte[fragment1];
+        this.fragment1 = fragment1;
 
-        this.key2 = key2;
         this.mfc2 = mfc2;
         this.index2 = index2;
-        this.buffer2 = null; // cannot be set yet...
+        this.fragment2 = 0; // cannot be set yet...
+
+        this.clientLimits = clientLimits;
+        this.claimed = fragment1;
     }
 
     /*
@@ -38,26 +44,57 @@ public class VirtualConnection {
     }
     */
 
-    public void setSecondBuffer(int fragment2) {
-        buffer2 = new byte[fragment2];
-    }
+    // Claims the second buffer from the limits of the hub and the client.
+    // This is done while holding our lock, so it is either done before the
+    // connection is removed, and released with the rest of the claim, or
+    // not at all.
+    synchronized void setSecondBuffer(int fragment2,
+            VirtualConnectionLimits limits) {
 
-    public void remove() {
+        if (removing) {
+            return;
+        }
 
-        synchronized (this) {
+        this.fragment2 = fragment2;
+        claimed += fragment2;
 
-            if (removing) {
-                // The 'other' owner is already removing this connection!
-                return;
-            }
+        limits.claim(fragment2);
 
+        if (clientLimits != null) {
+            clientLimits.claim(fragment2);
         }
+    }
 
+    synchronized int getClaimed() {
+        return claimed;
+    }
+
+    // The maximum size of the messages in each direction. The messages are
+    // relayed using buffers from the pool of the hub.
+    int getFirstFragment() {
+        return fragment1;
+    }
+
+    // Only called by the thread reading from mfc2, which also set it.
+    int getSecondFragment() {
+        return fragment2;
+    }
+
+    // Returns false if the connection is already being removed.
+    public synchronized boolean remove() {
+
+        if (removing) {
+            // The 'other' owner is already removing this connection!
+            return false;
+        }
 
+        removing = true;
+        return true;
     }
 
     public String toString() {
-        return "VC(" + key1 + ", " + index1 + " <-> " + key2 + ", " + index2 + ")";
+        return "VC(" + mfc1.getName() + ", " + index1 + " <-> "
+            + mfc2.getName() + ", " + index2 + ")";
     }
 
     /*
@@ -0,0 +1,98 @@
+package ibis.smartsockets.hub.connections;
+
+/**
+ * Limits the virtual connections of a hub, or of a single client of a hub.
+ * <p>
+ * A new virtual connection is only admitted if the number of connections and
+ * the buffer space claimed by the connections stay within their maximum, and
+ * if the creation rate is not exceeded. The rate is enforced using a token
+ * bucket, which allows a burst of at most one second worth of connections.
+ * A maximum of 0 means no limit.
+ */
+final class VirtualConnectionLimits {
+
+    private final int maxConnections;
+    private final long maxBytes;
+    private final int rate;
+
+    private int connections;
+    private long bytes;
+
+    private double tokens;
+    private long lastRefill;
+
+    // The number of connections that were refused.
+    private long refused;
+
+    VirtualConnectionLimits(int maxConnections, long maxBytes, int rate) {
+        this.maxConnections = maxConnections;
+        this.maxBytes = maxBytes;
+        this.rate = rate;
+
+        tokens = rate;
+        lastRefill = System.currentTimeMillis();
+    }
+
+    boolean isUnlimited() {
+        return maxConnections <= 0 && maxBytes <= 0 && rate <= 0;
+    }
+
+    /**
+     * Admits a new connection that claims the given number of bytes.
+     *
+     * @return if the connection was admitted.
+     */
+    synchronized boolean admit(int claim) {
+
+        if ((maxConnections > 0 && connections >= maxConnections)
+                || (maxBytes > 0 && bytes + claim > maxBytes)) {
+            refused++;
+            return false;
+        }
+
+        if (rate > 0) {
+
+            long now = System.currentTimeMillis();
+
+            if (now > lastRefill) {
+                tokens = Math.min(rate,
+                        tokens + ((now - lastRefill) * rate) / 1000.0);
+                lastRefill = now;
+            }
+
+            if (tokens < 1) {
+                refused++;
+                return false;
+            }
+
+            tokens--;
+        }
+
+        connections++;
+        bytes += claim;
+        return true;
+    }
+
+    // Adds to the claim of an admitted connection.
+    synchronized void claim(int claim) {
+        bytes += claim;
+    }
+
+    // Releases an admitted connection and everything it claimed.
+    synchronized void release(int claim) {
+        connections--;
+        bytes -= claim;
+    }
+
+    synchronized int getConnections() {
+        return connections;
+    }
+
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    synchronized long getRefused() {
+        return refused;
+    }
+}
@@ -0,0 +1,205 @@
+package ibis.smartsockets.hub.connections;
+
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Open addressing hash table that maps the index of a virtual connection to
+ * the VirtualConnection. Each MessageForwardingConnection has a table of its
+ * own, containing the virtual connections that have an endpoint on it.
+ *
+ * Lookups do not use any locks, since they are done for every message
+ * forwarded by the hub. Updates are synchronized. Each slot contains an
+ * immutable entry, so a reader always sees a matching key and value.
+ */
+final class VirtualConnectionTable {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private static final class Entry {
+
+        final long index;
+        final VirtualConnection vc;
+
+        Entry(long index, VirtualConnection vc) {
+            this.index = index;
+            this.vc = vc;
+        }
+    }
+
+    // Marks a slot that was used by a removed entry.
+    private static final Entry REMOVED = new Entry(-1, null);
+
+    private volatile AtomicReferenceArray<Entry> slots =
+        new AtomicReferenceArray<Entry>(MIN_CAPACITY);
+
+    // Number of live and removed entries in the slots.
+    private int size;
+    private int used;
+
+    private static int hash(long index, int capacity) {
+        long h = index * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & (capacity-1);
+    }
+
+    VirtualConnectionTable() {
+        // empty
+    }
+
+    VirtualConnection get(long index) {
+
+        AtomicReferenceArray<Entry> tmp = slots;
+
+        int capacity = tmp.length();
+        int slot = hash(index, capacity);
+
+        for (int i=0;i<capacity;i++) {
+
+            Entry e = tmp.get(slot);
+
+            if (e == null) {
+                return null;
+            }
+
+            if (e != REMOVED && e.index == index) {
+                return e.vc;
+            }
+
+            slot = (slot + 1) & (capacity-1);
+        }
+
+        return null;
+    }
+
+    synchronized void put(long index, VirtualConnection vc) {
+
+        if (2*(used+1) > slots.length()) {
+            resize();
+        }
+
+        int capacity = slots.length();
+        int slot = hash(index, capacity);
+        int free = -1;
+
+        for (int i=0;i<capacity;i++) {
+
+            Entry e = slots.get(slot);
+
+            if (e == null) {
+                break;
+            }
+
+            if (e == REMOVED) {
+                if (free == -1) {
+                    free = slot;
+                }
+            } else if (e.index == index) {
+                // Replace the existing entry.
+                slots.set(slot, new Entry(index, vc));
+                return;
+            }
+
+            slot = (slot + 1) & (capacity-1);
+        }
+
+        if (free == -1) {
+            free = slot;
+            used++;
+        }
+
+        slots.set(free, new Entry(index, vc));
+        size++;
+    }
+
+    // Removes the entry for 'index', but only if it still refers to 'vc'.
+    synchronized boolean remove(long index, VirtualConnection vc) {
+
+        int capacity = slots.length();
+        int slot = hash(index, capacity);
+
+        for (int i=0;i<capacity;i++) {
+
+            Entry e = slots.get(slot);
+
+            if (e == null) {
+                return false;
+            }
+
+            if (e != REMOVED && e.index == index) {
+
+                if (e.vc != vc) {
+                    return false;
+                }
+
+                slots.set(slot, REMOVED);
+                size--;
+                return true;
+            }
+
+            slot = (slot + 1) & (capacity-1);
+        }
+
+        return false;
+    }
+
+    // Removes all entries and returns their virtual connections.
+    synchronized LinkedList<VirtualConnection> removeAll() {
+
+        LinkedList<VirtualConnection> result =
+            new LinkedList<VirtualConnection>();
+
+        int capacity = slots.length();
+
+        for (int i=0;i<capacity;i++) {
+
+            Entry e = slots.get(i);
+
+            if (e != null && e != REMOVED) {
+                result.add(e.vc);
+            }
+        }
+
+        slots = new AtomicReferenceArray<Entry>(MIN_CAPACITY);
+        size = used = 0;
+
+        return result;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    // Rehashes the live entries into a new array. The new array is only
+    // published when it is complete, so readers can continue using the old one.
+    private void resize() {
+
+        int capacity = MIN_CAPACITY;
+
+        while (capacity < 4*(size+1)) {
+            capacity *= 2;
+        }
+
+        AtomicReferenceArray<Entry> old = slots;
+        AtomicReferenceArray<Entry> tmp =
+            new AtomicReferenceArray<Entry>(capacity);
+
+        for (int i=0;i<old.length();i++) {
+
+            Entry e = old.get(i);
+
+            if (e != null && e != REMOVED) {
+
+                int slot = hash(e.index, capacity);
+
+                while (tmp.get(slot) != null) {
+                    slot = (slot + 1) & (capacity-1);
+                }
+
+                tmp.set(slot, e);
+            }
+        }
+
+        slots = tmp;
+        used = size;
+    }
+}
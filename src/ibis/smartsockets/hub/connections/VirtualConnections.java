@@ -1,6 +1,9 @@
 package ibis.smartsockets.hub.connections;
 
-import java.util.HashMap;
+import ibis.smartsockets.SmartSocketsProperties;
+import ibis.smartsockets.util.TypedProperties;
+
+import java.io.PrintStream;
 import java.util.LinkedList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -10,26 +13,122 @@ public class VirtualConnections {
     private static Logger vclogger =
         LoggerFactory.getLogger("ibis.smartsockets.hub.connections.virtual");
 
-    private final HashMap<String, VirtualConnection> vcs =
-        new HashMap<String, VirtualConnection>();
+    // NOTE: the virtual connections are stored in the VirtualConnectionTable
+    // of the two MessageForwardingConnections they use, so there is no global
+    // table (or lock) here.
+
+    // The limits of the entire hub.
+    private final VirtualConnectionLimits limits;
+
+    // The limits of each client.
+    private final int clientMax;
+    private final long clientBytes;
+    private final int clientRate;
+
+    // The buffers used to relay virtual messages.
+    final BufferPool buffers;
+
+    public VirtualConnections(TypedProperties p) {
+
+        limits = new VirtualConnectionLimits(
+                p.getIntProperty(SmartSocketsProperties.HUB_VIRTUAL_MAX, 0),
+                p.getSizeProperty(SmartSocketsProperties.HUB_VIRTUAL_BYTES, 0),
+                p.getIntProperty(SmartSocketsProperties.HUB_VIRTUAL_RATE, 0));
+
+        clientMax = p.getIntProperty(
+                SmartSocketsProperties.HUB_VIRTUAL_CLIENT_MAX, 0);
+        clientBytes = p.getSizeProperty(
+                SmartSocketsProperties.HUB_VIRTUAL_CLIENT_BYTES, 0);
+        clientRate = p.getIntProperty(
+                SmartSocketsProperties.HUB_VIRTUAL_CLIENT_RATE, 0);
+
+        buffers = new BufferPool(p.getSizeProperty(
+                SmartSocketsProperties.HUB_VIRTUAL_POOL, 4194304));
+    }
+
+    // Returns the limits for a new client, or null if there are none.
+    VirtualConnectionLimits createClientLimits() {
+
+        VirtualConnectionLimits l =
+            new VirtualConnectionLimits(clientMax, clientBytes, clientRate);
+
+        if (l.isUnlimited()) {
+            return null;
+        }
+
+        return l;
+    }
+
+    /**
+     * Admits a new virtual connection, which claims the given number of bytes
+     * of buffer space. The connection must be admitted both by the hub and by
+     * the limits of the client that creates it (if any).
+     *
+     * @return if the connection was admitted.
+     */
+    boolean admit(VirtualConnectionLimits client, int claim) {
+
+        if (client != null && !client.admit(claim)) {
+            return false;
+        }
+
+        if (!limits.admit(claim)) {
+
+            if (client != null) {
+                client.release(claim);
+            }
+
+            return false;
+        }
+
+        return true;
+    }
+
+    // Claims the buffer space for the second direction of a connection.
+    void claimSecondBuffer(VirtualConnection vc, int fragment) {
+        vc.setSecondBuffer(fragment, limits);
+    }
+
+    // Releases everything a removed connection has claimed. Must be called
+    // after VirtualConnection.remove, so the claim can no longer grow.
+    private void release(VirtualConnection vc) {
+
+        int claimed = vc.getClaimed();
+
+        limits.release(claimed);
 
-    public synchronized void register(VirtualConnection vc) {
+        if (vc.clientLimits != null) {
+            vc.clientLimits.release(claimed);
+        }
+    }
+
+    public void printStatistics(PrintStream out, String prefix) {
+        out.println(prefix + "VConnections: " + limits.getConnections());
+        out.println(prefix + " - claimed  : " + limits.getBytes());
+        out.println(prefix + " - refused  : " + limits.getRefused());
+        out.println(prefix + "VBuffers    : " + buffers.getGets());
+        out.println(prefix + " - allocated: " + buffers.getAllocated());
+        out.println(prefix + " - idle     : " + buffers.getIdle());
+    }
+
+    public void register(VirtualConnection vc) {
 
         if (vclogger.isDebugEnabled()) {
             vclogger.debug("register VC: " + vc);
         }
 
-        vcs.put(vc.key1, vc);
-        vcs.put(vc.key2, vc);
+        vc.mfc1.virtualConnectionTable.put(vc.index1, vc);
+        vc.mfc2.virtualConnectionTable.put(vc.index2, vc);
     }
 
-    public synchronized VirtualConnection find(String key) {
+    public VirtualConnection find(MessageForwardingConnection mfc,
+            long index) {
 
         if (vclogger.isDebugEnabled()) {
-            vclogger.debug("find VC: " + key);
+            vclogger.debug("find VC: " + mfc.getName() + " " + index);
         }
 
-        VirtualConnection vc = vcs.get(key);
+        VirtualConnection vc = mfc.virtualConnectionTable.get(index);
 
         if (vclogger.isInfoEnabled()) {
             vclogger.info("found VC: " + vc);
@@ -38,16 +137,18 @@ public class VirtualConnections {
         return vc;
     }
 
-    public synchronized VirtualConnection remove(String key) {
+    public VirtualConnection remove(MessageForwardingConnection mfc,
+            long index) {
 
-        VirtualConnection vc = vcs.get(key);
+        VirtualConnection vc = mfc.virtualConnectionTable.get(index);
 
-        if (vc == null) {
-            // This may happen, since a connection may be simultaneously closed
-            // from both sides....
+        // The connection may not exist, or may be removed by someone else at
+        // the same time, since a connection may be simultaneously closed from
+        // both sides....
+        if (vc == null || !vc.remove()) {
             if (vclogger.isInfoEnabled()) {
-                vclogger.info("cannot remove VC: " + key
-                        + " since it doesn't exist!");
+                vclogger.info("cannot remove VC: " + mfc.getName() + " "
+                        + index + " since it doesn't exist!");
             }
             return null;
         }
@@ -56,26 +157,34 @@ public class VirtualConnections {
             vclogger.info("removing VC: " + vc);
         }
 
-        vcs.remove(vc.key1);
-        vcs.remove(vc.key2);
+        vc.mfc1.virtualConnectionTable.remove(vc.index1, vc);
+        vc.mfc2.virtualConnectionTable.remove(vc.index2, vc);
+
+        release(vc);
 
         return vc;
     }
 
-    public synchronized LinkedList<VirtualConnection> removeAll(String prefix) {
+    public LinkedList<VirtualConnection> removeAll(
+            MessageForwardingConnection mfc) {
 
-        LinkedList<String> remove = new LinkedList<String>();
-        LinkedList<VirtualConnection> result = new LinkedList<VirtualConnection>();
+        LinkedList<VirtualConnection> result =
+            new LinkedList<VirtualConnection>();
 
-        for (String key : vcs.keySet()) {
+        for (VirtualConnection vc : mfc.virtualConnectionTable.removeAll()) {
 
-            if (key.startsWith(prefix)) {
-                remove.add(key);
-            }
-        }
+            if (vc.remove()) {
+                // Also remove the entry of the other endpoint.
+                if (vc.mfc1 == mfc) {
+                    vc.mfc2.virtualConnectionTable.remove(vc.index2, vc);
+                } else {
+                    vc.mfc1.virtualConnectionTable.remove(vc.index1, vc);
+                }
 
-        for (String key : remove) {
-            result.add(vcs.remove(key));
+                release(vc);
+
+                result.add(vc);
+            }
         }
 
         return result;
@@ -0,0 +1,241 @@
+package ibis.smartsockets.hub.connections;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * Decides which writer may write the next frame to the output stream of a
+ * connection.
+ * <p>
+ * Each writer must first obtain the lock of the scheduler for one of the
+ * lanes. Writers in the CONTROL lane (connection setup, ACKs, closes, info
+ * messages and gossip) are always served before writers in the BULK lane
+ * (virtual messages), so they never have to wait for more than the frame
+ * that is currently being written. The writers in the CONTROL lane are served
+ * in the order in which they arrived. The writers in the BULK lane are served
+ * round-robin per virtual connection, one frame at a time, and in the order
+ * in which they arrived within a virtual connection. A virtual connection
+ * that has many writers waiting (e.g., because its messages arrive over
+ * several stripes) therefore gets no more turns than one with a single
+ * writer. A writer that sends a large amount of data must obtain the lock
+ * for every frame, so it takes turns with the others.
+ * <p>
+ * The lock is reentrant. For each lane, the scheduler counts the number of
+ * frames written, the number of writers that had to wait, and the maximum
+ * number of waiting writers (the queue depth).
+ * <p>
+ * When the last writer releases the lock and no other writer is waiting, the
+ * output stream is flushed once more, so a CoalescingOutputStream writes its
+ * buffer without waiting for the linger time.
+ */
+final class WriteScheduler {
+
+    static final int CONTROL = 0;
+    static final int BULK    = 1;
+
+    private static final int LANES = 2;
+
+    private final OutputStream out;
+
+    private Thread owner;
+    private int holds;
+
+    // The number of writers waiting in each lane.
+    private final int [] waiting = new int[LANES];
+
+    // Each writer waiting in the CONTROL lane gets a ticket. The writer with
+    // the ticket that is being served may go next.
+    private long nextTicket;
+    private long serving;
+
+    // A virtual connection with writers waiting in the BULK lane.
+    private static final class Flow {
+
+        final Long index;
+
+        final LinkedList<Thread> writers = new LinkedList<Thread>();
+
+        Flow(Long index) {
+            this.index = index;
+        }
+    }
+
+    // The virtual connections with writers waiting in the BULK lane, in the
+    // order in which they are served. The first writer of the first one may
+    // go next.
+    private final LinkedList<Flow> flows = new LinkedList<Flow>();
+    private final HashMap<Long, Flow> flowMap = new HashMap<Long, Flow>();
+
+    // Counters since the last call to addTo.
+    private final long [] writes = new long[LANES];
+    private final long [] delayed = new long[LANES];
+    private final int [] maxWaiting = new int[LANES];
+
+    WriteScheduler(OutputStream out) {
+        this.out = out;
+    }
+
+    void lock(int lane) {
+        lock(lane, 0);
+    }
+
+    /**
+     * Obtains the lock for the given lane. For the BULK lane, index is the
+     * virtual connection the frame belongs to.
+     */
+    synchronized void lock(int lane, long index) {
+
+        Thread current = Thread.currentThread();
+
+        if (owner == current) {
+            holds++;
+            return;
+        }
+
+        writes[lane]++;
+
+        if (owner == null && !waitingBefore(LANES)) {
+            owner = current;
+            holds = 1;
+            return;
+        }
+
+        long ticket = 0;
+        Flow flow = null;
+
+        if (lane == BULK) {
+            Long key = Long.valueOf(index);
+
+            flow = flowMap.get(key);
+
+            if (flow == null) {
+                flow = new Flow(key);
+                flowMap.put(key, flow);
+                flows.addLast(flow);
+            }
+
+            flow.writers.addLast(current);
+        } else {
+            ticket = nextTicket++;
+        }
+
+        waiting[lane]++;
+        delayed[lane]++;
+
+        if (waiting[lane] > maxWaiting[lane]) {
+            maxWaiting[lane] = waiting[lane];
+        }
+
+        boolean interrupted = false;
+
+        while (owner != null || waitingBefore(lane)
+                || !isNext(current, ticket, flow)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        waiting[lane]--;
+
+        if (flow == null) {
+            serving++;
+        } else {
+            // Our virtual connection goes to the back of the line.
+            flow.writers.removeFirst();
+            flows.removeFirst();
+
+            if (flow.writers.isEmpty()) {
+                flowMap.remove(flow.index);
+            } else {
+                flows.addLast(flow);
+            }
+        }
+
+        owner = current;
+        holds = 1;
+
+        if (interrupted) {
+            current.interrupt();
+        }
+    }
+
+    void unlock() {
+
+        boolean drained;
+
+        synchronized (this) {
+
+            if (owner != Thread.currentThread()) {
+                throw new IllegalMonitorStateException("Not the owner");
+            }
+
+            drained = (holds == 1 && !waitingBefore(LANES));
+        }
+
+        if (drained) {
+            // We still own the lock, so no other writer can start a frame.
+            try {
+                out.flush();
+            } catch (IOException e) {
+                // The next writer will get the error.
+            }
+        }
+
+        synchronized (this) {
+            if (--holds == 0) {
+                owner = null;
+                notifyAll();
+            }
+        }
+    }
+
+    // Returns true if the waiting writer may go next in its lane.
+    private boolean isNext(Thread current, long ticket, Flow flow) {
+
+        if (flow == null) {
+            return serving == ticket;
+        }
+
+        return flows.getFirst() == flow && flow.writers.getFirst() == current;
+    }
+
+    // Returns true if there are writers waiting in a lane before 'lane'.
+    private boolean waitingBefore(int lane) {
+
+        for (int i=0;i<lane;i++) {
+            if (waiting[i] > 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    synchronized int getQueueDepth(int lane) {
+        return waiting[lane];
+    }
+
+    // Adds the counters to the statistics, and starts counting again.
+    synchronized void addTo(MessageForwardingConnectionStatistics s) {
+
+        s.controlWrites += writes[CONTROL];
+        s.controlDelayed += delayed[CONTROL];
+        s.controlMaxQueue = Math.max(s.controlMaxQueue, maxWaiting[CONTROL]);
+        s.controlQueue = waiting[CONTROL];
+
+        s.bulkWrites += writes[BULK];
+        s.bulkDelayed += delayed[BULK];
+        s.bulkMaxQueue = Math.max(s.bulkMaxQueue, maxWaiting[BULK]);
+        s.bulkQueue = waiting[BULK];
+
+        for (int i=0;i<LANES;i++) {
+            writes[i] = 0;
+            delayed[i] = 0;
+            maxWaiting[i] = waiting[i];
+        }
+    }
+}
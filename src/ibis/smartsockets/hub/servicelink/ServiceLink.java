@@ -5,19 +5,23 @@ import ibis.smartsockets.direct.DirectSocket;
 import ibis.smartsockets.direct.DirectSocketAddress;
 import ibis.smartsockets.direct.DirectSocketFactory;
 import ibis.smartsockets.hub.ConnectionProtocol;
+import ibis.smartsockets.hub.connections.AddressDictionary;
 import ibis.smartsockets.hub.connections.MessageForwarderProtocol;
 import ibis.smartsockets.hub.connections.VirtualConnectionIndex;
+import ibis.smartsockets.util.CoalescingOutputStream;
 import ibis.smartsockets.util.TypedProperties;
 import ibis.smartsockets.util.ThreadPool;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,6 +39,12 @@ public class ServiceLink implements Runnable {
 
     private static final int DEFAULT_WAIT_TIME = 10000;
 
+    // Number of bits needed to store the number of a link in an index.
+    private static final int LINK_BITS = 3;
+
+    /** The maximum number of hubs a service link connects to at once. */
+    public static final int MAX_HUBS = 1 << LINK_BITS;
+
     private final HashMap<String, Object> callbacks
         = new HashMap<String, Object>();
 
@@ -47,31 +57,35 @@ public class ServiceLink implements Runnable {
 
     private final List<DirectSocketAddress> hubs;
 
-    private DirectSocketAddress hubAddress;
-
-    private boolean connected = false;
+    // The hubs we have learned about from the hubs we are connected to.
+    private final ArrayList<DirectSocketAddress> knownHubs =
+        new ArrayList<DirectSocketAddress>();
 
     private boolean done = false;
 
-    private DirectSocket hub;
+    // The connections to the hubs. There is more than one in multi-hub mode.
+    private final HubLink [] links;
 
-    private DataOutputStream out;
+    // In multi-hub mode, the number of the link is stored in the lowest bits
+    // of the index of a virtual connection, so we know which link to use.
+    private final int linkBits;
 
-    private DataInputStream in;
+    private int nextLink = 0;
+
+    private final boolean addressDictionary;
 
     private int nextCallbackID = 0;
 
     private int maxWaitTime = DEFAULT_WAIT_TIME;
 
-    private final VirtualConnectionIndex vcIndex = new VirtualConnectionIndex(
-            true);
-
     private VirtualConnectionCallBack vcCallBack = null;
 
     private int sendBuffer = -1;
 
     private int receiveBuffer = -1;
 
+    private final int linger;
+
     // Some statistics
     private long incomingConnections;
 
@@ -109,11 +123,15 @@ public class ServiceLink implements Runnable {
 
     private ServiceLink(List<DirectSocketAddress> hubs,
             DirectSocketAddress myAddress, int sendBuffer, int receiveBuffer,
-            int virtualHubPort, long maxReconnect, boolean forceConnection) throws IOException {
+            int virtualHubPort, long maxReconnect, boolean forceConnection,
+            int linger, boolean addressDictionary, int hubCount)
+        throws IOException {
 
         this.hubs = hubs;
+        this.addressDictionary = addressDictionary;
         this.sendBuffer = sendBuffer;
         this.receiveBuffer = receiveBuffer;
+        this.linger = linger;
         this.myAddress = myAddress;
 
         this.maxReconnect = maxReconnect;
@@ -123,7 +141,19 @@ public class ServiceLink implements Runnable {
 
         factory = DirectSocketFactory.getSocketFactory();
 
+        links = new HubLink[hubCount];
+
+        for (int i=0;i<hubCount;i++) {
+            links[i] = new HubLink(i);
+        }
+
+        linkBits = (hubCount > 1 ? LINK_BITS : 0);
+
         ThreadPool.createNew(this, "ServiceLink Message Reader");
+
+        for (int i=1;i<hubCount;i++) {
+            ThreadPool.createNew(links[i], "ServiceLink Message Reader " + i);
+        }
     }
 
     public synchronized boolean getDone() {
@@ -138,7 +168,9 @@ public class ServiceLink implements Runnable {
         done = true;
 
         // hum... this may be a bit harsh ?
-        closeConnectionToHub();
+        for (HubLink l : links) {
+            l.close();
+        }
     }
 
     public synchronized void registerVCCallBack(VirtualConnectionCallBack cb) {
@@ -242,20 +274,28 @@ public class ServiceLink implements Runnable {
         return false;
     }
 
-    private synchronized void setConnected(boolean value) {
-        connected = value;
-        notifyAll();
+    // Returns true if at least one of the links is connected.
+    private boolean getConnected() {
+
+        for (HubLink l : links) {
+            if (l.getConnected()) {
+                return true;
+            }
+        }
+
+        return false;
     }
 
-    private synchronized boolean getConnected() {
-        return connected;
+    // Called when a link has connected or disconnected.
+    private synchronized void connectionChanged() {
+        notifyAll();
     }
 
     public synchronized void waitConnected(int time) throws IOException {
 
         if (time < 0) {
 
-            if (!connected) {
+            if (!getConnected()) {
                 throw new IOException("No connection to hub!");
             }
 
@@ -265,7 +305,7 @@ public class ServiceLink implements Runnable {
         long deadline = System.currentTimeMillis() + time;
         long timeleft = time;
 
-        while (!connected) {
+        while (!getConnected()) {
 
             try {
                 if (time > 0) {
@@ -277,7 +317,7 @@ public class ServiceLink implements Runnable {
                 // ignore
             }
 
-            if (!connected && time > 0) {
+            if (!getConnected() && time > 0) {
                 timeleft = deadline - System.currentTimeMillis();
 
                 if (timeleft <= 0) {
@@ -287,111 +327,74 @@ public class ServiceLink implements Runnable {
         }
     }
 
-    private synchronized void closeConnectionToHub() {
+    // Returns the link used for messages that are not part of a virtual
+    // connection. This is the first link that is connected.
+    private HubLink link() {
 
-        // TODO: is the synchronization OK here ???
-        if (!getConnected()) {
-            return;
+        for (HubLink l : links) {
+            if (l.getConnected()) {
+                return l;
+            }
         }
 
-        setConnected(false);
-
-        DirectSocketFactory.close(hub, out, in);
-
-        // Should close virtual connections here ?
-
-        /*      Long [] tmp = credits.keySet().toArray(new Long[0]);
-
-         for (long l : tmp) {
-         closeConnection(l);
-         }
-         */
+        return links[0];
     }
 
-    private void connectToHub(DirectSocketAddress address) throws IOException {
-        try {
-            if (logger.isInfoEnabled()) {
-                logger.info("Service link attempting to connect to hub: "
-                        + address);
-            }
-
-            // Create a connection to the hub
-            hub = factory.createSocket(address, TIMEOUT, 0, sendBuffer,
-                    receiveBuffer, null, false, virtualHubPort);
-
-            hub.setTcpNoDelay(true);
-
-            if (logger.isDebugEnabled()) {
-                logger.debug("Service link send buffer = "
-                            + hub.getSendBufferSize());
-                logger.debug("Service link recv buffer = "
-                    + hub.getReceiveBufferSize());
-            }
-
-            out = new DataOutputStream(new BufferedOutputStream(hub
-                    .getOutputStream()));
-
-            in = new DataInputStream(new BufferedInputStream(hub
-                    .getInputStream()));
+    // Returns the link used by the virtual connection with the given index.
+    private HubLink link(long index) {
+        return links[(int) (index & ((1 << linkBits) - 1))];
+    }
 
-            // Ask if we are allowed to join
-            out.write(ConnectionProtocol.SERVICELINK_CONNECT);
-            out.writeUTF(myAddress.toString());
-            out.flush();
+    // Returns the link for the next virtual connection. The connections are
+    // spread over all links that are connected.
+    private synchronized HubLink nextLink() {
 
-            // Get the result
-            int reply = in.read();
+        for (int i=0;i<links.length;i++) {
 
-            // Throw an exception if the hub refuses our conenction
-            if (reply != ConnectionProtocol.CONNECTION_ACCEPTED) {
-                throw new IOException("Hub denied connection request (got: "
-                        + reply);
-            }
+            HubLink l = links[nextLink];
 
-            // If the connection is accepted, the hub will give us its full
-            // address (since the user supplied one may be a partial).
-            hubAddress = DirectSocketAddress.getByAddress(in.readUTF());
+            nextLink = (nextLink + 1) % links.length;
 
-            if (logger.isInfoEnabled()) {
-                logger.info("Hub at " + address + " accepted connection, "
-                        + "it's real address is: " + hubAddress);
+            if (l.getConnected()) {
+                return l;
             }
+        }
 
-            hub.setSoTimeout(0);
+        return links[0];
+    }
 
-            setConnected(true);
-        } catch (IOException e) {
-            logger.info("Connection setup to hub at " + address + " failed: ",
-                    e);
-            closeConnectionToHub();
-            throw e;
-        }
+    // Converts the index of a virtual connection to the index used on the
+    // connection to the hub.
+    private long remote(long index) {
+        return index >>> linkBits;
     }
 
-    private final void skip(int bytes) throws IOException {
+    private final void skip(HubLink l, int bytes) throws IOException {
         while (bytes > 0) {
-            bytes -= in.skip(bytes);
+            bytes -= l.in.skip(bytes);
         }
     }
 
-    private void handleInfoMessage() throws IOException {
+    private void handleInfoMessage(HubLink l) throws IOException {
 
-        DirectSocketAddress source = DirectSocketAddress.read(in);
-        DirectSocketAddress sourceHub = DirectSocketAddress.read(in);
+        DirectSocketAddress source = l.inAddresses.read(l.in);
+        DirectSocketAddress sourceHub = l.inAddresses.read(l.in);
 
         // since we have reached our destination, the hop count and
         // target addresses are not used anymore..
-        skip(4);
+        skip(l, 4);
 
-        boolean returnedToSender = in.readBoolean();
+        boolean returnedToSender = l.in.readBoolean();
 
-        DirectSocketAddress.skip(in);
-        DirectSocketAddress.skip(in);
+        // NOTE: the target addresses must still be read, since they may be
+        // added to the dictionary.
+        l.inAddresses.read(l.in);
+        l.inAddresses.read(l.in);
 
-        String targetModule = in.readUTF();
-        int opcode = in.readInt();
+        String targetModule = l.in.readUTF();
+        int opcode = l.in.readInt();
 
-        byte[][] message = readMessageBlob();
+        byte[][] message = readMessageBlob(l);
 
         if (logger.isInfoEnabled()) {
             logger.info("ServiceLink: Received message for " + targetModule
@@ -409,10 +412,10 @@ public class ServiceLink implements Runnable {
         incomingMetaMessages++;
     }
 
-    private void handleInfo() throws IOException {
+    private void handleInfo(HubLink l) throws IOException {
 
-        int id = in.readInt();
-        int count = in.readInt();
+        int id = l.in.readInt();
+        int count = l.in.readInt();
 
         if (logger.isInfoEnabled()) {
             logger.info("ServiceLink: Received info for " + id + ". "
@@ -422,7 +425,7 @@ public class ServiceLink implements Runnable {
         String[] info = new String[count];
 
         for (int i = 0; i < count; i++) {
-            info[i] = in.readUTF();
+            info[i] = l.in.readUTF();
             if (logger.isInfoEnabled()) {
                 logger.info(i + ": " + info[i]);
             }
@@ -435,10 +438,10 @@ public class ServiceLink implements Runnable {
         storeInfoReply(id, info);
     }
 
-    private void handlePropertyAck() throws IOException {
+    private void handlePropertyAck(HubLink l) throws IOException {
 
-        int id = in.readInt();
-        int value = in.readInt();
+        int id = l.in.readInt();
+        int value = l.in.readInt();
 
         if (logger.isInfoEnabled()) {
             logger.info("ServiceLink: Received property ack for " + id + " "
@@ -448,22 +451,22 @@ public class ServiceLink implements Runnable {
         storeInfoReply(id, value);
     }
 
-    private void handleIncomingConnection() throws IOException {
+    private void handleIncomingConnection(HubLink l) throws IOException {
 
         incomingConnections++;
 
-        DirectSocketAddress source = DirectSocketAddress.read(in);
-        DirectSocketAddress sourceHub = DirectSocketAddress.read(in);
+        DirectSocketAddress source = l.inAddresses.read(l.in);
+        DirectSocketAddress sourceHub = l.inAddresses.read(l.in);
 
-        DirectSocketAddress.skip(in);
-        DirectSocketAddress.skip(in);
+        l.inAddresses.read(l.in);
+        l.inAddresses.read(l.in);
 
-        long index = in.readLong();
+        long index = l.local(l.in.readLong());
 
-        int timeout = in.readInt();
-        int port = in.readInt();
-        int fragment = in.readInt();
-        int buffer = in.readInt();
+        int timeout = l.in.readInt();
+        int port = l.in.readInt();
+        int fragment = l.in.readInt();
+        int buffer = l.in.readInt();
 
         if (logger.isInfoEnabled()) {
             logger
@@ -483,6 +486,8 @@ public class ServiceLink implements Runnable {
             return;
         }
 
+        l.opened(index);
+
         // Forward the connect call to the module responsible. This call will
         // result in an invocation of (n)ackVirtualConnection.
         vcb.connect(source, sourceHub, port, fragment, buffer, timeout, index);
@@ -494,12 +499,12 @@ public class ServiceLink implements Runnable {
         }
     }
 
-    private void handleIncomingConnectionACK() throws IOException {
+    private void handleIncomingConnectionACK(HubLink l) throws IOException {
 
-        long index = in.readLong();
+        long index = l.local(l.in.readLong());
 
-        int fragment = in.readInt();
-        int buffer = in.readInt();
+        int fragment = l.in.readInt();
+        int buffer = l.in.readInt();
 
         //      System.err.println("***** ACK IN " + index);
 
@@ -524,10 +529,14 @@ public class ServiceLink implements Runnable {
         vcb.connectACK(index, fragment, buffer);
     }
 
-    private void handleIncomingConnectionACKACK() throws IOException {
+    private void handleIncomingConnectionACKACK(HubLink l) throws IOException {
 
-        long index = in.readLong();
-        boolean succes = in.readBoolean();
+        long index = l.local(l.in.readLong());
+        boolean succes = l.in.readBoolean();
+
+        if (!succes) {
+            l.closed(index);
+        }
 
         VirtualConnectionCallBack vcb = getVCCallBack();
 
@@ -553,10 +562,12 @@ public class ServiceLink implements Runnable {
         vcb.connectACKACK(index, succes);
     }
 
-    private void handleIncomingConnectionNACK() throws IOException {
+    private void handleIncomingConnectionNACK(HubLink l) throws IOException {
+
+        long index = l.local(l.in.readLong());
+        byte reason = l.in.readByte();
 
-        long index = in.readLong();
-        byte reason = in.readByte();
+        l.closed(index);
 
         VirtualConnectionCallBack vcb = getVCCallBack();
 
@@ -690,9 +701,11 @@ public class ServiceLink implements Runnable {
      disconnectCallback(index);
      }*/
 
-    private void handleIncomingClose() throws IOException {
+    private void handleIncomingClose(HubLink l) throws IOException {
 
-        long index = in.readLong();
+        long index = l.local(l.in.readLong());
+
+        l.closed(index);
 
         if (logger.isDebugEnabled()) {
             logger.debug("Got close for connection: " + index);
@@ -703,10 +716,10 @@ public class ServiceLink implements Runnable {
         disconnectCallback(index);
     }
 
-    private void handleIncomingMessage() throws IOException {
+    private void handleIncomingMessage(HubLink l) throws IOException {
 
-        long index = in.readLong();
-        int len = in.readInt();
+        long index = l.local(l.in.readLong());
+        int len = l.in.readInt();
 
         if (logger.isDebugEnabled()) {
             logger.debug("Reading virtual message(" + len
@@ -723,7 +736,7 @@ public class ServiceLink implements Runnable {
                     + ") for connection: " + index + " which doesn't exist!!");
 
             // Remove the message from the stream!
-            skip(len);
+            skip(l, len);
             closeVirtualConnection(index);
             return;
         }
@@ -733,18 +746,18 @@ public class ServiceLink implements Runnable {
                     + " connection: " + index);
         }
 
-        if (!vcb.gotMessage(index, len, in)) {
+        if (!vcb.gotMessage(index, len, l.in)) {
             if (logger.isInfoEnabled()) {
                 logger.debug("Message for " + index + " not read!");
             }
-            skip(len);
+            skip(l, len);
         }
     }
 
-    private void handleIncomingAck() throws IOException {
+    private void handleIncomingAck(HubLink l) throws IOException {
 
-        long index = in.readLong();
-        int data = in.readInt();
+        long index = l.local(l.in.readLong());
+        int data = l.in.readInt();
 
         if (logger.isDebugEnabled()) {
             logger.debug("Got Message ACK for connection: " + index);
@@ -765,12 +778,12 @@ public class ServiceLink implements Runnable {
         vcb.gotMessageACK(index, data);
     }
 
-    void receiveMessages() {
+    void receiveMessages(HubLink l) {
 
-        while (getConnected()) {
+        while (l.getConnected()) {
 
             try {
-                int header = in.read();
+                int header = l.in.read();
 
                 if (logger.isDebugEnabled()) {
                     logger.debug("Servicelink got message (type: " + header
@@ -779,54 +792,54 @@ public class ServiceLink implements Runnable {
 
                 switch (header) {
                 case -1:
-                    closeConnectionToHub();
+                    l.close();
                     break;
 
                 case MessageForwarderProtocol.INFO_MESSAGE:
-                    handleInfoMessage();
+                    handleInfoMessage(l);
                     break;
 
                 case MessageForwarderProtocol.CREATE_VIRTUAL:
-                    handleIncomingConnection();
+                    handleIncomingConnection(l);
                     break;
 
                 case MessageForwarderProtocol.CREATE_VIRTUAL_ACK:
-                    handleIncomingConnectionACK();
+                    handleIncomingConnectionACK(l);
                     break;
 
                 case MessageForwarderProtocol.CREATE_VIRTUAL_ACK_ACK:
-                    handleIncomingConnectionACKACK();
+                    handleIncomingConnectionACKACK(l);
                     break;
 
                 case MessageForwarderProtocol.CREATE_VIRTUAL_NACK:
-                    handleIncomingConnectionNACK();
+                    handleIncomingConnectionNACK(l);
                     break;
 
                 case MessageForwarderProtocol.CLOSE_VIRTUAL:
-                    handleIncomingClose();
+                    handleIncomingClose(l);
                     break;
 
                 case MessageForwarderProtocol.MESSAGE_VIRTUAL:
-                    handleIncomingMessage();
+                    handleIncomingMessage(l);
                     break;
 
                 case MessageForwarderProtocol.MESSAGE_VIRTUAL_ACK:
-                    handleIncomingAck();
+                    handleIncomingAck(l);
                     break;
 
                 case ServiceLinkProtocol.INFO_REPLY:
-                    handleInfo();
+                    handleInfo(l);
                     break;
 
                 case ServiceLinkProtocol.PROPERTY_ACK:
-                    handlePropertyAck();
+                    handlePropertyAck(l);
                     break;
 
                 default:
                     logger.warn("ServiceLink: Received unknown opcode!: "
                             + header);
 
-                    closeConnectionToHub();
+                    l.close();
                     break;
                 }
 
@@ -836,28 +849,28 @@ public class ServiceLink implements Runnable {
                     logger.warn("ServiceLink: Exception while receiving!", e);
                 }
 
-                closeConnectionToHub();
+                l.close();
             }
         }
     }
 
-    private byte[][] readMessageBlob() throws IOException {
+    private byte[][] readMessageBlob(HubLink l) throws IOException {
 
         byte[][] message = null;
 
-        int bytes = in.readInt();
+        int bytes = l.in.readInt();
 
         if (bytes > 0) {
-            int len = in.readInt();
+            int len = l.in.readInt();
             message = new byte[len][];
 
             for (int i = 0; i < len; i++) {
 
-                int tmp = in.readInt();
+                int tmp = l.in.readInt();
                 message[i] = new byte[tmp];
 
                 if (tmp > 0) {
-                    in.readFully(message[i]);
+                    l.in.readFully(message[i]);
                 }
             }
         }
@@ -865,7 +878,8 @@ public class ServiceLink implements Runnable {
         return message;
     }
 
-    private void writeMessageBlob(byte[][] message) throws IOException {
+    private void writeMessageBlob(DataOutputStream out, byte[][] message)
+        throws IOException {
 
         if (message == null) {
             out.writeInt(0);
@@ -899,7 +913,9 @@ public class ServiceLink implements Runnable {
     public void send(DirectSocketAddress target, DirectSocketAddress targetHub,
             String targetModule, int opcode, byte[][] message) {
 
-        if (!getConnected()) {
+        HubLink l = link();
+
+        if (!l.getConnected()) {
             if (logger.isInfoEnabled()) {
                 logger.info("Cannot send message: not connected to hub");
             }
@@ -913,31 +929,35 @@ public class ServiceLink implements Runnable {
         }
 
         try {
-            synchronized (out) {
-                out.write(MessageForwarderProtocol.INFO_MESSAGE);
+            l.beginWrite();
+
+            try {
+                l.out.write(MessageForwarderProtocol.INFO_MESSAGE);
 
-                DirectSocketAddress.write(myAddress, out);
-                DirectSocketAddress.write(hubAddress, out); // may be null
+                l.outAddresses.write(myAddress, l.out);
+                l.outAddresses.write(l.hubAddress, l.out); // may be null
 
                 // hops left is not used here...
-                out.writeInt(-1);
+                l.out.writeInt(-1);
 
                 // return to sender is set to false by default
-                out.writeBoolean(false);
+                l.out.writeBoolean(false);
 
-                DirectSocketAddress.write(target, out);
-                DirectSocketAddress.write(targetHub, out); // may be null
+                l.outAddresses.write(target, l.out);
+                l.outAddresses.write(targetHub, l.out); // may be null
 
-                out.writeUTF(targetModule);
-                out.writeInt(opcode);
+                l.out.writeUTF(targetModule);
+                l.out.writeInt(opcode);
 
-                writeMessageBlob(message);
+                writeMessageBlob(l.out, message);
 
-                out.flush();
+                l.out.flush();
+            } finally {
+                l.endWrite();
             }
         } catch (IOException e) {
             logger.warn("ServiceLink: Exception while writing to hub!", e);
-            closeConnectionToHub();
+            l.close();
         }
 
         outgoingMetaMessages++;
@@ -946,7 +966,9 @@ public class ServiceLink implements Runnable {
     public void sendDataMessage(DirectSocketAddress target, DirectSocketAddress targetHub,
             String targetModule, byte [] message) {
 
-        if (!getConnected()) {
+        HubLink l = link();
+
+        if (!l.getConnected()) {
             if (logger.isInfoEnabled()) {
                 logger.info("Cannot send message: not connected to hub");
             }
@@ -954,28 +976,32 @@ public class ServiceLink implements Runnable {
         }
 
         try {
-            synchronized (out) {
-                out.write(MessageForwarderProtocol.DATA_MESSAGE);
+            l.beginWrite();
+
+            try {
+                l.out.write(MessageForwarderProtocol.DATA_MESSAGE);
 
-                out.writeInt(4 + targetHub.getAddress().length +
+                l.out.writeInt(4 + targetHub.getAddress().length +
                         4 + target.getAddress().length +
                         4 + (message == null ? 0 : message.length));
 
-                DirectSocketAddress.write(targetHub, out); // may be null ?
-                DirectSocketAddress.write(target, out);
+                DirectSocketAddress.write(targetHub, l.out); // may be null ?
+                DirectSocketAddress.write(target, l.out);
 
                 if (message == null) {
-                    out.writeInt(0);
+                    l.out.writeInt(0);
                 } else {
-                    out.writeInt(message.length);
-                    out.write(message);
+                    l.out.writeInt(message.length);
+                    l.out.write(message);
                 }
 
-                out.flush();
+                l.out.flush();
+            } finally {
+                l.endWrite();
             }
         } catch (IOException e) {
             logger.warn("ServiceLink: Exception while writing to hub!", e);
-            closeConnectionToHub();
+            l.close();
         }
 
         outgoingMetaMessages++;
@@ -998,11 +1024,14 @@ public class ServiceLink implements Runnable {
     }
 
     public ClientInfo[] localClients() throws IOException {
-        return clients(hubAddress, "");
+        return localClients("");
     }
 
     public ClientInfo[] localClients(String tag) throws IOException {
-        return clients(hubAddress, tag);
+
+        waitConnected(maxWaitTime);
+
+        return clients(link().hubAddress, tag);
     }
 
     public ClientInfo[] clients(DirectSocketAddress hub) throws IOException {
@@ -1042,23 +1071,29 @@ public class ServiceLink implements Runnable {
 
         waitConnected(maxWaitTime);
 
+        HubLink l = link();
+
         Integer id = getNextSimpleCallbackID();
 
         registerInfoRequest(id);
 
         try {
-            synchronized (out) {
-                out.write(ServiceLinkProtocol.CLIENTS_FOR_HUB);
-                out.writeInt(id);
-                out.writeUTF(hub.toString());
-                out.writeUTF(tag);
-                out.flush();
+            l.beginWrite();
+
+            try {
+                l.out.write(ServiceLinkProtocol.CLIENTS_FOR_HUB);
+                l.out.writeInt(id);
+                l.out.writeUTF(hub.toString());
+                l.out.writeUTF(tag);
+                l.out.flush();
+            } finally {
+                l.endWrite();
             }
 
             return convertToClientInfo((String[]) getInfoReply(id));
         } catch (IOException e) {
             logger.warn("ServiceLink: Exception while writing to hub!", e);
-            closeConnectionToHub();
+            l.close();
             throw new IOException("Connection to hub lost!");
         } finally {
             removeInfoRequest(id);
@@ -1077,22 +1112,28 @@ public class ServiceLink implements Runnable {
 
         waitConnected(maxWaitTime);
 
+        HubLink l = link();
+
         Integer id = getNextSimpleCallbackID();
 
         registerInfoRequest(id);
 
         try {
-            synchronized (out) {
-                out.write(ServiceLinkProtocol.ALL_CLIENTS);
-                out.writeInt(id);
-                out.writeUTF(tag);
-                out.flush();
+            l.beginWrite();
+
+            try {
+                l.out.write(ServiceLinkProtocol.ALL_CLIENTS);
+                l.out.writeInt(id);
+                l.out.writeUTF(tag);
+                l.out.flush();
+            } finally {
+                l.endWrite();
             }
 
             return convertToClientInfo((String[]) getInfoReply(id));
         } catch (IOException e) {
             logger.warn("ServiceLink: Exception while writing to hub!", e);
-            closeConnectionToHub();
+            l.close();
             throw new IOException("Connection to hub lost!");
         } finally {
             removeInfoRequest(id);
@@ -1107,15 +1148,21 @@ public class ServiceLink implements Runnable {
 
         waitConnected(maxWaitTime);
 
+        HubLink l = link();
+
         Integer id = getNextSimpleCallbackID();
 
         registerInfoRequest(id);
 
         try {
-            synchronized (out) {
-                out.write(ServiceLinkProtocol.HUBS);
-                out.writeInt(id);
-                out.flush();
+            l.beginWrite();
+
+            try {
+                l.out.write(ServiceLinkProtocol.HUBS);
+                l.out.writeInt(id);
+                l.out.flush();
+            } finally {
+                l.endWrite();
             }
 
             return DirectSocketAddress
@@ -1123,7 +1170,7 @@ public class ServiceLink implements Runnable {
 
         } catch (IOException e) {
             logger.warn("ServiceLink: Exception while writing to hub!", e);
-            closeConnectionToHub();
+            l.close();
             throw new IOException("Connection to hub lost!");
         } finally {
             removeInfoRequest(id);
@@ -1146,22 +1193,28 @@ public class ServiceLink implements Runnable {
 
         waitConnected(maxWaitTime);
 
+        HubLink l = link();
+
         Integer id = getNextSimpleCallbackID();
 
         registerInfoRequest(id);
 
         try {
-            synchronized (out) {
-                out.write(ServiceLinkProtocol.HUB_DETAILS);
-                out.writeInt(id);
-                out.flush();
+            l.beginWrite();
+
+            try {
+                l.out.write(ServiceLinkProtocol.HUB_DETAILS);
+                l.out.writeInt(id);
+                l.out.flush();
+            } finally {
+                l.endWrite();
             }
 
             return convertToHubInfo((String[]) getInfoReply(id));
 
         } catch (IOException e) {
             logger.warn("ServiceLink: Exception while writing to hub!", e);
-            closeConnectionToHub();
+            l.close();
             throw new IOException("Connection to hub lost!");
         } finally {
             removeInfoRequest(id);
@@ -1172,6 +1225,8 @@ public class ServiceLink implements Runnable {
 
         waitConnected(maxWaitTime);
 
+        HubLink l = link();
+
         if (logger.isInfoEnabled()) {
             logger.info("Requesting direction to client " + client
                     + " from hub");
@@ -1181,11 +1236,15 @@ public class ServiceLink implements Runnable {
         registerInfoRequest(id);
 
         try {
-            synchronized (out) {
-                out.write(ServiceLinkProtocol.DIRECTION);
-                out.writeInt(id);
-                out.writeUTF(client);
-                out.flush();
+            l.beginWrite();
+
+            try {
+                l.out.write(ServiceLinkProtocol.DIRECTION);
+                l.out.writeInt(id);
+                l.out.writeUTF(client);
+                l.out.flush();
+            } finally {
+                l.endWrite();
             }
 
             return DirectSocketAddress
@@ -1193,7 +1252,7 @@ public class ServiceLink implements Runnable {
 
         } catch (IOException e) {
             logger.warn("ServiceLink: Exception while writing to hub!", e);
-            closeConnectionToHub();
+            l.close();
             throw new IOException("Connection to hub lost!");
         } finally {
             removeInfoRequest(id);
@@ -1204,7 +1263,7 @@ public class ServiceLink implements Runnable {
 
         waitConnected(maxWaitTime);
 
-        return hubAddress;
+        return link().hubAddress;
     }
 
     /*
@@ -1325,14 +1384,17 @@ public class ServiceLink implements Runnable {
      */
 
     public long getConnectionNumber() {
-        return vcIndex.nextIndex();
+        HubLink l = nextLink();
+        return l.local(l.vcIndex.nextIndex());
     }
 
     public void createVirtualConnection(long index, DirectSocketAddress target,
             DirectSocketAddress targetHub, int port, int fragment, int buffer,
             int timeout) throws IOException {
 
-        if (!getConnected()) {
+        HubLink l = link(index);
+
+        if (!l.getConnected()) {
             throw new IOException("No connection to hub!");
         }
 
@@ -1344,38 +1406,47 @@ public class ServiceLink implements Runnable {
             logger.debug("Creating virtual connection: " + index);
         }
 
+        l.opened(index);
+
         try {
-            synchronized (out) {
-                out.writeByte(MessageForwarderProtocol.CREATE_VIRTUAL);
+            l.beginWrite();
 
-                DirectSocketAddress.write(myAddress, out);
-                DirectSocketAddress.write(hubAddress, out);
+            try {
+                l.out.writeByte(MessageForwarderProtocol.CREATE_VIRTUAL);
 
-                DirectSocketAddress.write(target, out);
-                DirectSocketAddress.write(targetHub, out);
+                l.outAddresses.write(myAddress, l.out);
+                l.outAddresses.write(l.hubAddress, l.out);
 
-                out.writeLong(index);
+                l.outAddresses.write(target, l.out);
+                l.outAddresses.write(targetHub, l.out);
 
-                out.writeInt(timeout);
-                out.writeInt(port);
-                out.writeInt(fragment);
-                out.writeInt(buffer);
+                l.out.writeLong(remote(index));
 
-                out.flush();
+                l.out.writeInt(timeout);
+                l.out.writeInt(port);
+                l.out.writeInt(fragment);
+                l.out.writeInt(buffer);
+
+                l.out.flush();
+            } finally {
+                l.endWrite();
             }
 
             outgoingConnections++;
 
         } catch (IOException e) {
             logger.warn("ServiceLink: Exception while writing to hub!", e);
-            closeConnectionToHub();
+            l.closed(index);
+            l.close();
             throw new IOException("Connection to hub lost!");
         }
     }
 
     public void ackVirtualConnection(long index, int fragment, int buffer) {
 
-        if (!getConnected()) {
+        HubLink l = link(index);
+
+        if (!l.getConnected()) {
             logger.warn("Failed to ACK virtual connection: no connection "
                     + "to hub");
         }
@@ -1383,16 +1454,20 @@ public class ServiceLink implements Runnable {
         //   System.err.println("#### ACK " + index);
 
         try {
-            synchronized (out) {
-                out.writeByte(MessageForwarderProtocol.CREATE_VIRTUAL_ACK);
-                out.writeLong(index);
-                out.writeInt(fragment);
-                out.writeInt(buffer);
-                out.flush();
+            l.beginWrite();
+
+            try {
+                l.out.writeByte(MessageForwarderProtocol.CREATE_VIRTUAL_ACK);
+                l.out.writeLong(remote(index));
+                l.out.writeInt(fragment);
+                l.out.writeInt(buffer);
+                l.out.flush();
+            } finally {
+                l.endWrite();
             }
         } catch (IOException e) {
             logger.warn("ServiceLink: Exception while writing ACK to hub!", e);
-            closeConnectionToHub();
+            l.close();
             return;
         }
 
@@ -1404,7 +1479,13 @@ public class ServiceLink implements Runnable {
 
     public void ackAckVirtualConnection(long index, boolean success) {
 
-        if (!getConnected()) {
+        HubLink l = link(index);
+
+        if (!success) {
+            l.closed(index);
+        }
+
+        if (!l.getConnected()) {
             logger.warn("Failed to ACK virtual connection: no connection "
                     + "to hub");
         }
@@ -1412,15 +1493,19 @@ public class ServiceLink implements Runnable {
         //   System.err.println("#### ACK ACK " + index);
 
         try {
-            synchronized (out) {
-                out.writeByte(MessageForwarderProtocol.CREATE_VIRTUAL_ACK_ACK);
-                out.writeLong(index);
-                out.writeBoolean(success);
-                out.flush();
+            l.beginWrite();
+
+            try {
+                l.out.writeByte(MessageForwarderProtocol.CREATE_VIRTUAL_ACK_ACK);
+                l.out.writeLong(remote(index));
+                l.out.writeBoolean(success);
+                l.out.flush();
+            } finally {
+                l.endWrite();
             }
         } catch (IOException e) {
             logger.warn("ServiceLink: Exception while writing ACK to hub!", e);
-            closeConnectionToHub();
+            l.close();
             return;
         }
 
@@ -1431,24 +1516,32 @@ public class ServiceLink implements Runnable {
 
     public void nackVirtualConnection(long index, byte reason) {
 
+        HubLink l = link(index);
+
+        l.closed(index);
+
         rejectedIncomingConnections++;
 
-        if (!getConnected()) {
+        if (!l.getConnected()) {
             logger.warn("Failed to NACK virtual connection: no connection "
                     + "to hub");
             return;
         }
 
         try {
-            synchronized (out) {
-                out.write(MessageForwarderProtocol.CREATE_VIRTUAL_NACK);
-                out.writeLong(index);
-                out.writeByte(reason);
-                out.flush();
+            l.beginWrite();
+
+            try {
+                l.out.write(MessageForwarderProtocol.CREATE_VIRTUAL_NACK);
+                l.out.writeLong(remote(index));
+                l.out.writeByte(reason);
+                l.out.flush();
+            } finally {
+                l.endWrite();
             }
         } catch (IOException e) {
             logger.warn("ServiceLink: Exception while writing NACK to hub!", e);
-            closeConnectionToHub();
+            l.close();
             return;
         }
 
@@ -1460,23 +1553,31 @@ public class ServiceLink implements Runnable {
 
     public void closeVirtualConnection(long index) throws IOException {
 
+        HubLink l = link(index);
+
+        l.closed(index);
+
         if (logger.isInfoEnabled()) {
             logger.debug("Closing virtual connection: " + index);
         }
 
-        if (!getConnected()) {
+        if (!l.getConnected()) {
             throw new IOException("No connection to hub");
         }
 
         try {
-            synchronized (out) {
-                out.write(MessageForwarderProtocol.CLOSE_VIRTUAL);
-                out.writeLong(index);
-                out.flush();
+            l.beginWrite();
+
+            try {
+                l.out.write(MessageForwarderProtocol.CLOSE_VIRTUAL);
+                l.out.writeLong(remote(index));
+                l.out.flush();
+            } finally {
+                l.endWrite();
             }
         } catch (IOException e) {
             logger.warn("ServiceLink: Exception while writing to hub!", e);
-            closeConnectionToHub();
+            l.close();
             throw new IOException("Connection to hub lost!");
         }
 
@@ -1488,7 +1589,9 @@ public class ServiceLink implements Runnable {
     public void sendVirtualMessage(long index, byte[] message, int off,
             int len, int timeout) throws IOException {
 
-        if (!getConnected()) {
+        HubLink l = link(index);
+
+        if (!l.getConnected()) {
             throw new IOException("No connection to hub!");
         }
 
@@ -1497,16 +1600,20 @@ public class ServiceLink implements Runnable {
         }
 
         try {
-            synchronized (out) {
-                out.write(MessageForwarderProtocol.MESSAGE_VIRTUAL);
-                out.writeLong(index);
-                out.writeInt(len);
-                out.write(message, off, len);
-                out.flush();
+            l.beginWrite();
+
+            try {
+                l.out.write(MessageForwarderProtocol.MESSAGE_VIRTUAL);
+                l.out.writeLong(remote(index));
+                l.out.writeInt(len);
+                l.out.write(message, off, len);
+                l.out.flush();
+            } finally {
+                l.endWrite();
             }
         } catch (IOException e) {
             logger.warn("ServiceLink: Exception while writing to hub!", e);
-            closeConnectionToHub();
+            l.close();
         }
 
         outgoingDataMessages++;
@@ -1516,7 +1623,9 @@ public class ServiceLink implements Runnable {
 
     public void ackVirtualMessage(long index, int data) throws IOException {
 
-        if (!getConnected()) {
+        HubLink l = link(index);
+
+        if (!l.getConnected()) {
             throw new IOException("No connection to hub!");
         }
 
@@ -1525,15 +1634,19 @@ public class ServiceLink implements Runnable {
         }
 
         try {
-            synchronized (out) {
-                out.write(MessageForwarderProtocol.MESSAGE_VIRTUAL_ACK);
-                out.writeLong(index);
-                out.writeInt(data);
-                out.flush();
+            l.beginWrite();
+
+            try {
+                l.out.write(MessageForwarderProtocol.MESSAGE_VIRTUAL_ACK);
+                l.out.writeLong(remote(index));
+                l.out.writeInt(data);
+                l.out.flush();
+            } finally {
+                l.endWrite();
             }
         } catch (IOException e) {
             logger.warn("ServiceLink: Exception while writing to hub!", e);
-            closeConnectionToHub();
+            l.close();
         }
 
         //System.err.println("A");
@@ -1552,23 +1665,29 @@ public class ServiceLink implements Runnable {
 
         waitConnected(maxWaitTime);
 
+        HubLink l = link();
+
         Integer id = getNextSimpleCallbackID();
 
         registerInfoRequest(id);
 
         try {
-            synchronized (out) {
-                out.write(ServiceLinkProtocol.REGISTER_PROPERTY);
-                out.writeInt(id);
-                out.writeUTF(tag);
-                out.writeUTF(value);
-                out.flush();
+            l.beginWrite();
+
+            try {
+                l.out.write(ServiceLinkProtocol.REGISTER_PROPERTY);
+                l.out.writeInt(id);
+                l.out.writeUTF(tag);
+                l.out.writeUTF(value);
+                l.out.flush();
+            } finally {
+                l.endWrite();
             }
 
             return getInfoReply(id, ServiceLinkProtocol.PROPERTY_ACCEPTED);
         } catch (IOException e) {
             logger.warn("ServiceLink: Exception while writing to hub!", e);
-            closeConnectionToHub();
+            l.close();
             throw new IOException("Connection to hub lost!");
         } finally {
             removeInfoRequest(id);
@@ -1587,23 +1706,29 @@ public class ServiceLink implements Runnable {
 
         waitConnected(maxWaitTime);
 
+        HubLink l = link();
+
         Integer id = getNextSimpleCallbackID();
 
         registerInfoRequest(id);
 
         try {
-            synchronized (out) {
-                out.write(ServiceLinkProtocol.UPDATE_PROPERTY);
-                out.writeInt(id);
-                out.writeUTF(tag);
-                out.writeUTF(value);
-                out.flush();
+            l.beginWrite();
+
+            try {
+                l.out.write(ServiceLinkProtocol.UPDATE_PROPERTY);
+                l.out.writeInt(id);
+                l.out.writeUTF(tag);
+                l.out.writeUTF(value);
+                l.out.flush();
+            } finally {
+                l.endWrite();
             }
 
             return getInfoReply(id, ServiceLinkProtocol.PROPERTY_ACCEPTED);
         } catch (IOException e) {
             logger.warn("ServiceLink: Exception while writing to hub!", e);
-            closeConnectionToHub();
+            l.close();
             throw new IOException("Connection to hub lost!");
         } finally {
             removeInfoRequest(id);
@@ -1618,22 +1743,28 @@ public class ServiceLink implements Runnable {
 
         waitConnected(maxWaitTime);
 
+        HubLink l = link();
+
         Integer id = getNextSimpleCallbackID();
 
         registerInfoRequest(id);
 
         try {
-            synchronized (out) {
-                out.write(ServiceLinkProtocol.REMOVE_PROPERTY);
-                out.writeInt(id);
-                out.writeUTF(tag);
-                out.flush();
+            l.beginWrite();
+
+            try {
+                l.out.write(ServiceLinkProtocol.REMOVE_PROPERTY);
+                l.out.writeInt(id);
+                l.out.writeUTF(tag);
+                l.out.flush();
+            } finally {
+                l.endWrite();
             }
 
             return getInfoReply(id, ServiceLinkProtocol.PROPERTY_ACCEPTED);
         } catch (IOException e) {
             logger.warn("ServiceLink: Exception while writing to hub!", e);
-            closeConnectionToHub();
+            l.close();
             throw new IOException("Connection to hub lost!");
         } finally {
             removeInfoRequest(id);
@@ -1658,69 +1789,444 @@ public class ServiceLink implements Runnable {
                     + outgoingDataMessages + "/" + outgoingBytes + "/"
                     + outgoingMetaMessages);
 */
+            for (HubLink l : links) {
+
+                CoalescingOutputStream tmp = l.bufferedOut;
+
+                if (tmp != null) {
+                    statslogger.info(prefix + " SL Frames: " + tmp.getFrames()
+                            + "/" + tmp.getFlushes());
+                }
+            }
         }
 
     }
 
     public void run() {
+        // The first link uses the thread of the service link itself.
+        links[0].run();
+    }
 
-        // Connect to the hub and processes the messages it gets. When the
-        // connection is lost, it will try to reconnect.
-        while (!getDone()) {
+    // Returns true if another link than 'l' is connected to hub 'a', or is
+    // connecting to it. The lock on links must be held.
+    private boolean inUse(HubLink l, DirectSocketAddress a) {
 
-            int sleep = 1000;
-            long end = System.currentTimeMillis() + maxReconnect;
+        for (HubLink tmp : links) {
+            if (tmp != l && a.equals(tmp.claimed)) {
+                return true;
+            }
+        }
 
-            do {
-                if (hubAddress == null) {
-                    // This is the initial connect, where we haven't found a working hub yet....
-                    for (DirectSocketAddress a : hubs) {
-                        try {
-                            connectToHub(a);
-                            hubAddress = a;
-                            break;
-                        } catch (IOException e) {
-                            // Connection setup failed..
-                            logger.info("Failed to connect to hub: " + a);
-                        }
-                    }
+        return false;
+    }
 
-                    if (!getConnected()) {
-                        try {
-                            Thread.sleep(sleep);
-                        } catch (InterruptedException ie) {
-                            // ignore
-                        }
+    // Claims hub 'a' for link 'l', unless another link has claimed it. As
+    // the check and the claim are done under the same lock, two links never
+    // connect to the same hub.
+    private boolean claim(HubLink l, DirectSocketAddress a) {
+
+        synchronized (links) {
+            if (inUse(l, a)) {
+                return false;
+            }
+
+            l.claimed = a;
+            return true;
+        }
+    }
+
+    private void release(HubLink l) {
+
+        synchronized (links) {
+            l.claimed = null;
+        }
+    }
+
+    // Returns the hubs a link may connect to, in the order in which they
+    // should be tried: the hub it was connected to last, the hubs given by
+    // the user, and finally the hubs we learned about. Hubs used by other
+    // links are skipped.
+    private ArrayList<DirectSocketAddress> candidates(HubLink l) {
+
+        ArrayList<DirectSocketAddress> result =
+            new ArrayList<DirectSocketAddress>();
+
+        if (l.hubAddress != null) {
+            result.add(l.hubAddress);
+        }
+
+        ArrayList<DirectSocketAddress> tmp =
+            new ArrayList<DirectSocketAddress>(hubs);
+
+        synchronized (knownHubs) {
+            tmp.addAll(knownHubs);
+        }
+
+        synchronized (links) {
+            for (DirectSocketAddress a : tmp) {
+                if (!result.contains(a) && !inUse(l, a)) {
+                    result.add(a);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    // Asks a hub we are connected to which other hubs exist.
+    private void learnHubs() {
+
+        if (!getConnected()) {
+            return;
+        }
+
+        try {
+            DirectSocketAddress [] tmp = hubs();
+
+            synchronized (knownHubs) {
+                for (DirectSocketAddress a : tmp) {
+                    if (!knownHubs.contains(a)) {
+                        knownHubs.add(a);
                     }
+                }
+            }
+        } catch (IOException e) {
+            if (logger.isInfoEnabled()) {
+                logger.info("Failed to get hub list", e);
+            }
+        }
+    }
+
+    // A connection to a hub. Normally a service link has a single link. In
+    // multi-hub mode it has a link to several hubs at the same time, which
+    // each have their own reader thread, and reconnect independently.
+    private final class HubLink implements Runnable {
+
+        private final int number;
+
+        private volatile DirectSocketAddress hubAddress;
+
+        private volatile boolean connected = false;
+
+        private DirectSocket hub;
+
+        private DataOutputStream out;
+
+        private CoalescingOutputStream bufferedOut;
+
+        private DataInputStream in;
+
+        // The addresses read from and written to the current hub connection.
+        private AddressDictionary inAddresses;
+        private AddressDictionary outAddresses;
+
+        private final VirtualConnectionIndex vcIndex =
+            new VirtualConnectionIndex(true);
+
+        // The hub this link is connected to, or is connecting to. Guarded by
+        // the lock on links.
+        private DirectSocketAddress claimed;
+
+        // The virtual connections using this link. When the link goes down,
+        // so do they.
+        private final HashSet<Long> open = new HashSet<Long>();
+
+        // Must be held by every writer of a frame. It is not part of the
+        // stream, since the stream changes when we reconnect.
+        private final ReentrantLock writeLock = new ReentrantLock();
+
+        HubLink(int number) {
+            this.number = number;
+        }
+
+        void beginWrite() {
+            writeLock.lock();
+        }
+
+        // When no other writer is waiting, the output stream is flushed once
+        // more, so any frames it is still holding are written right away.
+        void endWrite() throws IOException {
+            try {
+                if (writeLock.getHoldCount() == 1
+                        && !writeLock.hasQueuedThreads()) {
+                    out.flush();
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        boolean getConnected() {
+            return connected;
+        }
+
+        private void setConnected(boolean value) {
+            connected = value;
+            connectionChanged();
+        }
+
+        // Converts the index of a virtual connection on this link to the
+        // index used by the service link.
+        long local(long index) {
+            return (index << linkBits) | number;
+        }
+
+        void opened(long index) {
+            synchronized (open) {
+                open.add(index);
+            }
+        }
+
+        void closed(long index) {
+            synchronized (open) {
+                open.remove(index);
+            }
+        }
+
+        // May be called by any thread that notices the connection is broken.
+        // Only the first one closes it, and the virtual connections using it.
+        void close() {
+
+            synchronized (this) {
+                if (!connected) {
+                    return;
+                }
+
+                connected = false;
+
+                DirectSocketFactory.close(hub, out, in);
+            }
+
+            release(this);
+
+            connectionChanged();
+
+            Long [] tmp;
+
+            synchronized (open) {
+                tmp = open.toArray(new Long[open.size()]);
+                open.clear();
+            }
+
+            for (Long index : tmp) {
+                disconnectCallback(index);
+            }
+        }
+
+        private void connect(DirectSocketAddress address) throws IOException {
+
+            int features = addressDictionary
+                ? ConnectionProtocol.FEATURE_ADDRESS_DICTIONARY : 0;
+
+            if (!connect(address, features)) {
+                // The hub is too old to negotiate features, so try again
+                // without.
+                connect(address, 0);
+            }
+        }
+
+        // Returns false if the hub does not support the features.
+        private boolean connect(DirectSocketAddress address, int features)
+            throws IOException {
+
+            try {
+                if (logger.isInfoEnabled()) {
+                    logger.info("Service link attempting to connect to hub: "
+                            + address);
+                }
+
+                // Create a connection to the hub
+                hub = factory.createSocket(address, TIMEOUT, 0, sendBuffer,
+                        receiveBuffer, null, false, virtualHubPort);
+
+                hub.setTcpNoDelay(true);
+
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Service link send buffer = "
+                                + hub.getSendBufferSize());
+                    logger.debug("Service link recv buffer = "
+                        + hub.getReceiveBufferSize());
+                }
+
+                bufferedOut = new CoalescingOutputStream(hub.getOutputStream(),
+                        CoalescingOutputStream.DEFAULT_SIZE, linger);
+
+                out = new DataOutputStream(bufferedOut);
+
+                in = new DataInputStream(new BufferedInputStream(hub
+                        .getInputStream()));
+
+                // Ask if we are allowed to join
+                if (features == 0) {
+                    out.write(ConnectionProtocol.SERVICELINK_CONNECT);
+                    out.writeUTF(myAddress.toString());
                 } else {
-                    // This happens when we've lost contact with the hub and try to reconnect.
-                    try {
-                        connectToHub(hubAddress);
-                    } catch (IOException e) {
-                        try {
-                            Thread.sleep(sleep);
-                        } catch (InterruptedException ie) {
-                            // ignore
-                        }
+                    out.write(ConnectionProtocol.SERVICELINK_CONNECT_FEATURES);
+                    out.writeUTF(myAddress.toString());
+                    out.writeInt(features);
+                }
+
+                out.flush();
+
+                // Get the result
+                int reply;
+
+                try {
+                    reply = in.read();
+                } catch (IOException e) {
+                    if (features == 0) {
+                        throw e;
                     }
+
+                    // An older hub closes the connection while our request
+                    // may not have been read completely, which may reset it.
+                    reply = -1;
+                }
+
+                if (reply == -1 && features != 0) {
+                    if (logger.isInfoEnabled()) {
+                        logger.info("Hub at " + address + " does not "
+                                + "support features");
+                    }
+
+                    DirectSocketFactory.close(hub, out, in);
+                    return false;
                 }
 
-                if (sleep < 16000) {
-                    sleep *= 2;
+                // Throw an exception if the hub refuses our conenction
+                if (reply != ConnectionProtocol.CONNECTION_ACCEPTED) {
+                    throw new IOException("Hub denied connection request (got: "
+                            + reply);
                 }
 
-                if (forceConnection && maxReconnect > 0 && System.currentTimeMillis() > end) {
-                    logger.error("Permanent failure of servicelink! -- will exit");
-                    // FIXME!
-                    System.exit(1);
+                // If the connection is accepted, the hub will give us its full
+                // address (since the user supplied one may be a partial).
+                hubAddress = DirectSocketAddress.getByAddress(in.readUTF());
+
+                // Followed by the features both of us support.
+                int common = (features == 0) ? 0 : in.readInt();
+
+                boolean dictionary =
+                    (common & ConnectionProtocol.FEATURE_ADDRESS_DICTIONARY) != 0;
+
+                inAddresses = new AddressDictionary(dictionary);
+                outAddresses = new AddressDictionary(dictionary);
+
+                if (logger.isInfoEnabled()) {
+                    logger.info("Hub at " + address + " accepted connection, "
+                            + "it's real address is: " + hubAddress);
                 }
 
-            } while (!getConnected());
+                hub.setSoTimeout(0);
 
-            sleep = 1000;
-            receiveMessages();
+                setConnected(true);
+                return true;
+            } catch (IOException e) {
+                logger.info("Connection setup to hub at " + address
+                        + " failed: ", e);
+
+                // We are not connected yet, so close() would leave the
+                // socket open.
+                DirectSocketFactory.close(hub, out, in);
+                throw e;
+            }
         }
 
+        // Connects to the first hub in the list that accepts us.
+        private boolean connect(List<DirectSocketAddress> hubs) {
+
+            for (DirectSocketAddress a : hubs) {
+
+                if (!claim(this, a)) {
+                    // Another link got there first.
+                    continue;
+                }
+
+                try {
+                    connect(a);
+                    hubAddress = a;
+                    return true;
+                } catch (IOException e) {
+                    // Connection setup failed..
+                    release(this);
+                    logger.info("Failed to connect to hub: " + a);
+                }
+            }
+
+            return false;
+        }
+
+        public void run() {
+
+            // Connect to the hub and processes the messages it gets. When the
+            // connection is lost, it will try to reconnect.
+            while (!getDone()) {
+
+                int sleep = 1000;
+                long end = System.currentTimeMillis() + maxReconnect;
+
+                do {
+                    if (links.length > 1) {
+                        // In multi-hub mode, any hub that is not used by
+                        // another link will do.
+                        if (!connect(candidates(this))) {
+
+                            // Maybe the other links know some more hubs.
+                            learnHubs();
+
+                            if (!connect(candidates(this))) {
+                                try {
+                                    Thread.sleep(sleep);
+                                } catch (InterruptedException ie) {
+                                    // ignore
+                                }
+                            }
+                        }
+                    } else if (hubAddress == null) {
+                        // This is the initial connect, where we haven't found
+                        // a working hub yet....
+                        if (!connect(hubs)) {
+                            try {
+                                Thread.sleep(sleep);
+                            } catch (InterruptedException ie) {
+                                // ignore
+                            }
+                        }
+                    } else {
+                        // This happens when we've lost contact with the hub
+                        // and try to reconnect.
+                        try {
+                            connect(hubAddress);
+                        } catch (IOException e) {
+                            try {
+                                Thread.sleep(sleep);
+                            } catch (InterruptedException ie) {
+                                // ignore
+                            }
+                        }
+                    }
+
+                    if (sleep < 16000) {
+                        sleep *= 2;
+                    }
+
+                    // NOTE: in multi-hub mode, we only give up if none of
+                    // the links is connected.
+                    if (forceConnection && maxReconnect > 0
+                            && System.currentTimeMillis() > end
+                            && !ServiceLink.this.getConnected()) {
+                        logger.error("Permanent failure of servicelink! -- "
+                                + "will exit");
+                        // FIXME!
+                        System.exit(1);
+                    }
+
+                } while (!getConnected() && !getDone());
+
+                sleep = 1000;
+                receiveMessages(this);
+            }
+        }
     }
 
     public static ServiceLink getServiceLink(TypedProperties p,
@@ -1743,12 +2249,27 @@ public class ServiceLink implements Runnable {
 
         boolean force = true;
         long maxReconnect = 0;
+        int linger = 0;
+        boolean addressDictionary = false;
+        int hubCount = 1;
 
         if (p != null) {
             sendBuffer = p.getIntProperty(SmartSocketsProperties.SL_SEND_BUFFER, -1);
             receiveBuffer = p.getIntProperty(SmartSocketsProperties.SL_RECEIVE_BUFFER, -1);
             virtualHubPort = p.getIntProperty(SmartSocketsProperties.HUB_VIRTUAL_PORT, 42);
             force = p.booleanProperty(SmartSocketsProperties.SL_FORCE);
+            linger = p.getIntProperty(SmartSocketsProperties.SL_LINGER, 0);
+            addressDictionary = p.booleanProperty(
+                    SmartSocketsProperties.HUB_ADDRESS_DICTIONARY, false);
+            hubCount = p.getIntProperty(SmartSocketsProperties.SL_HUBS, 1);
+
+            if (hubCount < 1) {
+                hubCount = 1;
+            } else if (hubCount > MAX_HUBS) {
+                logger.warn("ServiceLink: cannot connect to " + hubCount
+                        + " hubs, using " + MAX_HUBS);
+                hubCount = MAX_HUBS;
+            }
 
             if (force) {
                 maxReconnect = ((long) p.getIntProperty(SmartSocketsProperties.SL_RETRIES)) *
@@ -1758,7 +2279,8 @@ public class ServiceLink implements Runnable {
 
         try {
             return new ServiceLink(hubs, myAddress, sendBuffer,
-                    receiveBuffer, virtualHubPort, maxReconnect, force);
+                    receiveBuffer, virtualHubPort, maxReconnect, force, linger,
+                    addressDictionary, hubCount);
 
         } catch (Exception e) {
             logger.warn("ServiceLink: Failed to connect to hub!", e);
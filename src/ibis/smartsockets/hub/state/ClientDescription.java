@@ -26,6 +26,10 @@ public class ClientDescription {
         this.services = services;
     }
 
+    long getVersion() {
+        return version;
+    }
+
     protected boolean addService(String tag, String info) {
         if (services == null) {
             services = new HashMap<String, String>();
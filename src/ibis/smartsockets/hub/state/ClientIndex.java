@@ -0,0 +1,106 @@
+package ibis.smartsockets.hub.state;
+
+import ibis.smartsockets.direct.DirectSocketAddress;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index that maps the address of a client to the hubs that claim to know
+ * this client.
+ *
+ * The index is kept up to date by the hub descriptions whenever their client
+ * lists change. Lookups do not take any locks. Each entry is an array that is
+ * replaced (never changed) on an update, so readers always see a consistent
+ * list of hubs.
+ */
+final class ClientIndex {
+
+    private static final HubDescription [] EMPTY = new HubDescription[0];
+
+    private final ConcurrentHashMap<DirectSocketAddress, HubDescription []>
+        index = new ConcurrentHashMap<DirectSocketAddress, HubDescription []>();
+
+    void add(DirectSocketAddress client, HubDescription hub) {
+
+        while (true) {
+            HubDescription [] old = index.get(client);
+
+            if (old == null) {
+                if (index.putIfAbsent(client,
+                        new HubDescription [] { hub }) == null) {
+                    return;
+                }
+            } else {
+                for (HubDescription h : old) {
+                    if (h == hub) {
+                        return;
+                    }
+                }
+
+                HubDescription [] tmp = new HubDescription[old.length+1];
+                System.arraycopy(old, 0, tmp, 0, old.length);
+                tmp[old.length] = hub;
+
+                if (index.replace(client, old, tmp)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    void remove(DirectSocketAddress client, HubDescription hub) {
+
+        while (true) {
+            HubDescription [] old = index.get(client);
+
+            if (old == null) {
+                return;
+            }
+
+            int pos = -1;
+
+            for (int i=0;i<old.length;i++) {
+                if (old[i] == hub) {
+                    pos = i;
+                    break;
+                }
+            }
+
+            if (pos == -1) {
+                return;
+            }
+
+            if (old.length == 1) {
+                if (index.remove(client, old)) {
+                    return;
+                }
+            } else {
+                HubDescription [] tmp = new HubDescription[old.length-1];
+                System.arraycopy(old, 0, tmp, 0, pos);
+                System.arraycopy(old, pos+1, tmp, pos, old.length-pos-1);
+
+                if (index.replace(client, old, tmp)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the hubs that know the client. The result must not be changed.
+     */
+    HubDescription [] get(DirectSocketAddress client) {
+
+        HubDescription [] tmp = index.get(client);
+
+        if (tmp == null) {
+            return EMPTY;
+        }
+
+        return tmp;
+    }
+
+    int size() {
+        return index.size();
+    }
+}
@@ -6,6 +6,7 @@ import ibis.smartsockets.hub.connections.HubConnection;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 
 
@@ -16,6 +17,9 @@ public class HubDescription {
     public static final byte UNREACHABLE = 1;
     public static final byte REACHABLE   = 2;
 
+    // Maximum number of removed clients we remember.
+    private static final int MAX_REMOVED = 1024;
+
     // Address of the hub, which should be unique. Also stored in String form,
     // since this is used quite a lot...
     public final DirectSocketAddress hubAddress;
@@ -36,11 +40,11 @@ public class HubDescription {
 
     // Value of the local state the last time anything was changed in this
     // description.
-    private long lastLocalUpdate;
+    private volatile long lastLocalUpdate;
 
     // Value of the remote state the last time anything was changed in original
     // copy of this description.
-    private long homeState;
+    private volatile long homeState;
 
     // Number of hops required to reach this machine. A value of '0' indicates
     // that a direct connection is possible. A value of 'Integer.MAX_VALUE/2'
@@ -63,6 +67,36 @@ public class HubDescription {
     // Note that this is only used on the local hub.
     private HashMap<DirectSocketAddress, ClientDescription> clients;
 
+    // The index of the hub list this description belongs to, which is kept up
+    // to date with the clients above. Set once by the hub list.
+    private volatile ClientIndex index;
+
+    // Log of the changes to the clients above, in the order of the version
+    // (local state for the local hub, home state otherwise) at which they
+    // happened. This allows us to find the changes since a given version
+    // without looking at every client. The log is compacted once it gets too
+    // long.
+    private final ArrayList<ClientChange> log = new ArrayList<ClientChange>();
+
+    // The clients that have been removed, and the version at which this
+    // happened.
+    private final HashMap<DirectSocketAddress, Long> removed =
+        new HashMap<DirectSocketAddress, Long>();
+
+    // The changes before this version are not (or no longer) known.
+    private long changesKnownSince = 0;
+
+    private static final class ClientChange {
+
+        final long version;
+        final DirectSocketAddress client;
+
+        ClientChange(long version, DirectSocketAddress client) {
+            this.version = version;
+            this.client = client;
+        }
+    }
+
     // For remote machines we only maintain a client count.
    // private int numberOfClients;
 
@@ -121,6 +155,12 @@ public class HubDescription {
 
             lastLocalUpdate = state.increment();
             clients.put(client, new ClientDescription(client));
+            changed(client, lastLocalUpdate, false);
+
+            if (index != null) {
+                index.add(client, this);
+            }
+
             return true;
         }
     }
@@ -146,6 +186,12 @@ public class HubDescription {
 
             lastLocalUpdate = state.increment();
             clients.remove(client);
+            changed(client, lastLocalUpdate, true);
+
+            if (index != null) {
+                index.remove(client, this);
+            }
+
             return true;
         }
     }
@@ -159,11 +205,44 @@ public class HubDescription {
         }
 
         synchronized (this.clients) {
+
+            if (homeState == 0) {
+                // We do not know anything that happened before this version.
+                changesKnownSince = remoteState;
+            }
+
+            HashMap<DirectSocketAddress, ClientDescription> old =
+                new HashMap<DirectSocketAddress, ClientDescription>(
+                        this.clients);
+
             this.clients.clear();
 
             for (ClientDescription c : clients) {
                 this.clients.put(c.clientAddress, c);
+
+                // Only the changes are applied to the index and the log.
+                ClientDescription o = old.remove(c.clientAddress);
+
+                if (o == null) {
+                    changed(c.clientAddress, remoteState, false);
+
+                    if (index != null) {
+                        index.add(c.clientAddress, this);
+                    }
+                } else if (o.getVersion() != c.getVersion()) {
+                    changed(c.clientAddress, remoteState, false);
+                }
             }
+
+            for (DirectSocketAddress a : old.keySet()) {
+                changed(a, remoteState, true);
+
+                if (index != null) {
+                    index.remove(a, this);
+                }
+            }
+
+            homeState = remoteState;
         }
 
         synchronized (this.connectedTo) {
@@ -182,11 +261,173 @@ public class HubDescription {
             }
         }
 
-        homeState = remoteState;
         lastLocalUpdate = state.increment();
         this.vizInfo = vizInfo;
     }
 
+    /**
+     * Applies the changes since version 'base' to the description of a
+     * remote hub.
+     *
+     * @return false if the changes cannot be applied, since we are missing
+     * the changes before 'base'.
+     */
+    public boolean applyChanges(ClientDescription [] changed,
+            DirectSocketAddress [] removed, String [] connectedTo, String name,
+            long base, long remoteState, String vizInfo) {
+
+        if (local) {
+            throw new IllegalStateException("Cannot update the local"
+                    + " hub description!");
+        }
+
+        synchronized (clients) {
+
+            if (homeState < base || homeState == 0) {
+                return false;
+            }
+
+            if (homeState >= remoteState) {
+                // Someone else has told us already.
+                return true;
+            }
+
+            for (ClientDescription c : changed) {
+                if (clients.put(c.clientAddress, c) == null && index != null) {
+                    index.add(c.clientAddress, this);
+                }
+
+                changed(c.clientAddress, remoteState, false);
+            }
+
+            for (DirectSocketAddress a : removed) {
+                if (clients.remove(a) != null) {
+                    changed(a, remoteState, true);
+
+                    if (index != null) {
+                        index.remove(a, this);
+                    }
+                }
+            }
+
+            homeState = remoteState;
+        }
+
+        synchronized (this.connectedTo) {
+            this.connectedTo.clear();
+
+            for (String s : connectedTo) {
+                this.connectedTo.add(s);
+            }
+        }
+
+        if (name.length() > 0) {
+            synchronized (this) {
+                if (this.name == null || this.name.length() == 0) {
+                    this.name = name;
+                }
+            }
+        }
+
+        lastLocalUpdate = state.increment();
+        this.vizInfo = vizInfo;
+        return true;
+    }
+
+    /**
+     * Collects the changes to the clients since the given version.
+     *
+     * @param since the version to start from.
+     * @param changed the clients that were added or changed.
+     * @param removed the clients that were removed.
+     * @return the version up to which the changes were collected, or -1 if
+     * the changes since the given version are not known.
+     */
+    public long getChanges(long since, ArrayList<ClientDescription> changed,
+            ArrayList<DirectSocketAddress> removed) {
+
+        synchronized (clients) {
+
+            if (since < changesKnownSince) {
+                return -1;
+            }
+
+            HashSet<DirectSocketAddress> seen =
+                new HashSet<DirectSocketAddress>();
+
+            for (int i=log.size()-1;i>=0;i--) {
+
+                ClientChange c = log.get(i);
+
+                if (c.version <= since) {
+                    break;
+                }
+
+                if (seen.add(c.client)) {
+
+                    ClientDescription d = clients.get(c.client);
+
+                    if (d != null) {
+                        changed.add(d);
+                    } else if (this.removed.containsKey(c.client)) {
+                        removed.add(c.client);
+                    }
+                }
+            }
+
+            return local ? lastLocalUpdate : homeState;
+        }
+    }
+
+    // Records a change to a client. Must be called while holding the clients
+    // lock.
+    private void changed(DirectSocketAddress client, long version,
+            boolean remove) {
+
+        if (remove) {
+            removed.put(client, version);
+
+            if (removed.size() > MAX_REMOVED) {
+                // Forget the removed clients. Anyone who needs to know about
+                // them must get a full copy instead.
+                removed.clear();
+                changesKnownSince = version;
+            }
+        } else {
+            removed.remove(client);
+        }
+
+        log.add(new ClientChange(version, client));
+
+        if (log.size() > 2 * (clients.size() + removed.size()) + 64) {
+            compactLog();
+        }
+    }
+
+    // Only keeps the last change of each client in the log.
+    private void compactLog() {
+
+        HashSet<DirectSocketAddress> seen = new HashSet<DirectSocketAddress>();
+        LinkedList<ClientChange> tmp = new LinkedList<ClientChange>();
+
+        for (int i=log.size()-1;i>=0;i--) {
+
+            ClientChange c = log.get(i);
+
+            if (c.version < changesKnownSince) {
+                break;
+            }
+
+            if ((clients.containsKey(c.client) || removed.containsKey(c.client))
+                    && seen.add(c.client)) {
+                tmp.addFirst(c);
+            }
+        }
+
+        log.clear();
+        log.addAll(tmp);
+    }
+
     public long getHomeState() {
         return homeState;
     }
@@ -204,6 +445,7 @@ public class HubDescription {
 
             if (c.addService(tag, address)) {
                 lastLocalUpdate = state.increment();
+                changed(client, lastLocalUpdate, false);
                 return true;
             } else {
                 return false;
@@ -224,6 +466,7 @@ public class HubDescription {
 
             if (c.updateService(tag, address)) {
                 lastLocalUpdate = state.increment();
+                changed(client, lastLocalUpdate, false);
                 return true;
             } else {
                 return false;
@@ -242,6 +485,7 @@ public class HubDescription {
 
             if (c.removeService(tag)) {
                 lastLocalUpdate = state.increment();
+                changed(client, lastLocalUpdate, false);
                 return true;
             } else {
                 return false;
@@ -250,11 +494,22 @@ public class HubDescription {
     }
 
     boolean containsClient(DirectSocketAddress client) {
-        synchronized (client) {
+        synchronized (clients) {
             return clients.containsKey(client);
         }
     }
 
+    void setIndex(ClientIndex index) {
+
+        synchronized (clients) {
+            this.index = index;
+
+            for (DirectSocketAddress a : clients.keySet()) {
+                index.add(a, this);
+            }
+        }
+    }
+
     public int numberOfClients() {
         return clients.size();
     }
@@ -28,6 +28,9 @@ public class HubList {
     private final HashMap<DirectSocketAddress, HubDescription> map =
         new HashMap<DirectSocketAddress, HubDescription>();
 
+    // Maps each client to the hubs that know it.
+    private final ClientIndex clients = new ClientIndex();
+
     private HubDescription localDescription;
 
     public HubList(StateCounter state) {
@@ -84,6 +87,7 @@ public class HubList {
         // list...
         localDescription = desc;
         map.put(desc.hubAddress, desc);
+        desc.setIndex(clients);
     }
 
     public HubDescription getLocalDescription() {
@@ -121,6 +125,20 @@ public class HubList {
         }
     }
 
+    /**
+     * Passes the hubs that know the given client to the selector. Unlike
+     * {@link #select(Selector)}, this uses the client index and does not lock
+     * the hub list.
+     *
+     * @param client the client to look for.
+     * @param s the selector.
+     */
+    public void selectForClient(DirectSocketAddress client, Selector s) {
+        for (HubDescription d : clients.get(client)) {
+            s.select(d);
+        }
+    }
+
     public synchronized void putBack(HubDescription d) {
 
         if (d.reachableKnown() && d.isReachable()) {
@@ -138,6 +156,7 @@ public class HubList {
 
         if (tmp == null) {
             tmp = new HubDescription(a, state);
+            tmp.setIndex(clients);
             map.put(tmp.hubAddress, tmp);
 
             //System.out.println("@@@@@@@@@@@@@ ADD NEW PROXY:\n " + tmp + "\n");
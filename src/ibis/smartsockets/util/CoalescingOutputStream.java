@@ -0,0 +1,378 @@
+package ibis.smartsockets.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Buffered output stream that can coalesce multiple frames into a single
+ * write to the underlying stream.
+ *
+ * Writers are expected to call {@link #flush()} at the end of each frame. If
+ * no linger time is set, this flushes the buffer immediately, just like a
+ * BufferedOutputStream would. Otherwise, the buffer is written when it is
+ * full, when the queue of writers drains, or when the linger time of the
+ * oldest unflushed frame expires. This allows the frames of many writers
+ * sharing the same stream to be sent using a single system call.
+ * <p>
+ * The writers are usually ordered by a lock outside of this stream, so only
+ * the owner of that lock knows if more writers are waiting. When it releases
+ * the lock and no writer is waiting, it must call {@link #flush()} once more
+ * without writing a frame first. This tells the stream that the queue has
+ * drained, so the buffer is written right away. The linger time is then only
+ * used to combine the frames of a burst of writers.
+ * <p>
+ * If a deferred flush fails, the underlying stream is closed, so the reader
+ * of the connection notices the failure as well.
+ */
+public final class CoalescingOutputStream extends OutputStream {
+
+    private static final Logger logger = LoggerFactory
+            .getLogger("ibis.smartsockets.util.coalescing");
+
+    /** The default buffer size. */
+    public static final int DEFAULT_SIZE = 8192;
+
+    // Totals of all streams in this process.
+    private static final AtomicLong totalFrames = new AtomicLong();
+    private static final AtomicLong totalFlushes = new AtomicLong();
+
+    private static DelayQueue<Pending> pending;
+
+    private final OutputStream out;
+
+    private final byte [] buffer;
+    private int count;
+
+    private final long linger;
+
+    // NOTE: we use a lock instead of synchronized, so that the flusher does
+    // not get stuck on a stream that is blocked in a write.
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Set when a frame was written since the last flush.
+    private boolean dirty;
+
+    private boolean scheduled;
+    private boolean closed;
+
+    private IOException error;
+
+    private long frames;
+    private long flushes;
+
+    // A deferred flush of a stream.
+    private static final class Pending implements Delayed {
+
+        private final CoalescingOutputStream stream;
+        private final long deadline;
+
+        Pending(CoalescingOutputStream stream, long deadline) {
+            this.stream = stream;
+            this.deadline = deadline;
+        }
+
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadline - System.nanoTime(),
+                    TimeUnit.NANOSECONDS);
+        }
+
+        public int compareTo(Delayed o) {
+
+            long d = deadline - ((Pending) o).deadline;
+
+            if (d < 0) {
+                return -1;
+            } else if (d > 0) {
+                return 1;
+            }
+
+            return 0;
+        }
+    }
+
+    // Performs the deferred flushes of all streams in this process.
+    private static final class Flusher implements Runnable {
+
+        public void run() {
+
+            while (true) {
+                try {
+                    Pending p = pending.take();
+                    p.stream.lingerExpired();
+                } catch (InterruptedException e) {
+                    // ignore
+                } catch (Throwable e) {
+                    logger.warn("Deferred flush failed!", e);
+                }
+            }
+        }
+    }
+
+    private static synchronized void schedule(CoalescingOutputStream s,
+            long deadline) {
+
+        if (pending == null) {
+            pending = new DelayQueue<Pending>();
+
+            Thread t = new Thread(new Flusher(), "CoalescingOutputStream Flusher");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        pending.add(new Pending(s, deadline));
+    }
+
+    /**
+     * Creates a CoalescingOutputStream.
+     *
+     * @param out the stream to write to.
+     * @param size the size of the buffer.
+     * @param linger the maximum time (in milliseconds) a frame may be delayed,
+     * or 0 to flush each frame immediately.
+     */
+    public CoalescingOutputStream(OutputStream out, int size, int linger) {
+
+        if (size <= 0) {
+            throw new IllegalArgumentException("Buffer size <= 0");
+        }
+
+        this.out = out;
+        this.buffer = new byte[size];
+        this.linger = linger <= 0 ? 0 : TimeUnit.MILLISECONDS.toNanos(linger);
+    }
+
+    public CoalescingOutputStream(OutputStream out) {
+        this(out, DEFAULT_SIZE, 0);
+    }
+
+    private void checkError() throws IOException {
+
+        if (error != null) {
+            IOException tmp = new IOException("Deferred flush failed");
+            tmp.initCause(error);
+            throw tmp;
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+
+            flushes++;
+            totalFlushes.incrementAndGet();
+        }
+    }
+
+    public void write(int b) throws IOException {
+
+        lock.lock();
+
+        try {
+            checkError();
+
+            if (count == buffer.length) {
+                flushBuffer();
+            }
+
+            buffer[count++] = (byte) b;
+            dirty = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void write(byte [] b, int off, int len) throws IOException {
+
+        lock.lock();
+
+        try {
+            checkError();
+
+            dirty = true;
+
+            if (len >= buffer.length) {
+                // Large writes go straight to the stream.
+                flushBuffer();
+                out.write(b, off, len);
+
+                flushes++;
+                totalFlushes.incrementAndGet();
+                return;
+            }
+
+            if (len > buffer.length - count) {
+                flushBuffer();
+            }
+
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks the end of a frame. Depending on the linger time, the buffer is
+     * either written immediately, or a deferred flush is scheduled. A flush
+     * without a frame written since the previous one means that no more
+     * writers are waiting, so the buffer is written immediately.
+     */
+    public void flush() throws IOException {
+
+        lock.lock();
+
+        try {
+            checkError();
+
+            if (!dirty) {
+                // The queue of writers has drained.
+                flushBuffer();
+                out.flush();
+                return;
+            }
+
+            dirty = false;
+
+            frames++;
+            totalFrames.incrementAndGet();
+
+            if (linger == 0) {
+                flushBuffer();
+                out.flush();
+            } else if (count > 0 && !scheduled) {
+                scheduled = true;
+                schedule(this, System.nanoTime() + linger);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Immediately writes all buffered data, regardless of the linger time.
+     */
+    public void flushNow() throws IOException {
+
+        lock.lock();
+
+        try {
+            checkError();
+            flushBuffer();
+            out.flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void lingerExpired() {
+
+        if (!lock.tryLock()) {
+            // A writer is using the stream (and may be blocked). Try again
+            // later, so we do not hold up the other streams.
+            schedule(this, System.nanoTime() + linger);
+            return;
+        }
+
+        IOException failed = null;
+
+        try {
+            scheduled = false;
+
+            if (closed || error != null) {
+                return;
+            }
+
+            flushBuffer();
+            out.flush();
+        } catch (IOException e) {
+            // Also reported to the next writer.
+            error = e;
+            failed = e;
+        } finally {
+            lock.unlock();
+        }
+
+        if (failed != null) {
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("Deferred flush failed, closing stream", failed);
+            }
+
+            // Close the link, so its reader notices the failure too.
+            try {
+                out.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    public void close() throws IOException {
+
+        lock.lock();
+
+        try {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+
+            if (error == null) {
+                flushBuffer();
+                out.flush();
+            }
+        } finally {
+            lock.unlock();
+            out.close();
+        }
+    }
+
+    /**
+     * Returns the number of frames written to this stream.
+     *
+     * @return the number of frames.
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * Returns the number of writes to the underlying stream.
+     *
+     * @return the number of flushes.
+     */
+    public long getFlushes() {
+        return flushes;
+    }
+
+    /**
+     * Returns the number of frames written to all CoalescingOutputStreams in
+     * this process.
+     *
+     * @return the total number of frames.
+     */
+    public static long getTotalFrames() {
+        return totalFrames.get();
+    }
+
+    /**
+     * Returns the number of writes to the underlying streams of all
+     * CoalescingOutputStreams in this process.
+     *
+     * @return the total number of flushes.
+     */
+    public static long getTotalFlushes() {
+        return totalFlushes.get();
+    }
+}
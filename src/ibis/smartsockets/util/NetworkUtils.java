@@ -11,6 +11,7 @@ import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Random;
 import java.util.StringTokenizer;
@@ -31,6 +32,11 @@ public class NetworkUtils {
     // is needed in UUID generation.
     private static long MILLIS_1582_1970 = 12216618000000L;
 
+    // Netmasks that are already known (e.g., from an earlier run), so they
+    // do not have to be retrieved using ifconfig/ipconfig.
+    private static final HashMap<InetAddress, byte []> knownNetmasks =
+        new HashMap<InetAddress, byte []>();
+
     // This matrix contains the possible IPv4 subnet/mask values. Note that the
     // each entry consists of three parts: the subnet, the mask needed to match
     // the address, and the real mask that is returned. This allows a range of
@@ -472,6 +478,25 @@ public class NetworkUtils {
     }
 
     public static byte [] getUUID() {
+        return getUUID(getLocalMACAddress());
+    }
+
+    /**
+     * Returns the MAC address of one of the network cards of this machine.
+     *
+     * @return the MAC address, or null if it could not be found.
+     */
+    public static byte [] getLocalMACAddress() {
+        return getAnyMACAddress(getAllHostAddresses(false, true));
+    }
+
+    /**
+     * Creates a new UUID using the given MAC address.
+     *
+     * @param mac the MAC address to use, or null to use a random value.
+     * @return the new UUID.
+     */
+    public static byte [] getUUID(byte [] mac) {
 
         // Get the time since the start of the calendar
         long time = (System.currentTimeMillis() + MILLIS_1582_1970) * 10;
@@ -486,11 +511,7 @@ public class NetworkUtils {
         // Or in the variant code
         clock |= (1 << 2);
 
-        // Get the MAC address
-        byte [] mac = NetworkUtils.getAnyMACAddress(
-                getAllHostAddresses(false, true));
-
-        if (mac == null) {
+        if (mac == null || mac.length < 6) {
             // If we failed to get a MAC address, we use a random value instead.
             mac = new byte[6];
             r.nextBytes(mac);
@@ -667,9 +688,31 @@ public class NetworkUtils {
 
 
     public static byte [] getNetmask(InetAddress ip) throws IOException {
+
+        synchronized (knownNetmasks) {
+            byte [] mask = knownNetmasks.get(ip);
+
+            if (mask != null) {
+                return mask.clone();
+            }
+        }
+
         return NativeNetworkConfig.getNetmask(ip);
     }
 
+    /**
+     * Registers the netmask of a local address, so it does not have to be
+     * retrieved from the operating system.
+     *
+     * @param ip the local address.
+     * @param mask the netmask of the address.
+     */
+    public static void addNetmask(InetAddress ip, byte [] mask) {
+        synchronized (knownNetmasks) {
+            knownNetmasks.put(ip, mask.clone());
+        }
+    }
+
     public static byte [] getBroadcast(InetAddress ip) throws IOException {
         return NativeNetworkConfig.getBroadcast(ip);
     }
@@ -0,0 +1,330 @@
+package ibis.smartsockets.virtual;
+
+import ibis.smartsockets.virtual.modules.ConnectModule;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache that keeps per-module connect statistics for a number of routes. A
+ * route is a cluster, a hub, or a single target.
+ *
+ * For each module we keep the number of successful and failed connects, and
+ * an exponentially weighted moving average of the time they took. The counts
+ * decay over time, so old results are gradually forgotten. These statistics
+ * are used to order the modules by their expected time-to-connect.
+ *
+ * The cache holds a bounded number of routes. The least recently used route
+ * is evicted when the cache is full. The cache can be saved to and loaded from
+ * a file, so this information survives a restart.
+ */
+final class ConnectOrderCache {
+
+    private static final Logger logger =
+        LoggerFactory.getLogger("ibis.smartsockets.virtual.clustering");
+
+    // Weight of a new sample in the moving averages.
+    private static final double ALPHA = 0.3;
+
+    // Modules with less (decayed) results are considered unknown.
+    private static final double MIN_WEIGHT = 0.1;
+
+    private static final class Statistics {
+
+        double successes;
+        double failures;
+
+        double successTime;
+        double failureTime;
+
+        long lastUpdate;
+
+        void decay(long now, long halfLife) {
+
+            if (now > lastUpdate) {
+                double f = Math.pow(0.5, ((double) (now - lastUpdate))
+                        / halfLife);
+                successes *= f;
+                failures *= f;
+                lastUpdate = now;
+            }
+        }
+
+        void success(long time, long now, long halfLife) {
+
+            decay(now, halfLife);
+
+            if (successes < MIN_WEIGHT) {
+                successTime = time;
+            } else {
+                successTime = ALPHA * time + (1.0 - ALPHA) * successTime;
+            }
+
+            successes++;
+        }
+
+        void failure(long time, long now, long halfLife) {
+
+            decay(now, halfLife);
+
+            if (failures < MIN_WEIGHT) {
+                failureTime = time;
+            } else {
+                failureTime = ALPHA * time + (1.0 - ALPHA) * failureTime;
+            }
+
+            failures++;
+        }
+
+        // Returns 0 if the module has succeeded before, 1 if nothing is known
+        // about it, and 2 if it has only failed.
+        int tier() {
+
+            if (successes >= MIN_WEIGHT) {
+                return 0;
+            }
+
+            if (failures >= MIN_WEIGHT) {
+                return 2;
+            }
+
+            return 1;
+        }
+
+        // The expected time until a connection is established, assuming
+        // failed attempts are repeated until one succeeds.
+        double expectedTime() {
+            double p = successes / (successes + failures);
+            return successTime + ((1.0 - p) / p) * failureTime;
+        }
+    }
+
+    private final long halfLife;
+
+    private final LinkedHashMap<String, HashMap<String, Statistics>> routes;
+
+    ConnectOrderCache(final int maxSize, long halfLife) {
+
+        this.halfLife = halfLife;
+
+        // NOTE: access order, so the eldest entry is the least recently used.
+        routes = new LinkedHashMap<String, HashMap<String, Statistics>>(16,
+                0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, HashMap<String, Statistics>> e) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    private Statistics getStatistics(String route, String module) {
+
+        HashMap<String, Statistics> tmp = routes.get(route);
+
+        if (tmp == null) {
+            tmp = new HashMap<String, Statistics>();
+            routes.put(route, tmp);
+        }
+
+        Statistics s = tmp.get(module);
+
+        if (s == null) {
+            s = new Statistics();
+            s.lastUpdate = System.currentTimeMillis();
+            tmp.put(module, s);
+        }
+
+        return s;
+    }
+
+    synchronized void succes(String route, ConnectModule m, long time) {
+        getStatistics(route, m.getName()).success(time,
+                System.currentTimeMillis(), halfLife);
+    }
+
+    synchronized void failed(String route, ConnectModule m, long time) {
+        getStatistics(route, m.getName()).failure(time,
+                System.currentTimeMillis(), halfLife);
+    }
+
+    /**
+     * Orders the modules for a route. Modules that succeeded before are put
+     * first, sorted by their expected time-to-connect. They are followed by
+     * the modules we know nothing about, and finally by the modules that
+     * have only failed. Within the last two groups the original order is
+     * kept.
+     *
+     * @param route the route.
+     * @param order the default order of the modules for this route.
+     * @return the ordered modules.
+     */
+    synchronized ConnectModule [] order(String route, ConnectModule [] order) {
+
+        HashMap<String, Statistics> tmp = routes.get(route);
+
+        if (tmp == null) {
+            return order;
+        }
+
+        long now = System.currentTimeMillis();
+
+        int [] tier = new int[order.length];
+        double [] time = new double[order.length];
+
+        for (int i=0;i<order.length;i++) {
+
+            Statistics s = tmp.get(order[i].getName());
+
+            if (s == null) {
+                tier[i] = 1;
+            } else {
+                s.decay(now, halfLife);
+                tier[i] = s.tier();
+
+                if (tier[i] == 0) {
+                    time[i] = s.expectedTime();
+                }
+            }
+        }
+
+        ConnectModule [] result = order.clone();
+
+        // Insertion sort, since it is stable and the arrays are tiny.
+        for (int i=1;i<result.length;i++) {
+
+            ConnectModule m = result[i];
+            int t = tier[i];
+            double d = time[i];
+
+            int j = i-1;
+
+            while (j >= 0 && (tier[j] > t || (tier[j] == t && time[j] > d))) {
+                result[j+1] = result[j];
+                tier[j+1] = tier[j];
+                time[j+1] = time[j];
+                j--;
+            }
+
+            result[j+1] = m;
+            tier[j+1] = t;
+            time[j+1] = d;
+        }
+
+        return result;
+    }
+
+    synchronized void load(File file) {
+
+        BufferedReader in = null;
+        int count = 0;
+
+        try {
+            in = new BufferedReader(new FileReader(file));
+
+            String line = in.readLine();
+
+            while (line != null) {
+
+                if (line.length() > 0 && !line.startsWith("#")) {
+
+                    String [] tmp = line.split("\t");
+
+                    if (tmp.length != 7) {
+                        throw new IOException("Malformed line: " + line);
+                    }
+
+                    HashMap<String, Statistics> route = routes.get(tmp[0]);
+
+                    if (route == null) {
+                        route = new HashMap<String, Statistics>();
+                        routes.put(tmp[0], route);
+                    }
+
+                    Statistics s = new Statistics();
+                    s.successes = Double.parseDouble(tmp[2]);
+                    s.failures = Double.parseDouble(tmp[3]);
+                    s.successTime = Double.parseDouble(tmp[4]);
+                    s.failureTime = Double.parseDouble(tmp[5]);
+                    s.lastUpdate = Long.parseLong(tmp[6]);
+
+                    route.put(tmp[1], s);
+                    count++;
+                }
+
+                line = in.readLine();
+            }
+
+            if (logger.isInfoEnabled()) {
+                logger.info("Loaded " + count + " connect statistics from "
+                        + file);
+            }
+
+        } catch (Exception e) {
+            logger.warn("Failed to load connect order cache from " + file, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (Exception e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    synchronized void save(File file) {
+
+        PrintWriter out = null;
+
+        try {
+            out = new PrintWriter(new FileWriter(file));
+
+            out.println("# SmartSockets connect order cache");
+            out.println("# route\tmodule\tsuccesses\tfailures\tsuccess time"
+                    + "\tfailure time\tlast update");
+
+            for (Map.Entry<String, HashMap<String, Statistics>> r :
+                    routes.entrySet()) {
+
+                for (Map.Entry<String, Statistics> m :
+                        r.getValue().entrySet()) {
+
+                    Statistics s = m.getValue();
+
+                    out.println(r.getKey() + "\t" + m.getKey() + "\t"
+                            + s.successes + "\t" + s.failures + "\t"
+                            + s.successTime + "\t" + s.failureTime + "\t"
+                            + s.lastUpdate);
+                }
+            }
+
+            if (out.checkError()) {
+                throw new IOException("Write failed");
+            }
+
+            if (logger.isInfoEnabled()) {
+                logger.info("Saved connect order cache to " + file);
+            }
+
+        } catch (Exception e) {
+            logger.warn("Failed to save connect order cache to " + file, e);
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+}
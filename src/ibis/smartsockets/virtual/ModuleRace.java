@@ -0,0 +1,141 @@
+package ibis.smartsockets.virtual;
+
+import ibis.smartsockets.virtual.modules.ConnectModule;
+
+import java.io.IOException;
+
+/**
+ * Keeps track of a number of connect modules that are concurrently trying to
+ * set up a connection to the same target.
+ *
+ * The first socket that is accepted by the target wins. Any socket that is
+ * accepted after that is closed immediately. A non-transient error (such as a
+ * missing target port) ends the race, just like it ends a sequential connect.
+ */
+final class ModuleRace {
+
+    private final Throwable [] exceptions;
+
+    private boolean done = false;
+
+    private VirtualSocket winner;
+    private ConnectModule winnerModule;
+    private int winnerIndex = -1;
+
+    private IOException fatal;
+
+    private int running = 0;
+    private int failed = 0;
+
+    ModuleRace(int modules) {
+        exceptions = new Throwable[modules];
+    }
+
+    synchronized void start() {
+        running++;
+    }
+
+    synchronized void success(int index, ConnectModule m, VirtualSocket vs) {
+
+        running--;
+
+        if (done) {
+            // Someone else was faster, so close the connection.
+            try {
+                vs.close();
+            } catch (Exception e) {
+                // ignore
+            }
+        } else {
+            winner = vs;
+            winnerModule = m;
+            winnerIndex = index;
+            done = true;
+        }
+
+        notifyAll();
+    }
+
+    synchronized void failed(int index, Throwable e) {
+
+        running--;
+        failed++;
+
+        exceptions[index] = e;
+
+        notifyAll();
+    }
+
+    synchronized void fatal(int index, IOException e) {
+
+        running--;
+
+        exceptions[index] = e;
+
+        if (!done) {
+            fatal = e;
+            done = true;
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * Waits until the race is over, all started modules have failed, a module
+     * failed since the last call, or the timeout expires. A timeout of 0
+     * waits until the race is over, or all started modules have failed.
+     *
+     * @return true if the race is over, or no modules are running.
+     */
+    synchronized boolean waitForProgress(long timeout) {
+
+        int failures = failed;
+
+        long deadline = System.currentTimeMillis() + timeout;
+        long left = timeout;
+
+        while (!done && running > 0 && failed == failures
+                && (timeout == 0 || left > 0)) {
+            try {
+                wait(timeout == 0 ? 0 : left);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+
+            left = deadline - System.currentTimeMillis();
+        }
+
+        return done || running == 0;
+    }
+
+    synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Ends the race. Any socket that is accepted after this point is closed.
+     */
+    synchronized void end() {
+        done = true;
+    }
+
+    synchronized VirtualSocket getWinner() {
+        return winner;
+    }
+
+    synchronized ConnectModule getWinnerModule() {
+        return winnerModule;
+    }
+
+    synchronized int getWinnerIndex() {
+        return winnerIndex;
+    }
+
+    synchronized IOException getFatalException() {
+        return fatal;
+    }
+
+    synchronized Throwable [] getExceptions() {
+        return exceptions.clone();
+    }
+}
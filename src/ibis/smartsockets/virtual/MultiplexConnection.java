@@ -0,0 +1,528 @@
+package ibis.smartsockets.virtual;
+
+import ibis.smartsockets.direct.DirectSocketAddress;
+import ibis.smartsockets.util.ThreadPool;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.LinkedList;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single virtual connection to a peer (the carrier), which carries any
+ * number of multiplexed virtual sockets (the streams).
+ *
+ * Each frame on the carrier consists of an opcode, a stream number and a
+ * value, followed by a payload for some opcodes. Streams are numbered by the
+ * side that opens them. The side that opened the carrier uses odd numbers,
+ * the other side even numbers, so both sides can open streams at the same
+ * time. The stream number is used as an index in the stream table.
+ *
+ * Each stream has a credit window (in bytes) that limits how much data may
+ * be in transit, so the reader never blocks on a stream that is not being
+ * read. Writers take turns in FIFO order when writing a frame, and frames
+ * are limited to MAX_FRAME bytes, so a stream sending bulk data cannot
+ * starve the others.
+ *
+ * The reader never writes a frame itself, since it would block when the
+ * carrier is full. If both sides would do so, neither would read anymore.
+ * The frames it must send are queued, and written by a separate thread.
+ */
+final class MultiplexConnection implements Runnable {
+
+    private static final Logger logger =
+        LoggerFactory.getLogger("ibis.smartsockets.virtual.multiplex");
+
+    static final byte HELLO  = 1;
+    static final byte OPEN   = 2;
+    static final byte ACCEPT = 3;
+    static final byte REJECT = 4;
+    static final byte DATA   = 5;
+    static final byte CREDIT = 6;
+    static final byte CLOSE  = 7;
+
+    static final int REJECT_NOT_FOUND  = 1;
+    static final int REJECT_OVERLOADED = 2;
+
+    static final int MAX_FRAME = 16*1024;
+
+    // Stream numbers are indices in the stream table, so the other side may
+    // not use arbitrarily large ones.
+    static final int MAX_STREAMS = 64*1024;
+
+    private static final int HEADER = 9;
+
+    private final Multiplexer owner;
+
+    private final VirtualSocket carrier;
+
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    // NOTE: fair, so writers of different streams take turns.
+    private final ReentrantLock writeLock = new ReentrantLock(true);
+
+    private final int window;
+
+    // Parity of the stream numbers we allocate.
+    private final int parity;
+
+    private volatile DirectSocketAddress peer;
+
+    private MultiplexVirtualSocket [] streams = new MultiplexVirtualSocket[16];
+    private int streamCount = 0;
+
+    private boolean closed = false;
+
+    // Frames queued by the reader (opcode, stream, value), and whether a
+    // thread is writing them.
+    private final LinkedList<int []> control = new LinkedList<int []>();
+    private boolean controlWriter = false;
+
+    MultiplexConnection(Multiplexer owner, VirtualSocket carrier,
+            DirectSocketAddress peer, DirectSocketAddress local, int window)
+        throws IOException {
+
+        this.owner = owner;
+        this.carrier = carrier;
+        this.peer = peer;
+        this.window = window;
+
+        // We coalesce frames ourselves.
+        carrier.setTcpNoDelay(true);
+
+        in = new DataInputStream(new BufferedInputStream(
+                carrier.getInputStream(), HEADER + MAX_FRAME));
+
+        out = new DataOutputStream(new BufferedOutputStream(
+                carrier.getOutputStream(), HEADER + MAX_FRAME));
+
+        if (local != null) {
+            // We opened the carrier, so we introduce ourselves.
+            parity = 1;
+
+            byte [] tmp = local.getAddress();
+            writeFrame(HELLO, 0, tmp.length, tmp, 0, tmp.length);
+        } else {
+            parity = 0;
+        }
+
+        ThreadPool.createNew(this, "MultiplexConnection reader");
+    }
+
+    DirectSocketAddress getPeer() {
+        return peer;
+    }
+
+    int getWindow() {
+        return window;
+    }
+
+    void writeFrame(byte opcode, int stream, int value) throws IOException {
+        writeFrame(opcode, stream, value, null, 0, 0);
+    }
+
+    void writeFrame(byte opcode, int stream, int value, byte [] data, int off,
+            int len) throws IOException {
+
+        writeLock.lock();
+
+        try {
+            if (closed) {
+                throw new IOException("Multiplexed connection closed");
+            }
+
+            out.writeByte(opcode);
+            out.writeInt(stream);
+            out.writeInt(value);
+
+            if (len > 0) {
+                out.write(data, off, len);
+            }
+
+            // If another writer is waiting, we leave the flush to it, so the
+            // frames are sent together.
+            if (!writeLock.hasQueuedThreads()) {
+                out.flush();
+            }
+        } catch (IOException e) {
+            failed(e);
+            throw e;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Queues a frame without a payload, so it is written by another thread.
+     * Used by the reader, which must never block on a write.
+     */
+    void queueFrame(byte opcode, int stream, int value) {
+
+        synchronized (control) {
+            control.addLast(new int [] { opcode, stream, value });
+
+            if (controlWriter) {
+                return;
+            }
+
+            controlWriter = true;
+        }
+
+        ThreadPool.createNew(new Runnable() {
+            public void run() {
+                writeQueuedFrames();
+            }
+        }, "MultiplexConnection writer");
+    }
+
+    private void writeQueuedFrames() {
+
+        while (true) {
+
+            int [] frame;
+
+            synchronized (control) {
+                if (control.size() == 0) {
+                    controlWriter = false;
+                    return;
+                }
+
+                frame = control.removeFirst();
+            }
+
+            try {
+                writeFrame((byte) frame[0], frame[1], frame[2]);
+            } catch (IOException e) {
+                // The carrier has failed, and its streams are told so.
+                synchronized (control) {
+                    control.clear();
+                    controlWriter = false;
+                }
+                return;
+            }
+        }
+    }
+
+    private synchronized int allocate(MultiplexVirtualSocket s)
+        throws IOException {
+
+        if (closed) {
+            throw new IOException("Multiplexed connection closed");
+        }
+
+        for (int i=2-parity;i<streams.length;i+=2) {
+            if (streams[i] == null) {
+                streams[i] = s;
+                streamCount++;
+                return i;
+            }
+        }
+
+        if (streams.length >= MAX_STREAMS) {
+            throw new IOException("Too many multiplexed streams");
+        }
+
+        int index = streams.length + parity;
+
+        MultiplexVirtualSocket [] tmp =
+            new MultiplexVirtualSocket[streams.length*2];
+        System.arraycopy(streams, 0, tmp, 0, streams.length);
+        streams = tmp;
+
+        streams[index] = s;
+        streamCount++;
+        return index;
+    }
+
+    private synchronized boolean register(int stream,
+            MultiplexVirtualSocket s) {
+
+        if (closed || stream <= 0 || stream >= MAX_STREAMS
+                || (stream & 1) == parity) {
+            return false;
+        }
+
+        while (stream >= streams.length) {
+            MultiplexVirtualSocket [] tmp =
+                new MultiplexVirtualSocket[streams.length*2];
+            System.arraycopy(streams, 0, tmp, 0, streams.length);
+            streams = tmp;
+        }
+
+        if (streams[stream] != null) {
+            return false;
+        }
+
+        streams[stream] = s;
+        streamCount++;
+        return true;
+    }
+
+    private synchronized MultiplexVirtualSocket get(int stream) {
+
+        if (stream <= 0 || stream >= streams.length) {
+            return null;
+        }
+
+        return streams[stream];
+    }
+
+    synchronized void remove(int stream, MultiplexVirtualSocket s) {
+
+        if (stream > 0 && stream < streams.length && streams[stream] == s) {
+            streams[stream] = null;
+            streamCount--;
+        }
+    }
+
+    /**
+     * Opens a new stream to the given target.
+     *
+     * @return the new stream, or null if the carrier failed, or the other
+     * side did not answer in time.
+     * @throws IOException if the other side refused the stream.
+     */
+    MultiplexVirtualSocket open(VirtualSocketAddress target, int timeout)
+        throws IOException {
+
+        MultiplexVirtualSocket s = new MultiplexVirtualSocket(this, target);
+
+        int stream;
+
+        try {
+            stream = allocate(s);
+        } catch (IOException e) {
+            return null;
+        }
+
+        s.setStream(stream);
+
+        // The OPEN frame carries our window as payload.
+        byte [] tmp = new byte[4];
+        tmp[0] = (byte) (0xff & (window >> 24));
+        tmp[1] = (byte) (0xff & (window >> 16));
+        tmp[2] = (byte) (0xff & (window >> 8));
+        tmp[3] = (byte) (0xff & window);
+
+        int result;
+
+        try {
+            writeFrame(OPEN, stream, target.port(), tmp, 0, 4);
+            result = s.waitForOpen(timeout);
+        } catch (IOException e) {
+            if (logger.isInfoEnabled()) {
+                logger.info("Multiplexed connection to " + peer
+                        + " failed while opening stream", e);
+            }
+
+            remove(stream, s);
+            return null;
+        }
+
+        switch (result) {
+        case 0:
+            return s;
+
+        case -1:
+            if (logger.isInfoEnabled()) {
+                logger.info("Multiplexed connection to " + peer
+                        + " did not answer within " + timeout + " ms");
+            }
+
+            // Tell the other side we are no longer interested. The stream
+            // number is freed once the other side has answered.
+            s.close();
+            return null;
+
+        case REJECT_OVERLOADED:
+            throw new TargetOverloadedException("Connection refused, "
+                    + "target socket overloaded!");
+
+        default:
+            throw new ConnectException("Connection refused by " + target);
+        }
+    }
+
+    private void incoming(int stream, int port, int remoteWindow)
+        throws IOException {
+
+        if (peer == null) {
+            throw new IOException("Stream " + stream + " opened before HELLO");
+        }
+
+        MultiplexVirtualSocket s = new MultiplexVirtualSocket(this,
+                new VirtualSocketAddress(peer, 0));
+
+        s.setStream(stream);
+        s.setCredits(remoteWindow);
+
+        if (!register(stream, s)) {
+            throw new IOException("Illegal stream number " + stream);
+        }
+
+        VirtualServerSocket ss = owner.getServerSocket(port);
+
+        int result = (ss == null ? -1 : ss.incomingConnection(s));
+
+        if (result != 0) {
+
+            if (logger.isInfoEnabled()) {
+                logger.info("Refused multiplexed connection from " + peer
+                        + " to port " + port + " ("
+                        + (result == -1 ? "not found" : "overloaded") + ")");
+            }
+
+            remove(stream, s);
+
+            queueFrame(REJECT, stream, (result == -1 ? REJECT_NOT_FOUND
+                    : REJECT_OVERLOADED));
+        }
+    }
+
+    public void run() {
+
+        try {
+            while (true) {
+
+                byte opcode = in.readByte();
+                int stream = in.readInt();
+                int value = in.readInt();
+
+                MultiplexVirtualSocket s = null;
+
+                switch (opcode) {
+                case HELLO:
+                    // Only the side that opened the carrier says HELLO, and
+                    // only once.
+                    if (parity == 1 || peer != null || value <= 0
+                            || value > MAX_FRAME) {
+                        throw new IOException("Illegal HELLO of " + value
+                                + " bytes");
+                    }
+
+                    byte [] tmp = new byte[value];
+                    in.readFully(tmp);
+                    peer = DirectSocketAddress.fromBytes(tmp);
+                    owner.connected(this);
+                    break;
+
+                case OPEN:
+                    incoming(stream, value, in.readInt());
+                    break;
+
+                case ACCEPT:
+                    s = get(stream);
+
+                    // NOTE: if the stream was given up, our CLOSE is
+                    // already on its way.
+                    if (s != null) {
+                        s.opened(0, value);
+                    }
+                    break;
+
+                case REJECT:
+                    s = get(stream);
+
+                    if (s != null) {
+                        remove(stream, s);
+                        s.opened(value, 0);
+                    }
+                    break;
+
+                case DATA:
+                    if (value < 0 || value > MAX_FRAME) {
+                        throw new IOException("Illegal DATA frame of "
+                                + value + " bytes");
+                    }
+
+                    byte [] data = new byte[value];
+                    in.readFully(data);
+
+                    s = get(stream);
+
+                    if (s != null && !s.data(data)) {
+                        throw new IOException("DATA frame of " + value
+                                + " bytes exceeds the credit of stream "
+                                + stream);
+                    }
+                    break;
+
+                case CREDIT:
+                    s = get(stream);
+
+                    if (s != null) {
+                        s.credit(value);
+                    }
+                    break;
+
+                case CLOSE:
+                    s = get(stream);
+
+                    if (s != null) {
+                        s.remoteClose();
+                    }
+                    break;
+
+                default:
+                    throw new IOException("Unknown opcode " + opcode);
+                }
+            }
+        } catch (EOFException e) {
+            failed(e);
+        } catch (Exception e) {
+            if (logger.isInfoEnabled()) {
+                logger.info("Multiplexed connection to " + peer + " failed",
+                        e);
+            }
+
+            failed(e);
+        }
+    }
+
+    private void failed(Exception e) {
+
+        MultiplexVirtualSocket [] tmp;
+
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            tmp = streams;
+            streams = new MultiplexVirtualSocket[0];
+            streamCount = 0;
+        }
+
+        owner.closed(this);
+
+        try {
+            carrier.close();
+        } catch (Exception e2) {
+            // ignore
+        }
+
+        for (MultiplexVirtualSocket s : tmp) {
+            if (s != null) {
+                s.failed(e);
+            }
+        }
+    }
+
+    void close() {
+        failed(new IOException("Multiplexed connection closed"));
+    }
+
+    public String toString() {
+        return "MultiplexConnection(" + peer + ")";
+    }
+}
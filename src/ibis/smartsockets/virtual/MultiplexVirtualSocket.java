@@ -0,0 +1,616 @@
+package ibis.smartsockets.virtual;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+
+/**
+ * A VirtualSocket that is multiplexed over a {@link MultiplexConnection}.
+ *
+ * Data received by the carrier is queued here until it is read. Every time
+ * a quarter of the window has been read, the sender is given credit to send
+ * this amount again. Written data is buffered until MAX_FRAME bytes are
+ * available or the stream is flushed, and is only sent when there is credit.
+ */
+final class MultiplexVirtualSocket extends VirtualSocket {
+
+    private static final int PENDING = -2;
+    private static final int TIMEOUT = -1;
+
+    private final MultiplexConnection connection;
+
+    private final int window;
+
+    private volatile int stream;
+
+    // Result of the connection setup.
+    private int openResult = PENDING;
+
+    // Set once the application may use this socket.
+    private boolean accepted = false;
+
+    private boolean closed = false;
+
+    private IOException error;
+
+    private int timeout = 0;
+
+    // Input state
+    private final LinkedList<byte []> received = new LinkedList<byte []>();
+    private byte [] current;
+    private int currentPos;
+    private int available;
+    private int consumed;
+
+    private boolean inputShutdown = false;
+    private boolean remoteClosed = false;
+
+    // Output state
+    private int credits;
+    private boolean outputShutdown = false;
+
+    private final Input in = new Input();
+    private final Output out = new Output();
+
+    private final class Input extends InputStream {
+
+        public int read() throws IOException {
+
+            byte [] tmp = new byte[1];
+
+            int n = read(tmp, 0, 1);
+
+            if (n == -1) {
+                return -1;
+            }
+
+            return tmp[0] & 0xff;
+        }
+
+        public int read(byte [] b, int off, int len) throws IOException {
+            return receive(b, off, len);
+        }
+
+        public int available() {
+            synchronized (MultiplexVirtualSocket.this) {
+                return available;
+            }
+        }
+
+        public void close() throws IOException {
+            shutdownInput();
+        }
+    }
+
+    private final class Output extends OutputStream {
+
+        private final byte [] buffer = new byte[MultiplexConnection.MAX_FRAME];
+        private int count = 0;
+
+        public synchronized void write(int b) throws IOException {
+
+            if (count == buffer.length) {
+                send();
+            }
+
+            buffer[count++] = (byte) b;
+        }
+
+        public synchronized void write(byte [] b, int off, int len)
+            throws IOException {
+
+            while (len > 0) {
+
+                if (count == buffer.length) {
+                    send();
+                }
+
+                int n = Math.min(len, buffer.length - count);
+
+                System.arraycopy(b, off, buffer, count, n);
+
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        public synchronized void flush() throws IOException {
+            send();
+        }
+
+        public void close() throws IOException {
+            shutdownOutput();
+        }
+
+        // Sends the buffered data, as far as the credits allow.
+        private void send() throws IOException {
+
+            int off = 0;
+
+            while (off < count) {
+                int n = takeCredits(count - off);
+                connection.writeFrame(MultiplexConnection.DATA, stream, n,
+                        buffer, off, n);
+                off += n;
+            }
+
+            count = 0;
+        }
+    }
+
+    MultiplexVirtualSocket(MultiplexConnection connection,
+            VirtualSocketAddress target) {
+
+        super(target);
+
+        this.connection = connection;
+        this.window = connection.getWindow();
+    }
+
+    void setStream(int stream) {
+        this.stream = stream;
+    }
+
+    synchronized void setCredits(int credits) {
+        this.credits = credits;
+    }
+
+    /**
+     * Waits until the other side has accepted or rejected this stream.
+     *
+     * @return 0 if accepted, -1 on a timeout, or the reason of the reject.
+     */
+    synchronized int waitForOpen(int timeout) throws IOException {
+
+        long deadline = System.currentTimeMillis() + timeout;
+        long left = timeout;
+
+        while (openResult == PENDING && error == null
+                && (timeout == 0 || left > 0)) {
+            try {
+                wait(timeout == 0 ? 0 : left);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+
+            left = deadline - System.currentTimeMillis();
+        }
+
+        if (openResult == PENDING) {
+
+            if (error != null) {
+                throw error;
+            }
+
+            openResult = TIMEOUT;
+        }
+
+        return openResult;
+    }
+
+    // Called by the carrier when an ACCEPT or REJECT is received.
+    synchronized void opened(int result, int credits) {
+
+        if (openResult != PENDING) {
+            // We have given up already.
+            return;
+        }
+
+        openResult = result;
+
+        if (result == 0) {
+            this.credits = credits;
+            accepted = true;
+        }
+
+        notifyAll();
+    }
+
+    // Called by the carrier when DATA is received. Returns false if the other
+    // side sent more than its credit allows.
+    boolean data(byte [] data) {
+
+        synchronized (this) {
+            // The data we have not returned any credit for yet.
+            if (available + consumed + data.length > window) {
+                return false;
+            }
+
+            if (!inputShutdown) {
+                received.addLast(data);
+                available += data.length;
+                notifyAll();
+                return true;
+            }
+        }
+
+        // Nobody is going to read this, so we drop it and allow the other
+        // side to continue.
+        connection.queueFrame(MultiplexConnection.CREDIT, stream,
+                data.length);
+        return true;
+    }
+
+    // Called by the carrier when CREDIT is received.
+    synchronized void credit(int bytes) {
+        credits += bytes;
+        notifyAll();
+    }
+
+    // Called by the carrier when CLOSE is received.
+    void remoteClose() {
+
+        boolean reject = false;
+        boolean remove = false;
+
+        synchronized (this) {
+
+            remoteClosed = true;
+
+            if (!accepted && openResult == PENDING) {
+                // Incoming stream that was given up before it was accepted.
+                // This will make the server socket skip it.
+                closed = true;
+                reject = true;
+            } else {
+                remove = outputShutdown;
+            }
+
+            notifyAll();
+        }
+
+        if (reject) {
+            connection.remove(stream, this);
+            connection.queueFrame(MultiplexConnection.REJECT, stream,
+                    MultiplexConnection.REJECT_NOT_FOUND);
+        } else if (remove) {
+            connection.remove(stream, this);
+        }
+    }
+
+    // Called by the carrier when it fails.
+    synchronized void failed(Exception e) {
+
+        if (e instanceof IOException) {
+            error = (IOException) e;
+        } else {
+            error = new IOException("Multiplexed connection failed: " + e);
+        }
+
+        notifyAll();
+    }
+
+    private synchronized int takeCredits(int wanted) throws IOException {
+
+        while (credits == 0 && error == null && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
+
+        if (error != null) {
+            throw error;
+        }
+
+        if (credits == 0) {
+            throw new SocketException("Socket closed");
+        }
+
+        int n = Math.min(wanted, credits);
+        credits -= n;
+        return n;
+    }
+
+    private int receive(byte [] b, int off, int len) throws IOException {
+
+        if (len == 0) {
+            return 0;
+        }
+
+        int n = 0;
+        int ack = 0;
+
+        synchronized (this) {
+
+            long deadline = System.currentTimeMillis() + timeout;
+
+            while (current == null && received.size() == 0) {
+
+                if (inputShutdown) {
+                    throw new SocketException("Socket closed");
+                }
+
+                if (remoteClosed) {
+                    return -1;
+                }
+
+                if (error != null) {
+                    throw error;
+                }
+
+                long left = deadline - System.currentTimeMillis();
+
+                if (timeout > 0 && left <= 0) {
+                    throw new SocketTimeoutException("Read timed out");
+                }
+
+                try {
+                    wait(timeout > 0 ? left : 0);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+
+            while (n < len && (current != null || received.size() > 0)) {
+
+                if (current == null) {
+                    current = received.removeFirst();
+                    currentPos = 0;
+                }
+
+                int tmp = Math.min(len - n, current.length - currentPos);
+
+                System.arraycopy(current, currentPos, b, off + n, tmp);
+
+                n += tmp;
+                currentPos += tmp;
+
+                if (currentPos == current.length) {
+                    current = null;
+                }
+            }
+
+            available -= n;
+            consumed += n;
+
+            // NOTE: once the other side has closed, it will not send any
+            // more data, so there is no need to return any credits.
+            if (consumed >= window / 4 && !remoteClosed) {
+                ack = consumed;
+                consumed = 0;
+            }
+        }
+
+        if (ack > 0) {
+            connection.writeFrame(MultiplexConnection.CREDIT, stream, ack);
+        }
+
+        return n;
+    }
+
+    protected void connectionAccepted(int timeout) throws IOException {
+
+        synchronized (this) {
+            if (closed) {
+                throw new SocketException("Socket closed by other side");
+            }
+
+            accepted = true;
+        }
+
+        connection.writeFrame(MultiplexConnection.ACCEPT, stream, window);
+    }
+
+    protected void connectionRejected(int timeout) {
+
+        connection.remove(stream, this);
+
+        try {
+            connection.writeFrame(MultiplexConnection.REJECT, stream,
+                    MultiplexConnection.REJECT_NOT_FOUND);
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    public void waitForAccept(int timeout) throws IOException {
+        // The stream is accepted once it is returned by the carrier.
+    }
+
+    public void close() throws IOException {
+
+        synchronized (this) {
+            if (closed && outputShutdown) {
+                return;
+            }
+        }
+
+        try {
+            shutdownOutput();
+        } finally {
+            boolean remove = false;
+
+            synchronized (this) {
+                closed = true;
+                inputShutdown = true;
+
+                received.clear();
+                current = null;
+                available = 0;
+
+                remove = remoteClosed;
+                notifyAll();
+            }
+
+            if (remove) {
+                connection.remove(stream, this);
+            }
+        }
+    }
+
+    public SocketChannel getChannel() {
+        return null;
+    }
+
+    public InputStream getInputStream() throws IOException {
+        return in;
+    }
+
+    public int getLocalPort() {
+        return 0;
+    }
+
+    public SocketAddress getLocalSocketAddress() {
+        return null;
+    }
+
+    public boolean getOOBInline() throws SocketException {
+        return false;
+    }
+
+    public OutputStream getOutputStream() throws IOException {
+        return out;
+    }
+
+    public int getReceiveBufferSize() throws SocketException {
+        return window;
+    }
+
+    public boolean getReuseAddress() throws SocketException {
+        return false;
+    }
+
+    public int getSendBufferSize() throws SocketException {
+        return MultiplexConnection.MAX_FRAME;
+    }
+
+    public int getSoLinger() throws SocketException {
+        return 0;
+    }
+
+    public synchronized int getSoTimeout() throws SocketException {
+        return timeout;
+    }
+
+    public boolean getTcpNoDelay() throws SocketException {
+        return true;
+    }
+
+    public int getTrafficClass() throws SocketException {
+        return 0;
+    }
+
+    public boolean isBound() {
+        return true;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    public synchronized boolean isConnected() {
+        return !closed;
+    }
+
+    public synchronized boolean isInputShutdown() {
+        return inputShutdown;
+    }
+
+    public synchronized boolean isOutputShutdown() {
+        return outputShutdown;
+    }
+
+    public void sendUrgentData(int data) throws IOException {
+        // ignored
+    }
+
+    public void setKeepAlive(boolean on) throws SocketException {
+        // ignored
+    }
+
+    public void setOOBInline(boolean on) throws SocketException {
+        // ignored
+    }
+
+    public void setReceiveBufferSize(int sz) throws SocketException {
+        // ignored
+    }
+
+    public void setReuseAddress(boolean on) throws SocketException {
+        // ignored
+    }
+
+    public void setSendBufferSize(int sz) throws SocketException {
+        // ignored
+    }
+
+    public void setSoLinger(boolean on, int linger) throws SocketException {
+        // ignored
+    }
+
+    public synchronized void setSoTimeout(int t) throws SocketException {
+        timeout = t;
+        notifyAll();
+    }
+
+    public void setTcpNoDelay(boolean on) throws SocketException {
+        // ignored
+    }
+
+    public void setTrafficClass(int tc) throws SocketException {
+        // ignored
+    }
+
+    public void shutdownInput() throws IOException {
+
+        synchronized (this) {
+            inputShutdown = true;
+
+            received.clear();
+            current = null;
+            available = 0;
+
+            notifyAll();
+        }
+    }
+
+    public void shutdownOutput() throws IOException {
+
+        synchronized (this) {
+            if (outputShutdown || (openResult != 0 && !accepted
+                    && openResult != TIMEOUT)) {
+                outputShutdown = true;
+                return;
+            }
+        }
+
+        boolean remove = false;
+
+        try {
+            if (accepted) {
+                out.flush();
+            }
+        } finally {
+            synchronized (this) {
+                if (!outputShutdown) {
+                    outputShutdown = true;
+                    remove = remoteClosed;
+                } else {
+                    // Someone else beat us to it.
+                    return;
+                }
+            }
+
+            try {
+                connection.writeFrame(MultiplexConnection.CLOSE, stream, 0);
+            } finally {
+                if (remove) {
+                    connection.remove(stream, this);
+                }
+            }
+        }
+    }
+
+    public String toString() {
+        return "MultiplexVirtualSocket(" + connection.getPeer() + ", "
+                + stream + ")";
+    }
+}
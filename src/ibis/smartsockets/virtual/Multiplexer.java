@@ -0,0 +1,340 @@
+package ibis.smartsockets.virtual;
+
+import ibis.smartsockets.direct.DirectSocketAddress;
+import ibis.smartsockets.util.ThreadPool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Multiplexes all virtual connections to the same machine over a single
+ * virtual connection (a {@link MultiplexConnection}).
+ *
+ * The first connection to a machine opens a carrier to the multiplex port of
+ * that machine, using the normal connection setup. Later connections to the
+ * same machine only exchange a few frames over this carrier. When a machine
+ * cannot be reached this way (for example, because multiplexing is disabled
+ * on the other side), it is not tried again for a while, and the normal
+ * connection setup is used instead.
+ */
+final class Multiplexer implements Runnable {
+
+    private static final Logger logger =
+        LoggerFactory.getLogger("ibis.smartsockets.virtual.multiplex");
+
+    // Time during which a machine without a carrier is not retried.
+    private static final long RETRY_DELAY = 60000;
+
+    private final VirtualSocketFactory parent;
+
+    private final VirtualServerSocket server;
+
+    private final DirectSocketAddress local;
+
+    private final int port;
+
+    private final int window;
+
+    private final HashMap<DirectSocketAddress, MultiplexConnection>
+        connections = new HashMap<DirectSocketAddress, MultiplexConnection>();
+
+    private final HashSet<DirectSocketAddress> pending =
+        new HashSet<DirectSocketAddress>();
+
+    private final HashMap<DirectSocketAddress, Long> unreachable =
+        new HashMap<DirectSocketAddress, Long>();
+
+    private boolean done = false;
+
+    private long streams;
+    private long carriers;
+    private long fallbacks;
+
+    Multiplexer(VirtualSocketFactory parent, VirtualServerSocket server,
+            DirectSocketAddress local, int port, int window) {
+
+        this.parent = parent;
+        this.server = server;
+        this.local = local;
+        this.port = port;
+        this.window = window;
+
+        ThreadPool.createNew(this, "Multiplexer acceptor");
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    VirtualServerSocket getServerSocket(int port) {
+        return parent.getServerSocket(port);
+    }
+
+    /**
+     * Creates a multiplexed connection to the target.
+     *
+     * @return the new socket, or null if the target cannot be reached using
+     * a carrier, or the carrier failed.
+     * @throws IOException if the target was reached, but refused the
+     * connection.
+     */
+    VirtualSocket connect(VirtualSocketAddress target, int timeout)
+        throws IOException {
+
+        long deadline = System.currentTimeMillis() + timeout;
+
+        MultiplexConnection c = getConnection(target, timeout);
+
+        if (c == null) {
+            synchronized (this) {
+                fallbacks++;
+            }
+            return null;
+        }
+
+        long left = deadline - System.currentTimeMillis();
+
+        if (left <= 0) {
+            left = 1;
+        }
+
+        VirtualSocket s = c.open(target, (int) left);
+
+        if (s == null) {
+            // The carrier is dead (e.g., the other side restarted) or does
+            // not answer. A new connection may still work.
+            DirectSocketAddress machine = target.machine();
+
+            synchronized (this) {
+                if (connections.get(machine) == c) {
+                    connections.remove(machine);
+                }
+                fallbacks++;
+            }
+            return null;
+        }
+
+        synchronized (this) {
+            streams++;
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Created multiplexed connection " + s + " to "
+                    + target);
+        }
+
+        return s;
+    }
+
+    private MultiplexConnection getConnection(VirtualSocketAddress target,
+            int timeout) {
+
+        DirectSocketAddress machine = target.machine();
+
+        long deadline = System.currentTimeMillis() + timeout;
+
+        synchronized (this) {
+            while (true) {
+
+                if (done) {
+                    return null;
+                }
+
+                MultiplexConnection c = connections.get(machine);
+
+                if (c != null) {
+                    return c;
+                }
+
+                Long retry = unreachable.get(machine);
+
+                if (retry != null) {
+                    if (System.currentTimeMillis() < retry) {
+                        return null;
+                    }
+
+                    unreachable.remove(machine);
+                }
+
+                if (!pending.contains(machine)) {
+                    // We will create the carrier ourselves.
+                    pending.add(machine);
+                    break;
+                }
+
+                // Someone else is creating the carrier, so wait for it.
+                long left = deadline - System.currentTimeMillis();
+
+                if (left <= 0) {
+                    return null;
+                }
+
+                try {
+                    wait(left);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+        }
+
+        MultiplexConnection c = null;
+
+        // We may have waited for someone else to create the carrier first.
+        long left = deadline - System.currentTimeMillis();
+
+        if (left <= 0) {
+            left = 1;
+        }
+
+        try {
+            VirtualSocket s = parent.createNewClientSocket(
+                    new VirtualSocketAddress(machine, port, target.hub(),
+                            target.cluster()), (int) left, false, null);
+
+            try {
+                c = new MultiplexConnection(this, s, machine, local, window);
+            } catch (IOException e) {
+                try {
+                    s.close();
+                } catch (Exception e2) {
+                    // ignore
+                }
+                throw e;
+            }
+
+            if (logger.isInfoEnabled()) {
+                logger.info("Created multiplexed connection to " + machine);
+            }
+        } catch (IOException e) {
+            if (logger.isInfoEnabled()) {
+                logger.info("Failed to create multiplexed connection to "
+                        + machine + ", using separate connections", e);
+            }
+        }
+
+        synchronized (this) {
+            pending.remove(machine);
+
+            if (c != null) {
+                carriers++;
+
+                // NOTE: the other side may have connected to us in the mean
+                // time. We simply keep using our own carrier.
+                connections.put(machine, c);
+            } else {
+                unreachable.put(machine,
+                        System.currentTimeMillis() + RETRY_DELAY);
+            }
+
+            notifyAll();
+        }
+
+        return c;
+    }
+
+    // Called by the carrier when the other side has introduced itself.
+    void connected(MultiplexConnection c) {
+
+        DirectSocketAddress peer = c.getPeer();
+
+        synchronized (this) {
+            carriers++;
+
+            unreachable.remove(peer);
+
+            if (!connections.containsKey(peer) && !pending.contains(peer)) {
+                connections.put(peer, c);
+            }
+
+            notifyAll();
+        }
+
+        if (logger.isInfoEnabled()) {
+            logger.info("Accepted multiplexed connection from " + peer);
+        }
+    }
+
+    // Called by the carrier when it is closed.
+    synchronized void closed(MultiplexConnection c) {
+
+        DirectSocketAddress peer = c.getPeer();
+
+        if (peer != null && connections.get(peer) == c) {
+            connections.remove(peer);
+        }
+    }
+
+    public void run() {
+
+        while (true) {
+
+            VirtualSocket s = null;
+
+            try {
+                s = server.accept();
+            } catch (IOException e) {
+                if (server.isClosed()) {
+                    return;
+                }
+
+                logger.info("Multiplexer failed to accept connection", e);
+                continue;
+            }
+
+            try {
+                new MultiplexConnection(this, s, null, null, window);
+            } catch (IOException e) {
+                logger.info("Multiplexer failed to set up connection", e);
+
+                try {
+                    s.close();
+                } catch (Exception e2) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    void end() {
+
+        ArrayList<MultiplexConnection> tmp;
+
+        synchronized (this) {
+            done = true;
+            tmp = new ArrayList<MultiplexConnection>(connections.values());
+            connections.clear();
+            notifyAll();
+        }
+
+        try {
+            server.close();
+        } catch (Exception e) {
+            // ignore
+        }
+
+        for (MultiplexConnection c : tmp) {
+            c.close();
+        }
+    }
+
+    synchronized long getStreams() {
+        return streams;
+    }
+
+    synchronized long getCarriers() {
+        return carriers;
+    }
+
+    synchronized long getFallbacks() {
+        return fallbacks;
+    }
+
+    synchronized int size() {
+        return connections.size();
+    }
+}
@@ -5,6 +5,7 @@ import ibis.smartsockets.direct.DirectSocketAddress;
 import ibis.smartsockets.util.TypedProperties;
 import ibis.smartsockets.virtual.modules.ConnectModule;
 
+import java.io.File;
 import java.util.Arrays;
 import java.util.HashMap;
 
@@ -28,32 +29,6 @@ public class VirtualClusters {
             logger.info("Created cluster definition " + name + " "
                     + Arrays.deepToString(order));
         }
-
-        public void reorder(ConnectModule m) {
-
-            if (order[0] == m) {
-                return;
-            }
-
-            int index = -1;
-
-            for (int i=1;i<order.length;i++) {
-                if (order[i] == m) {
-                    index = i;
-                    break;
-                }
-            }
-
-            if (index == -1) {
-                logger.warn("Oops: Module " + m.getName() + " not found while"
-                        + " reordering cluster " + name);
-                return;
-            }
-
-            ConnectModule tmp = order[0];
-            order[0] = m;
-            order[index] = tmp;
-        }
     }
 
     private final boolean reorder;
@@ -62,13 +37,33 @@ public class VirtualClusters {
     private final HashMap<String, ClusterDefinition> clusters =
         new HashMap<String, ClusterDefinition>();
 
-    private final HashMap<VirtualSocketAddress, ClusterDefinition> orphans =
-        new HashMap<VirtualSocketAddress, ClusterDefinition>();
+    private final ConnectOrderCache cache;
+    private final File cacheFile;
 
     VirtualClusters(VirtualSocketFactory parent,
             TypedProperties properties, ConnectModule [] order) {
 
         reorder = properties.booleanProperty(SmartSocketsProperties.CLUSTER_REORDER, true);
+
+        cache = new ConnectOrderCache(
+                properties.getIntProperty(
+                        SmartSocketsProperties.CLUSTER_CACHE_SIZE, 1024),
+                1000L * properties.getIntProperty(
+                        SmartSocketsProperties.CLUSTER_CACHE_HALFLIFE, 600));
+
+        String file = properties.getProperty(
+                SmartSocketsProperties.CLUSTER_CACHE_FILE, null);
+
+        if (reorder && file != null && file.length() > 0) {
+            cacheFile = new File(file);
+
+            if (cacheFile.exists()) {
+                cache.load(cacheFile);
+            }
+        } else {
+            cacheFile = null;
+        }
+
         String myc = properties.getProperty(SmartSocketsProperties.CLUSTER_MEMBER, null);
 
         if (myc == null || myc.length() == 0) {
@@ -154,123 +149,99 @@ public class VirtualClusters {
         return localCluster;
     }
 
-    private ConnectModule[] getSingleNodeOrder(VirtualSocketAddress target) {
+    // Returns the key of the route to a target. This is the cluster of the
+    // target, or its hub if it has no cluster. For 'orphan' nodes (without
+    // cluster or hub) the target itself is used.
+    private String getRoute(VirtualSocketAddress target) {
 
-        if (!reorder) {
-            return defaultOrder.order;
-        }
+        String c = target.cluster();
 
-        if (logger.isInfoEnabled()) {
-            logger.info("Determine connect order for node: " + target.toString());
+        if (c != null && c.length() > 0) {
+            return "cluster " + c;
         }
 
-        ClusterDefinition d = orphans.get(target);
+        DirectSocketAddress hub = target.hub();
 
-        if (d == null) {
-            d = new ClusterDefinition("orphan", defaultOrder.order.clone());
-            orphans.put(target, d);
+        if (hub != null) {
+            return "hub " + hub.toString();
         }
 
-        if (logger.isInfoEnabled()) {
-            logger.info("Connect order: " + Arrays.deepToString(d.order));
-        }
-
-        return d.order;
+        return "target " + target.toString();
     }
 
+    /**
+     * Returns the order in which the modules should be tried to connect to
+     * the target. The returned array may be shared, and must not be changed.
+     *
+     * @param target the target.
+     * @return the modules in the order in which they should be tried.
+     */
     public ConnectModule[] getOrder(VirtualSocketAddress target) {
 
-        // Get the cluster of the target machine
-        String c = target.cluster();
+        // Get the cluster definition of the target cluster, if any...
+        ClusterDefinition d = null;
 
-        if (c == null || c.length() == 0) {
-            // No cluster defined... let's use the hub address as a cluster.
-            DirectSocketAddress hub = target.hub();
+        String c = target.cluster();
 
-            if (hub != null) {
-                c = hub.toString();
-            }
+        if (c != null && c.length() > 0) {
+            d = clusters.get(c);
         }
 
-        if (c == null || c.length() == 0) {
-            // Handle 'orphan' nodes (without cluster or hub) seperately...
-            ConnectModule[] result = getSingleNodeOrder(target);
+        ConnectModule [] order = (d == null ? defaultOrder.order : d.order);
 
-            if (result == null) {
-                return defaultOrder.order;
-            }
-        }
-
-        if (logger.isInfoEnabled()) {
-            logger.info("Determine connect order for cluster: " + c);
+        if (!reorder) {
+            return order;
         }
 
-        // Get the cluster definition of the target cluster...
-        ClusterDefinition d = clusters.get(c);
-
-        if (d == null) {
-            // No definition is found!
-            if (!reorder) {
-                // We are not allowed to create new clusters, so we just return
-                // the default order
-                return defaultOrder.order;
-            }
+        String route = getRoute(target);
 
-            if (logger.isInfoEnabled()) {
-                logger.info("New cluster found: " + c);
-            }
-
-            // Let's get creative!
-            // NOTE: Don't forget to -clone- the default order!
-            d = new ClusterDefinition(c, defaultOrder.order.clone());
-            clusters.put(c, d);
-        }
+        ConnectModule [] result = cache.order(route, order);
 
         if (logger.isInfoEnabled()) {
-            logger.info("Order found for cluster: " + c + " -> "
-                    + Arrays.deepToString(d.order));
+            logger.info("Connect order for " + route + " -> "
+                    + Arrays.deepToString(result));
         }
 
-        return d.order;
+        return result;
     }
 
+    /**
+     * Records that a module succeeded to connect to the target.
+     *
+     * @param target the target.
+     * @param m the module.
+     * @param time the time it took (in milliseconds).
+     */
+    public void succes(VirtualSocketAddress target, ConnectModule m,
+            long time) {
 
-    public void succes(VirtualSocketAddress target, ConnectModule m) {
-
-        if (!reorder) {
-            return;
+        if (reorder) {
+            cache.succes(getRoute(target), m, time);
         }
+    }
 
-        String c = target.cluster();
-
-        ClusterDefinition d = null;
-
-        if (c == null || c.length() == 0) {
-            // If no order is defined we use the hub.
-            DirectSocketAddress hub = target.hub();
+    /**
+     * Records that a module failed to connect to the target.
+     *
+     * @param target the target.
+     * @param m the module.
+     * @param time the time it took (in milliseconds).
+     */
+    public void failed(VirtualSocketAddress target, ConnectModule m,
+            long time) {
 
-            if (hub != null) {
-                c = hub.toString();
-            }
+        if (reorder) {
+            cache.failed(getRoute(target), m, time);
         }
+    }
 
-        if (c == null || c.length() == 0) {
-            // Handle 'orphan' nodes seperately...
-            if (logger.isInfoEnabled()) {
-                logger.info("Caching connect order for node: "
-                        + target.toString());
-            }
-            d = orphans.get(target);
-        } else {
-            //  Get the cluster definition of the target cluster...
-            if (logger.isInfoEnabled()) {
-                logger.info("Caching connect order for cluster: " + c);
-            }
-            d = clusters.get(c);
-        }
+    /**
+     * Saves the connect statistics, if a cache file is configured.
+     */
+    public void save() {
 
-        if (d != null) {
-            d.reorder(m);
+        if (cacheFile != null) {
+            cache.save(cacheFile);
         }
     }
 }
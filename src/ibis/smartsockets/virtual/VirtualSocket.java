@@ -28,6 +28,9 @@ public abstract class VirtualSocket {
     /** The configuration of this VirtualSocket. */
     protected Map<String, Object> props;
 
+    /** The time at which this VirtualSocket was created. */
+    final long created = System.currentTimeMillis();
+
     /**
      * Create an unbound VirtualSocket.
      */
@@ -23,10 +23,15 @@ import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -160,6 +165,37 @@ public final class VirtualSocketFactory {
 
     private final boolean DETAILED_EXCEPTIONS;
 
+    private final boolean RACE;
+
+    private final int RACE_DELAY;
+
+    private final VirtualSocketPool pool;
+
+    private volatile Multiplexer multiplexer;
+
+    // Time at which the creation of this factory started.
+    private final long creationTime;
+
+    // Time (in ms. since creationTime) it took to start completely, and to
+    // create the first connection.
+    private volatile long startupTime = -1;
+    private volatile long firstConnectionTime = -1;
+
+    // Result of the hub discovery that runs while the factory is created
+    // (async startup only).
+    private final FutureTask<DirectSocketAddress> hubDiscovery;
+
+    // Creates the service link and starts the modules that need it in the
+    // background (async startup only).
+    private FutureTask<ServiceLink> startup;
+
+    // The modules that could not be started in the background.
+    private final HashSet<ConnectModule> unavailable =
+            new HashSet<ConnectModule>();
+
+    // Set when the factory is ended (guarded by unavailable).
+    private boolean ended = false;
+
     private final Random random;
 
     private final HashMap<Integer, VirtualServerSocket> serverSockets =
@@ -169,13 +205,13 @@ public final class VirtualSocketFactory {
 
     private DirectSocketAddress myAddresses;
 
-    private DirectSocketAddress hubAddress;
+    private volatile DirectSocketAddress hubAddress;
 
-    private VirtualSocketAddress localVirtualAddress;
+    private volatile VirtualSocketAddress localVirtualAddress;
 
-    private String localVirtualAddressAsString;
+    private volatile String localVirtualAddressAsString;
 
-    private ServiceLink serviceLink;
+    private volatile ServiceLink serviceLink;
 
     private Hub hub;
 
@@ -207,11 +243,15 @@ public final class VirtualSocketFactory {
         }
     }
 
-    private VirtualSocketFactory(DirectSocketFactory df, TypedProperties p)
+    private VirtualSocketFactory(DirectSocketFactory df, TypedProperties p,
+            FutureTask<DirectSocketAddress> hubDiscovery, long creationTime)
             throws InitializationException {
 
         directSocketFactory = df;
 
+        this.hubDiscovery = hubDiscovery;
+        this.creationTime = creationTime;
+
         if (logger.isInfoEnabled()) {
             logger.info("Creating VirtualSocketFactory");
         }
@@ -228,6 +268,20 @@ public final class VirtualSocketFactory {
         DEFAULT_ACCEPT_TIMEOUT = p.getIntProperty(
                 SmartSocketsProperties.ACCEPT_TIMEOUT, 60000);
 
+        RACE = p.booleanProperty(SmartSocketsProperties.MODULES_RACE, false);
+
+        RACE_DELAY = p.getIntProperty(
+                SmartSocketsProperties.MODULES_RACE_DELAY, 500);
+
+        if (p.booleanProperty(SmartSocketsProperties.POOL, false)) {
+            pool = new VirtualSocketPool(
+                    p.getIntProperty(SmartSocketsProperties.POOL_IDLE, 30000),
+                    p.getIntProperty(SmartSocketsProperties.POOL_TTL, 300000),
+                    p.getIntProperty(SmartSocketsProperties.POOL_MAX, 4));
+        } else {
+            pool = null;
+        }
+
         // NOTE: order is VERY important here!
         try {
             loadModules();
@@ -248,13 +302,20 @@ public final class VirtualSocketFactory {
 
         // We now create the service link. This may connect to the hub that we
         // have just started.
-        String localCluster = p.getProperty(
+        final String localCluster = p.getProperty(
                 SmartSocketsProperties.CLUSTER_MEMBER, null);
 
-        createServiceLink(localCluster);
+        boolean async = p.booleanProperty(
+                SmartSocketsProperties.STARTUP_ASYNC, false);
+
+        if (!async) {
+            createServiceLink(localCluster);
+        }
 
         // Once the servicelink is up and running, we can start the modules.
-        startModules();
+        // With an async startup, only the modules that do not need it are
+        // started here.
+        startModules(async);
 
         if (modules.size() == 0) {
             logger.info("Failed to start any modules!");
@@ -263,10 +324,24 @@ public final class VirtualSocketFactory {
 
         loadClusterDefinitions();
 
-        localVirtualAddress = new VirtualSocketAddress(myAddresses, 0,
-                hubAddress, clusters.localCluster());
+        setLocalVirtualAddress();
+
+        // NOTE: the multiplexer only needs the hub address of its targets,
+        // so it can be started before the servicelink is available.
+        startMultiplexer(p);
 
-        localVirtualAddressAsString = localVirtualAddress.toString();
+        if (async) {
+            startup = new FutureTask<ServiceLink>(new Callable<ServiceLink>() {
+                public ServiceLink call() throws Exception {
+                    startInBackground(localCluster);
+                    return serviceLink;
+                }
+            });
+
+            ThreadPool.createNew(startup, "VirtualSocketFactory Startup");
+        } else {
+            started();
+        }
 
         printStatistics =
                 p.booleanProperty(SmartSocketsProperties.STATISTICS_PRINT);
@@ -287,6 +362,166 @@ public final class VirtualSocketFactory {
         }
     }
 
+    private void setLocalVirtualAddress() {
+
+        VirtualSocketAddress tmp = new VirtualSocketAddress(myAddresses, 0,
+                hubAddress, clusters.localCluster());
+
+        localVirtualAddressAsString = tmp.toString();
+        localVirtualAddress = tmp;
+    }
+
+    // Creates the service link and starts the modules that need it, while
+    // the factory may already be used for direct connections.
+    private void startInBackground(String localCluster) {
+
+        createServiceLink(localCluster);
+
+        synchronized (unavailable) {
+            if (ended) {
+                // Too late, the factory was ended while we were connecting.
+                if (serviceLink != null) {
+                    serviceLink.setDone();
+                }
+                started();
+                return;
+            }
+        }
+
+        ArrayList<ConnectModule> tmp = new ArrayList<ConnectModule>();
+
+        for (ConnectModule c : getModules()) {
+            if (c.requiresServiceLink) {
+                tmp.add(c);
+            }
+        }
+
+        for (ConnectModule c : tmp) {
+            try {
+                c.startModule(serviceLink);
+            } catch (Exception e) {
+                // The module is left in the module list, so we only have to
+                // skip it when connecting.
+                logger.warn("Module " + c.module + " unavailable ("
+                        + (serviceLink == null ? "no serviceLink)!"
+                                : "exception during setup)!"), e);
+
+                synchronized (unavailable) {
+                    unavailable.add(c);
+                }
+            }
+        }
+
+        if (hubAddress != null) {
+            setLocalVirtualAddress();
+        }
+
+        started();
+    }
+
+    private void started() {
+
+        startupTime = System.currentTimeMillis() - creationTime;
+
+        if (logger.isInfoEnabled()) {
+            logger.info("VirtualSocketFactory started in " + startupTime
+                    + " ms.");
+        }
+    }
+
+    /**
+     * Waits until the background startup of this factory has finished. This
+     * returns immediately if the factory was not started in the background.
+     *
+     * @param timeout the maximum time to wait (in milliseconds), or 0 to wait
+     * until the startup has finished.
+     * @return if the startup has finished.
+     */
+    public boolean waitForStartup(long timeout) {
+
+        if (startup == null) {
+            return true;
+        }
+
+        try {
+            if (timeout <= 0) {
+                startup.get();
+            } else {
+                startup.get(timeout, TimeUnit.MILLISECONDS);
+            }
+        } catch (TimeoutException e) {
+            return false;
+        } catch (Exception e) {
+            // The startup itself failed, but it has finished.
+            logger.warn("Background startup failed!", e);
+        }
+
+        return true;
+    }
+
+    // Checks if a module that needs the service link may be used. If it is
+    // still being started in the background, we wait for at most timeout ms.
+    private boolean isAvailable(ConnectModule m, int timeout) {
+
+        if (startup == null || !m.requiresServiceLink) {
+            return true;
+        }
+
+        if (!waitForStartup(timeout)) {
+            if (conlogger.isInfoEnabled()) {
+                conlogger.info("Module " + m.module + " not started yet");
+            }
+            return false;
+        }
+
+        synchronized (unavailable) {
+            return !unavailable.contains(m);
+        }
+    }
+
+    /**
+     * Returns the time (in milliseconds) it took to start this factory, or -1
+     * if it is still being started in the background.
+     *
+     * @return the startup time.
+     */
+    public long getStartupTime() {
+        return startupTime;
+    }
+
+    /**
+     * Returns the time (in milliseconds) between the start of the creation of
+     * this factory and the setup of its first connection, or -1 if no
+     * connection has been created yet.
+     *
+     * @return the time to the first connection.
+     */
+    public long getTimeToFirstConnection() {
+        return firstConnectionTime;
+    }
+
+    private void startMultiplexer(TypedProperties p)
+            throws InitializationException {
+
+        if (!p.booleanProperty(SmartSocketsProperties.MULTIPLEX, false)) {
+            return;
+        }
+
+        int port = p.getIntProperty(SmartSocketsProperties.MULTIPLEX_PORT, 43);
+
+        int window = p.getIntProperty(SmartSocketsProperties.MULTIPLEX_WINDOW,
+                64 * 1024);
+
+        try {
+            VirtualServerSocket ss = createServerSocket(port, 0, null);
+            multiplexer = new Multiplexer(this, ss, myAddresses, port, window);
+        } catch (IOException e) {
+            logger.info("Failed to start multiplexer!", e);
+            throw new InitializationException("Failed to start multiplexer!",
+                    e);
+        }
+    }
+
     private void startHub(TypedProperties p)
             throws InitializationException {
 
@@ -351,7 +586,8 @@ public final class VirtualSocketFactory {
         clusters = new VirtualClusters(this, properties, getModules());
     }
 
-    private DirectSocketAddress discoverHub(String localCluster) {
+    private static DirectSocketAddress discoverHub(TypedProperties properties,
+            String localCluster) {
 
         DirectSocketAddress address = null;
 
@@ -426,8 +662,15 @@ public final class VirtualSocketFactory {
 
             DirectSocketAddress address = null;
 
-            if (useDiscovery && (discoveryPreferred || hub == null)) {
-                address = discoverHub(localCluster);
+            if (hubDiscovery != null) {
+                // Already started when the factory was created.
+                try {
+                    address = hubDiscovery.get();
+                } catch (Exception e) {
+                    logger.info("Hub discovery failed!", e);
+                }
+            } else if (useDiscovery && (discoveryPreferred || hub == null)) {
+                address = discoverHub(properties, localCluster);
             }
 
             if (address != null) {
@@ -779,11 +1022,11 @@ public final class VirtualSocketFactory {
         return tmp.toArray(new ConnectModule[tmp.size()]);
     }
 
-    private void startModules() {
+    private void startModules(boolean async) {
 
         ArrayList<ConnectModule> failed = new ArrayList<ConnectModule>();
 
-        if (serviceLink == null) {
+        if (serviceLink == null && !async) {
             // No servicelink, so remove all modules that depend on it....
             for (ConnectModule c : modules) {
                 if (c.requiresServiceLink) {
@@ -802,6 +1045,12 @@ public final class VirtualSocketFactory {
         }
 
         for (ConnectModule c : modules) {
+
+            if (async && c.requiresServiceLink) {
+                // Started once the servicelink is available.
+                continue;
+            }
+
             try {
                 c.startModule(serviceLink);
             } catch (Exception e) {
@@ -958,6 +1207,10 @@ public final class VirtualSocketFactory {
 
         int backoff = 1000;
 
+        if (!isAvailable(m, timeLeft)) {
+            return null;
+        }
+
         if (!m.matchRuntimeRequirements(properties)) {
             if (conlogger.isInfoEnabled()) {
                 conlogger.warn("Failed: module " + m.module
@@ -1011,6 +1264,7 @@ public final class VirtualSocketFactory {
                             + overloaded + " times)");
                 } else {
                     m.connectFailed(t);
+                    clusters.failed(target, m, t);
                     throw new SocketTimeoutException("Timeout while creating"
                             + " connection to " + target);
                 }
@@ -1029,6 +1283,7 @@ public final class VirtualSocketFactory {
                 }
 
                 m.connectFailed(end - start);
+                clusters.failed(target, m, end - start);
 
                 throw e;
 
@@ -1077,6 +1332,12 @@ public final class VirtualSocketFactory {
                     }
 
                     m.connectSucces(end - start);
+                    clusters.succes(target, m, end - start);
+
+                    if (firstConnectionTime < 0) {
+                        firstConnectionTime = end - creationTime;
+                    }
+
                     return vs;
 
                 } catch (TargetOverloadedException e) {
@@ -1098,7 +1359,10 @@ public final class VirtualSocketFactory {
                     }
 
                     if (!fillTimeout) {
-                        m.connectFailed(System.currentTimeMillis() - start);
+                        t = System.currentTimeMillis() - start;
+
+                        m.connectFailed(t);
+                        clusters.failed(target, m, t);
 
                         // We'll only retry if 'fillTimeout' is true
                         throw e;
@@ -1230,11 +1494,8 @@ public final class VirtualSocketFactory {
                  */
 
                 if (vs != null) {
-                    if (i > 0) {
-                        // We managed to connect, but not with the first module,
-                        // so we remember this to speed up later connections.
-                        clusters.succes(target, m);
-                    }
+                    // NOTE: the result is recorded in the clusters, so later
+                    // connections will start with the fastest module.
                     return vs;
                 }
 
@@ -1270,6 +1531,149 @@ public final class VirtualSocketFactory {
         }
     }
 
+    // A connect attempt of a single module in a race.
+    private final class ModuleAttempt implements Runnable {
+
+        private final ModuleRace race;
+        private final int index;
+        private final ConnectModule m;
+        private final VirtualSocketAddress target;
+        private final int timeout;
+        private final int timeLeft;
+        private final boolean fillTimeout;
+        private final Map<String, Object> prop;
+
+        ModuleAttempt(ModuleRace race, int index, ConnectModule m,
+                VirtualSocketAddress target, int timeout, int timeLeft,
+                boolean fillTimeout, Map<String, Object> prop) {
+
+            this.race = race;
+            this.index = index;
+            this.m = m;
+            this.target = target;
+            this.timeout = timeout;
+            this.timeLeft = timeLeft;
+            this.fillTimeout = fillTimeout;
+            this.prop = prop;
+        }
+
+        public void run() {
+            try {
+                VirtualSocket vs = createClientSocket(m, target, timeout,
+                        timeLeft, fillTimeout, prop);
+
+                if (vs != null) {
+                    race.success(index, m, vs);
+                } else {
+                    race.failed(index, null);
+                }
+            } catch (NonFatalIOException e) {
+                race.failed(index, e);
+            } catch (IOException e) {
+                race.fatal(index, e);
+            } catch (Throwable e) {
+                race.failed(index, e);
+            }
+        }
+    }
+
+    /**
+     * This method races the modules in an array of connection modules. The
+     * modules are started in order, each with a head start of RACE_DELAY ms.
+     * on the next one. The next module is started immediately if one of the
+     * running modules fails.
+     * <p>
+     * This method returns when:<br>
+     * - a connection is established and accepted<b>
+     * - a non-transient error occurs (i.e. remote port not found)<b>
+     * - all modules have failed<b>
+     * <p>
+     * Connections that are accepted after the winner are closed.
+     *
+     * @param target Target VirtualServerSocket.
+     * @param order ConnectModules in the order in which they should be started.
+     * @param timeouts Timeouts for each of the modules.
+     * @param totalTimeout Total timeout for the connection setup.
+     * @param fillTimeout Should we retry until the timeout expires ?
+     * @param properties Properties to use in connection setup.
+     * @return a VirtualSocket if the connection setup succeeded.
+     * @throws IOException a non-transient error occurred (i.e., target port
+     * does not exist on receiver).
+     * @throws NoSuitableModuleException No module could create the connection.
+     */
+    private VirtualSocket raceClientSocket(VirtualSocketAddress target,
+            ConnectModule[] order, int[] timeouts, int totalTimeout,
+            boolean fillTimeout, Map<String, Object> prop)
+            throws IOException, NoSuitableModuleException {
+
+        ModuleRace race = new ModuleRace(order.length);
+
+        long start = System.currentTimeMillis();
+
+        for (int i = 0; i < order.length && !race.isDone(); i++) {
+
+            ConnectModule m = order[i];
+            int timeout = (timeouts != null ? timeouts[i] : m.getTimeout());
+
+            int timeLeft = (int) (totalTimeout
+                    - (System.currentTimeMillis() - start));
+
+            if (timeLeft <= 0) {
+                break;
+            }
+
+            race.start();
+            ThreadPool.createNew(new ModuleAttempt(race, i, m, target,
+                    timeout, timeLeft, fillTimeout, prop),
+                    "VirtualSocketFactory race " + m.getName());
+
+            if (i < order.length - 1) {
+                race.waitForProgress(Math.min(RACE_DELAY, timeLeft));
+            }
+        }
+
+        // Wait for the running modules. They are responsible for honoring
+        // the timeout.
+        while (!race.waitForProgress(0)) {
+            // wait
+        }
+
+        race.end();
+
+        VirtualSocket vs = race.getWinner();
+
+        if (vs != null) {
+
+            int index = race.getWinnerIndex();
+
+            if (conlogger.isInfoEnabled()) {
+                conlogger.info(getVirtualAddressAsString() + ": Module "
+                        + race.getWinnerModule().getName() + " won race to "
+                        + target + " (module " + index + " of " + order.length
+                        + ", time = " + (System.currentTimeMillis() - start)
+                        + " ms.)");
+            }
+
+            return vs;
+        }
+
+        IOException fatal = race.getFatalException();
+
+        if (fatal != null) {
+            throw fatal;
+        }
+
+        if (logger.isInfoEnabled()) {
+            logger.info("No suitable module found to connect to " + target);
+        }
+
+        throw new NoSuitableModuleException("No suitable module found to"
+                + " connect to " + target + " (timeouts="
+                + Arrays.toString(timeouts) + ", fillTimeout="
+                + fillTimeout + ", race=true)", getNames(order),
+                race.getExceptions());
+    }
+
     // Distribute a given timeout over a number of modules, taking the relative
     // sizes of the default module timeouts into account.
     private int[] distributesTimeout(int timeout, int[] timeouts,
@@ -1287,6 +1691,45 @@ public final class VirtualSocketFactory {
         return timeouts;
     }
 
+    /**
+     * Returns an idle client socket, so it can be reused by a later
+     * createClientSocket to the same target. The socket must not be used by
+     * the caller afterwards. If connection pooling is disabled, or the
+     * socket cannot be pooled, the socket is closed.
+     * <p>
+     * Note that the socket is handed out again as is, so the protocol used
+     * on the connection must allow this.
+     *
+     * @param s the socket to release.
+     * @throws IOException if the socket could not be closed.
+     */
+    public void releaseClientSocket(VirtualSocket s) throws IOException {
+
+        if (pool == null || !pool.put(s)) {
+            s.close();
+        }
+    }
+
+    /**
+     * Returns the number of times createClientSocket could reuse an idle
+     * connection from the pool.
+     *
+     * @return the number of pool hits.
+     */
+    public long getPoolHits() {
+        return pool == null ? 0 : pool.getHits();
+    }
+
+    /**
+     * Returns the number of times createClientSocket could not reuse an idle
+     * connection from the pool, and had to create a new one.
+     *
+     * @return the number of pool misses.
+     */
+    public long getPoolMisses() {
+        return pool == null ? 0 : pool.getMisses();
+    }
+
     /**
      * Create a connection to the VirtualServerSocket at target.
      *
@@ -1314,6 +1757,13 @@ public final class VirtualSocketFactory {
      * This method will attempt to setup a connection to the VirtualServerSocket
      * at target within the given timeout. Using the prop parameter, properties
      * can be specified that modify the connection setup behavior.
+     * <p>
+     * If connection pooling is enabled and no properties are specified, an
+     * idle connection to the target that was returned using
+     * {@link #releaseClientSocket(VirtualSocket)} may be returned instead.
+     * Similarly, if multiplexing is enabled and no properties are specified,
+     * the connection may be multiplexed over an existing connection to the
+     * same machine.
      *
      * @param target Address of target VirtualServerSocket.
      * @param timeout The maximum timeout for the connection setup in
@@ -1346,11 +1796,57 @@ public final class VirtualSocketFactory {
          * if (timing != null) { timing[0] = System.nanoTime(); } }
          */
 
+        // Sockets created with specific properties cannot be shared.
+        if (pool != null && (prop == null || prop.isEmpty())) {
+
+            VirtualSocket vs = pool.get(target);
+
+            if (vs != null) {
+                return vs;
+            }
+        }
+
         // Check the timeout here. If it is not set, we will use the default
         if (timeout <= 0) {
             timeout = DEFAULT_TIMEOUT;
         }
 
+        // Connections with specific properties always get their own carrier.
+        if (multiplexer != null && (prop == null || prop.isEmpty())
+                && target.port() != multiplexer.getPort()) {
+
+            long start = System.currentTimeMillis();
+
+            VirtualSocket vs = multiplexer.connect(target, timeout);
+
+            if (vs != null) {
+                return vs;
+            }
+
+            // A new connection only gets the time the multiplexer left us.
+            timeout -= System.currentTimeMillis() - start;
+
+            if (timeout <= 0) {
+                throw new SocketTimeoutException("Timeout while creating"
+                        + " connection to " + target);
+            }
+        }
+
+        return createNewClientSocket(target, timeout, fillTimeout, prop);
+    }
+
+    /**
+     * Create a new connection to the VirtualServerSocket at target, without
+     * using the pool or the multiplexer.
+     */
+    VirtualSocket createNewClientSocket(VirtualSocketAddress target,
+            int timeout, boolean fillTimeout, Map<String, Object> prop)
+            throws IOException {
+
+        if (timeout <= 0) {
+            timeout = DEFAULT_TIMEOUT;
+        }
+
         ConnectModule[] order = clusters.getOrder(target);
 
         int timeLeft = timeout;
@@ -1377,6 +1873,11 @@ public final class VirtualSocketFactory {
             long start = System.currentTimeMillis();
 
             try {
+                if (RACE && order.length > 1) {
+                    return raceClientSocket(target, order, timeouts, timeLeft,
+                            fillTimeout, prop);
+                }
+
                 return createClientSocket(target, order, timeouts, timeLeft,
                 /* timing */null, fillTimeout, prop);
             } catch (NoSuitableModuleException e) {
@@ -1579,6 +2080,10 @@ public final class VirtualSocketFactory {
             port = getPort();
         }
 
+        // The address of the server socket contains the hub address, so we
+        // need to wait until we have connected to the hub.
+        waitForStartup(0);
+
         if (logger.isInfoEnabled()) {
             logger.info("Creating VirtualServerSocket(" + port + ", " + backlog
                     + ", " + properties + ")");
@@ -1691,8 +2196,27 @@ public final class VirtualSocketFactory {
             printStatistics(statisticPrefix + " [EXIT]");
         }
 
-        if (serviceLink != null) {
-            serviceLink.setDone();
+        clusters.save();
+
+        ServiceLink sl;
+
+        synchronized (unavailable) {
+            // Any servicelink created after this point is ended by the
+            // background startup.
+            ended = true;
+            sl = serviceLink;
+        }
+
+        if (pool != null) {
+            pool.clear();
+        }
+
+        if (multiplexer != null) {
+            multiplexer.end();
+        }
+
+        if (sl != null) {
+            sl.setDone();
         }
 
         if (hub != null) {
@@ -1865,13 +2389,53 @@ public final class VirtualSocketFactory {
             }
         }
 
+        long creationTime = System.currentTimeMillis();
+
+        // With an async startup, the hub discovery runs while the direct
+        // socket factory determines the local (and external) addresses.
+        FutureTask<DirectSocketAddress> discovery = null;
+
+        if (typedProperties.booleanProperty(
+                SmartSocketsProperties.STARTUP_ASYNC, false)) {
+            discovery = startHubDiscovery(typedProperties);
+        }
+
         VirtualSocketFactory factory = new VirtualSocketFactory(
                 DirectSocketFactory.getSocketFactory(typedProperties),
-                typedProperties);
+                typedProperties, discovery, creationTime);
 
         return factory;
     }
 
+    // Starts the hub discovery in the background, if it will be needed.
+    private static FutureTask<DirectSocketAddress> startHubDiscovery(
+            final TypedProperties p) {
+
+        // Discovery is only used if we know no hub at all.
+        String[] hubs = p.getStringList(SmartSocketsProperties.HUB_ADDRESSES);
+
+        if ((hubs != null && hubs.length > 0)
+                || p.booleanProperty(SmartSocketsProperties.START_HUB, false)
+                || !p.booleanProperty(
+                        SmartSocketsProperties.DISCOVERY_ALLOWED, false)) {
+            return null;
+        }
+
+        final String localCluster = p.getProperty(
+                SmartSocketsProperties.CLUSTER_MEMBER, null);
+
+        FutureTask<DirectSocketAddress> result =
+            new FutureTask<DirectSocketAddress>(
+                    new Callable<DirectSocketAddress>() {
+                        public DirectSocketAddress call() {
+                            return discoverHub(p, localCluster);
+                        }
+                    });
+
+        ThreadPool.createNew(result, "VirtualSocketFactory Hub Discovery");
+        return result;
+    }
+
     /**
      * Retrieve the contact address of this VirtualSocketFactory.
      *
@@ -1906,6 +2470,10 @@ public final class VirtualSocketFactory {
                     + modules.size() + " / "
                     + (serviceLink == null ? "No SL" : "SL") + ") ===");
 
+            statslogger.info(prefix + " startup: " + startupTime
+                    + " ms, first connection after " + firstConnectionTime
+                    + " ms");
+
             for (ConnectModule c : modules) {
                 c.printStatistics(prefix);
             }
@@ -1913,6 +2481,21 @@ public final class VirtualSocketFactory {
             if (serviceLink != null) {
                 serviceLink.printStatistics(prefix);
             }
+
+            if (pool != null) {
+                statslogger.info(prefix + " pool: " + pool.getHits()
+                        + " hits, " + pool.getMisses() + " misses, "
+                        + pool.getExpired() + " expired, " + pool.size()
+                        + " idle");
+            }
+
+            if (multiplexer != null) {
+                statslogger.info(prefix + " multiplex: "
+                        + multiplexer.getStreams() + " streams, "
+                        + multiplexer.getCarriers() + " carriers created, "
+                        + multiplexer.getFallbacks() + " fallbacks, "
+                        + multiplexer.size() + " open");
+            }
         }
     }
 }
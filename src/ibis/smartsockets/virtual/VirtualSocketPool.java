@@ -0,0 +1,257 @@
+package ibis.smartsockets.virtual;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of idle client sockets, indexed by the address they are connected to.
+ *
+ * A socket is only kept for a limited time after it was last released
+ * (maxIdle), and for a limited time after it was created (ttl). At most
+ * maxPerTarget idle sockets are kept per target. Sockets that are closed,
+ * shut down, or have unread data pending are never handed out.
+ */
+final class VirtualSocketPool {
+
+    private static final Logger logger =
+        LoggerFactory.getLogger("ibis.smartsockets.virtual.pool");
+
+    private static final class Idle {
+
+        final VirtualSocket socket;
+        final long since;
+
+        Idle(VirtualSocket socket, long since) {
+            this.socket = socket;
+            this.since = since;
+        }
+    }
+
+    private final HashMap<VirtualSocketAddress, LinkedList<Idle>> idle =
+        new HashMap<VirtualSocketAddress, LinkedList<Idle>>();
+
+    private final long maxIdle;
+    private final long ttl;
+    private final int maxPerTarget;
+
+    private long nextPurge;
+
+    private long hits;
+    private long misses;
+    private long expired;
+
+    VirtualSocketPool(long maxIdle, long ttl, int maxPerTarget) {
+        this.maxIdle = maxIdle;
+        this.ttl = ttl;
+        this.maxPerTarget = maxPerTarget;
+        this.nextPurge = System.currentTimeMillis() + maxIdle;
+    }
+
+    private boolean usable(VirtualSocket s, long since, long now) {
+
+        if (now - since > maxIdle || now - s.created > ttl) {
+            return false;
+        }
+
+        if (s.isClosed() || !s.isConnected() || s.isInputShutdown()
+                || s.isOutputShutdown()) {
+            return false;
+        }
+
+        try {
+            // An idle socket should not have any data pending. If it does,
+            // the other side is using a protocol we do not know about.
+            return s.getInputStream().available() == 0;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static void close(VirtualSocket s) {
+        try {
+            s.close();
+        } catch (Exception e) {
+            // ignore
+        }
+    }
+
+    // Removes all sockets that have expired. Must be called while holding
+    // the lock. The sockets that are removed are added to 'dead'.
+    private void purge(long now, LinkedList<VirtualSocket> dead) {
+
+        Iterator<Map.Entry<VirtualSocketAddress, LinkedList<Idle>>> itt =
+            idle.entrySet().iterator();
+
+        while (itt.hasNext()) {
+
+            LinkedList<Idle> list = itt.next().getValue();
+
+            Iterator<Idle> i = list.iterator();
+
+            while (i.hasNext()) {
+                Idle tmp = i.next();
+
+                if (now - tmp.since > maxIdle
+                        || now - tmp.socket.created > ttl) {
+                    i.remove();
+                    dead.add(tmp.socket);
+                    expired++;
+                }
+            }
+
+            if (list.size() == 0) {
+                itt.remove();
+            }
+        }
+
+        nextPurge = now + maxIdle;
+    }
+
+    /**
+     * Returns an idle socket connected to the target, or null if there is
+     * none.
+     */
+    VirtualSocket get(VirtualSocketAddress target) {
+
+        LinkedList<VirtualSocket> dead = new LinkedList<VirtualSocket>();
+        VirtualSocket result = null;
+
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+
+            if (now >= nextPurge) {
+                purge(now, dead);
+            }
+
+            LinkedList<Idle> list = idle.get(target);
+
+            // Use the most recently released socket first.
+            while (result == null && list != null && list.size() > 0) {
+
+                Idle tmp = list.removeFirst();
+
+                if (usable(tmp.socket, tmp.since, now)) {
+                    result = tmp.socket;
+                } else {
+                    dead.add(tmp.socket);
+                    expired++;
+                }
+            }
+
+            if (list != null && list.size() == 0) {
+                idle.remove(target);
+            }
+
+            if (result != null) {
+                hits++;
+            } else {
+                misses++;
+            }
+        }
+
+        // NOTE: close outside the lock, since this may block.
+        for (VirtualSocket s : dead) {
+            close(s);
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Pool " + (result != null ? "hit" : "miss")
+                    + " for " + target);
+        }
+
+        return result;
+    }
+
+    /**
+     * Adds an idle socket to the pool.
+     *
+     * @return false if the socket cannot be pooled and must be closed.
+     */
+    boolean put(VirtualSocket s) {
+
+        LinkedList<VirtualSocket> dead = new LinkedList<VirtualSocket>();
+        boolean result = false;
+
+        long now = System.currentTimeMillis();
+
+        VirtualSocketAddress target =
+            new VirtualSocketAddress(s.remote, s.remotePort);
+
+        synchronized (this) {
+
+            if (now >= nextPurge) {
+                purge(now, dead);
+            }
+
+            if (usable(s, now, now)) {
+
+                LinkedList<Idle> list = idle.get(target);
+
+                if (list == null) {
+                    list = new LinkedList<Idle>();
+                    idle.put(target, list);
+                }
+
+                if (list.size() < maxPerTarget) {
+                    list.addFirst(new Idle(s, now));
+                    result = true;
+                }
+            }
+        }
+
+        for (VirtualSocket tmp : dead) {
+            close(tmp);
+        }
+
+        return result;
+    }
+
+    /**
+     * Closes all idle sockets.
+     */
+    void clear() {
+
+        LinkedList<Idle> tmp = new LinkedList<Idle>();
+
+        synchronized (this) {
+            for (LinkedList<Idle> list : idle.values()) {
+                tmp.addAll(list);
+            }
+
+            idle.clear();
+        }
+
+        for (Idle i : tmp) {
+            close(i.socket);
+        }
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getExpired() {
+        return expired;
+    }
+
+    synchronized int size() {
+
+        int count = 0;
+
+        for (LinkedList<Idle> list : idle.values()) {
+            count += list.size();
+        }
+
+        return count;
+    }
+}
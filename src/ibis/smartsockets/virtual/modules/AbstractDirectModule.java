@@ -36,6 +36,13 @@ public abstract class AbstractDirectModule extends MessagingModule implements Ac
         handlers.put(port, h);
     }
 
+    public synchronized void removeAcceptHandler(int port) {
+
+        if (handlers != null) {
+            handlers.remove(port);
+        }
+    }
+
     // Find the accept handler for the given port. If no handler is found,
     // the default handler (this object) will be returned.
     private synchronized AcceptHandler findAcceptHandler(int targetPort) {
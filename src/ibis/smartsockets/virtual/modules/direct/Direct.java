@@ -271,6 +271,29 @@ public class Direct extends AbstractDirectModule {
         return new DirectVirtualSocket(a, s, out, in, count, null);
     }
 
+    /**
+     * Completes the connection setup of a socket that was accepted by an
+     * AcceptHandler installed by another module, like a VirtualServerSocket
+     * would do when accepting it.
+     *
+     * @param s the accepted socket.
+     * @param timeout the timeout for the rest of the connection setup.
+     * @return the virtual socket.
+     * @throws IOException if the connection setup failed. The socket is
+     * closed.
+     */
+    public VirtualSocket acceptVirtualSocket(DirectSocket s, int timeout)
+            throws IOException {
+
+        DirectVirtualSocket result = (DirectVirtualSocket)
+            createVirtualSocket(parent.getLocalVirtual(), s);
+
+        result.connectionAccepted(timeout);
+        result.setTcpNoDelay(true);
+
+        return result;
+    }
+
     private VirtualSocket createVirtualSocket(VirtualSocketAddress a,
             DirectSocket s) throws IOException {
 
@@ -292,6 +315,27 @@ public class Direct extends AbstractDirectModule {
         }
     }
 
+    @Override
+    public void printStatistics(String prefix) {
+
+        super.printStatistics(prefix);
+
+        if (statslogger.isInfoEnabled() && server != null) {
+
+            long accepted = server.getAcceptCount();
+            long failed = server.getFailedCount();
+            long total = accepted + failed;
+
+            statslogger.info(prefix + " -> " + name + " in: "
+                    + total + " total, "
+                    + accepted + " accepted, "
+                    + failed + " failed, handshakes "
+                    + (total == 0 ? 0 : server.getHandshakeTime() / total)
+                    + " ms. avg, " + server.getMaxHandshakeTime()
+                    + " ms. max, " + server.getPendingCount() + " pending.");
+        }
+    }
+
     @Override
     public int getDefaultTimeout() {
         return DEFAULT_CONNECT_TIMEOUT;
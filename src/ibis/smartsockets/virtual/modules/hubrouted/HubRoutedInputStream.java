@@ -4,39 +4,110 @@ import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.SocketTimeoutException;
-
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Input stream of a hubrouted virtual connection.
+ *
+ * The sender may only send as much data as the window allows. The window
+ * starts at the buffer size given to the other side during the handshake,
+ * and is adapted using the acknowledgements we send. When the sender has used
+ * up its window while we keep up with the data, we measure the time it takes
+ * from sending the next acknowledgement until the data it allows arrives.
+ * If this round trip time is close to the minimum seen so far, the window
+ * limits the throughput, so it is doubled (up to the maximum buffer size).
+ * If it is much larger, the data is queued somewhere along the path (e.g. in
+ * a busy hub), so the window is reduced again (down to the initial size).
+ * The window is grown by acknowledging more data than was read, and reduced
+ * by acknowledging less.
+ * <p>
+ * The buffer is a ring buffer that is shared without locks between one
+ * producer (the servicelink thread that calls {@link #add}) and one consumer
+ * (the application thread that reads). Both sides count the total amount of
+ * data they have written and read. The producer publishes its count after
+ * copying the data into the buffer, and the consumer publishes its count
+ * before sending an acknowledgement, which is the only moment the producer
+ * needs it. The consumer is only parked when the buffer is empty, and only
+ * then does the producer need to unpark it. When the window grows beyond the
+ * size of the buffer, the producer moves the data to a larger buffer, so the
+ * consumer never has to wait for it.
+ */
 public class HubRoutedInputStream extends InputStream {
 
+    // A round trip is considered delayed if it exceeds this factor times the
+    // minimal round trip time, plus the slack below (in nanoseconds).
+    private static final int DELAY_FACTOR = 2;
+    private static final long DELAY_SLACK = 1000000L;
+
     private final int MINIMAL_ACK_SIZE;
 
     private final HubRoutedVirtualSocket parent;
 
-    // Current buffer
-    private final byte [] buffer;
+    private final int fragmentation;
+
+    // Initial and maximum size of the window.
+    private final int initialWindow;
+    private final int maximumWindow;
 
-    // Postion in the buffer where we start reading.
-    private int startRead = 0;
+    // Current buffer. Its size is at least the current window. It is only
+    // replaced by the producer.
+    private volatile byte [] buffer;
 
-    // Postion in the buffer where we start writing.
-    private int startWrite = 0;
+    // Total amount of data written into the buffer by the producer.
+    private volatile long written = 0;
 
-    // Amount of data in the buffer
-    private int available = 0;
+    // Total amount of data read by the consumer, as far as it has told the
+    // producer.
+    private volatile long consumed = 0;
 
-    // Amount of data which still needs to be acked.
+    // The reader thread, if it is blocked waiting for data.
+    private volatile Thread waiter;
+
+    // Used by the consumer only: total amount of data read, and the value of
+    // written last seen.
+    private long position = 0;
+    private long limit = 0;
+
+    // Amount of data which still needs to be acked (consumer only).
     private int pendingACK = 0;
 
+    // The current window, and the window we are moving to.
+    private volatile int window;
+    private volatile int targetWindow;
+
+    // Amount of acknowledgements withheld to reduce the window (consumer
+    // only).
+    private int debt = 0;
+
+    // Total amount of data the sender is allowed to send (consumer only).
+    private long granted;
+
+    // Round trip measurement. The measurement is started by the consumer,
+    // and ends when the first data beyond sampleLimit arrives.
+    private volatile boolean sampling = false;
+    private long sampleLimit;
+    private long sampleStart;
+    private long minRTT = Long.MAX_VALUE;
+
     // To indicate if we are (about to be) closed.
-    private boolean closePending = false;
-    private boolean closed = false;
+    private volatile boolean closePending = false;
+    private volatile boolean closed = false;
 
     HubRoutedInputStream(HubRoutedVirtualSocket parent, int fragmentation,
-            int bufferSize, int ackSize) {
+            int bufferSize, int maxBufferSize, int ackSize) {
 
         this.parent = parent;
+        this.fragmentation = fragmentation;
         this.buffer = new byte[bufferSize];
         this.MINIMAL_ACK_SIZE = ackSize;
 
+        this.initialWindow = bufferSize;
+        this.maximumWindow = Math.max(bufferSize, maxBufferSize);
+
+        this.window = bufferSize;
+        this.targetWindow = bufferSize;
+        this.granted = bufferSize;
+
     //    System.err.println("Buffer = " + bufferSize + ")");
     }
 
@@ -46,18 +117,18 @@ public class HubRoutedInputStream extends InputStream {
             throw new IOException("Stream closed!");
         }
 
-        // Check how much data we can read. This will block if the buffer is
-        // emtpy, and may throw a TimeOutException
-        int avail = waitAvailable();
-
-        // If -1 is returned, the socket was closed
-        if (avail == -1) {
+        // Only check for new data (and block if the buffer is empty) when
+        // we have read all the data we know about.
+        if (position == limit && waitAvailable() == -1) {
             doClose();
             return -1;
         }
 
-        int result = buffer[startRead];
-        startRead = (startRead + 1) % buffer.length;
+        // Must be read after written (see waitAvailable).
+        byte [] b = buffer;
+
+        int result = b[(int) (position % b.length)];
+        position++;
 
         decreaseAvailableAndACK(1);
 
@@ -87,19 +158,23 @@ public class HubRoutedInputStream extends InputStream {
         // Check if there is more/less available than we need
         int toRead = avail < len ? avail : len;
 
+        byte [] tmp = buffer;
+
+        int startRead = (int) (position % tmp.length);
+
         // Check if the buffer will wrap during the read
-        if (startRead + toRead <= buffer.length) {
+        if (startRead + toRead <= tmp.length) {
             // all the data can be read in one go!
-            System.arraycopy(buffer, startRead, b, off, toRead);
-            startRead = (startRead + toRead) % buffer.length;
+            System.arraycopy(tmp, startRead, b, off, toRead);
         } else {
             // the buffer wraps, so read the data in two parts
-            int part = buffer.length - startRead;
-            System.arraycopy(buffer, startRead, b, off, part);
-            System.arraycopy(buffer, 0, b, off+part, toRead-part);
-            startRead = toRead-part;
+            int part = tmp.length - startRead;
+            System.arraycopy(tmp, startRead, b, off, part);
+            System.arraycopy(tmp, 0, b, off+part, toRead-part);
         }
 
+        position += toRead;
+
         decreaseAvailableAndACK(toRead);
 
         return toRead;
@@ -107,24 +182,131 @@ public class HubRoutedInputStream extends InputStream {
 
     private void decreaseAvailableAndACK(int amount) throws IOException {
 
-        synchronized (this) {
-       //     System.err.println("SEND ACK Available -= " + amount + "(" + (available - amount) + ")");
-            available -= amount;
+        pendingACK += amount;
+
+        if (pendingACK <= MINIMAL_ACK_SIZE) {
+            return;
         }
 
-        pendingACK += amount;
+        // The producer may reuse the space we have read once we acknowledge
+        // it, so this must be published first.
+        consumed = position;
+
+        int ack = adjustWindow(pendingACK);
+        pendingACK = 0;
+
+        if (ack > 0) {
+            parent.sendACK(ack);
+        }
+    }
+
+    // Applies any pending window change, and returns the amount of data to
+    // acknowledge. Must be called by the consumer.
+    private int adjustWindow(int consumed) {
+
+        int ack = consumed - debt;
+        debt = 0;
+
+        int target = targetWindow;
+
+        if (target > window) {
+            // The producer grows the buffer when the data arrives.
+            ack += target - window;
+            window = target;
+
+        } else if (target < window) {
+            ack -= window - target;
+            window = target;
+        }
+
+        if (ack < 0) {
+            debt = -ack;
+            ack = 0;
+        }
+
+        long received = written;
+
+        // If the sender has used up its window, while the reader is keeping
+        // up, we measure how long it takes for the sender to continue.
+        if (!sampling && ack > 0 && granted - received < fragmentation
+                && received - position <= window / 4) {
+            sampleLimit = granted;
+            sampleStart = System.nanoTime();
+            sampling = true;
+        }
+
+        granted += ack;
+        return ack;
+    }
+
+    // Moves the data to a new buffer that can hold at least the given amount
+    // of data. Must be called by the producer.
+    private byte [] grow(byte [] old, long end, int needed) {
+
+        int size = Math.max(window, needed);
 
-        if (pendingACK > MINIMAL_ACK_SIZE) {
-            parent.sendACK(pendingACK);
-            pendingACK = 0;
+        byte [] tmp = new byte[size];
+
+        // The consumer may still be reading the data we copy, but it does not
+        // matter which of the two buffers it uses.
+        long i = consumed;
+
+        while (i < end) {
+            int from = (int) (i % old.length);
+            int to = (int) (i % tmp.length);
+            int n = (int) Math.min(end - i,
+                    Math.min(old.length - from, tmp.length - to));
+
+            System.arraycopy(old, from, tmp, to, n);
+            i += n;
+        }
+
+        buffer = tmp;
+        return tmp;
+    }
+
+    // Called when data arrives that ends a round trip measurement.
+    private void roundTrip(long rtt) {
+
+        if (rtt < minRTT) {
+            minRTT = rtt;
+        }
+
+        int current = window;
+
+        if (rtt > DELAY_FACTOR * minRTT + DELAY_SLACK) {
+            // The data got delayed on the way, so we back off.
+            targetWindow = Math.max(initialWindow,
+                    roundUp(current - current/4));
+        } else if (current < maximumWindow) {
+            // The window is limiting us.
+            targetWindow = Math.min(maximumWindow, roundUp(2 * current));
         }
     }
 
-    private synchronized int waitAvailable() throws IOException {
+    private int roundUp(int size) {
+        return ((size + fragmentation - 1) / fragmentation) * fragmentation;
+    }
+
+    /**
+     * Returns the current window size (in bytes).
+     *
+     * @return the current window size.
+     */
+    public int getWindow() {
+        return window;
+    }
+
+    // Returns the amount of data that can be read, blocking until there is
+    // any. Must be called by the consumer.
+    private int waitAvailable() throws IOException {
 
         // shortcut
-        if (available > 0) {
-            return available;
+        long w = written;
+
+        if (w > position) {
+            limit = w;
+            return (int) (w - position);
         }
 
         long deadline = 0;
@@ -132,49 +314,68 @@ public class HubRoutedInputStream extends InputStream {
 
         if (timeleft > 0) {
             deadline = System.currentTimeMillis() + timeleft;
-        } else {
-            timeleft = 0;
         }
 
-        while (available == 0) {
+        Thread current = Thread.currentThread();
+        boolean interrupted = false;
 
-            if (closePending || closed) {
-                return -1;
-            }
+        // We announce that we are waiting before checking for data again,
+        // and the producer publishes the data before checking if anyone is
+        // waiting, so at least one of us will notice the other.
+        waiter = current;
 
-            try {
-                wait(timeleft);
-            } catch (InterruptedException e) {
-                // ignore
-            }
+        try {
+            while (true) {
 
-            if (deadline > 0 && available == 0) {
-                timeleft = deadline - System.currentTimeMillis();
+                w = written;
 
-                if (timeleft <= 0) {
-                    throw new SocketTimeoutException("Timeout while reading " +
-                            "data");
+                if (w > position) {
+                    limit = w;
+                    return (int) (w - position);
+                }
+
+                if (closePending || closed) {
+                    return -1;
+                }
+
+                if (deadline > 0) {
+                    timeleft = deadline - System.currentTimeMillis();
+
+                    if (timeleft <= 0) {
+                        throw new SocketTimeoutException("Timeout while " +
+                                "reading data");
+                    }
+
+                    LockSupport.parkNanos(timeleft * 1000000L);
+                } else {
+                    LockSupport.park();
+                }
+
+                if (Thread.interrupted()) {
+                    interrupted = true;
                 }
             }
-        }
+        } finally {
+            waiter = null;
 
-        return available;
+            if (interrupted) {
+                current.interrupt();
+            }
+        }
     }
 
-    public synchronized int available() {
-        return available;
+    public int available() {
+        return (int) (written - position);
     }
 
-    public synchronized void close() {
+    public void close() {
         closePending = true;
 
         // Wakeup anyone waiting for data
-        if (available == 0) {
-            notifyAll();
-        }
+        wakeup();
     }
 
-    private synchronized void doClose() {
+    private void doClose() {
         closed = true;
     }
 
@@ -182,39 +383,57 @@ public class HubRoutedInputStream extends InputStream {
         return closed;
     }
 
-    protected final synchronized void add(int len, DataInputStream dis) throws IOException {
+    private void wakeup() {
 
-        // If the flow control is working correctly, we can alway write the
-        // data here!!!!
+        Thread t = waiter;
 
-        // Sanity check -- remove ASAP
-        if (len > (buffer.length - available)) {
-            System.err.println("EEK: buffer overflow!! (" + len + " > " + buffer.length + " - " + available + ")");
-            new Exception().printStackTrace(System.err);
+        if (t != null) {
+            LockSupport.unpark(t);
         }
+    }
+
+    protected final void add(int len, DataInputStream dis) throws IOException {
 
-        int cont = (buffer.length - startWrite);
+        // Only the producer changes written and buffer.
+        long start = written;
+        byte [] tmp = buffer;
+
+        int used = (int) (start - consumed);
+
+        if (len > tmp.length - used) {
+
+            // If the flow control is working correctly, this only happens
+            // when the window has grown.
+            if (used + len > maximumWindow) {
+                System.err.println("EEK: buffer overflow!! (" + len + " > "
+                        + tmp.length + " - " + used + ")");
+                new Exception().printStackTrace(System.err);
+            }
+
+            tmp = grow(tmp, start, used + len);
+        }
+
+        int startWrite = (int) (start % tmp.length);
+        int cont = (tmp.length - startWrite);
 
         if (cont >= len) {
             // We can read the data in one go.
-            dis.readFully(buffer, startWrite, len);
-            startWrite = (startWrite + len) % buffer.length;
+            dis.readFully(tmp, startWrite, len);
         } else {
             // The buffer will wrap, so read in two parts
-            dis.readFully(buffer, startWrite, cont);
-            dis.readFully(buffer, 0, len-cont);
-            startWrite = len-cont;
+            dis.readFully(tmp, startWrite, cont);
+            dis.readFully(tmp, 0, len-cont);
         }
 
-     //   System.err.println("RECEIVE Available += " + len + "(" + (available + len) + ")");
-
-        available += len;
+        // Publish the data.
+        written = start + len;
 
-      //  System.err.println("Buffer has " + available + " bytes...");
-
-        // Check if anyone could have been waiting for us...
-        if (available == len) {
-            notifyAll();
+        if (sampling && start + len > sampleLimit) {
+            roundTrip(System.nanoTime() - sampleStart);
+            sampling = false;
         }
+
+        // Check if anyone is waiting for us...
+        wakeup();
     }
 }
@@ -34,6 +34,7 @@ public class HubRoutedVirtualSocket extends VirtualSocket {
 
     private final int localFragmentation;
     private final int localBufferSize;
+    private final int localMaxBufferSize;
     private final int localMinimalACKSize;
 
     private int remoteFragmentation;
@@ -49,9 +50,11 @@ public class HubRoutedVirtualSocket extends VirtualSocket {
     private boolean ackACKResult = false;
 
     private boolean gotTargetOverload = false;
+    private boolean gotHubOverload = false;
 
     protected HubRoutedVirtualSocket(Hubrouted parent, int localFragmentation,
-            int localBufferSize, int localMinimalACKSize,
+            int localBufferSize, int localMaxBufferSize,
+            int localMinimalACKSize,
             int remoteFragmentation, int remoteBufferSize,
             VirtualSocketAddress target, ServiceLink serviceLink,
             long connectionIndex, Map<String, ?> p) {
@@ -64,6 +67,7 @@ public class HubRoutedVirtualSocket extends VirtualSocket {
 
         this.localFragmentation = localFragmentation;
         this.localBufferSize = localBufferSize;
+        this.localMaxBufferSize = localMaxBufferSize;
         this.localMinimalACKSize = localMinimalACKSize;
 
         this.remoteFragmentation = remoteFragmentation;
@@ -73,11 +77,12 @@ public class HubRoutedVirtualSocket extends VirtualSocket {
                 remoteBufferSize);
 
         this.in = new HubRoutedInputStream(this, localFragmentation,
-                localBufferSize, localMinimalACKSize);
+                localBufferSize, localMaxBufferSize, localMinimalACKSize);
     }
 
     protected HubRoutedVirtualSocket(Hubrouted parent, int localFragmentation,
-            int localBufferSize, int localMinimalACKSize,
+            int localBufferSize, int localMaxBufferSize,
+            int localMinimalACKSize,
             VirtualSocketAddress target, ServiceLink serviceLink, Map<String, ?> p) {
 
         super(target);
@@ -87,6 +92,7 @@ public class HubRoutedVirtualSocket extends VirtualSocket {
 
         this.localFragmentation = localFragmentation;
         this.localBufferSize = localBufferSize;
+        this.localMaxBufferSize = localMaxBufferSize;
         this.localMinimalACKSize = localMinimalACKSize;
     }
 
@@ -143,6 +149,11 @@ public class HubRoutedVirtualSocket extends VirtualSocket {
 
     public void waitForAccept(int timeout) throws IOException {
 
+        if (gotHubOverload) {
+            throw new TargetOverloadedException("Connection refused, " +
+                    "hub overloaded!");
+        }
+
         if (gotTargetOverload) {
             throw new TargetOverloadedException("Connection refused, " +
                     "target socket overloaded!");
@@ -215,7 +226,7 @@ public class HubRoutedVirtualSocket extends VirtualSocket {
     }
 
     public int getReceiveBufferSize() throws SocketException {
-        return 0; // s.getReceiveBufferSize();
+        return in == null ? 0 : in.getWindow();
     }
 
     public boolean getReuseAddress() throws SocketException {
@@ -328,8 +339,12 @@ public class HubRoutedVirtualSocket extends VirtualSocket {
                 timeout);
     }
 
-    protected void setTargetOverload() {
-        gotTargetOverload = true;
+    protected void setTargetOverload(boolean hub) {
+        if (hub) {
+            gotHubOverload = true;
+        } else {
+            gotTargetOverload = true;
+        }
     }
 
     protected synchronized void reset(long index) {
@@ -337,6 +352,7 @@ public class HubRoutedVirtualSocket extends VirtualSocket {
         gotACK = false;
         waitingForACK = true;
         gotTargetOverload = false;
+        gotHubOverload = false;
     }
 
     protected synchronized int waitForACK(int timeout) {
@@ -388,7 +404,7 @@ public class HubRoutedVirtualSocket extends VirtualSocket {
                 remoteBufferSize);
 
         in = new HubRoutedInputStream(this, localFragmentation,
-                localBufferSize, localMinimalACKSize);
+                localBufferSize, localMaxBufferSize, localMinimalACKSize);
 
         notifyAll();
 
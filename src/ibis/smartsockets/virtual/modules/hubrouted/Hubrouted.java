@@ -32,6 +32,7 @@ public class Hubrouted extends ConnectModule
 
     private int localFragmentation = 8*1024-16;
     private int localBufferSize = 1024*1024;
+    private int localMaxBufferSize = 4*1024*1024;
     private int localMinimalACKSize = localBufferSize / 4;
 
     public Hubrouted() {
@@ -67,6 +68,17 @@ public class Hubrouted extends ConnectModule
             }
         }
 
+        localMaxBufferSize = properties.getIntProperty(
+                SmartSocketsProperties.ROUTED_BUFFER_MAX, localMaxBufferSize);
+
+        if (localMaxBufferSize < localBufferSize) {
+            localMaxBufferSize = localBufferSize;
+        } else if (localMaxBufferSize % localFragmentation != 0) {
+            // The window grows in whole fragments.
+            int div = localMaxBufferSize / localFragmentation;
+            localMaxBufferSize = (div+1) * localFragmentation;
+        }
+
         if (localMinimalACKSize > localBufferSize) {
             logger.warn("Minimal ACK size (" + localMinimalACKSize
                     + ") is larger than buffer size (" + localBufferSize
@@ -78,6 +90,7 @@ public class Hubrouted extends ConnectModule
         if (logger.isInfoEnabled()) {
             logger.info("Using local fragment size: " + localFragmentation);
             logger.info("Using local buffer size  : " + localBufferSize);
+            logger.info("Using maximum buffer size: " + localMaxBufferSize);
             logger.info("Using minimal ACK size  : " + localMinimalACKSize);
         }
     }
@@ -121,7 +134,8 @@ public class Hubrouted extends ConnectModule
         // Create a socket first. Since this is a wrapper anyway, we can reuse
         // it until we get a connection.
         HubRoutedVirtualSocket s = new HubRoutedVirtualSocket(this,
-                 localFragmentation, localBufferSize, localMinimalACKSize,
+                 localFragmentation, localBufferSize, localMaxBufferSize,
+                localMinimalACKSize,
                  target, serviceLink, null);
 
         while (true) {
@@ -180,7 +194,14 @@ public class Hubrouted extends ConnectModule
                 case ServiceLinkProtocol.ERROR_SERVER_OVERLOAD:
                     // This one should be handled on a higher level, where we
                     // have a clue about timeouts
-                    s.setTargetOverload();
+                    s.setTargetOverload(false);
+                    return s;
+
+                case ServiceLinkProtocol.ERROR_HUB_OVERLOAD:
+                    // A hub refused to create more virtual connections. This
+                    // is handled like an overloaded target, so we back off
+                    // before retrying.
+                    s.setTargetOverload(true);
                     return s;
 
                 case -1:
@@ -249,7 +270,8 @@ public class Hubrouted extends ConnectModule
         VirtualSocketAddress sa = new VirtualSocketAddress(src, 0, srcHub, null);
 
         HubRoutedVirtualSocket s = new HubRoutedVirtualSocket(this,
-                localFragmentation, localBufferSize, localMinimalACKSize,
+                localFragmentation, localBufferSize, localMaxBufferSize,
+                localMinimalACKSize,
                 remoteFragmentation, remoteBufferSize, sa, serviceLink, index,
                 null);
 
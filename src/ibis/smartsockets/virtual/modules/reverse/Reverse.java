@@ -1,24 +1,28 @@
 package ibis.smartsockets.virtual.modules.reverse;
 
 import ibis.smartsockets.SmartSocketsProperties;
+import ibis.smartsockets.direct.DirectSocket;
 import ibis.smartsockets.direct.DirectSocketAddress;
+import ibis.smartsockets.direct.DirectSocketFactory;
+import ibis.smartsockets.util.ThreadPool;
 import ibis.smartsockets.util.TypedProperties;
 import ibis.smartsockets.virtual.NonFatalIOException;
 import ibis.smartsockets.virtual.VirtualServerSocket;
 import ibis.smartsockets.virtual.VirtualSocket;
 import ibis.smartsockets.virtual.VirtualSocketAddress;
 import ibis.smartsockets.virtual.modules.AbstractDirectModule;
+import ibis.smartsockets.virtual.modules.AcceptHandler;
 import ibis.smartsockets.virtual.modules.MessagingModule;
 import ibis.smartsockets.virtual.modules.direct.Direct;
 import ibis.smartsockets.virtual.modules.direct.DirectVirtualSocket;
 
-import java.net.SocketTimeoutException;
+import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 
-public class Reverse extends MessagingModule {
+public class Reverse extends MessagingModule implements AcceptHandler {
 
     private static final int DEFAULT_CONNECT_TIMEOUT = 3500;
     private static final boolean USE_THREAD = true;
@@ -31,9 +35,66 @@ public class Reverse extends MessagingModule {
 
     private boolean denyConnectionsToSelf = true;
 
-    private HashMap<Integer, String> replies = new HashMap<Integer, String>();
+    // The reverse connection setups we are waiting for, by request ID.
+    private final HashMap<Integer, PendingConnection> pending =
+        new HashMap<Integer, PendingConnection>();
 
-    private class Connector extends Thread {
+    // A reverse connection setup we are waiting for. It completes when
+    // either the connection comes in, or the target replies that it could
+    // not create it.
+    private static final class PendingConnection {
+
+        private DirectSocket socket;
+        private String reply;
+        private boolean done = false;
+
+        synchronized boolean connected(DirectSocket s) {
+
+            if (done) {
+                return false;
+            }
+
+            socket = s;
+            done = true;
+            notifyAll();
+            return true;
+        }
+
+        synchronized void failed(String reply) {
+
+            if (!done) {
+                this.reply = reply;
+                done = true;
+                notifyAll();
+            }
+        }
+
+        synchronized DirectSocket get(long deadline) {
+
+            while (!done) {
+
+                long left = deadline - System.currentTimeMillis();
+
+                if (left <= 0) {
+                    failed("Attempt timed out");
+                } else {
+                    try {
+                        wait(left);
+                    } catch (InterruptedException e) {
+                        // ignore
+                    }
+                }
+            }
+
+            return socket;
+        }
+
+        synchronized String getReply() {
+            return reply;
+        }
+    }
+
+    private class Connector implements Runnable {
 
         private final VirtualServerSocket ss;
         private final VirtualSocketAddress target;
@@ -85,67 +146,105 @@ public class Reverse extends MessagingModule {
         return null;
     }
 
-    private void storeReply(int requestID, String reply) {
+    private void storeRequest(int requestID, PendingConnection p) {
 
-        logger.debug("Storing reply: [" + requestID + "] " + reply);
+        logger.debug("Storing request: [" + requestID + "]");
 
-        synchronized (replies) {
-            if (replies.containsKey(requestID)) {
-                replies.put(requestID, reply);
-                replies.notifyAll();
-            }
+        synchronized (pending) {
+            pending.put(requestID, p);
         }
     }
 
-    private void storeRequest(int requestID) {
+    private PendingConnection findRequest(int requestID) {
+        synchronized (pending) {
+            return pending.get(requestID);
+        }
+    }
 
-        logger.debug("Storing request: [" + requestID + "]");
+    private void removeRequest(int requestID) {
+
+        logger.debug("Removing request: [" + requestID + "]");
 
-        synchronized (replies) {
-            replies.put(requestID, null);
+        synchronized (pending) {
+            pending.remove(requestID);
         }
     }
 
-    private String removeRequest(int requestID) {
+    private void storeReply(int requestID, String reply) {
+
+        logger.debug("Storing reply: [" + requestID + "] " + reply);
 
-        String result = null;
+        PendingConnection p = findRequest(requestID);
 
-        synchronized (replies) {
-            result = replies.remove(requestID);
+        if (p != null) {
+            p.failed(reply);
         }
+    }
 
-        logger.debug("Removing request: [" + requestID + "] " + result);
+    // The reverse connection for a request is made to a negative virtual
+    // port, which cannot be used by a server socket. The direct module
+    // passes these connections to us.
+    private static int toPort(int requestID) {
+        return -1 - requestID;
+    }
 
-        return result;
+    private static int toRequestID(int port) {
+        return -1 - port;
     }
 
-    private boolean haveReply(int requestID) {
+    public void accept(DirectSocket s, int targetPort, long time) {
+
+        int id = toRequestID(targetPort);
 
-        String result = null;
+        PendingConnection p = findRequest(id);
 
-        synchronized (replies) {
-            result = replies.get(requestID);
+        if (p != null && p.connected(s)) {
+
+            if (logger.isDebugEnabled()) {
+                logger.debug(module + ": reverse connection (" + id
+                        + ") came in");
+            }
+
+            return;
         }
 
-        logger.debug("Check request: [" + requestID + "] " + result);
+        // We gave up on this request.
+        if (logger.isInfoEnabled()) {
+            logger.info(module + ": reverse connection (" + id
+                    + ") came in too late");
+        }
 
-        return (result != null);
+        OutputStream out = null;
+
+        try {
+            out = s.getOutputStream();
+            out.write(AbstractDirectModule.PORT_NOT_FOUND);
+            out.flush();
+        } catch (Exception e) {
+            // ignore
+        } finally {
+            DirectSocketFactory.close(s, out, null);
+        }
     }
 
     private synchronized int nextRequestID() {
-        return requestID++;
+        int result = requestID;
+        requestID = (requestID + 1) & Integer.MAX_VALUE;
+        return result;
     }
 
     public VirtualSocket connect(VirtualSocketAddress target, int timeout,
             Map<String, Object> properties) throws NonFatalIOException {
 
         // When the reverse module is asked for a connection to a remote
-        // address, it simply creates a local serversocket and send a message
-        // to the remote machine asking for a connection. If no connection comes
-        // in within the specified timeout, the module assumes the connection
-        // setup has failed and throws an exception. If a connection does come
-        // in, the local socket still has to wait for the remote serversocket to
-        // do an accept.
+        // address, it sends a message to the remote machine asking for a
+        // connection to a (negative) port on our direct module, and waits for
+        // the connection to come in on that port. If no connection comes in
+        // within the specified timeout, or the remote machine replies that it
+        // cannot connect, the module assumes the connection setup has failed
+        // and throws an exception. If a connection does come in, the local
+        // socket still has to wait for the remote serversocket to do an
+        // accept.
 
         // First check if we are trying to connect to ourselves (which makes no
         // sense for this module...
@@ -162,97 +261,61 @@ public class Reverse extends MessagingModule {
             timeout = DEFAULT_CONNECT_TIMEOUT;
         }
 
-        VirtualServerSocket ss = null;
+        int id = nextRequestID();
+        int port = toPort(id);
 
-        try {
-            ss = parent.createServerSocket(0, 1, null);
-        } catch (Exception e) {
-            // All exceptions are converted into a module not suitable
-            // exception.
-            throw new NonFatalIOException("Failed to set up " +
-                    "reverse connection", e);
-        }
+        PendingConnection p = new PendingConnection();
+        DirectSocket ds = null;
 
-        int id = nextRequestID();
-        String reply = "Attempt timed out";
-        DirectVirtualSocket s = null;
+        // Instead of a server socket, we wait for the connection to come in
+        // on the direct module, which passes it to us.
+        storeRequest(id, p);
+        direct.installAcceptHandler(port, this);
 
         try {
-            storeRequest(id);
-
             byte [][] message = new byte[7][];
 
-            VirtualSocketAddress vs = ss.getLocalSocketAddress();
+            VirtualSocketAddress vs = parent.getLocalVirtual();
 
             message[0] = fromInt(target.port());
             message[1] = fromSocketAddressSet(vs.machine());
-            message[2] = fromInt(vs.port());
+            message[2] = fromInt(port);
             message[3] = fromSocketAddressSet(vs.hub());
             message[4] = fromString(vs.cluster());
             message[5] = fromInt(timeout);
             message[6] = fromInt(id);
 
-            serviceLink.send(target.machine(), target.hub(), module,
-                    PLEASE_CONNECT, message);
-
-            // Now wait for an incoming connection, while also checking for
-            // a reply message to come in...
-            int waittime = 100;
-            boolean stop = false;
-
             long deadline = System.currentTimeMillis() + timeout;
 
-            while (!stop) {
+            serviceLink.send(target.machine(), target.hub(), module,
+                    PLEASE_CONNECT, message);
 
-                long left = deadline - System.currentTimeMillis();
+            // Now wait for the incoming connection, or a reply message.
+            ds = p.get(deadline);
 
-                if (left <= 0) {
-                    stop = true;
-                } else {
+            if (ds == null) {
+                throw new NonFatalIOException("Target failed to "
+                        + "set up reverse connection (" + p.getReply() + ")");
+            }
 
-                    if (left < waittime) {
-                        waittime = (int) left;
-                    }
+            long left = deadline - System.currentTimeMillis();
 
-                    try {
-                        ss.setSoTimeout(waittime);
-                        s = (DirectVirtualSocket) ss.accept();
-                        stop = true;
-                    } catch (SocketTimeoutException e) {
-                        // ignore
-                    }
-                }
+            // The rest of the connection setup is handled by the generic code
+            // in the virtual socket factory.
+            return direct.acceptVirtualSocket(ds, (int) Math.max(left, 1));
 
-                if (!stop && haveReply(id)) {
-                    stop = true;
-                    reply = removeRequest(id);
-                }
-            }
+        } catch (NonFatalIOException e) {
+            throw e;
         } catch (Exception e) {
             // All exceptions are converted into a module not suitable
             // exception.
             throw new NonFatalIOException("Failed to set up reverse connection",
                     e);
         } finally {
-            // Always remove the request from the map and close the
-            // serversocket!
+            // Always remove the request.
+            direct.removeAcceptHandler(port);
             removeRequest(id);
-
-            try {
-                ss.close();
-            } catch (Exception e) {
-                // ignored
-            }
         }
-
-        if (s == null) {
-            throw new NonFatalIOException("Target failed to "
-                    + "set up reverse connection (" + reply + ")");
-        }
-
-        // The rest of the connection setup is handled by the generic code in
-        // the virtual socket factory.
-        return s;
     }
 
     private void sendReply(VirtualSocketAddress to, int requestID, String reply) {
@@ -408,7 +471,8 @@ public class Reverse extends MessagingModule {
         }
 
         if (USE_THREAD) {
-            new Connector(ss, target, timeout, requestID).start();
+            ThreadPool.createNew(new Connector(ss, target, timeout, requestID),
+                    "ReverseConnector");
         } else {
             setupConnection(ss, target, timeout, requestID);
         }
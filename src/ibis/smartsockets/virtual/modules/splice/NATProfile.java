@@ -0,0 +1,152 @@
+package ibis.smartsockets.virtual.modules.splice;
+
+import java.util.HashMap;
+
+/**
+ * Remembers how the NAT-box in front of this machine maps local ports to
+ * external ports, so a splice setup can predict the external port of a
+ * connection instead of asking a hub for it every time.
+ * <p>
+ * The mapping is profiled per range of local ports, since NAT-boxes may treat
+ * port ranges differently. A profile is made by asking a hub for the external
+ * ports of two local ports, one right after the other:
+ * <ul>
+ * <li>If both external ports have the same offset to their local port, the
+ * mapping is PRESERVING, and the external port of any local port in the range
+ * can be predicted without asking a hub. Unless the offset is zero, this only
+ * holds if the local ports are far enough apart, since a NAT-box that hands
+ * out its ports SEQUENTIAL gives two adjacent local ports the same offset as
+ * well.</li>
+ * <li>If the external ports differ by a small delta, the NAT-box hands out
+ * its ports SEQUENTIAL, and the connection to a peer is expected to use one
+ * of the next ports after the one seen by the hub.</li>
+ * <li>Otherwise, the mapping is RANDOM.</li>
+ * </ul>
+ * A profile expires after a given time, after which the range must be
+ * profiled again.
+ */
+final class NATProfile {
+
+    static final int PRESERVING = 0;
+    static final int SEQUENTIAL = 1;
+    static final int RANDOM     = 2;
+
+    // The number of local ports in a range.
+    private static final int RANGE_SIZE = 16384;
+
+    // The largest delta between two ports that is considered sequential.
+    private static final int MAX_DELTA = 8;
+
+    static final class Mapping {
+
+        final int type;
+
+        // Difference between the external and local port (PRESERVING only).
+        final int offset;
+
+        // Difference between two consecutive external ports (SEQUENTIAL only).
+        final int delta;
+
+        final long expires;
+
+        private Mapping(int type, int offset, int delta, long expires) {
+            this.type = type;
+            this.offset = offset;
+            this.delta = delta;
+            this.expires = expires;
+        }
+
+        int predict(int localPort) {
+
+            if (type != PRESERVING) {
+                return -1;
+            }
+
+            int port = localPort + offset;
+
+            if (port <= 0 || port > 65535) {
+                return -1;
+            }
+
+            return port;
+        }
+
+        public String toString() {
+            switch (type) {
+            case PRESERVING:
+                return "PRESERVING(offset " + offset + ")";
+            case SEQUENTIAL:
+                return "SEQUENTIAL(delta " + delta + ")";
+            default:
+                return "RANDOM";
+            }
+        }
+    }
+
+    private final long ttl;
+
+    private final HashMap<Integer, Mapping> ranges =
+        new HashMap<Integer, Mapping>();
+
+    NATProfile(long ttl) {
+        this.ttl = ttl;
+    }
+
+    private static Integer range(int localPort) {
+        return Integer.valueOf(localPort / RANGE_SIZE);
+    }
+
+    /**
+     * Returns the profile of the range containing the given local port.
+     *
+     * @return the profile, or null if the range has no valid profile.
+     */
+    synchronized Mapping get(int localPort) {
+
+        Integer key = range(localPort);
+
+        Mapping m = ranges.get(key);
+
+        if (m != null && m.expires < System.currentTimeMillis()) {
+            ranges.remove(key);
+            return null;
+        }
+
+        return m;
+    }
+
+    /**
+     * Profiles the mapping using the external ports that a hub saw for two
+     * local ports. The second local port must have been used right after the
+     * first one. The profile is stored for the ranges of both ports.
+     *
+     * @return the new profile.
+     */
+    synchronized Mapping add(int local1, int external1, int local2,
+            int external2) {
+
+        Mapping m;
+
+        long expires = System.currentTimeMillis() + ttl;
+
+        int delta = external2 - external1;
+
+        int offset = external2 - local2;
+
+        boolean sameOffset = (external1 - local1 == offset);
+
+        if (sameOffset && (offset == 0
+                || Math.abs(local2 - local1) > MAX_DELTA)) {
+            m = new Mapping(PRESERVING, offset, 0, expires);
+        } else if (delta != 0 && Math.abs(delta) <= MAX_DELTA) {
+            m = new Mapping(SEQUENTIAL, 0, delta, expires);
+        } else {
+            m = new Mapping(RANDOM, 0, 0, expires);
+        }
+
+        ranges.put(range(local1), m);
+        ranges.put(range(local2), m);
+
+        return m;
+    }
+}
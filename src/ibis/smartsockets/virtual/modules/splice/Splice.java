@@ -1,5 +1,6 @@
 package ibis.smartsockets.virtual.modules.splice;
 
+import ibis.smartsockets.SmartSocketsProperties;
 import ibis.smartsockets.direct.DirectSocket;
 import ibis.smartsockets.direct.DirectSocketAddress;
 import ibis.smartsockets.direct.DirectSocketFactory;
@@ -21,6 +22,7 @@ import java.io.OutputStream;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -45,6 +47,9 @@ public class Splice extends AbstractDirectModule {
     private static final int DEFAULT_CONNECT_TIMEOUT = 3000;
     private static final int PORT_RANGE = 5;
 
+    // Delta send when we cannot predict our external ports.
+    private static final int NO_DELTA = Integer.MIN_VALUE;
+
     private boolean behindNAT = false;
     private byte[] behindNATByte = new byte[] { 0 };
 
@@ -62,6 +67,8 @@ public class Splice extends AbstractDirectModule {
 
     private HashMap<String, Object> hubConnectProperties;
 
+    private NATProfile profile;
+
     private int nextID = 0;
 
     private final HashMap<Integer, byte [][]> replies =
@@ -147,8 +154,9 @@ public class Splice extends AbstractDirectModule {
         // the outside world....
         DirectSocketAddress [] result = new DirectSocketAddress[1];
         int [] localPort = new int[1];
+        int [] delta = new int[] { NO_DELTA };
 
-        timeout = getInfo(timeout, result, localPort);
+        timeout = getInfo(timeout, result, localPort, delta);
 
     //    System.err.println("Got splice info: " + result[0] + " " + localPort[0]);
 
@@ -161,7 +169,7 @@ public class Splice extends AbstractDirectModule {
         message[1] = fromInt(target.port());
         message[2] = fromSocketAddressSet(result[0]);
         message[3] = fromInt(timeout);
-        message[4] = behindNATByte;
+        message[4] = getNATInfo(delta[0]);
 
         registerReply(id);
 
@@ -211,8 +219,10 @@ public class Splice extends AbstractDirectModule {
         try {
             DirectSocketAddress tmp = toSocketAddressSet(message[2]);
             boolean otherBehindNAT = (message[3][0] == 1);
+            int otherDelta = getDelta(message[3]);
 
-            DirectSocketAddress [] a = getTargetRange(otherBehindNAT, tmp);
+            DirectSocketAddress [] a = getTargetRange(otherBehindNAT,
+                    otherDelta, tmp);
 
             // Try to connect to the target
             DirectSocket s = connect(a, localPort[0], DEFAULT_CONNECT_TIMEOUT,
@@ -233,30 +243,67 @@ public class Splice extends AbstractDirectModule {
        // return handleConnect(target, s, timeout, properties);
     }
 
+    // The NAT information send to the peer is a single byte that tells if we
+    // are behind a NAT. If we can predict our external ports, it is followed
+    // by the delta between the ports the peer should try (0 if the port is
+    // exact). Older versions only read the first byte.
+    private byte [] getNATInfo(int delta) {
+
+        if (!behindNAT || delta == NO_DELTA) {
+            return behindNATByte;
+        }
+
+        byte [] tmp = new byte[5];
+        tmp[0] = behindNATByte[0];
+        System.arraycopy(fromInt(delta), 0, tmp, 1, 4);
+        return tmp;
+    }
+
+    private int getDelta(byte [] natInfo) {
+
+        if (natInfo.length < 5) {
+            return NO_DELTA;
+        }
+
+        return (((natInfo[1] & 0xff) << 24) |
+                ((natInfo[2] & 0xff) << 16) |
+                ((natInfo[3] & 0xff) << 8) |
+                 (natInfo[4] & 0xff));
+    }
+
     private DirectSocketAddress [] getTargetRange(boolean behindNAT,
-            DirectSocketAddress realTarget) throws UnknownHostException {
+            int delta, DirectSocketAddress realTarget)
+            throws UnknownHostException {
 
-        DirectSocketAddress [] a;
+        if (!behindNAT || delta == 0) {
+            // The machine is likely to be behind a firewall, or its NAT keeps
+            // the port we got, so no port range prediction is necessary
+            return new DirectSocketAddress[] { realTarget };
+        }
 
-        if (!behindNAT) {
-            // the machine is likely to be behind a firewall, so no port range
-            // prediction is necessary
-            a = new DirectSocketAddress[1];
-            a[0] = realTarget;
-        } else {
-            // The machine is behind a NAT, so use port range prediction...
-            a = new DirectSocketAddress[PORT_RANGE];
-            a[0] = realTarget;
+        // The machine is behind a NAT, so use port range prediction. If the
+        // NAT did not tell us how it hands out ports, we assume they are
+        // sequential.
+        if (delta == NO_DELTA) {
+            delta = 1;
+        }
+
+        ArrayList<DirectSocketAddress> a = new ArrayList<DirectSocketAddress>();
+        a.add(realTarget);
+
+        int port = realTarget.getPorts(false)[0];
+        IPAddressSet ads = realTarget.getAddressSet();
+
+        for (int i=1;i<PORT_RANGE;i++) {
 
-            int port = realTarget.getPorts(false)[0];
-            IPAddressSet ads = realTarget.getAddressSet();
+            int p = port + i*delta;
 
-            for (int i=1;i<PORT_RANGE;i++) {
-                a[i] = DirectSocketAddress.getByAddress(ads, port+1);
+            if (p > 0 && p <= 65535) {
+                a.add(DirectSocketAddress.getByAddress(ads, p));
             }
         }
 
-        return a;
+        return a.toArray(new DirectSocketAddress[a.size()]);
     }
 
     private int getLocalPort(int timeout) throws SocketTimeoutException {
@@ -332,7 +379,7 @@ public class Splice extends AbstractDirectModule {
     }
 
     private int getInfo(int timeout, DirectSocketAddress [] result,
-            int [] localPort) throws NonFatalIOException {
+            int [] localPort, int [] delta) throws NonFatalIOException {
 
         int local = -1;
 
@@ -354,6 +401,14 @@ public class Splice extends AbstractDirectModule {
             return timeout;
         }
 
+        if (externalAddress != null && predict(timeout, result, localPort)) {
+            // Shortcut for machines behind a NAT that keeps the port numbers
+            // (or a fixed offset). We already know the external address, so
+            // we can predict the mapping without contacting a hub.
+            delta[0] = 0;
+            return timeout;
+        }
+
         long deadline = 0;
         long timeleft = timeout;
 
@@ -404,6 +459,14 @@ public class Splice extends AbstractDirectModule {
                     setExternalHub(hub);
                 }
 
+                if (deadline > 0) {
+                    timeleft = deadline - System.currentTimeMillis();
+                }
+
+                if (deadline == 0 || timeleft > 0) {
+                    profile(hub, (int) timeleft, result, localPort, delta);
+                }
+
                 if (deadline > 0) {
                     return (int) (deadline - System.currentTimeMillis());
                 } else {
@@ -431,6 +494,88 @@ public class Splice extends AbstractDirectModule {
         }
     }
 
+    private boolean predict(int timeout, DirectSocketAddress [] result,
+            int [] localPort) throws NonFatalIOException {
+
+        int local;
+
+        try {
+            local = getLocalPort(timeout);
+        } catch (IOException e) {
+            throw new NonFatalIOException("Failed to create local port", e);
+        }
+
+        NATProfile.Mapping m = profile.get(local);
+
+        if (m == null) {
+            return false;
+        }
+
+        int port = m.predict(local);
+
+        if (port <= 0) {
+            return false;
+        }
+
+        try {
+            result[0] = DirectSocketAddress.getByAddress(externalAddress,
+                    port);
+        } catch (Exception e) {
+            return false;
+        }
+
+        localPort[0] = local;
+
+        if (logger.isDebugEnabled()) {
+            logger.debug(module + ": predicted mapping of local port " + local
+                    + " to " + result[0]);
+        }
+
+        return true;
+    }
+
+    private void profile(DirectSocketAddress hub, int timeout,
+            DirectSocketAddress [] result, int [] localPort, int [] delta) {
+
+        NATProfile.Mapping m = profile.get(localPort[0]);
+
+        if (m == null) {
+
+            // The NAT mapping of this port range is unknown, so we ask the
+            // hub for the mapping of a second port. As the NAT hands out
+            // ports in order, we use this second port for the splice.
+            DirectSocketAddress [] tmp = new DirectSocketAddress[1];
+
+            try {
+                int local = getInfo(hub, timeout, -1, tmp);
+
+                if (tmp[0] != null) {
+                    m = profile.add(localPort[0],
+                            result[0].getPorts(false)[0], local,
+                            tmp[0].getPorts(false)[0]);
+
+                    result[0] = tmp[0];
+                    localPort[0] = local;
+
+                    if (logger.isInfoEnabled()) {
+                        logger.info(module + ": NAT mapping of local port "
+                                + local + " is " + m);
+                    }
+                }
+            } catch (IOException e) {
+                logger.info(module + ": Failed to profile NAT mapping", e);
+            }
+        }
+
+        if (m != null) {
+            if (m.type == NATProfile.PRESERVING) {
+                delta[0] = 0;
+            } else if (m.type == NATProfile.SEQUENTIAL) {
+                delta[0] = m.delta;
+            }
+        }
+    }
+
     private int getInfo(DirectSocketAddress externalHub, int timeout, int local,
             DirectSocketAddress [] result) throws IOException {
 
@@ -501,34 +646,11 @@ public class Splice extends AbstractDirectModule {
             return factory.createSocket(target[0], 5000, localPort, -1, -1,
                     null, true, userdata);
         } else {
-
-            IOException cause = null;
-
-            for (int i=0;i<MAX_ATTEMPTS;i++) {
-                for (int t=0;t<target.length;t++) {
-
-                    logger.debug(module + ": Splice attempt (" + i + "/" + t + ")");
-
-                    try {
-                        return factory.createSocket(target[t], timeout,
-                                localPort, -1, -1, null, false, userdata);
-                    } catch (IOException e) {
-                        logger.info(module + ": Connection failed "
-                                + Arrays.deepToString(target), e);
-                        cause = e;
-                    }
-                }
-            }
-
-            logger.debug(module + ": Splice failed.");
-
-            if (cause != null) {
-                throw cause;
-            }
+            // The ports of the target range are tried in parallel, since the
+            // NAT of the target may map any of them to our connection.
+            return new ParallelSplice(target, localPort, timeout,
+                    userdata).connect();
         }
-
-        // Should not happen.
-        return null;
     }
 
     public DirectSocketAddress getAddresses() {
@@ -539,6 +661,9 @@ public class Splice extends AbstractDirectModule {
     public void initModule(TypedProperties properties) throws Exception {
         // Create a direct socket factory.
         factory = DirectSocketFactory.getSocketFactory();
+
+        profile = new NATProfile(1000L * properties.getIntProperty(
+                SmartSocketsProperties.SPLICE_NAT_TTL, 300));
     }
 
     public boolean matchAdditionalRuntimeRequirements(Map<String, ?> requirements) {
@@ -586,6 +711,7 @@ public class Splice extends AbstractDirectModule {
             r.target = toSocketAddressSet(message[2]);
             r.timeout = toInt(message[3]);
             r.otherBehindNAT = (message[4][0] == 1);
+            r.otherDelta = getDelta(message[4]);
         } catch (Exception e) {
             logger.warn(module + ": failed to parse connect message " + src
                     + "@" + srcHub + "\"" +  Arrays.deepToString(message) + "\"", e);
@@ -669,6 +795,122 @@ public class Splice extends AbstractDirectModule {
         return new SplicedVirtualSocket(a, s, out, in, null);
     }
 
+    /**
+     * Tries to splice a connection to all ports of a target range at the same
+     * time. Each port is tried MAX_ATTEMPTS times by its own thread, all from
+     * the same local port. The first connection that is created is used, and
+     * any connections created later are closed.
+     */
+    private class ParallelSplice {
+
+        private final DirectSocketAddress [] target;
+        private final int localPort;
+        private final int timeout;
+        private final int userdata;
+
+        private int running;
+        private DirectSocket result;
+        private IOException cause;
+
+        ParallelSplice(DirectSocketAddress [] target, int localPort,
+                int timeout, int userdata) {
+            this.target = target;
+            this.localPort = localPort;
+            this.timeout = timeout;
+            this.userdata = userdata;
+        }
+
+        DirectSocket connect() throws IOException {
+
+            running = target.length;
+
+            for (int t=0;t<target.length;t++) {
+                ThreadPool.createNew(new Attempt(t), "Splice Attempt");
+            }
+
+            synchronized (this) {
+
+                while (result == null && running > 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // ignore
+                    }
+                }
+
+                if (result != null) {
+                    return result;
+                }
+            }
+
+            logger.debug(module + ": Splice failed.");
+
+            if (cause != null) {
+                throw cause;
+            }
+
+            return null;
+        }
+
+        private synchronized boolean done() {
+            return result != null;
+        }
+
+        private synchronized void finished(DirectSocket s, IOException e) {
+
+            running--;
+
+            if (s != null) {
+                if (result == null) {
+                    result = s;
+                } else {
+                    DirectSocketFactory.close(s, null, null);
+                }
+            } else if (e != null) {
+                cause = e;
+            }
+
+            notifyAll();
+        }
+
+        private class Attempt implements Runnable {
+
+            private final int t;
+
+            Attempt(int t) {
+                this.t = t;
+            }
+
+            public void run() {
+
+                IOException failure = null;
+
+                for (int i=0;i<MAX_ATTEMPTS && !done();i++) {
+
+                    logger.debug(module + ": Splice attempt (" + i + "/" + t
+                            + ")");
+
+                    try {
+                        DirectSocket s = factory.createSocket(target[t],
+                                timeout, localPort, -1, -1, null, false,
+                                userdata);
+
+                        if (s != null) {
+                            finished(s, null);
+                            return;
+                        }
+                    } catch (IOException e) {
+                        logger.info(module + ": Connection failed "
+                                + target[t], e);
+                        failure = e;
+                    }
+                }
+
+                finished(null, failure);
+            }
+        }
+    }
+
     private class SpliceRequest implements Runnable {
 
         byte [] id;
@@ -681,6 +923,7 @@ public class Splice extends AbstractDirectModule {
         int timeout = 0;
 
         boolean otherBehindNAT = false;
+        int otherDelta = NO_DELTA;
 
         public void run() {
 
@@ -700,9 +943,10 @@ public class Splice extends AbstractDirectModule {
 
             DirectSocketAddress [] result = new DirectSocketAddress[1];
             int [] localPort = new int[1];
+            int [] delta = new int[] { NO_DELTA };
 
             try {
-                timeout = getInfo(timeout, result, localPort);
+                timeout = getInfo(timeout, result, localPort, delta);
             } catch (Exception e) {
                 // ignore
             }
@@ -721,11 +965,12 @@ public class Splice extends AbstractDirectModule {
             // Send reply
             serviceLink.send(src, srcHub, module, CONNECT_ACK, new byte[][] {
                     id, new byte[] { OK }, fromSocketAddressSet(result[0]),
-                    behindNATByte});
+                    getNATInfo(delta[0])});
 
             // Setup connection
             try {
-                DirectSocketAddress [] a = getTargetRange(otherBehindNAT, target);
+                DirectSocketAddress [] a = getTargetRange(otherBehindNAT,
+                        otherDelta, target);
 
                 DirectSocket s = connect(a, localPort[0], timeout, 0);
 